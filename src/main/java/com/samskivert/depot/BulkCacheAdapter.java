@@ -0,0 +1,36 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A {@link CacheAdapter} that can look up, store and remove many entries of a single cache at
+ * once. Depot uses these operations when it loads or invalidates a collection of records, which
+ * saves the per-entry overhead of the single entry operations. Adapters that do not implement
+ * this interface are simply called once per entry.
+ */
+public interface BulkCacheAdapter extends CacheAdapter
+{
+    /**
+     * Looks up all of the supplied keys in the given cache, returning a mapping from each key
+     * that was found to its {@link CachedValue}. Keys not in the cache are omitted from the map.
+     */
+    public <T> Map<Serializable, CachedValue<T>> lookupAll (
+        String cacheId, Collection<? extends Serializable> keys);
+
+    /**
+     * Stores all of the supplied values in the given cache under their associated keys.
+     */
+    public <T> void storeAll (CacheCategory category, String cacheId,
+                              Map<? extends Serializable, ? extends T> values);
+
+    /**
+     * Removes the cache entries, if any, associated with the given keys.
+     */
+    public void removeAll (String cacheId, Collection<? extends Serializable> keys);
+}
@@ -7,6 +7,7 @@ package com.samskivert.depot;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 
 import java.util.Arrays;
@@ -15,11 +16,14 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import com.google.common.base.Function;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import static com.google.common.base.Preconditions.checkArgument;
 
 import com.samskivert.jdbc.ConnectionProvider;
@@ -46,6 +50,7 @@ import com.samskivert.depot.impl.Modifier;
 import com.samskivert.depot.impl.SQLBuilder;
 import com.samskivert.depot.impl.clause.DeleteClause;
 import com.samskivert.depot.impl.clause.UpdateClause;
+import com.samskivert.depot.impl.clause.UpsertClause;
 import com.samskivert.depot.impl.expression.ValueExp;
 import com.samskivert.depot.impl.util.SeqImpl;
 
@@ -55,6 +60,10 @@ import com.samskivert.depot.impl.util.SeqImpl;
  */
 public abstract class DepotRepository
 {
+    /** The number of records written per JDBC batch by {@link #insertAll(Collection)} and
+     * friends. */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
     public enum CacheStrategy {
         /** Completely bypass the cache for this query. */
         NONE,
@@ -75,9 +84,10 @@ public abstract class DepotRepository
 
         /**
          * This strategy is identical to {@link #RECORDS}, but we also cache the keyset fetched
-         * in the first pass. This makes it much more efficient, but also less reliable because
-         * there is no invalidation of the keyset query: If records are inserted, deleted or
-         * modified, cached keysets will not be updated.
+         * in the first pass. This makes it much more efficient. A cached keyset is tagged with the
+         * versions of the tables used by its query, and is ignored once any of them has been
+         * modified through Depot. Changes made to the database by other means, or by another
+         * VM sharing the cache, are not noticed however.
          *
          * Keysets cached using this strategy should have a short time-to-live.
          *
@@ -88,9 +98,10 @@ public abstract class DepotRepository
 
         /**
          * This strategy is identical to {@link #RECORDS}, but we also cache the keyset fetched
-         * in the first pass. This makes it much more efficient, but also less reliable because
-         * there is no invalidation of the keyset query: If records are inserted, deleted or
-         * modified, cached keysets will not be updated.
+         * in the first pass. This makes it much more efficient. A cached keyset is tagged with the
+         * versions of the tables used by its query, and is ignored once any of them has been
+         * modified through Depot. Changes made to the database by other means, or by another
+         * VM sharing the cache, are not noticed however.
          *
          * Keysets cached using this strategy may have a long time-to-live.
          *
@@ -107,9 +118,9 @@ public abstract class DepotRepository
          * and update the cache with the result.
          *
          * This strategy has none of the limitations of {@link #SHORT_KEYS} and can be used with
-         * key-less and @Computed records and arbitrarily complicated queries. Note however that as
-         * with {@link #SHORT_KEYS}, there is no automatic invalidation. It is also potentially
-         * very memory intensive.
+         * key-less and @Computed records and arbitrarily complicated queries. As with {@link
+         * #SHORT_KEYS}, the cached result is ignored once any of the tables it was loaded from
+         * has been modified through Depot. It is also potentially very memory intensive.
          */
         CONTENTS
     }
@@ -287,6 +298,127 @@ public abstract class DepotRepository
         return new Query<T>(_ctx, this, type);
     }
 
+    /**
+     * Runs the supplied action in a transaction: all of the queries and modifications it performs
+     * (via this or any other repository sharing our persistence context) use a single connection
+     * and are committed together, or rolled back if the action throws an exception. See {@link
+     * PersistenceContext#transaction} for details.
+     *
+     * @return the value returned by the action.
+     */
+    public <T> T inTransaction (Callable<T> action)
+        throws DatabaseException
+    {
+        return _ctx.transaction(action);
+    }
+
+    /**
+     * An asynchronous version of {@link #load(Key,QueryClause...)}. If the record is cached, the
+     * returned future will already be complete. Failures are reported via the future.
+     */
+    public <T extends PersistentRecord> ListenableFuture<T> loadAsync (
+        Key<T> key, QueryClause... clauses)
+    {
+        clauses = ArrayUtil.append(clauses, key);
+        return _ctx.invokeAsync(
+            new FindOneQuery<T>(_ctx, key.getPersistentClass(), CacheStrategy.BEST, clauses));
+    }
+
+    /**
+     * An asynchronous version of {@link #load(Class,QueryClause...)}.
+     */
+    public <T extends PersistentRecord> ListenableFuture<T> loadAsync (
+        Class<T> type, QueryClause... clauses)
+    {
+        return loadAsync(type, CacheStrategy.BEST, clauses);
+    }
+
+    /**
+     * An asynchronous version of {@link #load(Class,CacheStrategy,QueryClause...)}.
+     */
+    public <T extends PersistentRecord> ListenableFuture<T> loadAsync (
+        Class<T> type, CacheStrategy strategy, QueryClause... clauses)
+    {
+        return _ctx.invokeAsync(new FindOneQuery<T>(_ctx, type, strategy, clauses));
+    }
+
+    /**
+     * An asynchronous version of {@link #loadAll(Iterable)}.
+     */
+    public <T extends PersistentRecord> ListenableFuture<List<T>> loadAllAsync (
+        Iterable<Key<T>> keys)
+    {
+        return Iterables.isEmpty(keys) ? Futures.immediateFuture(Collections.<T>emptyList()) :
+            _ctx.invokeAsync(new FindAllQuery.WithKeys<T>(_ctx, keys));
+    }
+
+    /**
+     * An asynchronous version of {@link #findAll(Class,QueryClause...)}.
+     */
+    public <T extends PersistentRecord> ListenableFuture<List<T>> findAllAsync (
+        Class<T> type, QueryClause... clauses)
+    {
+        return findAllAsync(type, CacheStrategy.BEST, Arrays.asList(clauses));
+    }
+
+    /**
+     * An asynchronous version of {@link #findAll(Class,CacheStrategy,Iterable)}.
+     */
+    public <T extends PersistentRecord> ListenableFuture<List<T>> findAllAsync (
+        Class<T> type, CacheStrategy cache, Iterable<? extends QueryClause> clauses)
+    {
+        return _ctx.invokeAsync(FindAllQuery.newCachedFullRecordQuery(_ctx, type, cache, clauses));
+    }
+
+    /**
+     * An asynchronous version of {@link #insert}.
+     */
+    public <T extends PersistentRecord> ListenableFuture<Integer> insertAsync (final T record)
+    {
+        return _ctx.submit(new Callable<Integer>() {
+            public Integer call () {
+                return insert(record);
+            }
+        });
+    }
+
+    /**
+     * An asynchronous version of {@link #update(PersistentRecord)}.
+     */
+    public ListenableFuture<Integer> updateAsync (final PersistentRecord record)
+    {
+        return _ctx.submit(new Callable<Integer>() {
+            public Integer call () {
+                return update(record);
+            }
+        });
+    }
+
+    /**
+     * An asynchronous version of {@link #store}.
+     */
+    public <T extends PersistentRecord> ListenableFuture<Boolean> storeAsync (final T record)
+    {
+        return _ctx.submit(new Callable<Boolean>() {
+            public Boolean call () {
+                return store(record);
+            }
+        });
+    }
+
+    /**
+     * An asynchronous version of {@link #delete(Key)}.
+     */
+    public <T extends PersistentRecord> ListenableFuture<Integer> deleteAsync (
+        final Key<T> primaryKey)
+    {
+        return _ctx.submit(new Callable<Integer>() {
+            public Integer call () {
+                return delete(primaryKey);
+            }
+        });
+    }
+
     /**
      * Inserts the supplied persistent object into the database, assigning its primary key (if it
      * has one) in the process.
@@ -528,8 +660,9 @@ public abstract class DepotRepository
 
     /**
      * Stores the supplied persisent object in the database. If it has no primary key assigned (it
-     * is null or zero), it will be inserted directly. Otherwise an update will first be attempted
-     * and if that matches zero rows, the object will be inserted.
+     * is null or zero), it will be inserted directly. Otherwise, if the database supports it, the
+     * object is inserted or updated with a single upsert statement; if not, an update will first
+     * be attempted and if that matches zero rows, the object will be inserted.
      *
      * @return true if the record was created, false if it was updated.
      *
@@ -542,16 +675,11 @@ public abstract class DepotRepository
         requireNotComputed(pClass, "store");
 
         final DepotMarshaller<T> marsh = _ctx.getMarshaller(pClass);
-        Key<T> key = marsh.hasPrimaryKey() ? marsh.getPrimaryKey(record) : null;
+        final Key<T> key = marsh.hasPrimaryKey() ? marsh.getPrimaryKey(record) : null;
         final UpdateClause update =
             new UpdateClause(pClass, key, marsh.getColumnFieldNames(), record);
         final SQLBuilder builder = _ctx.getSQLBuilder(DepotTypes.getDepotTypes(_ctx, update));
 
-        // if our primary key isn't null, we start by trying to update rather than insert
-        if (key != null) {
-            builder.newQuery(update);
-        }
-
         final boolean[] created = new boolean[1];
         try {
             _ctx.invoke(new CachingModifier<T>(record, key, key) {
@@ -559,8 +687,17 @@ public abstract class DepotRepository
                 protected int invoke (Connection conn, DatabaseLiaison liaison)
                     throws SQLException
                 {
+                    // if our primary key isn't null and the database can do so, upsert
+                    if (_key != null && builder.supportsUpsert(conn, pClass)) {
+                        builder.newQuery(new UpsertClause(
+                            pClass, key, marsh.getColumnFieldNames(), _result));
+                        created[0] = builder.executeUpsert(conn);
+                        return 1;
+                    }
+
+                    // otherwise we start by trying to update rather than insert
                     if (_key != null) {
-                        // run the update
+                        builder.newQuery(update);
                         int mods = builder.prepare(conn).executeUpdate();
                         if (mods > 0) {
                             // if it succeeded, we're done
@@ -629,6 +766,188 @@ public abstract class DepotRepository
         return created[0];
     }
 
+    /**
+     * Inserts all of the supplied persistent objects into the database using JDBC batches of
+     * {@link #DEFAULT_BATCH_SIZE} records. See {@link #insertAll(Collection,int)}.
+     */
+    public <T extends PersistentRecord> int insertAll (Collection<T> records)
+        throws DatabaseException
+    {
+        return insertAll(records, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Inserts all of the supplied persistent objects (which must all be of the same class) into
+     * the database, assigning their primary keys (if they have them) in the process. The records
+     * are inserted using JDBC batches of at most {@code batchSize} records, all on a single
+     * connection, and are stored in the cache once they have all been inserted.
+     *
+     * <p> Database-generated (identity) keys are read back from the driver's generated keys. If
+     * the driver does not report a generated key for every record in a batch, the records for
+     * which no key was reported are left with no key and are not cached.
+     *
+     * @return the number of rows modified by this action.
+     *
+     * @throws DuplicateKeyException if an inserted record conflicts with the primary key (or any
+     * other unique key) of a record already in the database.
+     * @throws DatabaseException if any problem is encountered communicating with the database.
+     */
+    public <T extends PersistentRecord> int insertAll (Collection<T> records, final int batchSize)
+        throws DatabaseException
+    {
+        if (records.isEmpty()) {
+            return 0;
+        }
+        final Class<T> pClass = getBatchClass(records);
+        final DepotMarshaller<T> marsh = _ctx.getMarshaller(pClass);
+        final SQLBuilder builder = getBatchBuilder(pClass);
+        final List<T> recs = Lists.newArrayList(records);
+
+        List<Key<T>> keys = Lists.newArrayList();
+        for (T record : recs) {
+            Key<T> key = marsh.getPrimaryKey(record, false);
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+
+        return _ctx.invoke(new BatchCachingModifier<T>(marsh, recs, newKeysInvalidator(keys)) {
+            @Override
+            protected int invoke (Connection conn, DatabaseLiaison liaison) throws SQLException {
+                return batchInsert(conn, liaison, marsh, builder, _records, batchSize);
+            }
+            @Override
+            public void updateStats (Stats stats) {
+                stats.noteModification(pClass);
+            }
+        });
+    }
+
+    /**
+     * Updates all fields of all of the supplied persistent objects using JDBC batches of {@link
+     * #DEFAULT_BATCH_SIZE} records. See {@link #updateAll(Collection,int)}.
+     */
+    public <T extends PersistentRecord> int updateAll (Collection<T> records)
+        throws DatabaseException
+    {
+        return updateAll(records, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Updates all fields of all of the supplied persistent objects (which must all be of the same
+     * class), using their primary keys to identify the rows to be updated. The updates are
+     * performed using JDBC batches of at most {@code batchSize} records, all on a single
+     * connection, and the records are stored in the cache once they have all been updated.
+     *
+     * @return the number of rows modified by this action.
+     *
+     * @throws DatabaseException if any problem is encountered communicating with the database.
+     */
+    public <T extends PersistentRecord> int updateAll (Collection<T> records, final int batchSize)
+        throws DatabaseException
+    {
+        if (records.isEmpty()) {
+            return 0;
+        }
+        final Class<T> pClass = getBatchClass(records);
+        requireNotComputed(pClass, "update");
+        final DepotMarshaller<T> marsh = _ctx.getMarshaller(pClass);
+        final SQLBuilder builder = getBatchBuilder(pClass);
+        final List<T> recs = Lists.newArrayList(records);
+
+        List<Key<T>> keys = Lists.newArrayList();
+        for (T record : recs) {
+            Key<T> key = marsh.getPrimaryKey(record);
+            checkArgument(key != null, "Can't update record with null primary key.");
+            keys.add(key);
+        }
+
+        return _ctx.invoke(new BatchCachingModifier<T>(marsh, recs, newKeysInvalidator(keys)) {
+            @Override
+            protected int invoke (Connection conn, DatabaseLiaison liaison) throws SQLException {
+                return batchUpdate(conn, marsh, builder, _records, batchSize, null);
+            }
+            @Override
+            public void updateStats (Stats stats) {
+                stats.noteModification(pClass);
+            }
+        });
+    }
+
+    /**
+     * Stores all of the supplied persistent objects using JDBC batches of {@link
+     * #DEFAULT_BATCH_SIZE} records. See {@link #storeAll(Collection,int)}.
+     */
+    public <T extends PersistentRecord> int storeAll (Collection<T> records)
+        throws DatabaseException
+    {
+        return storeAll(records, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Stores all of the supplied persistent objects (which must all be of the same class) in the
+     * database. Records with a primary key are first updated (in batches); those that have no
+     * primary key, or whose update matched no rows, are then inserted (also in batches). All of
+     * this happens on a single connection, and the records are stored in the cache afterwards.
+     *
+     * <p> Unlike {@link #store}, this method does not retry the update if an insert fails because
+     * another process inserted a conflicting row in the meanwhile; a {@link
+     * DuplicateKeyException} is thrown instead.
+     *
+     * @return the number of records that were created (the remainder were updated).
+     *
+     * @throws DatabaseException if any problem is encountered communicating with the database.
+     */
+    public <T extends PersistentRecord> int storeAll (Collection<T> records, final int batchSize)
+        throws DatabaseException
+    {
+        if (records.isEmpty()) {
+            return 0;
+        }
+        final Class<T> pClass = getBatchClass(records);
+        requireNotComputed(pClass, "store");
+        final DepotMarshaller<T> marsh = _ctx.getMarshaller(pClass);
+        final SQLBuilder builder = getBatchBuilder(pClass);
+        final List<T> recs = Lists.newArrayList(records);
+
+        final List<T> updates = Lists.newArrayList();
+        final List<T> inserts = Lists.newArrayList();
+        List<Key<T>> keys = Lists.newArrayList();
+        for (T record : recs) {
+            Key<T> key = marsh.hasPrimaryKey() ? marsh.getPrimaryKey(record) : null;
+            if (key == null) {
+                inserts.add(record);
+            } else {
+                updates.add(record);
+                keys.add(key);
+            }
+        }
+
+        final int[] created = new int[1];
+        _ctx.invoke(new BatchCachingModifier<T>(marsh, recs, newKeysInvalidator(keys)) {
+            @Override
+            protected int invoke (Connection conn, DatabaseLiaison liaison) throws SQLException {
+                // we may be invoked again after a transient failure, so we must not modify the
+                // lists we were created with
+                List<T> toInsert = Lists.newArrayList(inserts);
+                int[] counts = new int[updates.size()];
+                int rows = batchUpdate(conn, marsh, builder, updates, batchSize, counts);
+                for (int ii = 0; ii < counts.length; ii++) {
+                    if (counts[ii] == 0) {
+                        toInsert.add(updates.get(ii));
+                    }
+                }
+                created[0] = toInsert.size();
+                return rows + batchInsert(conn, liaison, marsh, builder, toInsert, batchSize);
+            }
+            @Override
+            public void updateStats (Stats stats) {
+                stats.noteModification(pClass);
+            }
+        });
+        return created[0];
+    }
+
     /**
      * Deletes all persistent objects from the database matching the primary key of the supplied
      * object (which should be one or zero).
@@ -733,7 +1052,7 @@ public abstract class DepotRepository
         final SQLBuilder builder = _ctx.getSQLBuilder(DepotTypes.getDepotTypes(_ctx, delete));
         builder.newQuery(delete);
 
-        return _ctx.invoke(new Modifier(invalidator) {
+        return _ctx.invoke(new Modifier(invalidator, type) {
             @Override
             protected int invoke (Connection conn, DatabaseLiaison liaison) throws SQLException {
                 return builder.prepare(conn).executeUpdate();
@@ -742,6 +1061,10 @@ public abstract class DepotRepository
             public void updateStats (Stats stats) {
                 stats.noteModification(type);
             }
+            @Override
+            public String getShape (PersistenceContext ctx) {
+                return builder.getQuery();
+            }
         });
     }
 
@@ -850,7 +1173,7 @@ public abstract class DepotRepository
     {
         final SQLBuilder builder = _ctx.getSQLBuilder(DepotTypes.getDepotTypes(_ctx, update));
         builder.newQuery(update);
-        return _ctx.invoke(new Modifier(invalidator) {
+        return _ctx.invoke(new Modifier(invalidator, update.getPersistentClass()) {
             @Override
             protected int invoke (Connection conn, DatabaseLiaison liaison) throws SQLException {
                 return builder.prepare(conn).executeUpdate();
@@ -859,9 +1182,210 @@ public abstract class DepotRepository
             public void updateStats (Stats stats) {
                 stats.noteModification(update.getPersistentClass());
             }
+            @Override
+            public String getShape (PersistenceContext ctx) {
+                return builder.getQuery();
+            }
         });
     }
 
+    /**
+     * Inserts the supplied records using JDBC batches of at most {@code batchSize} records.
+     */
+    protected <T extends PersistentRecord> int batchInsert (
+        Connection conn, DatabaseLiaison liaison, DepotMarshaller<T> marsh, SQLBuilder builder,
+        List<T> records, int batchSize)
+        throws SQLException
+    {
+        checkArgument(batchSize > 0, "Batch size must be positive.");
+        boolean readBack = marsh.hasPostFactumValues();
+        List<T> batch = Lists.newArrayListWithCapacity(Math.min(batchSize, records.size()));
+        PreparedStatement stmt = null;
+        Set<String> columns = null;
+        int rows = 0;
+        for (T record : records) {
+            // set any auto-generated column values
+            Set<String> identityFields = marsh.generateFieldValues(conn, liaison, null, record,
+                                                                   false);
+            // the identity fields determine which columns we insert, and thus the SQL; so long as
+            // they don't change, we build the SQL once and merely bind each subsequent record
+            if (stmt != null && !identityFields.equals(columns)) {
+                rows += flushInserts(marsh, stmt, batch, readBack);
+                stmt.close();
+                stmt = null;
+            }
+            if (stmt == null) {
+                builder.newQuery(
+                    new InsertClause(marsh.getPersistentClass(), record, identityFields));
+                // we only need generated keys if we have identity columns
+                stmt = readBack ? builder.prepareInsert(conn) : builder.prepare(conn);
+                columns = identityFields;
+            } else {
+                builder.bind(conn, stmt, record);
+            }
+            stmt.addBatch();
+            batch.add(record);
+            if (batch.size() >= batchSize) {
+                rows += flushInserts(marsh, stmt, batch, readBack);
+            }
+        }
+        if (stmt != null) {
+            rows += flushInserts(marsh, stmt, batch, readBack);
+            stmt.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Executes the pending insert batch for the supplied records, and reads back their generated
+     * keys if needed.
+     */
+    protected <T extends PersistentRecord> int flushInserts (
+        DepotMarshaller<T> marsh, PreparedStatement stmt, List<T> batch, boolean readBack)
+        throws SQLException
+    {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        int rows = BatchCachingModifier.executeBatch(stmt, null, 0);
+        if (readBack && !marsh.assignGeneratedValues(stmt, batch)) {
+            log.warning("Driver did not report generated keys for all batch-inserted records",
+                        "type", marsh.getPersistentClass().getName(), "count", batch.size());
+        }
+        batch.clear();
+        return rows;
+    }
+
+    /**
+     * Updates all columns of the supplied records using JDBC batches of at most {@code batchSize}
+     * records. If {@code counts} is non-null, the number of rows modified by each record's
+     * update is stored in the corresponding element. If the driver does not report those counts
+     * for batched statements, the records are updated one at a time instead.
+     */
+    protected <T extends PersistentRecord> int batchUpdate (
+        Connection conn, DepotMarshaller<T> marsh, SQLBuilder builder, List<T> records,
+        int batchSize, int[] counts)
+        throws SQLException
+    {
+        checkArgument(batchSize > 0, "Batch size must be positive.");
+        boolean exact = (counts != null);
+        if (!exact) {
+            counts = new int[records.size()];
+        }
+        // every record updates the same columns by primary key, so we build the SQL once and
+        // merely bind each subsequent record
+        PreparedStatement stmt = null;
+        int nn = records.size(), start = 0, unreported = -1;
+        for (int ii = 0; ii < nn; ii++) {
+            if (stmt != null && ii - start >= batchSize) {
+                unreported = flushUpdates(stmt, counts, start, ii, exact);
+                start = ii;
+                if (unreported >= 0) {
+                    break;
+                }
+            }
+            if (stmt == null) {
+                builder.newQuery(newUpdateClause(marsh, records.get(ii)));
+                stmt = builder.prepare(conn);
+            } else {
+                builder.bind(conn, stmt, records.get(ii));
+            }
+            stmt.addBatch();
+        }
+        if (stmt != null) {
+            if (unreported < 0) {
+                unreported = flushUpdates(stmt, counts, start, nn, exact);
+            }
+            stmt.close();
+        }
+
+        // if we need to know which records were updated and the driver didn't say, update the
+        // records from the first unreported one onward individually; updating a record a second
+        // time with the same values is harmless
+        if (unreported >= 0) {
+            builder.newQuery(newUpdateClause(marsh, records.get(unreported)));
+            PreparedStatement one = builder.prepare(conn);
+            try {
+                for (int ii = unreported; ii < nn; ii++) {
+                    if (ii > unreported) {
+                        builder.bind(conn, one, records.get(ii));
+                    }
+                    counts[ii] = one.executeUpdate();
+                }
+            } finally {
+                one.close();
+            }
+        }
+
+        int rows = 0;
+        for (int ii = 0; ii < nn; ii++) {
+            rows += (counts[ii] == Statement.SUCCESS_NO_INFO) ? 1 : counts[ii];
+        }
+        return rows;
+    }
+
+    /**
+     * Executes the pending update batch for the records from {@code start} (inclusive) to {@code
+     * end} (exclusive), storing their counts in {@code counts}. If {@code exact} is true, returns
+     * the index of the first record for which the driver did not report a count, or -1 if it
+     * reported them all.
+     */
+    protected int flushUpdates (
+        PreparedStatement stmt, int[] counts, int start, int end, boolean exact)
+        throws SQLException
+    {
+        BatchCachingModifier.executeBatch(stmt, counts, start);
+        if (exact) {
+            for (int ii = start; ii < end; ii++) {
+                if (counts[ii] == Statement.SUCCESS_NO_INFO) {
+                    return ii;
+                }
+            }
+        }
+        return -1;
+    }
+
+    protected <T extends PersistentRecord> UpdateClause newUpdateClause (
+        DepotMarshaller<T> marsh, T record)
+    {
+        return new UpdateClause(marsh.getPersistentClass(), marsh.getPrimaryKey(record),
+                                marsh.getColumnFieldNames(), record);
+    }
+
+    /**
+     * Returns the class of the supplied records, ensuring that they are all of the same class.
+     */
+    protected <T extends PersistentRecord> Class<T> getBatchClass (Collection<T> records)
+    {
+        @SuppressWarnings("unchecked") Class<T> pClass =
+            (Class<T>)records.iterator().next().getClass();
+        for (T record : records) {
+            checkArgument(record.getClass() == pClass,
+                          "Batched records must all be of the same class.");
+        }
+        return pClass;
+    }
+
+    /**
+     * Returns an invalidator that flushes each of the supplied keys from the cache. Unlike a
+     * {@link KeySet}, this places no limit on the number of keys.
+     */
+    protected static CacheInvalidator newKeysInvalidator (final Collection<? extends Key<?>> keys)
+    {
+        return new CacheInvalidator() {
+            public void invalidate (PersistenceContext ctx) {
+                ctx.cacheInvalidateAll(keys);
+            }
+        };
+    }
+
+    protected SQLBuilder getBatchBuilder (Class<? extends PersistentRecord> pClass)
+    {
+        DepotTypes types = DepotTypes.getDepotTypes(_ctx);
+        types.addClass(_ctx, pClass);
+        return _ctx.getSQLBuilder(types);
+    }
+
     /**
      * If the supplied migration has not already been run, it will be run and if it completes, we
      * will note in the DepotMigrationHistory table that it has been run.
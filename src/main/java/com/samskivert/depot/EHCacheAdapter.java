@@ -5,6 +5,7 @@
 package com.samskivert.depot;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
@@ -13,7 +14,6 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import com.samskivert.util.Histogram;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
@@ -39,14 +39,14 @@ import static com.samskivert.depot.Log.log;
  * not puts nor updates-via-copy.
  */
 public class EHCacheAdapter
-    implements CacheAdapter
+    implements BulkCacheAdapter
 {
     public static class EHCachePerformance
     {
-        public Histogram lookups;
-        public Histogram stores;
-        public Histogram removes;
-        public Histogram enumerations;
+        public LatencyHistogram.Snapshot lookups;
+        public LatencyHistogram.Snapshot stores;
+        public LatencyHistogram.Snapshot removes;
+        public LatencyHistogram.Snapshot enumerations;
     }
 
     public static class EHCacheConfig
@@ -119,21 +119,21 @@ public class EHCacheAdapter
     // from CacheAdapter
     public <T> CachedValue<T> lookup (String cacheId, Serializable key)
     {
-        long now = System.currentTimeMillis();
+        long start = System.nanoTime();
         @SuppressWarnings("unchecked")
         EHCacheBin<T> bin = (EHCacheBin<T>) _bins.get(cacheId);
         if (bin == null) {
             return null;
         }
         CachedValue<T> result = lookup(bin.getCache(), cacheId, key);
-        _lookups.addValue((int) (System.currentTimeMillis() - now));
+        _lookups.recordSince(start);
         return result;
     }
 
     // from CacheAdapter
     public <T> void store (CacheCategory category, String cacheId, Serializable key, T value)
     {
-        long now = System.currentTimeMillis();
+        long start = System.nanoTime();
         Ehcache cache = _categories.get(category);
         checkArgument(cache != null, "Unknown category: " + category);
 
@@ -144,24 +144,80 @@ public class EHCacheAdapter
             _bins.put(cacheId, bin);
         }
         bin.getCache().put(new Element(new EHCacheKey(cacheId, key), value != null ? value : NULL));
-        _stores.addValue((int) (System.currentTimeMillis() - now));
+        _stores.recordSince(start);
     }
 
     // from CacheAdapter
     public void remove (String cacheId, Serializable key)
     {
-        long now = System.currentTimeMillis();
+        long start = System.nanoTime();
         EHCacheBin<?> bin = _bins.get(cacheId);
         if (bin != null) {
             bin.getCache().remove(new EHCacheKey(cacheId, key));
         }
-        _removes.addValue((int) (System.currentTimeMillis() - now));
+        _removes.recordSince(start);
+    }
+
+    // from BulkCacheAdapter
+    public <T> Map<Serializable, CachedValue<T>> lookupAll (
+        String cacheId, Collection<? extends Serializable> keys)
+    {
+        long start = System.nanoTime();
+        Map<Serializable, CachedValue<T>> result = Maps.newHashMap();
+        EHCacheBin<?> bin = _bins.get(cacheId);
+        if (bin != null) {
+            Ehcache cache = bin.getCache();
+            for (Serializable key : keys) {
+                CachedValue<T> value = lookup(cache, cacheId, key);
+                if (value != null) {
+                    result.put(key, value);
+                }
+            }
+        }
+        _lookups.recordSince(start);
+        return result;
+    }
+
+    // from BulkCacheAdapter
+    public <T> void storeAll (CacheCategory category, String cacheId,
+                              Map<? extends Serializable, ? extends T> values)
+    {
+        long start = System.nanoTime();
+        Ehcache cache = _categories.get(category);
+        checkArgument(cache != null, "Unknown category: " + category);
+
+        EHCacheBin<?> bin = _bins.get(cacheId);
+        if (bin == null) {
+            bin = new EHCacheBin<T>(cache, cacheId);
+            _bins.put(cacheId, bin);
+        }
+        cache = bin.getCache();
+        for (Map.Entry<? extends Serializable, ? extends T> entry : values.entrySet()) {
+            T value = entry.getValue();
+            cache.put(new Element(new EHCacheKey(cacheId, entry.getKey()),
+                                  value != null ? value : NULL));
+        }
+        _stores.recordSince(start);
+    }
+
+    // from BulkCacheAdapter
+    public void removeAll (String cacheId, Collection<? extends Serializable> keys)
+    {
+        long start = System.nanoTime();
+        EHCacheBin<?> bin = _bins.get(cacheId);
+        if (bin != null) {
+            Ehcache cache = bin.getCache();
+            for (Serializable key : keys) {
+                cache.remove(new EHCacheKey(cacheId, key));
+            }
+        }
+        _removes.recordSince(start);
     }
 
     // from CacheAdapter
     public <T> Iterable<Serializable> enumerate (final String cacheId)
     {
-        long now = System.currentTimeMillis();
+        long start = System.nanoTime();
         EHCacheBin<?> bin = _bins.get(cacheId);
         if (bin == null) {
             return Collections.emptySet();
@@ -169,7 +225,7 @@ public class EHCacheAdapter
 
         // let's return a simple copy of the bin's fancy concurrent hashset
         Set<Serializable> result = Sets.newHashSet(bin.getKeys());
-        _enumerations.addValue((int) (System.currentTimeMillis() - now));
+        _enumerations.recordSince(start);
         return result;
     }
 
@@ -204,10 +260,24 @@ public class EHCacheAdapter
     public EHCachePerformance getPerformanceSnapshot ()
     {
         EHCachePerformance result = new EHCachePerformance();
-        result.lookups = _lookups.clone();
-        result.stores = _stores.clone();
-        result.removes = _removes.clone();
-        result.enumerations = _enumerations.clone();
+        result.lookups = _lookups.getSnapshot();
+        result.stores = _stores.getSnapshot();
+        result.removes = _removes.getSnapshot();
+        result.enumerations = _enumerations.getSnapshot();
+        return result;
+    }
+
+    /**
+     * Return a snapshot of the histograms detailing how much time the different operations took
+     * since the previous call to this method (or since we were created, for the first call).
+     */
+    public synchronized EHCachePerformance getIntervalPerformanceSnapshot ()
+    {
+        EHCachePerformance result = new EHCachePerformance();
+        result.lookups = _lookups.getIntervalSnapshot();
+        result.stores = _stores.getIntervalSnapshot();
+        result.removes = _removes.getIntervalSnapshot();
+        result.enumerations = _enumerations.getIntervalSnapshot();
         return result;
     }
 
@@ -412,10 +482,10 @@ public class EHCacheAdapter
     };
 
     protected CacheManager _cachemgr;
-    protected Histogram _lookups = new Histogram(0, 50, 20);
-    protected Histogram _stores = new Histogram(0, 50, 20);
-    protected Histogram _removes = new Histogram(0, 50, 20);
-    protected Histogram _enumerations = new Histogram(0, 50, 20);
+    protected LatencyHistogram _lookups = new LatencyHistogram();
+    protected LatencyHistogram _stores = new LatencyHistogram();
+    protected LatencyHistogram _removes = new LatencyHistogram();
+    protected LatencyHistogram _enumerations = new LatencyHistogram();
 
     protected Map<CacheCategory, Ehcache> _categories =
         Collections.synchronizedMap(Maps.<CacheCategory, Ehcache>newHashMap());
@@ -228,9 +228,7 @@ public abstract class KeySet<T extends PersistentRecord> extends WhereClause
 
     // from ValidatingCacheInvalidator
     public void invalidate (PersistenceContext ctx) {
-        for (Key<T> key : this) {
-            ctx.cacheInvalidate(key);
-        }
+        ctx.cacheInvalidateAll(this);
     }
 
     // from ValidatingCacheInvalidator
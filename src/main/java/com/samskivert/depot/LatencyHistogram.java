@@ -0,0 +1,244 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.samskivert.depot.impl.StripedCounters;
+
+/**
+ * Records a distribution of durations, in nanoseconds, with log-linear buckets: each power of two
+ * is split into {@link #SUB_BUCKETS} equal buckets, so any recorded value can be recovered to
+ * within about six percent from a range of a nanosecond to about eighteen minutes (longer
+ * durations are recorded as that). Recording is lock-free and cheap enough to do on every
+ * operation.
+ *
+ * <p> The distribution is read by taking a {@link Snapshot}, either of everything recorded since
+ * the histogram was created ({@link #getSnapshot}), or of everything recorded since the previous
+ * interval snapshot ({@link #getIntervalSnapshot}).
+ */
+public class LatencyHistogram
+{
+    /** The number of buckets into which each power of two is split. */
+    public static final int SUB_BUCKETS = 16;
+
+    /**
+     * An immutable view of a distribution of durations.
+     */
+    public static class Snapshot
+    {
+        /**
+         * Returns the number of durations recorded.
+         */
+        public long getCount ()
+        {
+            return _count;
+        }
+
+        /**
+         * Returns the sum of all durations recorded, in nanoseconds.
+         */
+        public long getTotal ()
+        {
+            return _total;
+        }
+
+        /**
+         * Returns the mean duration in nanoseconds, or zero if no durations were recorded.
+         */
+        public long getMean ()
+        {
+            return (_count == 0) ? 0 : _total / _count;
+        }
+
+        /**
+         * Returns the longest duration recorded (to the resolution of our buckets), in
+         * nanoseconds, or zero if no durations were recorded.
+         */
+        public long getMax ()
+        {
+            for (int ii = _buckets.length-1; ii >= 0; ii--) {
+                if (_buckets[ii] > 0) {
+                    return highestValue(ii);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Returns the duration (in nanoseconds) at or below which the specified percentage of
+         * the recorded durations fall, e.g. {@code getPercentile(99.9)} for the p999 duration.
+         * The value is reported to the resolution of our buckets, rounding up. Returns zero if no
+         * durations were recorded.
+         */
+        public long getPercentile (double percentile)
+        {
+            if (_count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long)Math.ceil(_count * Math.min(percentile, 100) / 100));
+            long seen = 0;
+            for (int ii = 0; ii < _buckets.length; ii++) {
+                seen += _buckets[ii];
+                if (seen >= rank) {
+                    return highestValue(ii);
+                }
+            }
+            return getMax(); // not reached unless our counts are inconsistent
+        }
+
+        /**
+         * Returns the number of durations recorded in each bucket. Bucket {@code ii} covers the
+         * durations from {@link #lowestValue}{@code (ii)} to {@link #highestValue}{@code (ii)}.
+         */
+        public long[] getBuckets ()
+        {
+            return _buckets.clone();
+        }
+
+        /**
+         * Returns a snapshot of the durations recorded in this snapshot but not in the supplied
+         * earlier snapshot of the same histogram.
+         */
+        public Snapshot since (Snapshot earlier)
+        {
+            long[] buckets = new long[_buckets.length];
+            for (int ii = 0; ii < buckets.length; ii++) {
+                buckets[ii] = _buckets[ii] - earlier._buckets[ii];
+            }
+            return new Snapshot(buckets, _total - earlier._total);
+        }
+
+        @Override // from Object
+        public String toString ()
+        {
+            return "[count=" + _count + ", mean=" + getMean() + ", p50=" + getPercentile(50) +
+                ", p99=" + getPercentile(99) + ", p999=" + getPercentile(99.9) +
+                ", max=" + getMax() + "]";
+        }
+
+        protected Snapshot (long[] buckets, long total)
+        {
+            _buckets = buckets;
+            _total = total;
+            for (long count : buckets) {
+                _count += count;
+            }
+        }
+
+        protected final long[] _buckets;
+        protected final long _total;
+        protected long _count;
+    }
+
+    /**
+     * Records the supplied duration, in nanoseconds. Negative durations (which a misbehaving
+     * clock can produce) are recorded as zero.
+     */
+    public void record (long nanos)
+    {
+        nanos = Math.max(nanos, 0);
+        _buckets.incrementAndGet(bucketIndex(nanos));
+        _total.add(0, nanos);
+    }
+
+    /**
+     * Records the time elapsed since the supplied {@link System#nanoTime} stamp.
+     */
+    public void recordSince (long startNanos)
+    {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns the sum of all durations recorded since this histogram was created, in nanoseconds.
+     * This is cheaper than taking a snapshot when only the total is needed.
+     */
+    public long getTotal ()
+    {
+        return _total.get(0);
+    }
+
+    /**
+     * Returns a snapshot of everything recorded since this histogram was created.
+     */
+    public Snapshot getSnapshot ()
+    {
+        long[] buckets = new long[_buckets.length()];
+        for (int ii = 0; ii < buckets.length; ii++) {
+            buckets[ii] = _buckets.get(ii);
+        }
+        return new Snapshot(buckets, _total.get(0));
+    }
+
+    /**
+     * Returns a snapshot of everything recorded since the previous call to this method (or since
+     * this histogram was created, for the first call). This does not affect {@link #getSnapshot}.
+     */
+    public synchronized Snapshot getIntervalSnapshot ()
+    {
+        Snapshot current = getSnapshot();
+        Snapshot interval = current.since(_lastInterval);
+        _lastInterval = current;
+        return interval;
+    }
+
+    /**
+     * Returns the index of the bucket into which the supplied (non-negative) duration falls.
+     */
+    public static int bucketIndex (long nanos)
+    {
+        if (nanos < SUB_BUCKETS) {
+            return (int)nanos;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exp > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int)(nanos >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the smallest duration that falls into the specified bucket.
+     */
+    public static long lowestValue (int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1, sub = bucket % SUB_BUCKETS;
+        return (long)(SUB_BUCKETS + sub) << (exp - SUB_BITS);
+    }
+
+    /**
+     * Returns the largest duration that falls into the specified bucket.
+     */
+    public static long highestValue (int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        return lowestValue(bucket) + (1L << (exp - SUB_BITS)) - 1;
+    }
+
+    /** The number of bits of sub-bucket index. */
+    protected static final int SUB_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+    /** The largest power of two we distinguish: 2^40ns is about eighteen minutes. */
+    protected static final int MAX_EXPONENT = 39;
+
+    /** The total number of buckets. */
+    protected static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    /** Our bucket counts. Recorded durations are spread over many buckets, so these are not
+     * striped, unlike our total, which every recording updates. */
+    protected final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+    protected final StripedCounters _total = new StripedCounters(1);
+
+    /** The snapshot taken by the last call to {@link #getIntervalSnapshot}. */
+    protected Snapshot _lastInterval = new Snapshot(new long[BUCKETS], 0);
+}
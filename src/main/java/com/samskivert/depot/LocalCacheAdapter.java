@@ -0,0 +1,681 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import com.samskivert.depot.impl.VersionedValue;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.samskivert.depot.Log.log;
+
+/**
+ * A self-contained, in-memory implementation of {@link CacheAdapter} that requires no external
+ * caching library.
+ *
+ * Each {@link CacheAdapter.CacheCategory} is limited to a configured total weight, where the
+ * weight of an entry is an estimate of its size in bytes (see {@link #weigh}). A category is split
+ * into a number of independently locked segments, each of which tracks the recency of its entries
+ * and the approximate access frequency of its keys. When a segment is full, a new entry is only
+ * admitted if its key has been requested more often than that of the least recently used entry
+ * it would displace (the TinyLFU admission policy), which keeps a burst of one-off lookups from
+ * flushing out the records that are actually in regular use.
+ *
+ * Entries are held in a concurrent map per cacheId, so lookups never block on one another (the
+ * recency and frequency bookkeeping is skipped if a lookup would have to wait for it) and
+ * {@link #enumerate} is simply a copy of that map's keys. Entries may also be given a time to
+ * live, after which they are discarded when next looked up or when their segment needs room.
+ */
+public class LocalCacheAdapter
+    implements BulkCacheAdapter
+{
+    /** The configuration of a single cache category. */
+    public static class LocalCacheConfig
+    {
+        /** The maximum total weight of the entries in the category. */
+        public long maxWeight;
+
+        /** The number of seconds an entry remains valid after being stored, or zero if entries
+         * in this category never expire. */
+        public int timeToLiveSeconds;
+
+        public LocalCacheConfig (long maxWeight, int timeToLiveSeconds) {
+            this.maxWeight = maxWeight;
+            this.timeToLiveSeconds = timeToLiveSeconds;
+        }
+    }
+
+    /** A summary of the activity of a single cache category. */
+    public static class LocalCachePerformance
+    {
+        public long hits;
+        public long misses;
+        public long evictions;
+        public long rejections;
+        public long expirations;
+        public long weight;
+
+        @Override public String toString () {
+            return "[hits=" + hits + ", misses=" + misses + ", evictions=" + evictions +
+                ", rejections=" + rejections + ", expirations=" + expirations +
+                ", weight=" + weight + "]";
+        }
+    }
+
+    public static final LocalCacheConfig RECORD_CONFIG =
+        new LocalCacheConfig(64 * 1024 * 1024, 600);
+    public static final LocalCacheConfig SHORT_KEYSET_CONFIG =
+        new LocalCacheConfig(4 * 1024 * 1024, 10);
+    public static final LocalCacheConfig LONG_KEYSET_CONFIG =
+        new LocalCacheConfig(4 * 1024 * 1024, 300);
+    public static final LocalCacheConfig RESULT_CONFIG =
+        new LocalCacheConfig(16 * 1024 * 1024, 300);
+
+    /** The default number of independently locked segments into which each category is split. */
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    /**
+     * Creates an adapter with the default cache configurations.
+     */
+    public LocalCacheAdapter ()
+    {
+        this(DEFAULT_SEGMENTS, RECORD_CONFIG, SHORT_KEYSET_CONFIG, LONG_KEYSET_CONFIG,
+             RESULT_CONFIG);
+    }
+
+    /**
+     * Creates an adapter with the specified cache configurations.
+     *
+     * @param segments the number of segments into which each category is split, which will be
+     * rounded up to a power of two. Each segment is allowed an equal share of the category's
+     * maximum weight.
+     */
+    public LocalCacheAdapter (int segments, LocalCacheConfig recordConfig,
+                              LocalCacheConfig shortKeySetConfig,
+                              LocalCacheConfig longKeySetConfig, LocalCacheConfig resultConfig)
+    {
+        checkArgument(segments > 0, "Segment count must be positive: " + segments);
+        int count = Integer.highestOneBit(segments);
+        if (count < segments) {
+            count <<= 1;
+        }
+        _categories.put(CacheCategory.RECORD, new Category(recordConfig, count));
+        _categories.put(CacheCategory.SHORT_KEYSET, new Category(shortKeySetConfig, count));
+        _categories.put(CacheCategory.LONG_KEYSET, new Category(longKeySetConfig, count));
+        _categories.put(CacheCategory.RESULT, new Category(resultConfig, count));
+    }
+
+    // from CacheAdapter
+    public <T> CachedValue<T> lookup (String cacheId, Serializable key)
+    {
+        Bin bin = _bins.get(cacheId);
+        return (bin == null) ? null : this.<T>lookup(bin, key, now());
+    }
+
+    // from CacheAdapter
+    public <T> void store (CacheCategory category, String cacheId, Serializable key, T value)
+    {
+        store(resolveBin(category, cacheId), key, value, now());
+    }
+
+    // from CacheAdapter
+    public void remove (String cacheId, Serializable key)
+    {
+        Bin bin = _bins.get(cacheId);
+        if (bin != null) {
+            remove(bin, key);
+        }
+    }
+
+    // from BulkCacheAdapter
+    public <T> Map<Serializable, CachedValue<T>> lookupAll (
+        String cacheId, Collection<? extends Serializable> keys)
+    {
+        Map<Serializable, CachedValue<T>> result = Maps.newHashMap();
+        Bin bin = _bins.get(cacheId);
+        if (bin != null) {
+            long now = now();
+            for (Serializable key : keys) {
+                CachedValue<T> value = lookup(bin, key, now);
+                if (value != null) {
+                    result.put(key, value);
+                }
+            }
+        }
+        return result;
+    }
+
+    // from BulkCacheAdapter
+    public <T> void storeAll (CacheCategory category, String cacheId,
+                              Map<? extends Serializable, ? extends T> values)
+    {
+        Bin bin = resolveBin(category, cacheId);
+        long now = now();
+        for (Map.Entry<? extends Serializable, ? extends T> entry : values.entrySet()) {
+            store(bin, entry.getKey(), entry.getValue(), now);
+        }
+    }
+
+    // from BulkCacheAdapter
+    public void removeAll (String cacheId, Collection<? extends Serializable> keys)
+    {
+        Bin bin = _bins.get(cacheId);
+        if (bin != null) {
+            for (Serializable key : keys) {
+                remove(bin, key);
+            }
+        }
+    }
+
+    // from CacheAdapter
+    public <T> Iterable<Serializable> enumerate (String cacheId)
+    {
+        Bin bin = _bins.get(cacheId);
+        if (bin == null) {
+            return Collections.emptySet();
+        }
+        return Sets.newHashSet(bin.entries.keySet());
+    }
+
+    // from CacheAdapter
+    public void clear (String cacheId, boolean localOnly)
+    {
+        Bin bin = _bins.get(cacheId);
+        if (bin != null) {
+            clear(bin);
+        }
+    }
+
+    // from CacheAdapter
+    public void shutdown ()
+    {
+        for (Map.Entry<CacheCategory, Category> entry : _categories.entrySet()) {
+            log.debug("LocalCacheAdapter shutting down", "category", entry.getKey(),
+                      "perf", entry.getValue().getPerformance());
+        }
+        for (Bin bin : _bins.values()) {
+            clear(bin);
+        }
+        _bins.clear();
+    }
+
+    /**
+     * Returns a summary of the activity of the specified cache category since this adapter was
+     * created, including its current total weight.
+     */
+    public LocalCachePerformance getPerformanceSnapshot (CacheCategory category)
+    {
+        return _categories.get(category).getPerformance();
+    }
+
+    /**
+     * Returns the weight of a cache entry, which is an estimate of the number of bytes it
+     * occupies. Derived classes may override this to weigh their entries more precisely.
+     */
+    protected int weigh (Serializable key, Object value)
+    {
+        long size = ENTRY_OVERHEAD + estimateSize(key, 0) + estimateSize(value, 0);
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Estimates the number of bytes occupied by the supplied object, recursing into records,
+     * collections and arrays up to a limited depth.
+     */
+    protected long estimateSize (Object value, int depth)
+    {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return STRING_OVERHEAD + 2L * ((String)value).length();
+        }
+        if (value instanceof Number || value instanceof Boolean || value instanceof Character ||
+            value instanceof Enum<?>) {
+            return OBJECT_OVERHEAD;
+        }
+        if (value instanceof VersionedValue<?>) {
+            // query results are cached in a small wrapper, which shouldn't count against the
+            // depth to which we weigh the result itself
+            return OBJECT_OVERHEAD + 2 * primitiveSize(Long.TYPE) + REFERENCE_SIZE +
+                estimateSize(((VersionedValue<?>)value).value, depth);
+        }
+        if (depth >= MAX_ESTIMATE_DEPTH) {
+            return OBJECT_OVERHEAD;
+        }
+
+        Class<?> clazz = value.getClass();
+        if (clazz.isArray()) {
+            int length = Array.getLength(value);
+            Class<?> ctype = clazz.getComponentType();
+            if (ctype.isPrimitive()) {
+                return OBJECT_OVERHEAD + (long)length * primitiveSize(ctype);
+            }
+            long size = OBJECT_OVERHEAD + (long)length * REFERENCE_SIZE;
+            for (int ii = 0; ii < length; ii++) {
+                size += estimateSize(Array.get(value, ii), depth + 1);
+            }
+            return size;
+        }
+        if (value instanceof Collection<?>) {
+            Collection<?> coll = (Collection<?>)value;
+            long size = OBJECT_OVERHEAD + (long)coll.size() * REFERENCE_SIZE;
+            for (Object elem : coll) {
+                size += estimateSize(elem, depth + 1);
+            }
+            return size;
+        }
+        if (value instanceof KeySet<?>) {
+            // the keys of a key set are typically small boxed values
+            return OBJECT_OVERHEAD + (long)((KeySet<?>)value).size() *
+                (REFERENCE_SIZE + OBJECT_OVERHEAD);
+        }
+        if (value instanceof PersistentRecord) {
+            long size = OBJECT_OVERHEAD;
+            for (Field field : getRecordFields(clazz)) {
+                Class<?> ftype = field.getType();
+                if (ftype.isPrimitive()) {
+                    size += primitiveSize(ftype);
+                    continue;
+                }
+                try {
+                    size += REFERENCE_SIZE + estimateSize(field.get(value), depth + 1);
+                } catch (IllegalAccessException iae) {
+                    size += REFERENCE_SIZE + OBJECT_OVERHEAD;
+                }
+            }
+            return size;
+        }
+        // anything else (keys, dates and the like) we consider to be a small fixed size
+        return 2 * OBJECT_OVERHEAD;
+    }
+
+    /**
+     * Returns the current time in milliseconds, against which entries' times to live are
+     * measured.
+     */
+    protected long now ()
+    {
+        return System.currentTimeMillis();
+    }
+
+    protected Bin resolveBin (CacheCategory category, String cacheId)
+    {
+        Bin bin = _bins.get(cacheId);
+        if (bin == null) {
+            Category cat = _categories.get(category);
+            checkArgument(cat != null, "Unknown category: " + category);
+            Bin nbin = new Bin(cat);
+            bin = _bins.putIfAbsent(cacheId, nbin);
+            if (bin == null) {
+                bin = nbin;
+            }
+        }
+        return bin;
+    }
+
+    protected <T> CachedValue<T> lookup (Bin bin, Serializable key, long now)
+    {
+        Category cat = bin.category;
+        Node node = bin.entries.get(key);
+        int hash = (node == null) ? hash(bin, key) : node.hash;
+        Segment seg = cat.segmentFor(hash);
+
+        if (node != null && node.expires <= now) {
+            if (bin.entries.remove(key, node)) {
+                cat.expirations.incrementAndGet();
+            }
+            seg.lock();
+            try {
+                seg.retire(node);
+            } finally {
+                seg.unlock();
+            }
+            node = null;
+        }
+
+        // note the access, unless someone else holds the segment, in which case we'd rather
+        // lose a little accuracy than wait
+        if (seg.tryLock()) {
+            try {
+                seg.sketch.increment(hash);
+                if (node != null && !node.retired) {
+                    seg.order.get(node);
+                }
+            } finally {
+                seg.unlock();
+            }
+        }
+
+        if (node == null) {
+            cat.misses.incrementAndGet();
+            return null;
+        }
+        cat.hits.incrementAndGet();
+        @SuppressWarnings("unchecked") CachedValue<T> value = (CachedValue<T>)node;
+        return value;
+    }
+
+    protected void store (Bin bin, Serializable key, Object value, long now)
+    {
+        Category cat = bin.category;
+        long expires = (cat.config.timeToLiveSeconds <= 0) ? Long.MAX_VALUE :
+            now + cat.config.timeToLiveSeconds * 1000L;
+        Node node = new Node(bin, key, value, weigh(key, value), expires, hash(bin, key));
+        Node old = bin.entries.put(key, node);
+
+        Segment seg = cat.segmentFor(node.hash);
+        seg.lock();
+        try {
+            if (old != null) {
+                seg.retire(old);
+            }
+            // if we've already been replaced or removed, there's nothing more to do
+            if (node.retired) {
+                return;
+            }
+
+            // make room for the new entry; if it must displace an entry that has been used more
+            // than it has, we reject it instead, unless it's replacing a stale value (an entry
+            // that could never fit we reject without evicting anything on its behalf)
+            while (seg.weight + node.weight > seg.maxWeight) {
+                Iterator<Node> iter = seg.order.keySet().iterator();
+                Node victim = iter.hasNext() ? iter.next() : null;
+                if (victim == null || node.weight > seg.maxWeight || (old == null && victim.expires > now &&
+                                       seg.sketch.frequency(node.hash) <=
+                                       seg.sketch.frequency(victim.hash))) {
+                    node.retired = true;
+                    bin.entries.remove(key, node);
+                    cat.rejections.incrementAndGet();
+                    return;
+                }
+                seg.retire(victim);
+                if (victim.bin.entries.remove(victim.key, victim)) {
+                    if (victim.expires > now) {
+                        cat.evictions.incrementAndGet();
+                    } else {
+                        cat.expirations.incrementAndGet();
+                    }
+                }
+            }
+            seg.order.put(node, node);
+            seg.weight += node.weight;
+        } finally {
+            seg.unlock();
+        }
+    }
+
+    protected void remove (Bin bin, Serializable key)
+    {
+        Node node = bin.entries.remove(key);
+        if (node != null) {
+            Segment seg = bin.category.segmentFor(node.hash);
+            seg.lock();
+            try {
+                seg.retire(node);
+            } finally {
+                seg.unlock();
+            }
+        }
+    }
+
+    protected void clear (Bin bin)
+    {
+        for (Node node : bin.entries.values()) {
+            if (bin.entries.remove(node.key, node)) {
+                Segment seg = bin.category.segmentFor(node.hash);
+                seg.lock();
+                try {
+                    seg.retire(node);
+                } finally {
+                    seg.unlock();
+                }
+            }
+        }
+    }
+
+    protected List<Field> getRecordFields (Class<?> clazz)
+    {
+        List<Field> fields = _recordFields.get(clazz);
+        if (fields == null) {
+            fields = Lists.newArrayList();
+            for (Field field : clazz.getFields()) {
+                int mods = field.getModifiers();
+                if (!Modifier.isStatic(mods) && !Modifier.isTransient(mods)) {
+                    fields.add(field);
+                }
+            }
+            _recordFields.put(clazz, fields);
+        }
+        return fields;
+    }
+
+    protected static int hash (Bin bin, Serializable key)
+    {
+        int h = bin.hashCode() * 31 + key.hashCode();
+        // spread the bits so that poor key hashes don't all land in the same segment
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    protected static int primitiveSize (Class<?> type)
+    {
+        if (type == Long.TYPE || type == Double.TYPE) {
+            return 8;
+        } else if (type == Integer.TYPE || type == Float.TYPE) {
+            return 4;
+        } else if (type == Short.TYPE || type == Character.TYPE) {
+            return 2;
+        } else {
+            return 1;
+        }
+    }
+
+    /** The configuration, segments and statistics of a single cache category. */
+    protected static class Category
+    {
+        public final LocalCacheConfig config;
+        public final Segment[] segments;
+
+        public final AtomicLong hits = new AtomicLong();
+        public final AtomicLong misses = new AtomicLong();
+        public final AtomicLong evictions = new AtomicLong();
+        public final AtomicLong rejections = new AtomicLong();
+        public final AtomicLong expirations = new AtomicLong();
+
+        public Category (LocalCacheConfig config, int segments) {
+            this.config = config;
+            this.segments = new Segment[segments];
+            long maxWeight = Math.max(config.maxWeight / segments, 1);
+            for (int ii = 0; ii < segments; ii++) {
+                this.segments[ii] = new Segment(maxWeight);
+            }
+        }
+
+        public Segment segmentFor (int hash) {
+            return segments[(hash >>> 16) & (segments.length - 1)];
+        }
+
+        public LocalCachePerformance getPerformance () {
+            LocalCachePerformance perf = new LocalCachePerformance();
+            perf.hits = hits.get();
+            perf.misses = misses.get();
+            perf.evictions = evictions.get();
+            perf.rejections = rejections.get();
+            perf.expirations = expirations.get();
+            for (Segment seg : segments) {
+                seg.lock();
+                try {
+                    perf.weight += seg.weight;
+                } finally {
+                    seg.unlock();
+                }
+            }
+            return perf;
+        }
+    }
+
+    /** The entries of a single cacheId. */
+    protected static class Bin
+    {
+        public final Category category;
+        public final ConcurrentMap<Serializable, Node> entries =
+            new ConcurrentHashMap<Serializable, Node>();
+
+        public Bin (Category category) {
+            this.category = category;
+        }
+    }
+
+    /** A slice of a category which tracks the recency and weight of its entries and the access
+     * frequency of its keys, all guarded by its lock. */
+    protected static class Segment extends ReentrantLock
+    {
+        public final long maxWeight;
+        public final FrequencySketch sketch = new FrequencySketch(SKETCH_WIDTH);
+        public final LinkedHashMap<Node, Node> order =
+            new LinkedHashMap<Node, Node>(16, 0.75f, true);
+        public long weight;
+
+        public Segment (long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        /** Removes the supplied entry from this segment, if it has not already been removed. */
+        public void retire (Node node) {
+            if (!node.retired) {
+                node.retired = true;
+                if (order.remove(node) != null) {
+                    weight -= node.weight;
+                }
+            }
+        }
+    }
+
+    /** A single cache entry. Nodes are compared by identity. */
+    protected static class Node
+        implements CachedValue<Object>
+    {
+        public final Bin bin;
+        public final Serializable key;
+        public final Object value;
+        public final int weight;
+        public final long expires;
+        public final int hash;
+
+        /** Set once this entry has been removed from (or refused by) its segment. Guarded by the
+         * segment lock. */
+        public boolean retired;
+
+        public Node (Bin bin, Serializable key, Object value, int weight, long expires,
+                     int hash) {
+            this.bin = bin;
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expires = expires;
+            this.hash = hash;
+        }
+
+        public Object getValue () {
+            return value;
+        }
+
+        @Override public String toString () {
+            return String.valueOf(value);
+        }
+    }
+
+    /**
+     * A count-min sketch of the recent access frequency of a set of keys, using four-bit
+     * counters which are periodically halved so that old popularity fades away.
+     */
+    protected static class FrequencySketch
+    {
+        public FrequencySketch (int width) {
+            _table = new byte[DEPTH * width];
+            _mask = width - 1;
+            _sampleSize = 10 * width;
+        }
+
+        /** Returns the estimated number of recent accesses of the key with the given hash. */
+        public int frequency (int hash) {
+            int freq = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                freq = Math.min(freq, _table[indexOf(hash, row)]);
+            }
+            return freq;
+        }
+
+        /** Notes an access of the key with the given hash. */
+        public void increment (int hash) {
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                int idx = indexOf(hash, row);
+                if (_table[idx] < MAX_COUNT) {
+                    _table[idx]++;
+                    added = true;
+                }
+            }
+            if (added && ++_additions >= _sampleSize) {
+                for (int ii = 0; ii < _table.length; ii++) {
+                    _table[ii] >>= 1;
+                }
+                _additions /= 2;
+            }
+        }
+
+        protected int indexOf (int hash, int row) {
+            int h = (hash + SEEDS[row]) * SEEDS[row];
+            h ^= h >>> 17;
+            return row * (_mask + 1) + (h & _mask);
+        }
+
+        protected final byte[] _table;
+        protected final int _mask;
+        protected final int _sampleSize;
+        protected int _additions;
+
+        protected static final int DEPTH = 4;
+        protected static final int MAX_COUNT = 15;
+        protected static final int[] SEEDS = {
+            0x97cb3127, 0xc3a5c85c, 0x85ebca6b, 0xb492b66f };
+    }
+
+    protected final Map<CacheCategory, Category> _categories =
+        Maps.newEnumMap(CacheCategory.class);
+    protected final ConcurrentMap<String, Bin> _bins = new ConcurrentHashMap<String, Bin>();
+    protected final ConcurrentMap<Class<?>, List<Field>> _recordFields =
+        new ConcurrentHashMap<Class<?>, List<Field>>();
+
+    /** The number of counters in each row of a segment's frequency sketch. */
+    protected static final int SKETCH_WIDTH = 1024;
+
+    /** The recursion limit when estimating the size of a value. */
+    protected static final int MAX_ESTIMATE_DEPTH = 3;
+
+    // rough sizes, in bytes, used when estimating the weight of an entry
+    protected static final int REFERENCE_SIZE = 8;
+    protected static final int OBJECT_OVERHEAD = 16;
+    protected static final int STRING_OVERHEAD = 40;
+    protected static final int ENTRY_OVERHEAD = 96;
+}
@@ -0,0 +1,639 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import com.samskivert.depot.impl.RecordCodec;
+
+import static com.samskivert.depot.Log.log;
+
+/**
+ * A {@link CacheAdapter} that holds {@link CacheCategory#RECORD} entries outside of the Java heap,
+ * so that very large record caches do not weigh on the garbage collector. Records are encoded with
+ * a {@link RecordCodec} derived from their marshaller and are only decoded when looked up, into a
+ * fresh instance each time. All other categories, and records with fields that the codec cannot
+ * encode, are passed through to a delegate adapter.
+ *
+ * The off-heap memory is allocated in fixed size direct buffer pages, up to a configured
+ * capacity. Each page is divided into chunks of one size class, and each record is stored in a
+ * chunk of the smallest class that will hold it. When a class has no free chunks and no more pages
+ * can be allocated, a page that has emptied is given to that class. Failing that, the least
+ * recently used entry of any class is evicted to make room: if it belongs to another class, its
+ * whole page is evicted and given to the class in need, so that memory follows the mix of record
+ * sizes as it shifts. Records larger than the largest size class are not cached.
+ */
+public class OffHeapCacheAdapter
+    implements BulkCacheAdapter
+{
+    /** A summary of the activity and memory use of the off-heap tier. */
+    public static class OffHeapPerformance
+    {
+        public long hits;
+        public long misses;
+        public long evictions;
+        public long rejections;
+        public long pageMoves;
+        public int entries;
+        public long bytesUsed;
+        public long bytesAllocated;
+
+        @Override public String toString () {
+            return "[hits=" + hits + ", misses=" + misses + ", evictions=" + evictions +
+                ", rejections=" + rejections + ", pageMoves=" + pageMoves +
+                ", entries=" + entries +
+                ", bytesUsed=" + bytesUsed + ", bytesAllocated=" + bytesAllocated + "]";
+        }
+    }
+
+    /** The size of each off-heap page, and thus the granularity with which memory is claimed. */
+    public static final int PAGE_SIZE = 1024 * 1024;
+
+    /** The largest encoded record that will be stored off-heap. */
+    public static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Creates an off-heap adapter.
+     *
+     * @param ctx the context whose records will be cached, which is used to obtain their
+     * marshallers. The context need not yet be initialized.
+     * @param delegate the adapter that will handle everything other than records.
+     * @param capacity the maximum number of bytes of off-heap memory to use.
+     */
+    public OffHeapCacheAdapter (PersistenceContext ctx, CacheAdapter delegate, long capacity)
+    {
+        _ctx = ctx;
+        _delegate = delegate;
+        _maxPages = (int)Math.max(1, Math.min(capacity / PAGE_SIZE, Integer.MAX_VALUE));
+
+        List<SizeClass> classes = Lists.newArrayList();
+        for (int size = MIN_CHUNK_SIZE; ; size = (size * 5 / 4 + 7) & ~7) {
+            classes.add(new SizeClass(Math.min(size, MAX_CHUNK_SIZE)));
+            if (size >= MAX_CHUNK_SIZE) {
+                break;
+            }
+        }
+        _classes = classes.toArray(new SizeClass[classes.size()]);
+    }
+
+    // from CacheAdapter
+    public <T> CachedValue<T> lookup (String cacheId, Serializable key)
+    {
+        RecordCodec<PersistentRecord> codec = _codecs.get(cacheId);
+        if (codec == null) {
+            return _delegate.lookup(cacheId, key);
+        }
+        byte[] data;
+        synchronized (_lock) {
+            Slot slot = getSlot(cacheId, key);
+            if (slot == null) {
+                _misses++;
+                return null;
+            }
+            _hits++;
+            data = read(slot);
+        }
+        return decode(codec, data);
+    }
+
+    // from CacheAdapter
+    public <T> void store (CacheCategory category, String cacheId, Serializable key, T value)
+    {
+        RecordCodec<PersistentRecord> codec = resolveCodec(category, cacheId, value);
+        if (codec == null) {
+            _delegate.store(category, cacheId, key, value);
+            return;
+        }
+        byte[] data = encode(codec, value);
+        synchronized (_lock) {
+            store(cacheId, key, data);
+        }
+    }
+
+    // from CacheAdapter
+    public void remove (String cacheId, Serializable key)
+    {
+        if (!_codecs.containsKey(cacheId)) {
+            _delegate.remove(cacheId, key);
+            return;
+        }
+        synchronized (_lock) {
+            Map<Serializable, Slot> bin = _bins.get(cacheId);
+            Slot slot = (bin == null) ? null : bin.remove(key);
+            if (slot != null) {
+                free(slot);
+            }
+        }
+    }
+
+    // from BulkCacheAdapter
+    public <T> Map<Serializable, CachedValue<T>> lookupAll (
+        String cacheId, Collection<? extends Serializable> keys)
+    {
+        RecordCodec<PersistentRecord> codec = _codecs.get(cacheId);
+        Map<Serializable, CachedValue<T>> result = Maps.newHashMap();
+        if (codec == null) {
+            if (_delegate instanceof BulkCacheAdapter) {
+                return ((BulkCacheAdapter)_delegate).lookupAll(cacheId, keys);
+            }
+            for (Serializable key : keys) {
+                CachedValue<T> value = _delegate.lookup(cacheId, key);
+                if (value != null) {
+                    result.put(key, value);
+                }
+            }
+            return result;
+        }
+
+        // copy the data out while holding the lock, and decode it once we've released it
+        Map<Serializable, byte[]> found = Maps.newHashMap();
+        synchronized (_lock) {
+            for (Serializable key : keys) {
+                Slot slot = getSlot(cacheId, key);
+                if (slot == null) {
+                    _misses++;
+                } else {
+                    _hits++;
+                    found.put(key, read(slot));
+                }
+            }
+        }
+        for (Map.Entry<Serializable, byte[]> entry : found.entrySet()) {
+            result.put(entry.getKey(), this.<T>decode(codec, entry.getValue()));
+        }
+        return result;
+    }
+
+    // from BulkCacheAdapter
+    public <T> void storeAll (CacheCategory category, String cacheId,
+                              Map<? extends Serializable, ? extends T> values)
+    {
+        if (values.isEmpty()) {
+            return;
+        }
+        RecordCodec<PersistentRecord> codec =
+            resolveCodec(category, cacheId, values.values().iterator().next());
+        if (codec == null) {
+            if (_delegate instanceof BulkCacheAdapter) {
+                ((BulkCacheAdapter)_delegate).storeAll(category, cacheId, values);
+            } else {
+                for (Map.Entry<? extends Serializable, ? extends T> entry : values.entrySet()) {
+                    _delegate.store(category, cacheId, entry.getKey(), entry.getValue());
+                }
+            }
+            return;
+        }
+
+        Map<Serializable, byte[]> encoded = Maps.newHashMap();
+        for (Map.Entry<? extends Serializable, ? extends T> entry : values.entrySet()) {
+            encoded.put(entry.getKey(), encode(codec, entry.getValue()));
+        }
+        synchronized (_lock) {
+            for (Map.Entry<Serializable, byte[]> entry : encoded.entrySet()) {
+                store(cacheId, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    // from BulkCacheAdapter
+    public void removeAll (String cacheId, Collection<? extends Serializable> keys)
+    {
+        if (!_codecs.containsKey(cacheId)) {
+            if (_delegate instanceof BulkCacheAdapter) {
+                ((BulkCacheAdapter)_delegate).removeAll(cacheId, keys);
+            } else {
+                for (Serializable key : keys) {
+                    _delegate.remove(cacheId, key);
+                }
+            }
+            return;
+        }
+        synchronized (_lock) {
+            Map<Serializable, Slot> bin = _bins.get(cacheId);
+            if (bin != null) {
+                for (Serializable key : keys) {
+                    Slot slot = bin.remove(key);
+                    if (slot != null) {
+                        free(slot);
+                    }
+                }
+            }
+        }
+    }
+
+    // from CacheAdapter
+    public <T> Iterable<Serializable> enumerate (String cacheId)
+    {
+        if (!_codecs.containsKey(cacheId)) {
+            return _delegate.enumerate(cacheId);
+        }
+        synchronized (_lock) {
+            Map<Serializable, Slot> bin = _bins.get(cacheId);
+            if (bin == null) {
+                return Collections.emptySet();
+            }
+            return Sets.newHashSet(bin.keySet());
+        }
+    }
+
+    // from CacheAdapter
+    public void clear (String cacheId, boolean localOnly)
+    {
+        synchronized (_lock) {
+            Map<Serializable, Slot> bin = _bins.remove(cacheId);
+            if (bin != null) {
+                for (Slot slot : bin.values()) {
+                    free(slot);
+                }
+            }
+        }
+        _delegate.clear(cacheId, localOnly);
+    }
+
+    // from CacheAdapter
+    public void shutdown ()
+    {
+        log.debug("OffHeapCacheAdapter shutting down", "perf", getPerformanceSnapshot());
+        synchronized (_lock) {
+            _bins.clear();
+            _pages.clear();
+            for (int ii = 0; ii < _classes.length; ii++) {
+                _classes[ii] = new SizeClass(_classes[ii].size);
+            }
+            _bytesUsed = 0;
+        }
+        _delegate.shutdown();
+    }
+
+    /**
+     * Returns a summary of the activity and memory use of the off-heap tier.
+     */
+    public OffHeapPerformance getPerformanceSnapshot ()
+    {
+        OffHeapPerformance perf = new OffHeapPerformance();
+        synchronized (_lock) {
+            perf.hits = _hits;
+            perf.misses = _misses;
+            perf.evictions = _evictions;
+            perf.rejections = _rejections;
+            perf.pageMoves = _pageMoves;
+            for (Map<Serializable, Slot> bin : _bins.values()) {
+                perf.entries += bin.size();
+            }
+            perf.bytesUsed = _bytesUsed;
+            perf.bytesAllocated = (long)_pages.size() * PAGE_SIZE;
+        }
+        return perf;
+    }
+
+    /**
+     * Returns the codec with which to store the supplied value in the given cache, or null if it
+     * is to be stored by our delegate.
+     */
+    protected RecordCodec<PersistentRecord> resolveCodec (
+        CacheCategory category, String cacheId, Object value)
+    {
+        RecordCodec<PersistentRecord> codec = _codecs.get(cacheId);
+        // we can only learn the record class from a non-null value; until then, the delegate
+        // handles this cache (and it will never be consulted for it once we have a codec)
+        if (codec != null || category != CacheCategory.RECORD ||
+            !(value instanceof PersistentRecord) || _uncodable.contains(cacheId)) {
+            return codec;
+        }
+
+        @SuppressWarnings("unchecked") Class<PersistentRecord> pClass =
+            (Class<PersistentRecord>)value.getClass();
+        try {
+            codec = RecordCodec.create(_ctx.getMarshaller(pClass));
+        } catch (Exception e) {
+            log.warning("Failed to create record codec", "class", pClass.getName(), e);
+        }
+        if (codec == null) {
+            log.info("Caching records on the heap", "class", pClass.getName());
+            _uncodable.add(cacheId);
+            return null;
+        }
+        RecordCodec<PersistentRecord> ocodec = _codecs.putIfAbsent(cacheId, codec);
+        return (ocodec == null) ? codec : ocodec;
+    }
+
+    protected byte[] encode (RecordCodec<PersistentRecord> codec, Object value)
+    {
+        return (value == null) ? NULL_DATA : codec.encode((PersistentRecord)value);
+    }
+
+    protected <T> CachedValue<T> decode (RecordCodec<PersistentRecord> codec, byte[] data)
+    {
+        @SuppressWarnings("unchecked") final T value =
+            (T)((data == NULL_DATA) ? null : codec.decode(data));
+        return new CachedValue<T>() {
+            public T getValue () {
+                return value;
+            }
+            @Override public String toString () {
+                return String.valueOf(value);
+            }
+        };
+    }
+
+    /**
+     * Returns the slot holding the specified entry, noting that it has been used. The caller must
+     * hold the lock.
+     */
+    protected Slot getSlot (String cacheId, Serializable key)
+    {
+        Map<Serializable, Slot> bin = _bins.get(cacheId);
+        Slot slot = (bin == null) ? null : bin.get(key);
+        if (slot != null) {
+            slot.sclass.unlink(slot);
+            slot.lastUsed = ++_clock;
+            slot.sclass.link(slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Copies a slot's data out of its page. The caller must hold the lock.
+     */
+    protected byte[] read (Slot slot)
+    {
+        if (slot.length < 0) {
+            return NULL_DATA;
+        }
+        byte[] data = new byte[slot.length];
+        ByteBuffer page = _pages.get(slot.page).buffer;
+        page.position(slot.offset);
+        page.get(data);
+        return data;
+    }
+
+    /**
+     * Stores encoded data under the given key, replacing any existing entry. The caller must hold
+     * the lock.
+     */
+    protected void store (String cacheId, Serializable key, byte[] data)
+    {
+        Map<Serializable, Slot> bin = _bins.get(cacheId);
+        if (bin == null) {
+            _bins.put(cacheId, bin = Maps.newHashMap());
+        }
+        Slot old = bin.remove(key);
+        if (old != null) {
+            free(old);
+        }
+
+        SizeClass sclass = classFor(data.length);
+        if (sclass == null || !allocate(sclass)) {
+            _rejections++;
+            return;
+        }
+        Slot slot = new Slot(cacheId, key, sclass);
+        long chunk = sclass.free[--sclass.freeCount];
+        slot.page = (int)(chunk >>> 32);
+        slot.offset = (int)chunk;
+        slot.length = (data == NULL_DATA) ? -1 : data.length;
+        Page page = _pages.get(slot.page);
+        page.buffer.position(slot.offset);
+        page.buffer.put(data);
+        page.slots[slot.offset / sclass.size] = slot;
+        page.used++;
+        slot.lastUsed = ++_clock;
+        sclass.link(slot);
+        bin.put(key, slot);
+        _bytesUsed += data.length;
+    }
+
+    /**
+     * Ensures that the supplied size class has a free chunk, allocating a new page, taking over an
+     * empty page or evicting the least recently used entry (or the page holding it) if need be.
+     * The caller must hold the lock.
+     */
+    protected boolean allocate (SizeClass sclass)
+    {
+        if (sclass.freeCount > 0) {
+            return true;
+        }
+        if (_pages.size() < _maxPages) {
+            Page page = new Page(_pages.size(), ByteBuffer.allocateDirect(PAGE_SIZE));
+            _pages.add(page);
+            carve(page, sclass);
+            return true;
+        }
+
+        // if some other class has a page that it is no longer using, take it over
+        for (Page page : _pages) {
+            if (page.used == 0 && page.sclass != sclass) {
+                reassign(page, sclass);
+                return true;
+            }
+        }
+
+        // otherwise evict the least recently used entry of any class
+        Slot victim = null;
+        for (SizeClass oclass : _classes) {
+            if (oclass.tail != null && (victim == null || oclass.tail.lastUsed < victim.lastUsed)) {
+                victim = oclass.tail;
+            }
+        }
+        if (victim == null) {
+            return false; // nothing is cached, so this can only mean we have no pages at all
+        }
+        if (victim.sclass == sclass) {
+            evict(victim);
+            return true;
+        }
+
+        // the victim is of another class, so we evict everything on its page and move the page
+        Page page = _pages.get(victim.page);
+        for (Slot slot : page.slots) {
+            if (slot != null) {
+                evict(slot);
+            }
+        }
+        reassign(page, sclass);
+        return true;
+    }
+
+    /**
+     * Removes the supplied entry from its bin and frees its chunk. The caller must hold the lock.
+     */
+    protected void evict (Slot slot)
+    {
+        _bins.get(slot.cacheId).remove(slot.key);
+        free(slot);
+        _evictions++;
+    }
+
+    /**
+     * Moves an empty page from its size class to the supplied one. The caller must hold the lock.
+     */
+    protected void reassign (Page page, SizeClass sclass)
+    {
+        // drop the page's chunks from the free list of its old class
+        SizeClass oclass = page.sclass;
+        int kept = 0;
+        for (int ii = 0; ii < oclass.freeCount; ii++) {
+            if ((int)(oclass.free[ii] >>> 32) != page.index) {
+                oclass.free[kept++] = oclass.free[ii];
+            }
+        }
+        oclass.freeCount = kept;
+        carve(page, sclass);
+        _pageMoves++;
+    }
+
+    /**
+     * Divides an empty page into chunks of the supplied size class. The caller must hold the lock.
+     */
+    protected void carve (Page page, SizeClass sclass)
+    {
+        page.sclass = sclass;
+        page.slots = new Slot[PAGE_SIZE / sclass.size];
+        for (int offset = 0; offset + sclass.size <= PAGE_SIZE; offset += sclass.size) {
+            sclass.release(((long)page.index << 32) | offset);
+        }
+    }
+
+    /**
+     * Returns a slot's chunk to its size class. The caller must hold the lock and must already
+     * have removed the slot from its bin.
+     */
+    protected void free (Slot slot)
+    {
+        Page page = _pages.get(slot.page);
+        page.slots[slot.offset / slot.sclass.size] = null;
+        page.used--;
+        slot.sclass.unlink(slot);
+        slot.sclass.release(((long)slot.page << 32) | slot.offset);
+        _bytesUsed -= Math.max(slot.length, 0);
+    }
+
+    protected SizeClass classFor (int length)
+    {
+        for (SizeClass sclass : _classes) {
+            if (sclass.size >= length) {
+                return sclass;
+            }
+        }
+        return null;
+    }
+
+    /** The chunks of a single size, and the entries stored in them in order of recent use. */
+    protected static class SizeClass
+    {
+        public final int size;
+        public long[] free = new long[16];
+        public int freeCount;
+        public Slot head, tail;
+
+        public SizeClass (int size) {
+            this.size = size;
+        }
+
+        public void release (long chunk) {
+            if (freeCount == free.length) {
+                long[] nfree = new long[free.length * 2];
+                System.arraycopy(free, 0, nfree, 0, freeCount);
+                free = nfree;
+            }
+            free[freeCount++] = chunk;
+        }
+
+        public void link (Slot slot) {
+            slot.prev = null;
+            slot.next = head;
+            if (head != null) {
+                head.prev = slot;
+            }
+            head = slot;
+            if (tail == null) {
+                tail = slot;
+            }
+        }
+
+        public void unlink (Slot slot) {
+            if (slot.prev != null) {
+                slot.prev.next = slot.next;
+            } else {
+                head = slot.next;
+            }
+            if (slot.next != null) {
+                slot.next.prev = slot.prev;
+            } else {
+                tail = slot.prev;
+            }
+            slot.prev = slot.next = null;
+        }
+    }
+
+    /** A page of off-heap memory, and the entries stored in its chunks. */
+    protected static class Page
+    {
+        public final int index;
+        public final ByteBuffer buffer;
+        public SizeClass sclass;
+        public Slot[] slots;
+        public int used;
+
+        public Page (int index, ByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+
+    /** The on-heap record of a single off-heap entry. */
+    protected static class Slot
+    {
+        public final String cacheId;
+        public final Serializable key;
+        public final SizeClass sclass;
+        public int page, offset, length;
+        public long lastUsed;
+        public Slot prev, next;
+
+        public Slot (String cacheId, Serializable key, SizeClass sclass) {
+            this.cacheId = cacheId;
+            this.key = key;
+            this.sclass = sclass;
+        }
+    }
+
+    protected final PersistenceContext _ctx;
+    protected final CacheAdapter _delegate;
+    protected final int _maxPages;
+    protected final SizeClass[] _classes;
+
+    protected final ConcurrentMap<String, RecordCodec<PersistentRecord>> _codecs =
+        new ConcurrentHashMap<String, RecordCodec<PersistentRecord>>();
+    protected final Set<String> _uncodable =
+        Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Guards everything below. */
+    protected final Object _lock = new Object();
+    protected final List<Page> _pages = Lists.newArrayList();
+    protected final Map<String, Map<Serializable, Slot>> _bins = Maps.newHashMap();
+    protected long _hits, _misses, _evictions, _rejections, _pageMoves, _bytesUsed;
+
+    /** Advanced on every store and lookup, to order entries by recency across size classes. */
+    protected long _clock;
+
+    /** Stands in for the encoding of a null record. */
+    protected static final byte[] NULL_DATA = new byte[0];
+
+    /** The size of the smallest size class. */
+    protected static final int MIN_CHUNK_SIZE = 48;
+}
@@ -4,25 +4,43 @@
 
 package com.samskivert.depot;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.sql.Statement;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.google.common.base.Supplier;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import com.samskivert.io.PersistenceException;
 import com.samskivert.util.StringUtil;
+import com.samskivert.util.Tuple;
 
 import com.samskivert.jdbc.ConnectionProvider;
 import com.samskivert.jdbc.DatabaseLiaison;
-import com.samskivert.jdbc.JDBCUtil;
 import com.samskivert.jdbc.LiaisonRegistry;
 
 import com.samskivert.depot.CacheAdapter.CacheCategory;
@@ -33,11 +51,17 @@ import com.samskivert.depot.impl.DepotMetaData;
 import com.samskivert.depot.impl.DepotMigrationHistoryRecord;
 import com.samskivert.depot.impl.DepotTypes;
 import com.samskivert.depot.impl.Fetcher;
+import com.samskivert.depot.impl.FindOneQuery;
 import com.samskivert.depot.impl.KeyCacheKey;
 import com.samskivert.depot.impl.Modifier;
 import com.samskivert.depot.impl.Operation;
+import com.samskivert.depot.impl.PersistenceContextMonitor;
 import com.samskivert.depot.impl.SQLBuilder;
+import com.samskivert.depot.impl.StatementCache;
+import com.samskivert.depot.impl.UniqueCacheKey;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 import static com.samskivert.depot.Log.log;
 
 /**
@@ -45,6 +69,25 @@ import static com.samskivert.depot.Log.log;
  */
 public class PersistenceContext
 {
+    /** The default maximum number of idle prepared statements cached per connection. */
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
+    /** The number of threads used for async operations when we have no connection pool from
+     * which to size our executor. See {@link #setExecutor}. */
+    public static final int DEFAULT_ASYNC_THREADS = 4;
+
+    /** A reasonable number of milliseconds for a query to wait on an identical query in progress
+     * on another thread before executing on its own. See {@link #setQueryCoalescing}. */
+    public static final long DEFAULT_COALESCING_TIMEOUT = 5000L;
+
+    /** The default maximum number of cached query results that are refreshed at once. See {@link
+     * #setRefreshAhead}. */
+    public static final int DEFAULT_MAX_REFRESHES = 4;
+
+    /** The default number of times a query must be executed in a query scope to be reported as
+     * repeated. See {@link #beginQueryScope}. */
+    public static final int DEFAULT_REPEATED_QUERY_THRESHOLD = 10;
+
     /** Allow toggling of query logging and other debug output via a system property. */
     public static final boolean DEBUG = Boolean.getBoolean("com.samskivert.depot.debug");
 
@@ -91,6 +134,45 @@ public class PersistenceContext
         public void entryCached (T newEntry, T oldEntry);
     }
 
+    /**
+     * An operation listener is notified as each database operation proceeds, for tracing,
+     * accounting and the like. Listeners are called on the thread invoking the operation, so they
+     * should be quick, and must not themselves invoke operations on this context. From the
+     * operation, a listener can obtain its record class ({@link Operation#getRecordClass}),
+     * whether it is read-only ({@link Operation#isReadOnly}) and its SQL ({@link
+     * Operation#getShape}).
+     *
+     * <p> An operation satisfied from the cache is only reported as completed. One that fails
+     * transiently and is retried is reported as failing and then connecting and invoking again.
+     */
+    public static interface OperationListener
+    {
+        /**
+         * Called before a connection is acquired for the supplied operation. This is not called
+         * for operations in a transaction, which use the transaction's connection.
+         */
+        public void willConnect (Operation<?> op);
+
+        /**
+         * Called before the supplied operation is executed.
+         */
+        public void willInvoke (Operation<?> op);
+
+        /**
+         * Called when the supplied operation has completed.
+         *
+         * @param rows the number of rows returned (by a query) or modified (by a modifier).
+         * @param cached true if the result came from the cache. Results obtained from the database,
+         * or shared by an identical query in progress on another thread, are not cached.
+         */
+        public void didComplete (Operation<?> op, int rows, boolean cached);
+
+        /**
+         * Called when the supplied operation has failed.
+         */
+        public void didFail (Operation<?> op, Throwable cause);
+    }
+
     /**
      * The callback for {@link #cacheTraverse}; this is called for each entry in a given cache.
      */
@@ -198,12 +280,48 @@ public class PersistenceContext
         _meta.init(this);
     }
 
+    /**
+     * Registers a {@link PersistenceContextMXBean} for this context with the platform MBean
+     * server, under the name {@code com.samskivert.depot:type=PersistenceContext,ident=<ident>},
+     * so that JMX tooling can watch it. The bean is unregistered when this context is shut down.
+     *
+     * @return the name under which the bean was registered.
+     * @throws IllegalStateException if the bean could not be registered, for example because
+     * another context with the same ident has already registered one.
+     */
+    public synchronized ObjectName registerMBean ()
+    {
+        checkAreInitialized();
+        try {
+            ObjectName name = new ObjectName(
+                "com.samskivert.depot:type=PersistenceContext,ident=" + ObjectName.quote(_ident));
+            PooledConnectionProvider pool = (_conprov instanceof PooledConnectionProvider) ?
+                (PooledConnectionProvider)_conprov : null;
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new PersistenceContextMonitor(this, _ident, _stats, pool), name);
+            _mbeanName = name;
+            return name;
+        } catch (JMException jme) {
+            throw new IllegalStateException("Failed to register MBean [ident=" + _ident + "]", jme);
+        }
+    }
+
     /**
      * Shuts this persistence context down, shutting down any caching system in use and shutting
      * down the JDBC connection pool.
      */
     public void shutdown ()
     {
+        synchronized (this) {
+            if (_mbeanName != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(_mbeanName);
+                } catch (JMException jme) {
+                    log.warning("Failed to unregister MBean", "name", _mbeanName, jme);
+                }
+                _mbeanName = null;
+            }
+        }
         try {
             if (_cache != null) {
                 _cache.shutdown();
@@ -211,9 +329,62 @@ public class PersistenceContext
         } catch (Throwable t) {
             log.warning("Failure shutting down Depot cache.", t);
         }
+        for (StatementCache cache : _stmtCaches.values()) {
+            cache.clear();
+        }
+        _stmtCaches.clear();
         if (_conprov != null) {
             _conprov.shutdown();
         }
+        synchronized (this) {
+            if (_ownExecutor != null) {
+                _ownExecutor.shutdown();
+                _ownExecutor = null;
+                _executor = null;
+            }
+        }
+    }
+
+    /**
+     * Configures the executor on which asynchronous operations (see {@link #invokeAsync(Fetcher)}
+     * and friends) are run. If no executor is configured, a fixed pool of daemon threads is
+     * created the first time an operation is run asynchronously, sized to match the connection
+     * pool if we have a {@link PooledConnectionProvider} and {@link #DEFAULT_ASYNC_THREADS}
+     * otherwise. Any executor may be supplied, including one
+     * that runs each task on a fresh (possibly virtual) thread. Note that an async operation holds
+     * a database connection while it runs, so the executor should not be much more concurrent than
+     * the connection provider.
+     */
+    public synchronized void setExecutor (Executor executor)
+    {
+        if (_ownExecutor != null) {
+            _ownExecutor.shutdown();
+            _ownExecutor = null;
+        }
+        _executor = executor;
+    }
+
+    /**
+     * Configures the maximum number of idle prepared statements cached for each connection. When
+     * an operation generates the same SQL as an earlier operation on the same connection, the
+     * earlier statement is reused rather than prepared anew. A size of zero disables statement
+     * caching. This must be called before the context is first used.
+     */
+    public void setStatementCacheSize (int size)
+    {
+        checkArgument(size >= 0, "Statement cache size must not be negative.");
+        _stmtCacheSize = size;
+    }
+
+    /**
+     * Configures whether the key lists of IN() expressions are padded to one of a small number of
+     * sizes. Queries that load whatever keys were missing from the cache otherwise generate SQL
+     * that is different for nearly every set of keys, which defeats statement and query plan
+     * caching. Padding does not change query results and is enabled by default.
+     */
+    public void setInListBucketing (boolean bucketInLists)
+    {
+        _bucketInLists = bucketInLists;
     }
 
     /**
@@ -224,12 +395,44 @@ public class PersistenceContext
         return _stats.getSnapshot();
     }
 
+    /**
+     * Returns a snapshot of the query activity since the previous call to this method (or since
+     * this context was created, for the first call). See {@link Stats#getIntervalSnapshot}.
+     */
+    public Stats.Snapshot getIntervalStats ()
+    {
+        return _stats.getIntervalSnapshot();
+    }
+
+    /**
+     * Returns statistics for the (at most) {@code count} query shapes on which the most time has
+     * been spent, most expensive first. See {@link Stats#getTopShapes}.
+     */
+    public List<Stats.ShapeSnapshot> getTopQueryShapes (int count)
+    {
+        return _stats.getTopShapes(count);
+    }
+
+    /**
+     * Configures the maximum number of query shapes for which statistics are tracked ({@link
+     * Stats#DEFAULT_MAX_SHAPES} is a reasonable choice). Tracking is disabled by default, and
+     * when configured with zero, because it requires generating the SQL of queries that are
+     * satisfied from the cache. See {@link Stats#setMaxShapes}.
+     */
+    public void setMaxQueryShapes (int maxShapes)
+    {
+        checkArgument(maxShapes >= 0, "Max query shapes must not be negative.");
+        _stats.setMaxShapes(maxShapes);
+    }
+
     /**
      * Creates and return a new {@link SQLBuilder} for the appropriate dialect.
      */
     public SQLBuilder getSQLBuilder (DepotTypes types)
     {
-        return _meta.getSQLBuilder(types, _liaison);
+        SQLBuilder builder = _meta.getSQLBuilder(types, _liaison);
+        builder.setInListBucketing(_bucketInLists);
+        return builder;
     }
 
     /**
@@ -300,6 +503,57 @@ public class PersistenceContext
         return marshaller;
     }
 
+    /**
+     * Begins a query scope on the calling thread, which tracks the queries executed on the thread
+     * until {@link #endQueryScope} is called, to detect queries that are repeated enough times
+     * that they should probably be done in bulk. Calls to this method must be paired with calls to
+     * {@link #endQueryScope}, in a {@code finally} block. Scopes may nest, in which case a query
+     * is tracked only by the innermost scope. Asynchronous queries are tracked only if they are
+     * satisfied from the cache, as the rest execute on another thread.
+     *
+     * @param name a name for the scope (e.g. the request being processed) for use in reports.
+     */
+    public QueryScope beginQueryScope (String name)
+    {
+        QueryScope scope = new QueryScope(name, _repeatThreshold, _scope.get());
+        _scope.set(scope);
+        return scope;
+    }
+
+    /**
+     * Ends the innermost query scope on the calling thread and returns it. A warning is logged,
+     * with the offending call site, for each query repeated in the scope at least the threshold
+     * number of times (see {@link #setRepeatedQueryThreshold}).
+     */
+    public QueryScope endQueryScope ()
+    {
+        QueryScope scope = _scope.get();
+        checkState(scope != null, "No query scope in progress.");
+        if (scope._outer == null) {
+            _scope.remove();
+        } else {
+            _scope.set(scope._outer);
+        }
+        for (QueryScope.Repeat repeat : scope.getRepeats()) {
+            Throwable site = new Throwable("Repeated query call site");
+            site.setStackTrace(repeat.callSite);
+            log.warning("Repeated query; consider loading in bulk", "scope", scope.getName(),
+                        "query", repeat, site);
+        }
+        return scope;
+    }
+
+    /**
+     * Configures the number of times a query (with a particular record class and shape) must be
+     * executed in a query scope to be reported as repeated. The default is {@link
+     * #DEFAULT_REPEATED_QUERY_THRESHOLD}. Affects scopes begun after the call.
+     */
+    public void setRepeatedQueryThreshold (int threshold)
+    {
+        checkArgument(threshold > 1, "Repeated query threshold must be at least two.");
+        _repeatThreshold = threshold;
+    }
+
     /**
      * Invokes a non-modifying query and returns its result.
      */
@@ -308,11 +562,53 @@ public class PersistenceContext
     {
         // we check to see if the query is already cached before invoking it to avoid requesting a
         // database connection if we don't actually need one
+        long preLookup = System.nanoTime();
         T result = fetcher.getCachedResult(this);
         if (result != null) {
             fetcher.updateStats(_stats);
+            noteCompleted(fetcher, preLookup, result, true);
             return result;
         }
+        return invokeUncached(fetcher, preLookup);
+    }
+
+    /**
+     * Invokes a non-modifying query whose result is known not to be cached, coalescing it with an
+     * identical query in progress on another thread if possible.
+     */
+    protected <T> T invokeUncached (Fetcher<T> fetcher, long preLookup)
+        throws DatabaseException
+    {
+        // if an identical query is already in progress on another thread, wait for its result
+        // rather than hitting the database again; queries in a transaction always run on their own
+        Object fkey = (_coalescingTimeout > 0 && _tx.get() == null) ?
+            fetcher.getFlightKey() : null;
+        if (fkey == null) {
+            return invoke(fetcher, true);
+        }
+        Flight flight = new Flight(), leader = _flights.putIfAbsent(fkey, flight);
+        if (leader == null) {
+            T result = null;
+            boolean success = false;
+            try {
+                result = invoke(fetcher, true);
+                success = true;
+                return result;
+            } finally {
+                _flights.remove(fkey, flight);
+                flight.complete(fetcher, result, success);
+            }
+        }
+        if (leader.join()) {
+            Object shared = leader.await(_coalescingTimeout);
+            if (shared != Flight.FAILED) {
+                @SuppressWarnings("unchecked") T lresult = (T)shared;
+                _stats.noteCoalescedQuery();
+                noteCompleted(fetcher, preLookup, lresult, false);
+                return fetcher.copyResult(lresult);
+            }
+        }
+        // the leader finished before we could join it, failed, or took too long; go it alone
         return invoke(fetcher, true);
     }
 
@@ -325,6 +621,322 @@ public class PersistenceContext
         return invoke(modifier, true);
     }
 
+    /**
+     * Invokes a non-modifying query on our executor and returns a future for its result. If the
+     * result can be satisfied from the cache, the returned future is already complete and no
+     * thread hop takes place.
+     */
+    public <T> ListenableFuture<T> invokeAsync (final Fetcher<T> fetcher)
+    {
+        long preLookup = System.nanoTime();
+        T result = fetcher.getCachedResult(this);
+        if (result != null) {
+            fetcher.updateStats(_stats);
+            noteCompleted(fetcher, preLookup, result, true);
+            return Futures.immediateFuture(result);
+        }
+        return submit(new Callable<T>() {
+            public T call () {
+                // we've already missed the cache, so don't look (or count a miss) a second time
+                return invokeUncached(fetcher, System.nanoTime());
+            }
+        });
+    }
+
+    /**
+     * Invokes a modifying query on our executor and returns a future for the number of rows
+     * modified.
+     */
+    public ListenableFuture<Integer> invokeAsync (final Modifier modifier)
+    {
+        return submit(new Callable<Integer>() {
+            public Integer call () {
+                return invoke(modifier, true);
+            }
+        });
+    }
+
+    /**
+     * Runs the supplied action on our executor, noting the time it spends waiting to be run in
+     * our statistics. This is mainly useful for composite repository operations; simple queries
+     * and modifiers should use {@link #invokeAsync(Fetcher)} or {@link #invokeAsync(Modifier)}.
+     * If the calling thread is in a {@link #transaction}, the action is run immediately on the
+     * calling thread, and the returned future is already complete.
+     */
+    public <T> ListenableFuture<T> submit (final Callable<T> action)
+    {
+        checkAreInitialized(); // le check du sanity
+        if (_tx.get() != null) {
+            // the transaction's connection belongs to this thread, so run the action here where it
+            // can participate in the transaction rather than on an executor thread outside it
+            ListenableFutureTask<T> task = ListenableFutureTask.create(action);
+            task.run();
+            return task;
+        }
+        final long preQueue = System.nanoTime();
+        ListenableFutureTask<T> task = ListenableFutureTask.create(new Callable<T>() {
+            public T call () throws Exception {
+                _stats.noteQueueWait(preQueue, System.nanoTime());
+                return action.call();
+            }
+        });
+        getExecutor().execute(task);
+        return task;
+    }
+
+    /**
+     * Runs the supplied action in a transaction. All queries and modifications performed by the
+     * calling thread while the action runs share a single read-write connection, with auto-commit
+     * disabled, and are committed together when the action completes normally. If the action
+     * throws an exception, the transaction is rolled back and the exception is propagated
+     * (checked exceptions are wrapped in a {@link DatabaseException}).
+     *
+     * <p> Cache stores and invalidations made during the transaction are not applied to the cache
+     * until the transaction commits, and are discarded if it rolls back. Cache lookups made during
+     * the transaction do see its pending stores and invalidations.
+     *
+     * <p> A transaction started while another is in progress on the same thread simply joins the
+     * outer transaction. Note that the transaction holds its connection for the duration of the
+     * action, so it is best used with a provider that does not share connections between threads,
+     * like {@link PooledConnectionProvider}.
+     *
+     * <p> Asynchronous operations ({@link #invokeAsync(Fetcher)}, {@link #invokeAsync(Modifier)}
+     * and {@link #submit}) requested by the action are run synchronously on the calling thread, so
+     * that they participate in the transaction. Their futures are complete when returned, and a
+     * failed operation is reported through its future, not thrown to the action.
+     *
+     * @return the value returned by the action.
+     */
+    public <T> T transaction (Callable<T> action)
+        throws DatabaseException
+    {
+        checkAreInitialized(); // le check du sanity
+        if (_tx.get() != null) {
+            return callInTransaction(action); // join the existing transaction
+        }
+
+        long preConnect = System.nanoTime();
+        Connection conn;
+        try {
+            conn = _conprov.getConnection(_ident, false);
+        } catch (PersistenceException pe) {
+            throw new DatabaseException("Failed get connection [ident=" + _ident +
+                                        ", isRO=false]", pe);
+        }
+
+        TxState tx = new TxState(conn, System.nanoTime() - preConnect);
+        boolean committed = false;
+        try {
+            try {
+                tx.autoCommit = conn.getAutoCommit();
+                if (tx.autoCommit) {
+                    conn.setAutoCommit(false);
+                }
+            } catch (SQLException sqe) {
+                tx.failed = sqe;
+                throw new DatabaseException("Failed to start transaction", sqe);
+            }
+
+            _tx.set(tx);
+            T result;
+            try {
+                result = callInTransaction(action);
+            } finally {
+                _tx.remove();
+            }
+
+            try {
+                conn.commit();
+                committed = true;
+            } catch (SQLException sqe) {
+                tx.failed = sqe;
+                if (_liaison.isDuplicateRowException(sqe)) {
+                    throw new DuplicateKeyException(sqe.getMessage());
+                }
+                throw new DatabaseException("Failed to commit transaction", sqe);
+            }
+            return result;
+
+        } finally {
+            finishTransaction(tx, committed);
+        }
+    }
+
+    /**
+     * Configures how key-cached collection queries (those using {@link
+     * DepotRepository.CacheStrategy#SHORT_KEYS} or {@link DepotRepository.CacheStrategy#LONG_KEYS})
+     * behave when their key set is not in the cache. Normally the keys are loaded with one query
+     * and any records not found in the cache with a second. In hybrid mode the full records are
+     * instead loaded with a single query, from which the key set is derived, and both the key set
+     * and the records are cached. This saves a round trip when the record cache is cold, at the
+     * cost of transferring records that may already have been cached. Hybrid mode is off by
+     * default.
+     */
+    public void setHybridKeyCaching (boolean hybrid)
+    {
+        _hybridKeyCaching = hybrid;
+    }
+
+    /**
+     * Returns true if key-cached collection queries load full records when their key set is not
+     * cached. See {@link #setHybridKeyCaching}.
+     */
+    public boolean isHybridKeyCaching ()
+    {
+        return _hybridKeyCaching;
+    }
+
+    /**
+     * Configures the coalescing of identical cacheable queries. When a cacheable query misses the
+     * cache while an identical query is already being loaded from the database by another thread,
+     * it waits for that query to complete and receives its own copy of the result, rather than
+     * also going to the database. This prevents a stampede of identical queries when a popular
+     * result expires from the cache. If the other query fails, or does not complete within the
+     * supplied timeout, the waiting query executes on its own. A timeout of zero (the default)
+     * disables coalescing. Queries made in a transaction are never coalesced.
+     *
+     * <p> Coalescing is off by default because it weakens read-your-writes consistency: a thread
+     * that has just modified a table may join a query that began before its modification, and
+     * receive a result that does not reflect it. Enable it only if callers can tolerate that.
+     */
+    public void setQueryCoalescing (long timeoutMillis)
+    {
+        checkArgument(timeoutMillis >= 0, "Coalescing timeout must not be negative.");
+        _coalescingTimeout = timeoutMillis;
+    }
+
+    /**
+     * Configures refresh-ahead for the cached results of collection queries on the specified
+     * record class that use {@link DepotRepository.CacheStrategy#SHORT_KEYS}, {@link
+     * DepotRepository.CacheStrategy#LONG_KEYS} or {@link DepotRepository.CacheStrategy#CONTENTS}.
+     * Once such a result is older than {@code softTtlMillis}, it continues to be served while the
+     * query is re-run in the background (on our executor) to replace it. Once it is older than
+     * {@code hardTtlMillis}, it is no longer served and the next query goes to the database as
+     * usual. Note that the cache adapter may still expire the result sooner than that. Refreshes
+     * are reported separately from other queries in our {@link Stats}.
+     */
+    public void setRefreshAhead (Class<? extends PersistentRecord> type,
+                                 long softTtlMillis, long hardTtlMillis)
+    {
+        checkArgument(softTtlMillis >= 0 && hardTtlMillis >= softTtlMillis,
+                      "Refresh TTLs must satisfy 0 <= soft <= hard.");
+        _refreshAhead.put(type, new long[] { softTtlMillis, hardTtlMillis });
+    }
+
+    /**
+     * Returns the soft and hard TTLs (in millis) of the cached query results for the specified
+     * record class, or null if refresh-ahead is not configured for it. See {@link
+     * #setRefreshAhead}.
+     */
+    public long[] getRefreshAhead (Class<? extends PersistentRecord> type)
+    {
+        return _refreshAhead.get(type);
+    }
+
+    /**
+     * Configures the maximum number of cached query results that may be refreshed in the
+     * background at once. Refreshes requested while this many are already running are dropped
+     * (the stale result will request another refresh the next time it is served).
+     */
+    public void setMaxRefreshes (int maxRefreshes)
+    {
+        checkArgument(maxRefreshes > 0, "Max refreshes must be positive.");
+        _maxRefreshes = maxRefreshes;
+    }
+
+    /**
+     * Invokes a query on our executor to refresh the cached result stored under the supplied key,
+     * unless a refresh of that result is already in progress or too many refreshes are already
+     * running. The query is only obtained from the supplied factory if the refresh goes ahead,
+     * and is invoked directly, without first checking the cache. This is used by queries that
+     * have found their cached result to be stale, and which serve that result regardless, so a
+     * refresh that cannot be run (even because our executor rejects it) is dropped rather than
+     * reported to the caller.
+     */
+    public void refreshAsync (final CacheKey key, Supplier<? extends Fetcher<?>> factory)
+    {
+        if (_refreshing.putIfAbsent(key, Boolean.TRUE) != null) {
+            return;
+        }
+        if (_activeRefreshes.incrementAndGet() > _maxRefreshes) {
+            _activeRefreshes.decrementAndGet();
+            _refreshing.remove(key);
+            _stats.noteDroppedRefresh();
+            return;
+        }
+        try {
+            final Fetcher<?> query = factory.get();
+            getExecutor().execute(new Runnable() {
+                public void run () {
+                    try {
+                        invoke(query, true);
+                    } catch (Exception e) {
+                        log.warning("Failed to refresh cached query result", "key", key, e);
+                    } finally {
+                        _activeRefreshes.decrementAndGet();
+                        _refreshing.remove(key);
+                    }
+                }
+            });
+        } catch (RuntimeException re) {
+            // we couldn't create the query or the executor rejected it, so we're not refreshing
+            // after all; the stale result will request another refresh when it's next served
+            _activeRefreshes.decrementAndGet();
+            _refreshing.remove(key);
+            _stats.noteDroppedRefresh();
+            log.warning("Unable to refresh cached query result", "key", key, "error", re);
+        }
+    }
+
+    /**
+     * Notes that the table of the specified persistent class has been modified, advancing its
+     * table version (see {@link DepotMarshaller#getTableVersion}). This is called for every
+     * {@link Modifier} that changes a table, once its changes are committed. If called during a
+     * transaction, the version is advanced again when the transaction commits, so that results
+     * loaded by other threads before the changes became visible to them are not considered
+     * current.
+     */
+    public void noteModified (Class<? extends PersistentRecord> pClass)
+    {
+        getRawMarshaller(pClass).noteModified();
+        TxState tx = _tx.get();
+        if (tx != null) {
+            tx.modified.add(pClass);
+        }
+    }
+
+    /**
+     * Notes that the supplied operation, if it is a {@link Modifier}, has modified the table of
+     * its record class. This is called once the operation's changes have been committed (or
+     * rolled back), even if it failed, as it may have partially succeeded. Were the version
+     * advanced before the commit, a concurrent query could load the old rows and cache them
+     * under the new version.
+     */
+    protected void noteModifiedBy (Operation<?> op)
+    {
+        Class<? extends PersistentRecord> modified =
+            (op instanceof Modifier) ? op.getRecordClass() : null;
+        if (modified != null) {
+            noteModified(modified);
+        }
+    }
+
+    /**
+     * Returns a combined version of the tables of all of the supplied persistent classes. This
+     * changes whenever any of the tables is modified, so a result derived from these tables can
+     * be considered current for as long as their combined version matches the one obtained before
+     * the result was loaded.
+     */
+    public long getTableVersion (Iterable<Class<? extends PersistentRecord>> classes)
+    {
+        // table versions only ever increase, so their sum changes whenever any one of them does
+        long version = 0;
+        for (Class<? extends PersistentRecord> pClass : classes) {
+            version += getRawMarshaller(pClass).getTableVersion();
+        }
+        return version;
+    }
+
     /**
      * Returns true if there is a {@link CacheAdapter} configured, false otherwise.
      */
@@ -341,8 +953,59 @@ public class PersistenceContext
         if (_cache == null) {
             return null;
         }
+        TxState tx = _tx.get();
+        if (tx != null) {
+            // if the current transaction has changed this entry, that change wins
+            Tuple<String, Serializable> tkey = Tuple.newTuple(key.getCacheId(), key.getCacheKey());
+            if (tx.pending.containsKey(tkey)) {
+                @SuppressWarnings("unchecked") T value = (T)tx.pending.get(tkey).value;
+                return value;
+            }
+        }
         CacheAdapter.CachedValue<T> ref = _cache.lookup(key.getCacheId(), key.getCacheKey());
-        return (ref == null) ? null : ref.getValue();
+        if (ref == null) {
+            _stats.noteCacheLookups(key.getCacheId(), 0, 1);
+            return null;
+        }
+        _stats.noteCacheLookups(key.getCacheId(), 1, 0);
+        return ref.getValue();
+    }
+
+    /**
+     * Looks up the entries for all of the supplied keys in the specified cache. Returns a mapping
+     * from each key that was found to its entry.
+     */
+    public <T> Map<Serializable, T> cacheLookupAll (
+        String cacheId, Collection<? extends Serializable> cacheKeys)
+    {
+        Map<Serializable, T> result = Maps.newHashMap();
+        if (_cache == null || cacheKeys.isEmpty()) {
+            return result;
+        }
+        TxState tx = _tx.get();
+        if (tx != null && !tx.pending.isEmpty()) {
+            // if the current transaction has changed an entry, that change wins
+            List<Serializable> remaining = Lists.newArrayList();
+            for (Serializable cacheKey : cacheKeys) {
+                TxState.Change change = tx.pending.get(Tuple.newTuple(cacheId, cacheKey));
+                if (change == null) {
+                    remaining.add(cacheKey);
+                } else if (change.value != null) {
+                    @SuppressWarnings("unchecked") T value = (T)change.value;
+                    result.put(cacheKey, value);
+                }
+            }
+            cacheKeys = remaining;
+        }
+        Map<Serializable, CachedValue<T>> found = this.<T>lookupAll(cacheId, cacheKeys);
+        for (Map.Entry<Serializable, CachedValue<T>> entry : found.entrySet()) {
+            T value = entry.getValue().getValue();
+            if (value != null) {
+                result.put(entry.getKey(), value);
+            }
+        }
+        _stats.noteCacheLookups(cacheId, found.size(), cacheKeys.size() - found.size());
+        return result;
     }
 
     /**
@@ -357,16 +1020,34 @@ public class PersistenceContext
             log.warning("Cache key must not be null [entry=" + entry + "]", new Exception());
             return;
         }
-        log.debug("storing", "key", key, "value", entry);
+        cacheStore(category, key.getCacheId(), key.getCacheKey(), entry);
+        if (category == CacheCategory.RECORD && key instanceof KeyCacheKey &&
+            entry instanceof PersistentRecord) {
+            cacheStoreUniqueKeys(Collections.singletonMap(key.getCacheKey(), entry));
+        }
+    }
+
+    /**
+     * Stores a new entry indexed by the given cache id and cache key.
+     */
+    protected <T> void cacheStore (
+        CacheCategory category, String cacheId, Serializable cacheKey, T entry)
+    {
+        TxState tx = _tx.get();
+        if (tx != null) {
+            tx.defer(category, cacheId, cacheKey, entry);
+            return;
+        }
+        log.debug("storing", "id", cacheId, "key", cacheKey, "value", entry);
 
-        CacheAdapter.CachedValue<T> element = _cache.lookup(key.getCacheId(), key.getCacheKey());
+        CacheAdapter.CachedValue<T> element = _cache.lookup(cacheId, cacheKey);
         T oldEntry = (element != null ? element.getValue() : null);
 
         // update the cache
-        _cache.store(category, key.getCacheId(), key.getCacheKey(), entry);
+        _cache.store(category, cacheId, cacheKey, entry);
 
         // then do cache invalidations
-        Set<CacheListener<?>> listeners = _listenerSets.get(key.getCacheId());
+        Set<CacheListener<?>> listeners = _listenerSets.get(cacheId);
         if (listeners != null && listeners.size() > 0) {
             for (CacheListener<?> listener : listeners) {
                 log.debug("cascading", "listener", listener);
@@ -377,6 +1058,154 @@ public class PersistenceContext
         }
     }
 
+    /**
+     * Stores all of the supplied entries in the specified cache, indexed by their keys.
+     */
+    public <T> void cacheStoreAll (
+        CacheCategory category, String cacheId, Map<? extends Serializable, ? extends T> entries)
+    {
+        if (_cache == null || entries.isEmpty()) {
+            return;
+        }
+        if (category == CacheCategory.RECORD) {
+            cacheStoreUniqueKeys(entries);
+        }
+        TxState tx = _tx.get();
+        if (tx != null) {
+            for (Map.Entry<? extends Serializable, ? extends T> entry : entries.entrySet()) {
+                tx.defer(category, cacheId, entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+
+        // we only need the old entries if someone is listening for changes
+        Set<CacheListener<?>> listeners = _listenerSets.get(cacheId);
+        Map<Serializable, CachedValue<T>> old = (listeners == null || listeners.isEmpty()) ?
+            null : this.<T>lookupAll(cacheId, entries.keySet());
+
+        // update the cache
+        if (_cache instanceof BulkCacheAdapter) {
+            ((BulkCacheAdapter)_cache).storeAll(category, cacheId, entries);
+        } else {
+            for (Map.Entry<? extends Serializable, ? extends T> entry : entries.entrySet()) {
+                _cache.store(category, cacheId, entry.getKey(), entry.getValue());
+            }
+        }
+
+        // then do cache invalidations
+        if (old != null) {
+            for (Map.Entry<? extends Serializable, ? extends T> entry : entries.entrySet()) {
+                CachedValue<T> element = old.get(entry.getKey());
+                T oldEntry = (element != null ? element.getValue() : null);
+                for (CacheListener<?> listener : listeners) {
+                    @SuppressWarnings("unchecked")
+                        CacheListener<T> casted = (CacheListener<T>)listener;
+                    casted.entryCached(entry.getValue(), oldEntry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps the unique column values of the supplied records (see {@link UniqueCacheKey}) to their
+     * record cache keys, so that lookups by unique column can be resolved through the record
+     * cache. These mappings are never invalidated: a mapping is only used if the record to which
+     * it leads still has the unique column values in question.
+     */
+    protected void cacheStoreUniqueKeys (Map<? extends Serializable, ?> entries)
+    {
+        DepotMarshaller<?> marsh = null;
+        Map<UniqueCacheKey, KeyCacheKey> ukeys = null;
+        for (Map.Entry<? extends Serializable, ?> entry : entries.entrySet()) {
+            if (!(entry.getKey() instanceof KeyCacheKey) ||
+                !(entry.getValue() instanceof PersistentRecord)) {
+                continue;
+            }
+            if (marsh == null) {
+                marsh = getRawMarshaller(((PersistentRecord)entry.getValue()).getClass());
+                if (!marsh.hasUniqueKeys()) {
+                    return;
+                }
+                ukeys = Maps.newHashMap();
+            }
+            for (UniqueCacheKey ukey : marsh.getUniqueCacheKeys(entry.getValue())) {
+                ukeys.put(ukey, (KeyCacheKey)entry.getKey());
+            }
+        }
+        if (ukeys != null && !ukeys.isEmpty()) {
+            cacheStoreAll(CacheCategory.RECORD, UniqueCacheKey.getCacheId(
+                              marsh.getPersistentClass()), ukeys);
+        }
+    }
+
+    /**
+     * Evicts the cache entries indexed under all of the supplied keys. Keys need not all be for
+     * the same record type. The eviction may trigger further cache invalidations.
+     */
+    public void cacheInvalidateAll (Iterable<? extends Key<?>> keys)
+    {
+        // group the keys by cache id, preserving their order
+        Map<String, List<Serializable>> byId = Maps.newLinkedHashMap();
+        for (Key<?> key : keys) {
+            KeyCacheKey ckey = new KeyCacheKey(key);
+            List<Serializable> ckeys = byId.get(ckey.getCacheId());
+            if (ckeys == null) {
+                byId.put(ckey.getCacheId(), ckeys = Lists.newArrayList());
+            }
+            ckeys.add(ckey.getCacheKey());
+        }
+        for (Map.Entry<String, List<Serializable>> entry : byId.entrySet()) {
+            cacheInvalidateAll(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Evicts the cache entries indexed under the given cache id and any of the supplied cache
+     * keys. The eviction may trigger further cache invalidations.
+     */
+    public <T extends Serializable> void cacheInvalidateAll (
+        String cacheId, Collection<? extends Serializable> cacheKeys)
+    {
+        if (_cache == null || cacheKeys.isEmpty()) {
+            return;
+        }
+        TxState tx = _tx.get();
+        if (tx != null) {
+            for (Serializable cacheKey : cacheKeys) {
+                tx.defer(null, cacheId, cacheKey, null);
+            }
+            return;
+        }
+        if (CACHE_DEBUG) {
+            log.info("Invalidating", "id", cacheId, "keys", cacheKeys);
+        }
+
+        // if anyone is listening, do (possibly cascading) invalidations for the old entries
+        Set<CacheListener<?>> listeners = _listenerSets.get(cacheId);
+        if (listeners != null && !listeners.isEmpty()) {
+            for (CachedValue<T> element : this.<T>lookupAll(cacheId, cacheKeys).values()) {
+                T oldEntry = element.getValue();
+                if (oldEntry == null) {
+                    continue;
+                }
+                for (CacheListener<?> listener : listeners) {
+                    @SuppressWarnings("unchecked") CacheListener<T> casted =
+                        (CacheListener<T>)listener;
+                    casted.entryInvalidated(oldEntry);
+                }
+            }
+        }
+
+        // then remove the keyed entries from the cache system
+        if (_cache instanceof BulkCacheAdapter) {
+            ((BulkCacheAdapter)_cache).removeAll(cacheId, cacheKeys);
+        } else {
+            for (Serializable cacheKey : cacheKeys) {
+                _cache.remove(cacheId, cacheKey);
+            }
+        }
+    }
+
     /**
      * Evicts the cache entry indexed under the given key, if there is one.  The eviction may
      * trigger further cache invalidations.
@@ -412,6 +1241,11 @@ public class PersistenceContext
         if (_cache == null) {
             return;
         }
+        TxState tx = _tx.get();
+        if (tx != null) {
+            tx.defer(null, cacheId, cacheKey, null);
+            return;
+        }
         if (CACHE_DEBUG) {
             log.info("Invalidating", "id", cacheId, "key", cacheKey);
         }
@@ -478,6 +1312,9 @@ public class PersistenceContext
     public void cacheClear (Class<? extends PersistentRecord> pClass, boolean localOnly)
     {
         cacheClear(pClass.getName(), localOnly);
+        if (getRawMarshaller(pClass).hasUniqueKeys()) {
+            cacheClear(UniqueCacheKey.getCacheId(pClass), localOnly);
+        }
     }
 
     /**
@@ -516,6 +1353,26 @@ public class PersistenceContext
         listenerSet.add(listener);
     }
 
+    /**
+     * Registers a listener to be notified of the progress of every database operation.
+     */
+    public synchronized void addOperationListener (OperationListener listener)
+    {
+        List<OperationListener> listeners = Lists.newArrayList(_opListeners);
+        listeners.add(listener);
+        _opListeners = listeners.toArray(new OperationListener[listeners.size()]);
+    }
+
+    /**
+     * Removes a listener previously registered with {@link #addOperationListener}.
+     */
+    public synchronized void removeOperationListener (OperationListener listener)
+    {
+        List<OperationListener> listeners = Lists.newArrayList(_opListeners);
+        listeners.remove(listener);
+        _opListeners = listeners.toArray(new OperationListener[listeners.size()]);
+    }
+
     /**
      * Initializes all repositories that have been created and registered with this persistence
      * context. Any repositories that are constructed after this call will be immediately
@@ -586,82 +1443,371 @@ public class PersistenceContext
     {
         checkAreInitialized(); // le check du sanity
 
+        TxState tx = _tx.get();
+        if (tx != null) {
+            return invokeInTransaction(tx, op);
+        }
+
         boolean isReadOnly = op.isReadOnly();
         Connection conn;
+        notifyWillConnect(op);
         long preConnect = System.nanoTime();
         try {
             conn = _conprov.getConnection(_ident, isReadOnly);
         } catch (PersistenceException pe) {
-            throw new DatabaseException("Failed get connection [ident=" + _ident +
-                                        ", isRO=" + isReadOnly + "]", pe);
+            DatabaseException de = new DatabaseException(
+                "Failed get connection [ident=" + _ident + ", isRO=" + isReadOnly + "]", pe);
+            notifyFailed(op, de);
+            throw de;
         }
 
-        // wrap the connection in a proxy that will collect all opened statements
-        List<Statement> stmts = Lists.newArrayListWithCapacity(1);
-        conn = JDBCUtil.makeCollector(conn, stmts);
-
-        // TEMP: we synchronize on the connection to cooperate with SimpleRepository when used in
-        // conjunction with a StaticConnectionProvider; at some point we'll switch to standard JDBC
-        // connection pooling which will block in getConnection() instead of returning a connection
-        // that someone else may be using
-        synchronized (conn) {
-            long preInvoke = System.nanoTime();
+        // wrap the connection in a proxy that will collect all opened statements and reuse
+        // cached prepared statements; we hang onto the raw connection so that it (not the proxy)
+        // is what we hand back to the provider
+        Connection rawConn = conn;
+        StatementCache.Lease lease = getStatementCache(rawConn).lease(rawConn);
+        conn = lease.getConnection();
+
+        // note that we do not synchronize on the connection here: a pooling provider (like
+        // PooledConnectionProvider) hands out a connection to one caller at a time and blocks in
+        // getConnection() when none are available, so the time we report as connection wait time
+        // includes any time spent queued for a connection
+        notifyWillInvoke(op);
+        long preInvoke = System.nanoTime();
+        try {
+            // invoke our database operation
+            T value;
+            boolean failed = true;
             try {
-                // invoke our database operation
-                T value;
-                try {
-                    value = op.invoke(this, conn, _liaison);
-                } finally {
-                    // close all opened statements; if any close fails, abort the close process as
-                    // the whole connection is now unusable and will be discarded
-                    for (Statement stmt : stmts) {
-                        stmt.close();
-                    }
-                }
-                // Always commit if auto-commit is off.  If the read-only operation managed to
-                // acquire some locks, this will release them.  Also, we've seen a MySQL bug where
-                // not committing after a select causes later selects to see stale results.
-                if (!conn.getAutoCommit()) {
-                    conn.commit();
+                value = op.invoke(this, conn, _liaison);
+                failed = false;
+            } finally {
+                // close or return all opened statements; if any close fails, abort the close
+                // process as the whole connection is now unusable and will be discarded
+                lease.release(failed);
+                _stats.noteStatementCache(lease.hits, lease.misses);
+            }
+            // Always commit if auto-commit is off.  If the read-only operation managed to
+            // acquire some locks, this will release them.  Also, we've seen a MySQL bug where
+            // not committing after a select causes later selects to see stale results.
+            if (!conn.getAutoCommit()) {
+                conn.commit();
+            }
+            // note the time it took to invoke this operation
+            _stats.noteOp(isReadOnly, preConnect, preInvoke, System.nanoTime());
+            // have the operation update any appropriate runtime statistics as well
+            op.updateStats(_stats);
+            noteCompleted(op, preInvoke, value, false);
+            return value;
+
+        } catch (SQLException sqe) {
+            notifyFailed(op, sqe);
+            if (!isReadOnly) {
+                // convert this exception to a DuplicateKeyException if appropriate
+                if (_liaison.isDuplicateRowException(sqe)) {
+                    throw new DuplicateKeyException(sqe.getMessage());
                 }
-                // note the time it took to invoke this operation
-                _stats.noteOp(isReadOnly, preConnect, preInvoke, System.nanoTime());
-                // have the operation update any appropriate runtime statistics as well
-                op.updateStats(_stats);
-                return value;
+            }
 
-            } catch (SQLException sqe) {
-                if (!isReadOnly) {
-                    // convert this exception to a DuplicateKeyException if appropriate
-                    if (_liaison.isDuplicateRowException(sqe)) {
-                        throw new DuplicateKeyException(sqe.getMessage());
-                    }
-                }
+            // let the provider know that the connection failed
+            invalidateStatementCache(rawConn);
+            _conprov.connectionFailed(_ident, isReadOnly, rawConn, sqe);
+            conn = null;
 
-                // let the provider know that the connection failed
-                _conprov.connectionFailed(_ident, isReadOnly, conn, sqe);
-                conn = null;
+            if (retryOnTransientFailure && _liaison.isTransientException(sqe)) {
+                // the MySQL JDBC driver has the annoying habit of including the embedded
+                // exception stack trace in the message of their outer exception; if I want a
+                // fucking stack trace, I'll call printStackTrace() thanksverymuch
+                String msg = StringUtil.split(String.valueOf(sqe), "\n")[0];
+                log.info("Transient failure executing op, retrying [error=" + msg + "].");
 
-                if (retryOnTransientFailure && _liaison.isTransientException(sqe)) {
-                    // the MySQL JDBC driver has the annoying habit of including the embedded
-                    // exception stack trace in the message of their outer exception; if I want a
-                    // fucking stack trace, I'll call printStackTrace() thanksverymuch
-                    String msg = StringUtil.split(String.valueOf(sqe), "\n")[0];
-                    log.info("Transient failure executing op, retrying [error=" + msg + "].");
+            } else {
+                throw new DatabaseException("Operation failure " + op, sqe);
+            }
 
-                } else {
-                    throw new DatabaseException("Operation failure " + op, sqe);
+        } catch (RuntimeException re) {
+            notifyFailed(op, re);
+            throw re;
+
+        } finally {
+            // now that any changes have been committed (or rolled back, as the connection is
+            // discarded on failure) we can advance the table version
+            noteModifiedBy(op);
+            if (conn != null) {
+                _conprov.releaseConnection(_ident, isReadOnly, rawConn);
+            }
+        }
+
+        // if we got here, we want to retry a transient failure
+        return invoke(op, false);
+    }
+
+    /**
+     * Notes the completion of the supplied operation in our shape statistics, the current query
+     * scope and with our operation listeners, as appropriate.
+     *
+     * @param start the {@link System#nanoTime} at which the operation started.
+     * @param cached true if the result came from the cache.
+     */
+    protected void noteCompleted (Operation<?> op, long start, Object result, boolean cached)
+    {
+        boolean trackShapes = _stats.isTrackingShapes();
+        QueryScope scope = (op instanceof Fetcher<?>) ? _scope.get() : null;
+        OperationListener[] listeners = _opListeners;
+        if (!trackShapes && scope == null && listeners.length == 0) {
+            return;
+        }
+
+        int rows = countRows(result);
+        String shape = (trackShapes || scope != null) ? op.getShape(this) : null;
+        if (trackShapes && shape != null) {
+            _stats.noteShape(shape, System.nanoTime() - start, rows, cached);
+        }
+        if (scope != null && shape != null) {
+            scope.noteQuery(op.getRecordClass(), shape, op instanceof FindOneQuery<?>, cached);
+        }
+        for (OperationListener listener : listeners) {
+            try {
+                listener.didComplete(op, rows, cached);
+            } catch (Throwable t) {
+                log.warning("Operation listener choked", "listener", listener, "op", op, t);
+            }
+        }
+    }
+
+    protected void notifyWillConnect (Operation<?> op)
+    {
+        for (OperationListener listener : _opListeners) {
+            try {
+                listener.willConnect(op);
+            } catch (Throwable t) {
+                log.warning("Operation listener choked", "listener", listener, "op", op, t);
+            }
+        }
+    }
+
+    protected void notifyWillInvoke (Operation<?> op)
+    {
+        for (OperationListener listener : _opListeners) {
+            try {
+                listener.willInvoke(op);
+            } catch (Throwable t) {
+                log.warning("Operation listener choked", "listener", listener, "op", op, t);
+            }
+        }
+    }
+
+    protected void notifyFailed (Operation<?> op, Throwable cause)
+    {
+        for (OperationListener listener : _opListeners) {
+            try {
+                listener.didFail(op, cause);
+            } catch (Throwable t) {
+                log.warning("Operation listener choked", "listener", listener, "op", op, t);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of rows represented by an operation result: the size of a collection
+     * result, the count returned by a modifier (or a streaming query), or one for a single record.
+     */
+    protected static int countRows (Object result)
+    {
+        if (result instanceof Collection<?>) {
+            return ((Collection<?>)result).size();
+        } else if (result instanceof Integer) {
+            return (Integer)result;
+        } else {
+            return (result == null) ? 0 : 1;
+        }
+    }
+
+    protected Executor getExecutor ()
+    {
+        Executor executor = _executor;
+        if (executor != null) {
+            return executor;
+        }
+        synchronized (this) {
+            if (_executor == null) {
+                int threads = DEFAULT_ASYNC_THREADS;
+                if (_conprov instanceof PooledConnectionProvider) {
+                    PooledConnectionProvider pool = (PooledConnectionProvider)_conprov;
+                    threads = Math.max(pool.getPoolSize(_ident, false),
+                                       pool.getPoolSize(_ident, true));
                 }
+                // idle threads are allowed to exit, so an unused pool costs nothing
+                ThreadPoolExecutor tpe = new ThreadPoolExecutor(
+                    threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setDaemon(true).
+                    setNameFormat("depot-" + _ident + "-%d").build());
+                tpe.allowCoreThreadTimeOut(true);
+                _ownExecutor = tpe;
+                _executor = tpe;
+            }
+            return _executor;
+        }
+    }
 
+    /**
+     * Invokes the supplied operation on the connection of the supplied in-progress transaction.
+     * The transaction's connection is not committed or released and transient failures are not
+     * retried; the failure propagates out of the transaction, which will be rolled back.
+     */
+    protected <T> T invokeInTransaction (TxState tx, Operation<T> op)
+        throws DatabaseException
+    {
+        boolean isReadOnly = op.isReadOnly();
+        StatementCache.Lease lease = getStatementCache(tx.conn).lease(tx.conn);
+        notifyWillInvoke(op);
+        long preInvoke = System.nanoTime();
+        try {
+            T value;
+            boolean failed = true;
+            try {
+                value = op.invoke(this, lease.getConnection(), _liaison);
+                failed = false;
             } finally {
-                if (conn != null) {
-                    _conprov.releaseConnection(_ident, isReadOnly, conn);
+                lease.release(failed);
+                _stats.noteStatementCache(lease.hits, lease.misses);
+            }
+            // the first operation in the transaction accounts for the connection wait
+            _stats.noteOp(isReadOnly, preInvoke - tx.connectWait, preInvoke, System.nanoTime());
+            tx.connectWait = 0L;
+            op.updateStats(_stats);
+            noteCompleted(op, preInvoke, value, false);
+            return value;
+
+        } catch (SQLException sqe) {
+            notifyFailed(op, sqe);
+            if (!isReadOnly && _liaison.isDuplicateRowException(sqe)) {
+                throw new DuplicateKeyException(sqe.getMessage());
+            }
+            if (!_liaison.isTransientException(sqe)) {
+                tx.failed = sqe;
+            }
+            throw new DatabaseException("Operation failure " + op, sqe);
+
+        } catch (RuntimeException re) {
+            notifyFailed(op, re);
+            throw re;
+
+        } finally {
+            // the version is advanced again when the transaction commits
+            noteModifiedBy(op);
+        }
+    }
+
+    protected <T> T callInTransaction (Callable<T> action)
+        throws DatabaseException
+    {
+        try {
+            return action.call();
+        } catch (RuntimeException re) {
+            throw re;
+        } catch (Exception e) {
+            throw new DatabaseException("Transaction failed", e);
+        }
+    }
+
+    /**
+     * Rolls back the supplied transaction if it did not commit, returns its connection to the
+     * provider and, if it did commit, applies its deferred cache changes.
+     */
+    protected void finishTransaction (TxState tx, boolean committed)
+    {
+        if (!committed && tx.failed == null) {
+            try {
+                tx.conn.rollback();
+            } catch (SQLException sqe) {
+                log.warning("Failed to roll back transaction", "ident", _ident, "error", sqe);
+                tx.failed = sqe;
+            }
+        }
+        if (tx.failed == null && tx.autoCommit) {
+            try {
+                tx.conn.setAutoCommit(true);
+            } catch (SQLException sqe) {
+                tx.failed = sqe;
+            }
+        }
+        if (tx.failed != null) {
+            invalidateStatementCache(tx.conn);
+            _conprov.connectionFailed(_ident, false, tx.conn, tx.failed);
+        } else {
+            _conprov.releaseConnection(_ident, false, tx.conn);
+        }
+
+        if (committed) {
+            for (Class<? extends PersistentRecord> pClass : tx.modified) {
+                getRawMarshaller(pClass).noteModified();
+            }
+            for (TxState.Change change : tx.changes) {
+                if (change.category == null) {
+                    cacheInvalidate(change.cacheId, change.cacheKey);
+                } else {
+                    cacheStore(change.category, change.cacheId, change.cacheKey, change.value);
                 }
             }
         }
+    }
 
-        // if we got here, we want to retry a transient failure
-        return invoke(op, false);
+    /**
+     * Returns the statement cache for the supplied (raw) connection, creating it if necessary.
+     */
+    protected StatementCache getStatementCache (Connection conn)
+    {
+        StatementCache cache = _stmtCaches.get(conn);
+        if (cache != null) {
+            return cache;
+        }
+        // a connection provider may close connections without telling us (when they've been idle
+        // too long, say), so we take this opportunity to flush the caches of any such connections
+        for (Map.Entry<Connection, StatementCache> entry : _stmtCaches.entrySet()) {
+            boolean closed;
+            try {
+                closed = entry.getKey().isClosed();
+            } catch (SQLException sqe) {
+                closed = true;
+            }
+            if (closed && _stmtCaches.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().clear();
+            }
+        }
+        cache = new StatementCache(_stmtCacheSize);
+        StatementCache ocache = _stmtCaches.putIfAbsent(conn, cache);
+        return (ocache == null) ? cache : ocache;
+    }
+
+    /**
+     * Discards the cached statements of a connection that has failed.
+     */
+    protected void invalidateStatementCache (Connection conn)
+    {
+        StatementCache cache = _stmtCaches.remove(conn);
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Looks up the supplied keys in our cache adapter, in bulk if it supports that.
+     */
+    protected <T> Map<Serializable, CachedValue<T>> lookupAll (
+        String cacheId, Collection<? extends Serializable> cacheKeys)
+    {
+        if (_cache instanceof BulkCacheAdapter) {
+            return ((BulkCacheAdapter)_cache).lookupAll(cacheId, cacheKeys);
+        }
+        Map<Serializable, CachedValue<T>> result = Maps.newHashMap();
+        for (Serializable cacheKey : cacheKeys) {
+            CachedValue<T> element = _cache.lookup(cacheId, cacheKey);
+            if (element != null) {
+                result.put(cacheKey, element);
+            }
+        }
+        return result;
     }
 
     protected void checkAreInitialized ()
@@ -673,6 +1819,109 @@ public class PersistenceContext
         }
     }
 
+    /** Tracks a query in progress on one thread, on whose result others may wait. */
+    protected static class Flight
+    {
+        /** Returned by {@link #await} if the query failed or did not complete in time. */
+        public static final Object FAILED = new Object();
+
+        /**
+         * Registers a waiter on this flight. Returns false if the flight has already completed,
+         * in which case no result will be retained for the caller.
+         */
+        public synchronized boolean join () {
+            if (_done) {
+                return false;
+            }
+            _waiters++;
+            return true;
+        }
+
+        /**
+         * Waits up to the specified number of milliseconds for this flight to complete, returning
+         * its result or {@link #FAILED}.
+         */
+        public synchronized Object await (long timeoutMillis) {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            try {
+                for (long remain = timeoutMillis; !_done && remain > 0;
+                     remain = deadline - System.currentTimeMillis()) {
+                    wait(remain);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            return _done ? _result : FAILED;
+        }
+
+        /**
+         * Completes this flight. If anyone is waiting, they are given a private copy of the
+         * result, as the original is handed back to the leader's caller to do with as it likes.
+         */
+        public synchronized <T> void complete (Fetcher<T> fetcher, T result, boolean success) {
+            _done = true;
+            _result = !success ? FAILED : (_waiters > 0) ? fetcher.copyResult(result) : null;
+            notifyAll();
+        }
+
+        protected boolean _done;
+        protected int _waiters;
+        protected Object _result;
+    }
+
+    /** Tracks the state of a transaction in progress on some thread. */
+    protected static class TxState
+    {
+        /** A cache store (or, if category is null, invalidation) deferred until commit. */
+        public static class Change {
+            public final CacheCategory category;
+            public final String cacheId;
+            public final Serializable cacheKey;
+            public final Object value;
+
+            public Change (CacheCategory category, String cacheId, Serializable cacheKey,
+                           Object value) {
+                this.category = category;
+                this.cacheId = cacheId;
+                this.cacheKey = cacheKey;
+                this.value = value;
+            }
+        }
+
+        /** The connection on which all of this transaction's operations are performed. */
+        public final Connection conn;
+
+        /** Nanoseconds spent waiting for our connection, not yet reported in our stats. */
+        public long connectWait;
+
+        /** Whether the connection was in auto-commit mode before we started. */
+        public boolean autoCommit;
+
+        /** If non-null, our connection failed and must not be reused. */
+        public SQLException failed;
+
+        /** Our deferred cache changes, in the order in which they were made. */
+        public final List<Change> changes = Lists.newArrayList();
+
+        /** The most recent deferred change to each cache entry. */
+        public final Map<Tuple<String, Serializable>, Change> pending = Maps.newHashMap();
+
+        /** The classes whose tables this transaction has modified. */
+        public final Set<Class<? extends PersistentRecord>> modified = Sets.newHashSet();
+
+        public TxState (Connection conn, long connectWait) {
+            this.conn = conn;
+            this.connectWait = connectWait;
+        }
+
+        public void defer (CacheCategory category, String cacheId, Serializable cacheKey,
+                           Object value) {
+            Change change = new Change(category, cacheId, cacheKey, value);
+            changes.add(change);
+            pending.put(Tuple.newTuple(cacheId, cacheKey), change);
+        }
+    }
+
     protected final CanMigrate _canMigrate;
     protected String _ident;
     protected ConnectionProvider _conprov;
@@ -683,6 +1932,46 @@ public class PersistenceContext
     /** Used to track various statistics. */
     protected Stats _stats = new Stats();
 
+    /** The maximum number of idle prepared statements cached per connection. */
+    protected int _stmtCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+
+    /** Whether our SQL builders pad IN() value lists. */
+    protected boolean _bucketInLists = true;
+
+    /** Whether key-cached collection queries load full records on a key set cache miss. */
+    protected boolean _hybridKeyCaching;
+
+    /** How long coalesced queries wait for their leader, in millis, or zero for no coalescing. */
+    protected long _coalescingTimeout;
+
+    /** The coalescable queries currently in progress, by flight key. */
+    protected ConcurrentMap<Object, Flight> _flights = Maps.newConcurrentMap();
+
+    /** The soft and hard refresh-ahead TTLs of cached query results, by record class. */
+    protected ConcurrentMap<Class<?>, long[]> _refreshAhead = Maps.newConcurrentMap();
+
+    /** The maximum number of cached query results refreshed at once. */
+    protected volatile int _maxRefreshes = DEFAULT_MAX_REFRESHES;
+
+    /** The number of cached query results currently being refreshed. */
+    protected AtomicInteger _activeRefreshes = new AtomicInteger();
+
+    /** The keys of the cached query results currently being refreshed. */
+    protected ConcurrentMap<CacheKey, Boolean> _refreshing = Maps.newConcurrentMap();
+
+    /** Our prepared statement caches, by (raw) connection. */
+    protected ConcurrentMap<Connection, StatementCache> _stmtCaches = Maps.newConcurrentMap();
+
+    /** The transaction in progress on the current thread, if any. */
+    protected ThreadLocal<TxState> _tx = new ThreadLocal<TxState>();
+
+    /** The executor on which async operations are run; read without locking, set while
+     * synchronized on this context. */
+    protected volatile Executor _executor;
+
+    /** The executor we created ourselves (if any), which we shut down with the context. */
+    protected ExecutorService _ownExecutor;
+
     /** The object through which all our caching is relayed, or null, for no caching. */
     protected CacheAdapter _cache;
 
@@ -694,4 +1983,17 @@ public class PersistenceContext
 
     /** A mapping of cache listeners by cache id. */
     protected Map<String, Set<CacheListener<?>>> _listenerSets = Maps.newHashMap();
+
+    /** Our operation listeners, replaced wholesale whenever a listener is added or removed so
+     * that notifying them requires no locking. */
+    protected volatile OperationListener[] _opListeners = new OperationListener[0];
+
+    /** The query scope in progress on each thread, if any. */
+    protected ThreadLocal<QueryScope> _scope = new ThreadLocal<QueryScope>();
+
+    /** The number of executions after which a query is reported as repeated in a scope. */
+    protected int _repeatThreshold = DEFAULT_REPEATED_QUERY_THRESHOLD;
+
+    /** The name of our registered MBean, if any. */
+    protected ObjectName _mbeanName;
 }
@@ -0,0 +1,170 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.beans.ConstructorProperties;
+import java.util.List;
+
+/**
+ * The management interface of a {@link PersistenceContext}, through which standard JVM tooling
+ * can watch Depot. See {@link PersistenceContext#registerMBean}. Durations are reported in
+ * microseconds unless otherwise noted.
+ *
+ * <p> The interval attributes report the activity since the last call to {@link
+ * #resetIntervalStats} (or since the bean was registered). They are independent of {@link
+ * PersistenceContext#getIntervalStats}.
+ */
+public interface PersistenceContextMXBean
+{
+    /** A summary of a distribution of durations. */
+    public static class LatencySummary
+    {
+        @ConstructorProperties({"count", "mean", "p50", "p99", "p999", "max"})
+        public LatencySummary (long count, long mean, long p50, long p99, long p999, long max)
+        {
+            _count = count;
+            _mean = mean;
+            _p50 = p50;
+            _p99 = p99;
+            _p999 = p999;
+            _max = max;
+        }
+
+        /** Summarizes the supplied histogram snapshot, converting nanoseconds to microseconds. */
+        public LatencySummary (LatencyHistogram.Snapshot snap)
+        {
+            this(snap.getCount(), snap.getMean() / 1000, snap.getPercentile(50) / 1000,
+                 snap.getPercentile(99) / 1000, snap.getPercentile(99.9) / 1000,
+                 snap.getMax() / 1000);
+        }
+
+        public long getCount () {
+            return _count;
+        }
+
+        public long getMean () {
+            return _mean;
+        }
+
+        public long getP50 () {
+            return _p50;
+        }
+
+        public long getP99 () {
+            return _p99;
+        }
+
+        public long getP999 () {
+            return _p999;
+        }
+
+        public long getMax () {
+            return _max;
+        }
+
+        protected long _count, _mean, _p50, _p99, _p999, _max;
+    }
+
+    /** A summary of the activity of a single cache. */
+    public static class CacheSummary
+    {
+        @ConstructorProperties({"cacheId", "hits", "misses", "size"})
+        public CacheSummary (String cacheId, long hits, long misses, int size)
+        {
+            _cacheId = cacheId;
+            _hits = hits;
+            _misses = misses;
+            _size = size;
+        }
+
+        public String getCacheId () {
+            return _cacheId;
+        }
+
+        public long getHits () {
+            return _hits;
+        }
+
+        public long getMisses () {
+            return _misses;
+        }
+
+        /** The number of entries in the cache, or -1 if it cannot be determined. */
+        public int getSize () {
+            return _size;
+        }
+
+        protected String _cacheId;
+        protected long _hits, _misses;
+        protected int _size;
+    }
+
+    /** Returns the ident of the context. */
+    public String getIdent ();
+
+    /** Returns the total number of queries and modifiers executed. */
+    public long getTotalOps ();
+
+    /** Returns the number of operations dispatched to the async executor. */
+    public long getAsyncOps ();
+
+    /** Returns the number of collection queries loaded from the cache. */
+    public long getCachedQueries ();
+
+    /** Returns the number of collection queries loaded from the database. */
+    public long getUncachedQueries ();
+
+    /** Returns the number of one-phase collection queries executed. */
+    public long getExplicitQueries ();
+
+    /** Returns the number of queries satisfied by an identical query on another thread. */
+    public long getCoalescedQueries ();
+
+    /** Returns the number of record loads satisfied from the cache. */
+    public long getCachedRecords ();
+
+    /** Returns the number of record loads satisfied from the database. */
+    public long getUncachedRecords ();
+
+    /** Returns the fraction of prepared statements reused from the statement cache. */
+    public double getStatementCacheHitRate ();
+
+    /** Returns the distribution of the time operations waited for a connection. */
+    public LatencySummary getConnectionWaitLatency ();
+
+    /** Returns the distribution of query durations. */
+    public LatencySummary getQueryLatency ();
+
+    /** Returns the distribution of modifier durations. */
+    public LatencySummary getModifierLatency ();
+
+    /** Returns the number of operations executed in the current interval. */
+    public long getIntervalOps ();
+
+    /** Returns the distribution of connection waits in the current interval. */
+    public LatencySummary getIntervalConnectionWaitLatency ();
+
+    /** Returns the distribution of query durations in the current interval. */
+    public LatencySummary getIntervalQueryLatency ();
+
+    /** Returns the distribution of modifier durations in the current interval. */
+    public LatencySummary getIntervalModifierLatency ();
+
+    /** Returns the number of connections in use, or -1 if the context does not pool them. */
+    public int getActiveConnections ();
+
+    /** Returns the number of idle pooled connections, or -1 if the context does not pool
+     * them. */
+    public int getIdleConnections ();
+
+    /** Returns the activity of every cache in which a lookup has been made. */
+    public List<CacheSummary> getCaches ();
+
+    /** Starts a new interval for the interval attributes. */
+    public void resetIntervalStats ();
+
+    /** Clears the specified cache, in this JVM only or across all distributed nodes. */
+    public void cacheClear (String cacheId, boolean localOnly);
+}
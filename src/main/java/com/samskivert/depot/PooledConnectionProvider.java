@@ -0,0 +1,393 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import com.samskivert.io.PersistenceException;
+import com.samskivert.jdbc.ConnectionProvider;
+import com.samskivert.util.PropertiesUtil;
+
+import static com.samskivert.depot.Log.log;
+
+/**
+ * A {@link ConnectionProvider} that maintains a bounded pool of JDBC connections for each database
+ * identifier, with separate pools for read-only and read-write connections. A connection handed
+ * out by this provider is used by exactly one caller until it is released, so callers block in
+ * {@link #getConnection} (fairly, in arrival order) when a pool is exhausted rather than sharing a
+ * connection with another thread.
+ *
+ * <p> Configuration is obtained from a properties object in the same manner as {@link
+ * com.samskivert.jdbc.StaticConnectionProvider}: properties are looked up as {@code
+ * ident.property} falling back to {@code default.property}. In addition to {@code driver}, {@code
+ * url}, {@code username}, {@code password} and {@code autocommit}, the following properties are
+ * recognized:
+ *
+ * <ul>
+ * <li>{@code pool_size} - the maximum number of read-write connections (default 8).</li>
+ * <li>{@code ro_pool_size} - the maximum number of read-only connections (defaults to {@code
+ * pool_size}).</li>
+ * <li>{@code pool_timeout} - milliseconds to wait for a connection before failing (default
+ * 30000).</li>
+ * <li>{@code validation_timeout} - seconds to wait when validating an idle connection on borrow,
+ * or 0 to disable validation (default 5).</li>
+ * <li>{@code validation_idle} - milliseconds a connection must have been idle before it is
+ * validated on borrow; connections released more recently are handed out without a round trip
+ * to the database (default 30000).</li>
+ * </ul>
+ */
+public class PooledConnectionProvider implements ConnectionProvider
+{
+    /**
+     * Creates a pooled connection provider that will obtain its configuration from the supplied
+     * properties.
+     */
+    public PooledConnectionProvider (Properties props)
+    {
+        _props = props;
+    }
+
+    /**
+     * Returns the number of connections currently checked out of the specified pool, or zero if
+     * no such pool has yet been created.
+     */
+    public int getActiveCount (String ident, boolean readOnly)
+    {
+        Pool pool = _pools.get(poolKey(ident, readOnly));
+        return (pool == null) ? 0 : pool.size - pool.permits.availablePermits();
+    }
+
+    /**
+     * Returns the number of idle connections in the specified pool, or zero if no such pool has
+     * yet been created.
+     */
+    public int getIdleCount (String ident, boolean readOnly)
+    {
+        Pool pool = _pools.get(poolKey(ident, readOnly));
+        return (pool == null) ? 0 : pool.idle.size();
+    }
+
+    /**
+     * Returns the maximum number of connections in the specified pool, which is determined by
+     * configuration whether or not the pool has yet been created.
+     */
+    public int getPoolSize (String ident, boolean readOnly)
+    {
+        Pool pool = _pools.get(poolKey(ident, readOnly));
+        return (pool == null) ? configuredSize(ident, readOnly) : pool.size;
+    }
+
+    // from interface ConnectionProvider
+    public String getURL (String ident)
+    {
+        return PropertiesUtil.getSubProperties(_props, ident, DEFAULTS_KEY).getProperty("url");
+    }
+
+    // from interface ConnectionProvider
+    public Connection getConnection (String ident, boolean readOnly)
+        throws PersistenceException
+    {
+        Pool pool = getPool(ident, readOnly);
+        try {
+            if (!pool.permits.tryAcquire(pool.timeout, TimeUnit.MILLISECONDS)) {
+                throw new PersistenceException(
+                    "Timed out waiting for connection [ident=" + ident + ", readOnly=" + readOnly +
+                    ", size=" + pool.size + ", timeout=" + pool.timeout + "ms]");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted waiting for connection [ident=" + ident +
+                                           ", readOnly=" + readOnly + "]", ie);
+        }
+
+        // we now own a permit, so we either reuse an idle connection or open a new one
+        try {
+            IdleConnection idle;
+            long now = System.currentTimeMillis();
+            while ((idle = pool.idle.poll()) != null) {
+                if (now - idle.released < pool.validationIdle || isValid(pool, idle.conn)) {
+                    return checkOut(pool, idle.conn);
+                }
+                closeConnection(ident, idle.conn);
+            }
+            return checkOut(pool, openConnection(pool));
+        } catch (PersistenceException pe) {
+            pool.permits.release();
+            throw pe;
+        } catch (RuntimeException re) {
+            pool.permits.release();
+            throw re;
+        }
+    }
+
+    // from interface ConnectionProvider
+    public void releaseConnection (String ident, boolean readOnly, Connection conn)
+    {
+        Pool pool = _pools.get(poolKey(ident, readOnly));
+        if (pool == null) {
+            log.warning("Released connection to unknown pool", "ident", ident, "ro", readOnly);
+            closeConnection(ident, conn);
+            return;
+        }
+        if (!pool.active.remove(conn)) {
+            // either a double release or a connection we never handed out; in neither case may we
+            // pool it or release a permit on its behalf
+            log.warning("Ignoring release of connection not checked out of pool",
+                        "ident", ident, "ro", readOnly, "conn", conn, new Exception());
+            return;
+        }
+        if (_shutdown) {
+            closeConnection(ident, conn);
+        } else {
+            pool.idle.offer(new IdleConnection(conn, System.currentTimeMillis()));
+        }
+        pool.permits.release();
+    }
+
+    // from interface ConnectionProvider
+    public void connectionFailed (
+        String ident, boolean readOnly, Connection conn, SQLException error)
+    {
+        Pool pool = _pools.get(poolKey(ident, readOnly));
+        if (pool != null && !pool.active.remove(conn)) {
+            log.warning("Ignoring failure of connection not checked out of pool",
+                        "ident", ident, "ro", readOnly, "conn", conn, new Exception());
+            return;
+        }
+        // the connection is suspect, so we close it rather than returning it to the pool
+        closeConnection(ident, conn);
+        if (pool != null) {
+            pool.permits.release();
+        }
+    }
+
+    // from interface ConnectionProvider
+    public void shutdown ()
+    {
+        _shutdown = true;
+        synchronized (_lock) {
+            for (Map.Entry<String, Pool> entry : _pools.entrySet()) {
+                IdleConnection idle;
+                while ((idle = entry.getValue().idle.poll()) != null) {
+                    closeConnection(entry.getValue().ident, idle.conn);
+                }
+            }
+        }
+    }
+
+    protected Pool getPool (String ident, boolean readOnly)
+        throws PersistenceException
+    {
+        String key = poolKey(ident, readOnly);
+        Pool pool = _pools.get(key);
+        if (pool != null) {
+            return pool;
+        }
+
+        synchronized (_lock) {
+            if ((pool = _pools.get(key)) == null) {
+                if (_shutdown) {
+                    throw new PersistenceException("Connection provider has been shut down.");
+                }
+                Properties props = PropertiesUtil.getSubProperties(_props, ident, DEFAULTS_KEY);
+                int size = configuredSize(ident, readOnly);
+                if (size < 1) {
+                    throw new PersistenceException(
+                        "Invalid pool size [ident=" + ident + ", size=" + size + "]");
+                }
+                pool = new Pool(ident, readOnly, props, size);
+                // create a new map so that lookups need not synchronize
+                Map<String, Pool> pools = Maps.newHashMap(_pools);
+                pools.put(key, pool);
+                _pools = pools;
+            }
+            return pool;
+        }
+    }
+
+    protected int configuredSize (String ident, boolean readOnly)
+    {
+        Properties props = PropertiesUtil.getSubProperties(_props, ident, DEFAULTS_KEY);
+        int size = getInt(props, "pool_size", DEFAULT_POOL_SIZE);
+        return readOnly ? getInt(props, "ro_pool_size", size) : size;
+    }
+
+    protected Connection checkOut (Pool pool, Connection conn)
+    {
+        pool.active.add(conn);
+        return conn;
+    }
+
+    protected boolean isValid (Pool pool, Connection conn)
+    {
+        if (pool.validationTimeout <= 0) {
+            return true;
+        }
+        try {
+            return conn.isValid(pool.validationTimeout);
+        } catch (SQLException sqe) {
+            return false;
+        } catch (AbstractMethodError ame) {
+            // pre-JDBC4 driver; we have no cheap way to validate, so we assume the best
+            return true;
+        }
+    }
+
+    protected Connection openConnection (Pool pool)
+        throws PersistenceException
+    {
+        String driver = requireProp(pool, "driver");
+        String url = requireProp(pool, "url");
+        try {
+            Class.forName(driver);
+        } catch (Exception e) {
+            throw new PersistenceException(
+                "Error loading driver [ident=" + pool.ident + ", class=" + driver + "]", e);
+        }
+
+        Connection conn;
+        try {
+            conn = DriverManager.getConnection(url, pool.props.getProperty("username"),
+                                               pool.props.getProperty("password", ""));
+        } catch (SQLException sqe) {
+            throw new PersistenceException(
+                "Error creating database connection [ident=" + pool.ident + ", url=" + url + "]",
+                sqe);
+        }
+
+        try {
+            String autoCommit = pool.props.getProperty("autocommit");
+            if (autoCommit != null) {
+                conn.setAutoCommit(Boolean.valueOf(autoCommit));
+            }
+            conn.setReadOnly(pool.readOnly);
+        } catch (SQLException sqe) {
+            closeConnection(pool.ident, conn);
+            throw new PersistenceException(
+                "Error configuring database connection [ident=" + pool.ident + "]", sqe);
+        }
+        return conn;
+    }
+
+    protected void closeConnection (String ident, Connection conn)
+    {
+        try {
+            conn.close();
+        } catch (SQLException sqe) {
+            log.warning("Error closing connection", "ident", ident, "error", sqe);
+        }
+    }
+
+    protected static String requireProp (Pool pool, String name)
+        throws PersistenceException
+    {
+        String value = pool.props.getProperty(name);
+        if (value == null) {
+            throw new PersistenceException(
+                "Unable to get connection, missing '" + name + "' property [ident=" +
+                pool.ident + "]");
+        }
+        return value;
+    }
+
+    protected static int getInt (Properties props, String name, int defval)
+    {
+        String value = props.getProperty(name);
+        if (value == null) {
+            return defval;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            log.warning("Invalid integer connection property", "name", name, "value", value);
+            return defval;
+        }
+    }
+
+    protected static String poolKey (String ident, boolean readOnly)
+    {
+        return ident + ":" + readOnly;
+    }
+
+    /** An idle connection and the time at which it was returned to its pool. */
+    protected static class IdleConnection
+    {
+        public final Connection conn;
+        public final long released;
+
+        public IdleConnection (Connection conn, long released) {
+            this.conn = conn;
+            this.released = released;
+        }
+    }
+
+    /** Tracks the connections for a single (ident, readOnly) pair. */
+    protected static class Pool
+    {
+        public final String ident;
+        public final boolean readOnly;
+        public final Properties props;
+        public final int size;
+        public final long timeout;
+        public final int validationTimeout;
+        public final long validationIdle;
+
+        /** Limits the number of connections checked out at once; fair so that waiters are served
+         * in the order in which they arrived. */
+        public final Semaphore permits;
+
+        /** Connections that have been returned and are available for reuse. */
+        public final ConcurrentLinkedQueue<IdleConnection> idle =
+            new ConcurrentLinkedQueue<IdleConnection>();
+
+        /** Connections currently checked out of this pool, compared by identity. */
+        public final Set<Connection> active =
+            Collections.synchronizedSet(Sets.<Connection>newIdentityHashSet());
+
+        public Pool (String ident, boolean readOnly, Properties props, int size) {
+            this.ident = ident;
+            this.readOnly = readOnly;
+            this.props = props;
+            this.size = size;
+            this.timeout = getInt(props, "pool_timeout", DEFAULT_POOL_TIMEOUT);
+            this.validationTimeout =
+                getInt(props, "validation_timeout", DEFAULT_VALIDATION_TIMEOUT);
+            this.validationIdle = getInt(props, "validation_idle", DEFAULT_VALIDATION_IDLE);
+            this.permits = new Semaphore(size, true);
+        }
+    }
+
+    /** Our configuration. */
+    protected Properties _props;
+
+    /** Our pools, keyed on ident and read-only-ness. Copied on write. */
+    protected volatile Map<String, Pool> _pools = Maps.newHashMap();
+
+    /** Guards pool creation and shutdown. */
+    protected final Object _lock = new Object();
+
+    /** Set once we've been shut down. */
+    protected volatile boolean _shutdown;
+
+    /** The properties prefix used for default configuration. */
+    protected static final String DEFAULTS_KEY = "default";
+
+    protected static final int DEFAULT_POOL_SIZE = 8;
+    protected static final int DEFAULT_POOL_TIMEOUT = 30*1000;
+    protected static final int DEFAULT_VALIDATION_TIMEOUT = 5;
+    protected static final int DEFAULT_VALIDATION_IDLE = 30*1000;
+}
@@ -8,14 +8,20 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
+import com.google.common.base.Function;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import com.samskivert.depot.clause.*;
 import com.samskivert.depot.expression.ColumnExp;
 import com.samskivert.depot.expression.SQLExpression;
+import com.samskivert.depot.impl.DepotMarshaller;
 import com.samskivert.depot.impl.FindAllQuery;
 import com.samskivert.depot.impl.Projector;
-import com.samskivert.depot.util.*; // TupleN
+import com.samskivert.depot.impl.StreamQuery;
+import com.samskivert.depot.impl.operator.Seek;
+import com.samskivert.depot.util.*; // TupleN, Page
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
@@ -44,6 +50,16 @@ import static com.google.common.base.Preconditions.checkState;
 public class Query<T extends PersistentRecord>
     implements Cloneable
 {
+    /** Receives the rows streamed by {@link Query#forEach}. */
+    public interface Visitor<R>
+    {
+        /** Called with each row of the result, in order. */
+        void visit (R row);
+    }
+
+    /** The number of rows fetched from the database at a time by {@link #forEach}. */
+    public static final int DEFAULT_FETCH_SIZE = 500;
+
     /** Disables the use of the cache for this query. */
     public Query<T> noCache () {
         return cache(DepotRepository.CacheStrategy.NONE);
@@ -265,6 +281,23 @@ public class Query<T extends PersistentRecord>
         return query;
     }
 
+    /**
+     * Restricts the query to rows that follow the row with the supplied values in the configured
+     * {@link OrderBy} ordering, which must consist solely of columns and must be unique (end with
+     * the primary key, for example). Combined with {@link #limit(int)}, this allows a large result
+     * to be paged through efficiently without the cost of an ever increasing offset. The values
+     * for the next page are most easily obtained via {@link #selectPage}.
+     *
+     * @param values one value for each ordering column, in order.
+     */
+    public Query<T> after (Comparable<?>... values)
+    {
+        checkState(_after == null, "After values are already configured.");
+        Query<T> query = clone();
+        query._after = values;
+        return query;
+    }
+
     /**
      * Configures a {@link FromOverride} clause configured with the supplied override class.
      */
@@ -355,6 +388,47 @@ public class Query<T extends PersistentRecord>
         return _repo.findAll(_pclass, _cache, getClauses());
     }
 
+    /**
+     * Loads a page of at most {@code count} persistent objects that match the configured query
+     * clauses, using keyset pagination. The query must be ordered as described in {@link #after},
+     * and must not have a limit configured. The first page is obtained by a query without {@link
+     * #after}; subsequent pages by passing {@link Page#next} from the previous page to {@code
+     * after}.
+     */
+    public Page<T> selectPage (int count)
+        throws DatabaseException
+    {
+        checkArgument(count > 0, "Page size must be positive.");
+        checkState(_limit == null, "Limit cannot be combined with selectPage.");
+        getSeekColumns(); // validate our ordering before we query
+
+        // fetch one extra record to find out whether there's another page
+        List<T> records = limit(count + 1).select();
+        if (records.size() <= count) {
+            return new Page<T>(records, null);
+        }
+        records = Lists.newArrayList(records.subList(0, count));
+        return new Page<T>(records, getSeekValues(records.get(count - 1)));
+    }
+
+    /**
+     * An asynchronous version of {@link #load()}. If the result is cached, the returned future
+     * will already be complete.
+     */
+    public ListenableFuture<T> loadAsync ()
+    {
+        return _repo.loadAsync(_pclass, _cache, getClauseArray());
+    }
+
+    /**
+     * An asynchronous version of {@link #select()}. If the result is cached, the returned future
+     * will already be complete.
+     */
+    public ListenableFuture<List<T>> selectAsync ()
+    {
+        return _repo.findAllAsync(_pclass, _cache, getClauses());
+    }
+
     /**
      * Loads the keys of all persistent objects that match the configured query clauses. Note that
      * cache configuration is ignored for key-only queries.
@@ -380,6 +454,21 @@ public class Query<T extends PersistentRecord>
         return _repo.load(CountRecord.class, _cache, override(_pclass).getClauseArray()).count;
     }
 
+    /**
+     * An asynchronous version of {@link #selectCount}.
+     */
+    public ListenableFuture<Integer> selectCountAsync ()
+    {
+        checkState(_groupBy == null, "Do you mean to select(Funcs.countStar())?");
+        return Futures.transform(
+            _repo.loadAsync(CountRecord.class, _cache, override(_pclass).getClauseArray()),
+            new Function<CountRecord, Integer>() {
+                public Integer apply (CountRecord record) {
+                    return record.count;
+                }
+            });
+    }
+
     /**
      * Returns the value from the first row that matches the configured query clauses. This value
      * may be null if the query clauses match no rows.
@@ -541,6 +630,44 @@ public class Query<T extends PersistentRecord>
         return _ctx.invoke(new FindAllQuery.Projection<T,R>(_ctx, proj, getClauses()));
     }
 
+    /**
+     * Passes each persistent object that matches the configured query clauses to the supplied
+     * visitor as it is read from the database, rather than loading them all into memory at once.
+     * A database connection is held until every row has been visited, so the visitor should not
+     * dawdle. The cache is neither consulted nor populated. Note that a transient database failure
+     * during the scan will not be retried, as some rows may have already been visited.
+     *
+     * @return the number of rows visited.
+     */
+    public int forEach (Visitor<? super T> visitor)
+    {
+        return forEach(DEFAULT_FETCH_SIZE, visitor);
+    }
+
+    /**
+     * Like {@link #forEach(Visitor)} but fetches the specified number of rows at a time from the
+     * database (where the driver supports it).
+     */
+    public int forEach (int fetchSize, Visitor<? super T> visitor)
+    {
+        checkArgument(fetchSize > 0, "Fetch size must be positive.");
+        return _ctx.invoke(
+            StreamQuery.records(_ctx, _pclass, getClauses(), fetchSize, visitor), false);
+    }
+
+    /**
+     * Passes just the supplied expression from each row matching the query to the supplied
+     * visitor. See {@link #forEach(Visitor)}.
+     *
+     * @return the number of rows visited.
+     */
+    public <V> int forEach (SQLExpression<V> selexp, Visitor<? super V> visitor)
+    {
+        Projector<T,V> proj = Projector.create(_pclass, selexp);
+        return _ctx.invoke(
+            StreamQuery.projection(_ctx, proj, getClauses(), DEFAULT_FETCH_SIZE, visitor), false);
+    }
+
     /**
      * Deletes the records that match the configured query clauses. Note that only the where and
      * limit clauses are used to evaluate a deletion. Attempts to use other clauses will result in
@@ -626,7 +753,7 @@ public class Query<T extends PersistentRecord>
     protected List<QueryClause> getClauses ()
     {
         List<QueryClause> clauses = Lists.newArrayList();
-        addIfNotNull(clauses, _where);
+        addIfNotNull(clauses, getWhere());
         addAll(clauses, _joins);
         addIfNotNull(clauses, _orderBy);
         addIfNotNull(clauses, _distinct);
@@ -638,6 +765,51 @@ public class Query<T extends PersistentRecord>
         return clauses;
     }
 
+    protected WhereClause getWhere ()
+    {
+        if (_after == null) {
+            return _where;
+        }
+        ColumnExp<?>[] columns = getSeekColumns();
+        checkArgument(_after.length == columns.length,
+                      "After values must match ordering columns [columns=%s, values=%s].",
+                      columns.length, _after.length);
+        Seek seek = new Seek(columns, _orderBy.getOrders(), _after);
+        return new Where((_where == null) ? seek : Ops.and(_where.getWhereExpression(), seek));
+    }
+
+    protected ColumnExp<?>[] getSeekColumns ()
+    {
+        checkState(_orderBy != null, "Paging requires an OrderBy clause.");
+        SQLExpression<?>[] values = _orderBy.getValues();
+        ColumnExp<?>[] columns = new ColumnExp<?>[values.length];
+        for (int ii = 0; ii < values.length; ii++) {
+            checkArgument(values[ii] instanceof ColumnExp<?>,
+                          "Paging requires ordering by columns only [orderBy=%s].", _orderBy);
+            columns[ii] = (ColumnExp<?>)values[ii];
+        }
+        return columns;
+    }
+
+    protected Comparable<?>[] getSeekValues (T record)
+    {
+        ColumnExp<?>[] columns = getSeekColumns();
+        Comparable<?>[] values = new Comparable<?>[columns.length];
+        DepotMarshaller<T> marsh = _ctx.getMarshaller(_pclass);
+        for (int ii = 0; ii < columns.length; ii++) {
+            checkArgument(columns[ii].getPersistentClass() == _pclass,
+                          "Paging requires ordering by columns of %s [column=%s].",
+                          _pclass.getSimpleName(), columns[ii]);
+            try {
+                values[ii] = (Comparable<?>)marsh.getFieldMarshaller(
+                    columns[ii].name).getFromObject(record);
+            } catch (IllegalAccessException iae) {
+                throw new DatabaseException("Failed to read paging column " + columns[ii], iae);
+            }
+        }
+        return values;
+    }
+
     protected QueryClause[] getClauseArray ()
     {
         List<QueryClause> clauses = getClauses();
@@ -661,6 +833,7 @@ public class Query<T extends PersistentRecord>
         checkState(_fromOverride == null, "FromOverride clause not applicable for delete.");
         checkState(_fieldDefs == null, "FieldDefinition clauses not applicable for delete.");
         checkState(_forUpdate == null, "ForUpdate clause not supported by delete.");
+        checkState(_after == null, "After values not applicable for delete.");
     }
 
     protected static <T> T getLoaded (List<T> selections)
@@ -708,4 +881,5 @@ public class Query<T extends PersistentRecord>
     protected ForUpdate _forUpdate;
     protected Cons<Join> _joins;
     protected Cons<FieldDefinition> _fieldDefs;
+    protected Comparable<?>[] _after;
 }
@@ -0,0 +1,137 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Tracks the queries made on a single thread over the course of some unit of work (say, the
+ * handling of a request), to detect access patterns that should be done in bulk: loading records
+ * one key at a time in a loop rather than with {@code loadAll}, or issuing the same query over
+ * and over with different values. See {@link PersistenceContext#beginQueryScope}.
+ *
+ * <p> Queries are grouped by record class and shape (their SQL, with bind values left as
+ * placeholders). Queries satisfied from the cache are counted too, as a pattern that happens to
+ * hit a warm cache in testing may not be so lucky in production.
+ */
+public class QueryScope
+{
+    /**
+     * Describes a query that was repeated at least the threshold number of times in a scope.
+     */
+    public static class Repeat
+    {
+        /** The record class queried, or null if unknown. */
+        public final Class<? extends PersistentRecord> type;
+
+        /** The shape of the query. */
+        public final String shape;
+
+        /** True if the query loaded a single record (i.e. a {@code load} rather than a
+         * {@code select}). */
+        public final boolean singleRecord;
+
+        /** The number of times the query was executed in the scope. */
+        public int count;
+
+        /** The number of those executions that went to the database. */
+        public int uncached;
+
+        /** The stack at the execution that first reached the threshold, which identifies the
+         * (likely looping) call site. */
+        public StackTraceElement[] callSite;
+
+        @Override // from Object
+        public String toString ()
+        {
+            return "[type=" + (type == null ? null : type.getSimpleName()) + ", count=" + count +
+                ", uncached=" + uncached + ", single=" + singleRecord + ", shape=" + shape + "]";
+        }
+
+        protected Repeat (Class<? extends PersistentRecord> type, String shape,
+                          boolean singleRecord)
+        {
+            this.type = type;
+            this.shape = shape;
+            this.singleRecord = singleRecord;
+        }
+    }
+
+    /**
+     * Returns the name of this scope.
+     */
+    public String getName ()
+    {
+        return _name;
+    }
+
+    /**
+     * Returns the total number of queries executed in this scope.
+     */
+    public int getQueryCount ()
+    {
+        return _queries;
+    }
+
+    /**
+     * Returns the queries that were repeated at least the threshold number of times, in the order
+     * in which they were first executed.
+     */
+    public List<Repeat> getRepeats ()
+    {
+        List<Repeat> repeats = Lists.newArrayList();
+        for (Repeat repeat : _repeats.values()) {
+            if (repeat.count >= _threshold) {
+                repeats.add(repeat);
+            }
+        }
+        return Collections.unmodifiableList(repeats);
+    }
+
+    @Override // from Object
+    public String toString ()
+    {
+        return "[name=" + _name + ", queries=" + _queries + ", repeats=" + getRepeats() + "]";
+    }
+
+    protected QueryScope (String name, int threshold, QueryScope outer)
+    {
+        _name = name;
+        _threshold = threshold;
+        _outer = outer;
+    }
+
+    /**
+     * Notes the execution of a query with the supplied record class and shape.
+     */
+    protected void noteQuery (Class<? extends PersistentRecord> type, String shape,
+                              boolean singleRecord, boolean cached)
+    {
+        _queries++;
+        String key = (type == null ? "" : type.getName()) + ":" + shape;
+        Repeat repeat = _repeats.get(key);
+        if (repeat == null) {
+            _repeats.put(key, repeat = new Repeat(type, shape, singleRecord));
+        }
+        if (++repeat.count == _threshold) {
+            repeat.callSite = new Throwable().getStackTrace();
+        }
+        if (!cached) {
+            repeat.uncached++;
+        }
+    }
+
+    protected String _name;
+    protected int _threshold, _queries;
+    protected QueryScope _outer;
+
+    /** Our queries, by record class and shape, in the order they were first executed. */
+    protected Map<String, Repeat> _repeats = Maps.newLinkedHashMap();
+}
@@ -4,7 +4,17 @@
 
 package com.samskivert.depot;
 
-import com.samskivert.util.Histogram;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.samskivert.depot.impl.StripedCounters;
 
 import static com.samskivert.depot.Log.log;
 
@@ -15,7 +25,8 @@ public class Stats
 {
     /**
      * An immutable class used to report statistics on repository activity. Statistics are tracked
-     * from the start of the VM and are never reset.
+     * from the start of the VM and are never reset, though a snapshot may report only the
+     * activity since the previous snapshot (see {@link Stats#getIntervalSnapshot}).
      */
     public static class Snapshot
     {
@@ -25,6 +36,9 @@ public class Stats
         /** The total number of milliseconds spent waiting for a JDBC connection. */
         public final long connectionWaitTime;
 
+        /** The distribution of the time operations spent waiting for a JDBC connection. */
+        public final LatencyHistogram.Snapshot connectionWaitLatency;
+
         /** The total number of collection queries that were loaded from the cache. */
         public final int cachedQueries;
 
@@ -34,6 +48,18 @@ public class Stats
         /** The total number of one-phase collection queries that executed. */
         public final int explicitQueries;
 
+        /** The number of collection and single record queries that were satisfied by waiting for
+         * an identical query in progress on another thread, rather than going to the database. */
+        public final int coalescedQueries;
+
+        /** The number of stale cached collection query results that were refreshed in the
+         * background. These queries are not included in the other query counts. */
+        public final int refreshQueries;
+
+        /** The number of background refreshes that were dropped because too many were already
+         * running. */
+        public final int droppedRefreshes;
+
         /** The number of record loads (individual or as part of a collection query) that were
          * loaded from the cache. */
         public final long cachedRecords;
@@ -42,93 +68,470 @@ public class Stats
          * loaded from the database. */
         public final long uncachedRecords;
 
-        /** A histogram of query durations (with 500ms buckets). */
-        public final Histogram queryHisto;
+        /** The distribution of query durations. */
+        public final LatencyHistogram.Snapshot queryLatency;
 
         /** The total number of milliseconds spent executing queries. */
         public final long queryTime;
 
-        /** A histogram of modifier durations (with 500ms buckets). */
-        public final Histogram modifierHisto;
+        /** The distribution of modifier durations. */
+        public final LatencyHistogram.Snapshot modifierLatency;
 
         /** The total number of milliseconds spent executing modifiers. */
         public final long modifierTime;
 
+        /** The total number of operations that were dispatched to the async executor. */
+        public final int asyncOps;
+
+        /** The total number of milliseconds async operations spent queued on the executor before
+         * they started running. */
+        public final long queueWaitTime;
+
+        /** The number of prepared statements that were reused from the statement cache. */
+        public final long stmtCacheHits;
+
+        /** The number of cacheable prepared statements that had to be prepared anew. */
+        public final long stmtCacheMisses;
+
         /** Creates a stats instance. */
         protected Snapshot (int totalOps, long connectionWaitTime,
+                            LatencyHistogram.Snapshot connectionWaitLatency,
                             int cachedQueries, int uncachedQueries, int explicitQueries,
+                            int coalescedQueries, int refreshQueries, int droppedRefreshes,
                             int cachedRecords, int uncachedRecords,
-                            Histogram queryHisto, long queryTime,
-                            Histogram modifierHisto, long modifierTime)
+                            LatencyHistogram.Snapshot queryLatency, long queryTime,
+                            LatencyHistogram.Snapshot modifierLatency, long modifierTime,
+                            int asyncOps, long queueWaitTime,
+                            long stmtCacheHits, long stmtCacheMisses)
         {
             this.totalOps = totalOps;
             this.connectionWaitTime = connectionWaitTime;
+            this.connectionWaitLatency = connectionWaitLatency;
             this.cachedQueries = cachedQueries;
             this.uncachedQueries = uncachedQueries;
             this.explicitQueries = explicitQueries;
+            this.coalescedQueries = coalescedQueries;
+            this.refreshQueries = refreshQueries;
+            this.droppedRefreshes = droppedRefreshes;
             this.cachedRecords = cachedRecords;
             this.uncachedRecords = uncachedRecords;
-            this.queryHisto = queryHisto;
+            this.queryLatency = queryLatency;
             this.queryTime = queryTime;
-            this.modifierHisto = modifierHisto;
+            this.modifierLatency = modifierLatency;
             this.modifierTime = modifierTime;
+            this.asyncOps = asyncOps;
+            this.queueWaitTime = queueWaitTime;
+            this.stmtCacheHits = stmtCacheHits;
+            this.stmtCacheMisses = stmtCacheMisses;
+        }
+
+        /**
+         * Returns a snapshot of the activity recorded in this snapshot but not in the supplied
+         * earlier snapshot of the same statistics.
+         */
+        public Snapshot since (Snapshot earlier)
+        {
+            return new Snapshot(
+                totalOps - earlier.totalOps, connectionWaitTime - earlier.connectionWaitTime,
+                connectionWaitLatency.since(earlier.connectionWaitLatency),
+                cachedQueries - earlier.cachedQueries, uncachedQueries - earlier.uncachedQueries,
+                explicitQueries - earlier.explicitQueries,
+                coalescedQueries - earlier.coalescedQueries,
+                refreshQueries - earlier.refreshQueries,
+                droppedRefreshes - earlier.droppedRefreshes,
+                (int)(cachedRecords - earlier.cachedRecords),
+                (int)(uncachedRecords - earlier.uncachedRecords),
+                queryLatency.since(earlier.queryLatency), queryTime - earlier.queryTime,
+                modifierLatency.since(earlier.modifierLatency),
+                modifierTime - earlier.modifierTime, asyncOps - earlier.asyncOps,
+                queueWaitTime - earlier.queueWaitTime, stmtCacheHits - earlier.stmtCacheHits,
+                stmtCacheMisses - earlier.stmtCacheMisses);
+        }
+
+        /**
+         * Returns the fraction of prepared statements that were obtained from the statement
+         * cache, or zero if no statements have been prepared.
+         */
+        public double getStatementCacheHitRate ()
+        {
+            long total = stmtCacheHits + stmtCacheMisses;
+            return (total == 0) ? 0 : stmtCacheHits / (double)total;
+        }
+    }
+
+    /**
+     * An immutable report of the operations executed with a particular query shape: the SQL
+     * of the operation with its bind values left as placeholders.
+     */
+    public static class ShapeSnapshot
+    {
+        /** The SQL of the operations, with placeholders for bind values. */
+        public final String shape;
+
+        /** The number of operations executed with this shape. */
+        public final long count;
+
+        /** The number of those operations whose results came from the cache. */
+        public final long cachedCount;
+
+        /** The number of rows returned (for queries) or modified (for modifiers). */
+        public final long rows;
+
+        /** The longest operation, in nanoseconds. */
+        public final long maxTime;
+
+        /** The distribution of operation durations, including their total. */
+        public final LatencyHistogram.Snapshot latency;
+
+        /**
+         * Returns the total time spent on operations of this shape, in nanoseconds.
+         */
+        public long getTotalTime ()
+        {
+            return latency.getTotal();
+        }
+
+        /**
+         * Returns the fraction of operations of this shape whose results came from the cache.
+         */
+        public double getCacheHitRate ()
+        {
+            return (count == 0) ? 0 : cachedCount / (double)count;
+        }
+
+        @Override // from Object
+        public String toString ()
+        {
+            return "[shape=" + shape + ", count=" + count + ", total=" + getTotalTime() +
+                ", max=" + maxTime + ", rows=" + rows + ", hitRate=" + getCacheHitRate() +
+                ", latency=" + latency + "]";
+        }
+
+        protected ShapeSnapshot (String shape, long count, long cachedCount, long rows,
+                                 long maxTime, LatencyHistogram.Snapshot latency)
+        {
+            this.shape = shape;
+            this.count = count;
+            this.cachedCount = cachedCount;
+            this.rows = rows;
+            this.maxTime = maxTime;
+            this.latency = latency;
         }
     }
 
-    public synchronized Snapshot getSnapshot ()
+    /**
+     * An immutable report of the lookups made in a particular cache.
+     */
+    public static class CacheCounts
     {
-        return new Snapshot(_totalOps, _connectionWaitTime,
-                            _cachedQueries, _uncachedQueries, _explicitQueries,
-                            _cachedRecords, _uncachedRecords,
-                            _readHisto.clone(), _readTime, _writeHisto.clone(), _writeTime);
+        /** The number of lookups that found an entry. */
+        public final long hits;
+
+        /** The number of lookups that found no entry. */
+        public final long misses;
+
+        /**
+         * Returns the fraction of lookups that found an entry, or zero if there were none.
+         */
+        public double getHitRate ()
+        {
+            long total = hits + misses;
+            return (total == 0) ? 0 : hits / (double)total;
+        }
+
+        protected CacheCounts (long hits, long misses)
+        {
+            this.hits = hits;
+            this.misses = misses;
+        }
     }
 
-    public synchronized void noteOp (
-        boolean isReadOnly, long preConnect, long preInvoke, long postInvoke)
+    /** A reasonable maximum number of query shapes for which to track statistics. See {@link
+     * #setMaxShapes}. */
+    public static final int DEFAULT_MAX_SHAPES = 200;
+
+    /**
+     * Returns a snapshot of our current statistics. Statistics are collected without locking, so
+     * a snapshot taken while operations are in progress may include some parts of an operation
+     * (say, its query counts) but not others (say, its time).
+     */
+    public Snapshot getSnapshot ()
     {
-        _totalOps++;
-        _connectionWaitTime += (preInvoke - preConnect) / 1000000L;
+        return toSnapshot(_counters.getAll(), _connectionWaits.getSnapshot(),
+                          _reads.getSnapshot(), _writes.getSnapshot());
+    }
+
+    /**
+     * Returns a snapshot of the activity since the previous call to this method (or since we were
+     * created, for the first call). This is useful for reporting rates and recent latencies, and
+     * does not affect {@link #getSnapshot}.
+     */
+    public synchronized Snapshot getIntervalSnapshot ()
+    {
+        long[] counts = _counters.getAll(), interval = new long[counts.length];
+        for (int ii = 0; ii < counts.length; ii++) {
+            interval[ii] = counts[ii] - _lastCounts[ii];
+        }
+        _lastCounts = counts;
+        return toSnapshot(interval, _connectionWaits.getIntervalSnapshot(),
+                          _reads.getIntervalSnapshot(), _writes.getIntervalSnapshot());
+    }
+
+    /**
+     * Returns the (at most) {@code count} query shapes on which the most time has been spent,
+     * most expensive first.
+     */
+    public List<ShapeSnapshot> getTopShapes (int count)
+    {
+        List<ShapeSnapshot> shapes = Lists.newArrayList();
+        for (Map.Entry<String, ShapeStats> entry : _shapes.entrySet()) {
+            shapes.add(entry.getValue().toSnapshot(entry.getKey()));
+        }
+        Collections.sort(shapes, new Comparator<ShapeSnapshot>() {
+            public int compare (ShapeSnapshot s1, ShapeSnapshot s2) {
+                long t1 = s1.getTotalTime(), t2 = s2.getTotalTime();
+                return (t1 > t2) ? -1 : ((t1 == t2) ? 0 : 1);
+            }
+        });
+        return shapes.subList(0, Math.min(count, shapes.size()));
+    }
 
-        long opTime = (postInvoke - preInvoke) / 1000000L;
+    /**
+     * Returns the lookup counts of every cache in which a lookup has been made, by cache id.
+     */
+    public Map<String, CacheCounts> getCacheCounts ()
+    {
+        Map<String, CacheCounts> counts = Maps.newTreeMap();
+        for (Map.Entry<String, StripedCounters> entry : _caches.entrySet()) {
+            long[] values = entry.getValue().getAll();
+            counts.put(entry.getKey(), new CacheCounts(values[0], values[1]));
+        }
+        return counts;
+    }
+
+    /**
+     * Configures the maximum number of query shapes for which we track statistics. Once that
+     * many shapes are tracked, a new shape displaces the one on which the least time has been
+     * spent. Zero (the default) disables shape tracking. Tracking requires the SQL of every query
+     * to be generated, even when its result comes from the cache, so it is off by default.
+     */
+    public void setMaxShapes (int maxShapes)
+    {
+        _maxShapes = maxShapes;
+        if (maxShapes == 0) {
+            _shapes.clear();
+        }
+    }
+
+    /**
+     * Returns true if we're tracking statistics by query shape.
+     */
+    public boolean isTrackingShapes ()
+    {
+        return _maxShapes > 0;
+    }
+
+    public void noteOp (boolean isReadOnly, long preConnect, long preInvoke, long postInvoke)
+    {
+        _counters.increment(TOTAL_OPS);
+        _counters.add(CONNECTION_WAIT_TIME, (preInvoke - preConnect) / 1000000L);
+        _connectionWaits.record(preInvoke - preConnect);
+
+        long opNanos = postInvoke - preInvoke, opTime = opNanos / 1000000L;
         if (opTime > Integer.MAX_VALUE) {
             log.warning("ZOMG! A database operation took " + opTime + "ms to complete!");
-            opTime = Integer.MAX_VALUE;
         }
 
         if (isReadOnly) {
-            _readTime += opTime;
-            _readHisto.addValue((int)opTime);
+            _counters.add(READ_TIME, opTime);
+            _reads.record(opNanos);
         } else {
-            _writeTime += opTime;
-            _writeHisto.addValue((int)opTime);
+            _counters.add(WRITE_TIME, opTime);
+            _writes.record(opNanos);
         }
     }
 
-    public synchronized void noteQuery (
+    public void noteQueueWait (long preQueue, long postQueue)
+    {
+        _counters.increment(ASYNC_OPS);
+        _counters.add(QUEUE_WAIT_TIME, (postQueue - preQueue) / 1000000L);
+    }
+
+    public void noteStatementCache (int hits, int misses)
+    {
+        addNonZero(STMT_CACHE_HITS, hits);
+        addNonZero(STMT_CACHE_MISSES, misses);
+    }
+
+    public void noteQuery (
         Class<? extends PersistentRecord> type, int cachedQueries, int uncachedQueries,
         int explicitQueries, int cachedRecords, int uncachedRecords)
     {
-        _cachedQueries += cachedQueries;
-        _uncachedQueries += uncachedQueries;
-        _explicitQueries += explicitQueries;
-        _cachedRecords += cachedRecords;
-        _uncachedRecords += uncachedRecords;
+        addNonZero(CACHED_QUERIES, cachedQueries);
+        addNonZero(UNCACHED_QUERIES, uncachedQueries);
+        addNonZero(EXPLICIT_QUERIES, explicitQueries);
+        addNonZero(CACHED_RECORDS, cachedRecords);
+        addNonZero(UNCACHED_RECORDS, uncachedRecords);
+    }
+
+    public void noteCacheLookups (String cacheId, int hits, int misses)
+    {
+        StripedCounters counters = _caches.get(cacheId);
+        if (counters == null) {
+            StripedCounters ncounters = new StripedCounters(2);
+            counters = _caches.putIfAbsent(cacheId, ncounters);
+            if (counters == null) {
+                counters = ncounters;
+            }
+        }
+        if (hits != 0) {
+            counters.add(0, hits);
+        }
+        if (misses != 0) {
+            counters.add(1, misses);
+        }
+    }
+
+    public void noteCoalescedQuery ()
+    {
+        _counters.increment(COALESCED_QUERIES);
     }
 
-    public synchronized void noteModification (Class<? extends PersistentRecord> type)
+    public void noteRefresh (Class<? extends PersistentRecord> type)
+    {
+        _counters.increment(REFRESH_QUERIES);
+    }
+
+    public void noteDroppedRefresh ()
+    {
+        _counters.increment(DROPPED_REFRESHES);
+    }
+
+    public void noteModification (Class<? extends PersistentRecord> type)
     {
         // nothing by default
     }
 
-    protected int _totalOps;
-    protected long _connectionWaitTime;
+    /**
+     * Notes an operation with the supplied shape (see {@link #getTopShapes}).
+     *
+     * @param nanos the duration of the operation.
+     * @param rows the rows returned or modified by the operation.
+     * @param cached whether the operation's result came from the cache.
+     */
+    public void noteShape (String shape, long nanos, int rows, boolean cached)
+    {
+        if (_maxShapes <= 0) {
+            return;
+        }
+        ShapeStats stats = _shapes.get(shape);
+        if (stats == null) {
+            stats = addShape(shape);
+        }
+        stats.note(nanos, rows, cached);
+    }
+
+    protected synchronized ShapeStats addShape (String shape)
+    {
+        ShapeStats stats = _shapes.get(shape);
+        if (stats != null) {
+            return stats;
+        }
+        // make room by evicting the cheapest shape; this scan only happens when a new shape turns
+        // up once the table is full, and shapes are few (their values are never part of them)
+        while (_shapes.size() >= _maxShapes) {
+            String cheapest = null;
+            long cheapestTime = Long.MAX_VALUE;
+            for (Map.Entry<String, ShapeStats> entry : _shapes.entrySet()) {
+                long time = entry.getValue().latency.getTotal();
+                if (time < cheapestTime) {
+                    cheapest = entry.getKey();
+                    cheapestTime = time;
+                }
+            }
+            _shapes.remove(cheapest);
+        }
+        stats = new ShapeStats();
+        _shapes.put(shape, stats);
+        return stats;
+    }
+
+    protected void addNonZero (int counter, long delta)
+    {
+        // most operations touch only a few of our counters, so skip the no-op updates
+        if (delta != 0) {
+            _counters.add(counter, delta);
+        }
+    }
+
+    protected Snapshot toSnapshot (long[] counts, LatencyHistogram.Snapshot connectionWaits,
+                                   LatencyHistogram.Snapshot reads,
+                                   LatencyHistogram.Snapshot writes)
+    {
+        return new Snapshot((int)counts[TOTAL_OPS], counts[CONNECTION_WAIT_TIME], connectionWaits,
+                            (int)counts[CACHED_QUERIES], (int)counts[UNCACHED_QUERIES],
+                            (int)counts[EXPLICIT_QUERIES], (int)counts[COALESCED_QUERIES],
+                            (int)counts[REFRESH_QUERIES], (int)counts[DROPPED_REFRESHES],
+                            (int)counts[CACHED_RECORDS], (int)counts[UNCACHED_RECORDS],
+                            reads, counts[READ_TIME], writes, counts[WRITE_TIME],
+                            (int)counts[ASYNC_OPS], counts[QUEUE_WAIT_TIME],
+                            counts[STMT_CACHE_HITS], counts[STMT_CACHE_MISSES]);
+    }
+
+    /** The statistics tracked for a single query shape. */
+    protected static class ShapeStats
+    {
+        public final AtomicLong count = new AtomicLong(), cachedCount = new AtomicLong();
+        public final AtomicLong rows = new AtomicLong(), maxTime = new AtomicLong();
+        public final LatencyHistogram latency = new LatencyHistogram();
+
+        public void note (long nanos, int rows, boolean cached) {
+            count.incrementAndGet();
+            if (cached) {
+                cachedCount.incrementAndGet();
+            }
+            if (rows != 0) {
+                this.rows.addAndGet(rows);
+            }
+            latency.record(nanos);
+            for (long max = maxTime.get(); nanos > max; max = maxTime.get()) {
+                if (maxTime.compareAndSet(max, nanos)) {
+                    break;
+                }
+            }
+        }
+
+        public ShapeSnapshot toSnapshot (String shape) {
+            return new ShapeSnapshot(shape, count.get(), cachedCount.get(), rows.get(),
+                                     maxTime.get(), latency.getSnapshot());
+        }
+    }
+
+    /** Our counters, striped so that concurrent operations don't contend when noting stats. */
+    protected StripedCounters _counters = new StripedCounters(COUNTERS);
+
+    /** The hit and miss counts of each cache, by cache id. */
+    protected ConcurrentMap<String, StripedCounters> _caches = Maps.newConcurrentMap();
+
+    /** Our statistics by query shape, and the maximum number of shapes we track. */
+    protected ConcurrentMap<String, ShapeStats> _shapes = Maps.newConcurrentMap();
+    protected volatile int _maxShapes;
 
-    protected Histogram _readHisto = new Histogram(0, 500, 20);
-    protected long _readTime;
+    /** The counter values reported by the last interval snapshot. */
+    protected long[] _lastCounts = new long[COUNTERS];
 
-    protected Histogram _writeHisto = new Histogram(0, 500, 20);
-    protected long _writeTime;
+    /** The distributions of connection wait, query and modifier times. */
+    protected LatencyHistogram _connectionWaits = new LatencyHistogram();
+    protected LatencyHistogram _reads = new LatencyHistogram(), _writes = new LatencyHistogram();
 
-    protected int _cachedQueries, _uncachedQueries, _explicitQueries;
-    protected int _cachedRecords, _uncachedRecords;
+    // the indices of our counters
+    protected static final int TOTAL_OPS = 0, CONNECTION_WAIT_TIME = 1;
+    protected static final int READ_TIME = 2, WRITE_TIME = 3;
+    protected static final int CACHED_QUERIES = 4, UNCACHED_QUERIES = 5, EXPLICIT_QUERIES = 6;
+    protected static final int COALESCED_QUERIES = 7, REFRESH_QUERIES = 8;
+    protected static final int DROPPED_REFRESHES = 9;
+    protected static final int CACHED_RECORDS = 10, UNCACHED_RECORDS = 11;
+    protected static final int ASYNC_OPS = 12, QUEUE_WAIT_TIME = 13;
+    protected static final int STMT_CACHE_HITS = 14, STMT_CACHE_MISSES = 15;
+    protected static final int COUNTERS = 16;
 }
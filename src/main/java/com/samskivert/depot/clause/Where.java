@@ -44,6 +44,8 @@ public class Where extends WhereClause
     public Where (ColumnExp<?>[] columns, Comparable<?>[] values)
     {
         this(toCondition(columns, values));
+        _columns = columns;
+        _values = values;
     }
 
     public Where (SQLExpression<?> condition)
@@ -57,6 +59,24 @@ public class Where extends WhereClause
         return _condition;
     }
 
+    /**
+     * Returns the columns compared by this clause, if it was created from columns and the values
+     * to which they must be equal, or null if it was created from an arbitrary condition.
+     */
+    public ColumnExp<?>[] getColumns ()
+    {
+        return _columns;
+    }
+
+    /**
+     * Returns the values to which our {@link #getColumns} must be equal, or null if this clause
+     * was created from an arbitrary condition.
+     */
+    public Comparable<?>[] getValues ()
+    {
+        return _values;
+    }
+
     // from SQLExpression
     public Object accept (FragmentVisitor<?> builder)
     {
@@ -86,4 +106,6 @@ public class Where extends WhereClause
     }
 
     protected SQLExpression<?> _condition;
+    protected ColumnExp<?>[] _columns;
+    protected Comparable<?>[] _values;
 }
@@ -7,6 +7,7 @@ package com.samskivert.depot.impl;
 import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -45,6 +46,7 @@ import com.samskivert.depot.impl.clause.CreateIndexClause;
 import com.samskivert.depot.impl.clause.DeleteClause;
 import com.samskivert.depot.impl.clause.DropIndexClause;
 import com.samskivert.depot.impl.clause.UpdateClause;
+import com.samskivert.depot.impl.clause.UpsertClause;
 import com.samskivert.depot.impl.expression.AggregateFun;
 import com.samskivert.depot.impl.expression.IntervalExp;
 import com.samskivert.depot.impl.expression.LiteralExp;
@@ -86,6 +88,7 @@ import com.samskivert.depot.impl.operator.In;
 import com.samskivert.depot.impl.operator.IsNull;
 import com.samskivert.depot.impl.operator.MultiOperator;
 import com.samskivert.depot.impl.operator.Not;
+import com.samskivert.depot.impl.operator.Seek;
 
 /**
  * Implements the base functionality of the SQL-building pass of {@link SQLBuilder}. Dialectal
@@ -150,7 +153,7 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
                 _builder.append(" is null ");
             } else {
                 _builder.append(" = ");
-                bindValue(values[ii]);
+                bindKeyValue(pClass, keyFields[ii], values[ii]);
             }
         }
         return null;
@@ -196,12 +199,14 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
         }
         in.getExpression().accept(this);
         _builder.append(" in (");
+        // pad the list by repeating its last value, which does not change the result
         Comparable<?>[] values = in.getValues();
-        for (int ii = 0; ii < values.length; ii ++) {
+        int count = _bucketInLists ? In.getBucketSize(values.length) : values.length;
+        for (int ii = 0; ii < count; ii ++) {
             if (ii > 0) {
                 _builder.append(", ");
             }
-            bindValue(values[ii]);
+            bindValue(values[Math.min(ii, values.length-1)]);
         }
         _builder.append(")");
         return null;
@@ -501,6 +506,18 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
         return null;
     }
 
+    public Void visit (UpsertClause upsertClause)
+    {
+        // there is no standard syntax for this, so absent a dialect's own we insert the record;
+        // SQLBuilder.executeUpsert only does so once an update has found no existing row
+        _innerClause = true;
+        _builder.append("insert into ");
+        appendTableName(upsertClause.getPersistentClass());
+        _builder.append(" ");
+        appendUpsertInsertColumns(upsertClause);
+        return null;
+    }
+
     public Void visit (CreateIndexClause createIndexClause)
     {
         if (!_allowComplexIndices) {
@@ -721,6 +738,29 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
         return appendFunctionCall("least", exp.getArgs());
     }
 
+    // output a seek as a single row value comparison: (a, b) > (?, ?)
+    protected Void appendRowComparison (Seek seek)
+    {
+        _builder.append("(");
+        ColumnExp<?>[] columns = seek.getColumns();
+        for (int ii = 0; ii < columns.length; ii++) {
+            if (ii > 0) {
+                _builder.append(", ");
+            }
+            columns[ii].accept(this);
+        }
+        _builder.append(seek.isDescending() ? ") < (" : ") > (");
+        Comparable<?>[] values = seek.getValues();
+        for (int ii = 0; ii < values.length; ii++) {
+            if (ii > 0) {
+                _builder.append(", ");
+            }
+            bindValue(values[ii]);
+        }
+        _builder.append(")");
+        return null;
+    }
+
     protected Void appendAggregateFunctionCall (String function, AggregateFun<?> exp)
     {
         _builder.append(" ").append(function).append("(");
@@ -751,9 +791,16 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
         return null;
     }
 
-    protected Void bindValue (final Object value)
+    protected Void bindValue (Object value)
     {
-        _bindables.add(new Bindable() {
+        _bindables.add(newValueBindable(value));
+        _builder.append("?");
+        return null;
+    }
+
+    protected Bindable newValueBindable (final Object value)
+    {
+        return new Bindable() {
             public void doBind (Connection conn, PreparedStatement stmt, int argIx)
                 throws Exception {
                 // TODO: how can we abstract this fieldless marshalling
@@ -773,6 +820,24 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
                     stmt.setObject(argIx, value);
                 }
             }
+        };
+    }
+
+    // binds the value of a primary key column, which a record can supply in place of the key
+    protected Void bindKeyValue (
+        final Class<? extends PersistentRecord> pClass, final ColumnExp<?> field, Object value)
+    {
+        final Bindable bindable = newValueBindable(value);
+        _bindables.add(new RecordBindable() {
+            public void doBind (Connection conn, PreparedStatement stmt, int argIx)
+                throws Exception {
+                bindable.doBind(conn, stmt, argIx);
+            }
+            public void doBind (Connection conn, PreparedStatement stmt, int argIx, Object pojo)
+                throws Exception {
+                _types.getMarshaller(pClass).getFieldMarshaller(field.name).
+                    getAndWriteToStatement(stmt, argIx, pojo);
+            }
         });
         _builder.append("?");
         return null;
@@ -783,11 +848,15 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
     {
         final FieldMarshaller<?> fmarsh =
             _types.getMarshaller(pClass).getFieldMarshaller(field.name);
-        _bindables.add(new Bindable() {
+        _bindables.add(new RecordBindable() {
             public void doBind (Connection conn, PreparedStatement stmt, int argIx)
                 throws Exception {
                 fmarsh.getAndWriteToStatement(stmt, argIx, pojo);
             }
+            public void doBind (Connection conn, PreparedStatement stmt, int argIx, Object record)
+                throws Exception {
+                fmarsh.getAndWriteToStatement(stmt, argIx, record);
+            }
         });
         _builder.append("?");
         return null;
@@ -990,6 +1059,15 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
         _builder.append(")");
     }
 
+    // output the column names and values for the insert half of an upsert
+    protected void appendUpsertInsertColumns (UpsertClause upsertClause)
+    {
+        // the record's key is known, so there are no identity fields to omit
+        Set<String> identityFields = Collections.emptySet();
+        appendInsertColumns(new InsertClause(
+            upsertClause.getPersistentClass(), upsertClause.getPojo(), identityFields));
+    }
+
     /**
      * Validate/massage the Order value as supported by the underlying database.
      */
@@ -1027,6 +1105,15 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
         void doBind (Connection conn, PreparedStatement stmt, int argIx) throws Exception;
     }
 
+    /** A {@link Bindable} whose value was read from a record (or its primary key), and which can
+     * instead be read from another record of the same class (see {@link SQLBuilder#bind(
+     * Connection, PreparedStatement, Object)}). */
+    protected static interface RecordBindable extends Bindable
+    {
+        void doBind (Connection conn, PreparedStatement stmt, int argIx, Object pojo)
+            throws Exception;
+    }
+
     protected DepotTypes _types;
 
     /** For each SQL parameter ? we add an {@link Comparable} to bind to this list. */
@@ -1047,6 +1134,9 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
     protected boolean _enableOverrides = false;
     protected boolean _enableAliasing = false;
 
+    /** Whether to pad the values of IN() lists to a bucket size. See {@link In#getBucketSize}. */
+    protected boolean _bucketInLists = true;
+
     /** If this database allows complex expressions in its indices. */
     protected final boolean _allowComplexIndices;
 }
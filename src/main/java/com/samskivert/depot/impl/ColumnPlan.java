@@ -0,0 +1,31 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot.impl;
+
+/**
+ * Maps the columns of a particular result set to the field marshallers that read them. A plan is
+ * computed once per result set by {@link QueryMarshaller#planColumns} and then used to read every
+ * row, so that we need neither inspect the result set metadata nor look up columns by name for
+ * each row.
+ */
+public class ColumnPlan
+{
+    /** The marshaller for each column to be read. An entry may be null if the column is to be
+     * read as a raw object rather than via a field marshaller. */
+    public final FieldMarshaller<?>[] fields;
+
+    /** The 1-based result set index of the column read by the corresponding marshaller. */
+    public final int[] indices;
+
+    /** A required field that is not present in the result set, or null. */
+    public final FieldMarshaller<?> missing;
+
+    public ColumnPlan (FieldMarshaller<?>[] fields, int[] indices, FieldMarshaller<?> missing)
+    {
+        this.fields = fields;
+        this.indices = indices;
+        this.missing = missing;
+    }
+}
@@ -13,9 +13,11 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Function;
 import com.google.common.collect.ArrayListMultimap;
@@ -134,6 +136,12 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
                 _pkColumns.add(fm);
             }
 
+            // note unique columns, which can be used to look records up in the cache
+            Column ucol = field.getAnnotation(Column.class);
+            if (ucol != null && ucol.unique()) {
+                _uniqueKeys.add(new String[] { field.getName() });
+            }
+
             // check if this field defines a new TableGenerator
             generator = field.getAnnotation(TableGenerator.class);
             if (generator != null) {
@@ -201,7 +209,13 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
             _indexes.add(buildIndex(indexName, false, namedFieldIndices.get(indexName)));
         }
         for (String indexName : uniqueNamedFieldIndices.keySet()) {
-            _indexes.add(buildIndex(indexName, true, uniqueNamedFieldIndices.get(indexName)));
+            List<Tuple<SQLExpression<?>, Order>> entries = uniqueNamedFieldIndices.get(indexName);
+            _indexes.add(buildIndex(indexName, true, entries));
+            String[] ufields = new String[entries.size()];
+            for (int ii = 0; ii < ufields.length; ii++) {
+                ufields[ii] = ((ColumnExp<?>)entries.get(ii).left).name;
+            }
+            _uniqueKeys.add(ufields);
         }
 
         // if we did not find a schema version field, freak out (but not for computed records, for
@@ -229,6 +243,7 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
                         colExps[ii ++] = new ColumnExp<Object>(_pClass, field);
                     }
                     _indexes.add(buildIndex(constraint.name(), true, colExps));
+                    _uniqueKeys.add(constraint.fields());
                 }
 
                 // add any explicit multicolumn or complex indices
@@ -277,6 +292,24 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
         return _tableName;
     }
 
+    /**
+     * Returns the current version of our table's contents. The version changes whenever a
+     * {@link Modifier} changes the table, so anything derived from the table's contents can be
+     * tagged with the version at which it was loaded and later checked for staleness.
+     */
+    public long getTableVersion ()
+    {
+        return _tableVersion.get();
+    }
+
+    /**
+     * Notes that our table's contents have changed, advancing its version.
+     */
+    public void noteModified ()
+    {
+        _tableVersion.incrementAndGet();
+    }
+
     // from QueryMarshaller
     public SQLExpression<?>[] getSelections ()
     {
@@ -344,6 +377,88 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
         return pkcols;
     }
 
+    /**
+     * Returns true if our persistent object has a primary key and one or more sets of unique
+     * columns, through which it may be looked up in the cache.
+     */
+    public boolean hasUniqueKeys ()
+    {
+        return hasPrimaryKey() && !_uniqueKeys.isEmpty();
+    }
+
+    /**
+     * Returns true if our table has any unique column, constraint or index other than its
+     * primary key.
+     */
+    public boolean hasSecondaryUniqueIndexes ()
+    {
+        if (!_uniqueKeys.isEmpty()) {
+            return true;
+        }
+        for (CreateIndexClause iclause : _indexes) {
+            if (iclause.isUnique()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the unique cache key identifying the record whose supplied columns have the supplied
+     * values, or null if the columns are not exactly one of our sets of unique columns (or any of
+     * the values is null).
+     */
+    public UniqueCacheKey getUniqueCacheKey (ColumnExp<?>[] columns, Comparable<?>[] values)
+    {
+        if (!hasUniqueKeys()) {
+            return null;
+        }
+        Map<String, Comparable<?>> byName = Maps.newHashMap();
+        for (int ii = 0; ii < columns.length; ii++) {
+            if (columns[ii].getPersistentClass() != _pClass || values[ii] == null) {
+                return null;
+            }
+            byName.put(columns[ii].name, values[ii]);
+        }
+        for (String[] ufields : _uniqueKeys) {
+            if (ufields.length != byName.size() || !byName.keySet().containsAll(
+                    Arrays.asList(ufields))) {
+                continue;
+            }
+            Comparable<?>[] uvalues = new Comparable<?>[ufields.length];
+            for (int ii = 0; ii < ufields.length; ii++) {
+                uvalues[ii] = byName.get(ufields[ii]);
+            }
+            return new UniqueCacheKey(_pClass, ufields, uvalues);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the unique cache keys of the supplied object, one for each of our sets of unique
+     * columns whose values are all non-null.
+     */
+    public List<UniqueCacheKey> getUniqueCacheKeys (Object object)
+    {
+        List<UniqueCacheKey> keys = Lists.newArrayListWithCapacity(_uniqueKeys.size());
+        for (String[] ufields : _uniqueKeys) {
+            UniqueCacheKey key = getUniqueCacheKey(object, ufields);
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns true if the supplied object has the unique column values identified by the supplied
+     * key. A cached key may be out of date, so the record to which it maps must be checked.
+     */
+    public boolean matchesUniqueKey (Object object, UniqueCacheKey key)
+    {
+        return key.equals(getUniqueCacheKey(object, key.getFields()));
+    }
+
     /**
      * Returns a key configured with the primary key of the supplied object. If all the fields are
      * null, this method returns null. An exception is thrown if some of the fields are null and
@@ -602,31 +717,61 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
 
     /**
      * Creates a persistent object from the supplied result set. The result set must have come from
-     * a properly constructed query (see {@link BuildVisitor}).
+     * a properly constructed query (see {@link BuildVisitor}). When reading many rows from the
+     * same result set, use {@link #planColumns} and {@link #createObject(ResultSet,ColumnPlan)}.
      */
     public T createObject (ResultSet rs)
         throws SQLException
     {
-        try {
-            // first, build a set of the fields that we actually received
-            Set<String> fields = Sets.newHashSet();
-            ResultSetMetaData metadata = rs.getMetaData();
-            for (int ii = 1; ii <= metadata.getColumnCount(); ii ++) {
-               fields.add(metadata.getColumnLabel(ii));
-            }
+        return createObject(rs, planColumns(rs));
+    }
+
+    // from QueryMarshaller
+    public ColumnPlan planColumns (ResultSet rs)
+        throws SQLException
+    {
+        // first, note the index of each column that we actually received
+        Map<String, Integer> indices = Maps.newHashMap();
+        ResultSetMetaData metadata = rs.getMetaData();
+        for (int ii = metadata.getColumnCount(); ii >= 1; ii--) {
+            indices.put(metadata.getColumnLabel(ii), ii); // the first column of a name wins
+        }
 
-            // then create and populate the persistent object
+        // then map our fields to those columns
+        List<FieldMarshaller<?>> fields = Lists.newArrayListWithCapacity(_fields.size());
+        List<Integer> fieldIndices = Lists.newArrayListWithCapacity(_fields.size());
+        FieldMarshaller<?> missing = null;
+        for (FieldMarshaller<?> fm : _fields.values()) {
+            Integer index = indices.get(fm.getColumnName());
+            if (index != null) {
+                fields.add(fm);
+                fieldIndices.add(index);
+            } else if (missing == null &&
+                       (fm.getComputed() == null || fm.getComputed().required())) {
+                // we only complain about a missing field if we're actually asked to read a row
+                missing = fm;
+            } // otherwise it's an optional computed field that was not selected
+        }
+        int[] iarray = new int[fieldIndices.size()];
+        for (int ii = 0; ii < iarray.length; ii++) {
+            iarray[ii] = fieldIndices.get(ii);
+        }
+        return new ColumnPlan(fields.toArray(new FieldMarshaller<?>[fields.size()]), iarray,
+                              missing);
+    }
+
+    // from QueryMarshaller
+    public T createObject (ResultSet rs, ColumnPlan plan)
+        throws SQLException
+    {
+        if (plan.missing != null) {
+            throw new SQLException("ResultSet missing field: " +
+                                   plan.missing.getField().getName() + " for " + _pClass);
+        }
+        try {
             T po = _pClass.newInstance();
-            for (FieldMarshaller<?> fm : _fields.values()) {
-                if (!fields.contains(fm.getColumnName())) {
-                    // this field was not in the result set, make sure that's OK
-                    if (fm.getComputed() != null && !fm.getComputed().required()) {
-                        continue;
-                    }
-                    throw new SQLException(
-                        "ResultSet missing field: " + fm.getField().getName() + " for " + _pClass);
-                }
-                fm.getAndWriteToObject(rs, po);
+            for (int ii = 0; ii < plan.fields.length; ii++) {
+                plan.fields[ii].getAndWriteToObject(rs, plan.indices[ii], po);
             }
             return po;
 
@@ -677,6 +822,63 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
         return idFields;
     }
 
+    /**
+     * Returns true if any of our fields are generated by the database after insertion (i.e. are
+     * identity columns), and thus must be read back after an INSERT.
+     */
+    public boolean hasPostFactumValues ()
+    {
+        for (ValueGenerator vg : _valueGenerators.values()) {
+            if (vg.isPostFactum()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fills in the post-factum generated values (see {@link #generateFieldValues}) of a series of
+     * objects inserted via a single JDBC batch, reading the values from the statement's generated
+     * keys, which are assumed to be reported in insertion order.
+     *
+     * @return true if a value was obtained for every object, false if the driver reported fewer
+     * generated keys than there were objects (in which case the remaining objects are untouched).
+     */
+    public boolean assignGeneratedValues (Statement stmt, List<?> pos)
+        throws SQLException
+    {
+        List<ValueGenerator> vgs = Lists.newArrayList();
+        for (ValueGenerator vg : _valueGenerators.values()) {
+            if (vg.isPostFactum()) {
+                vgs.add(vg);
+            }
+        }
+        if (vgs.isEmpty()) {
+            return true;
+        }
+
+        ResultSet rs = stmt.getGeneratedKeys();
+        try {
+            for (Object po : pos) {
+                if (!rs.next()) {
+                    return false;
+                }
+                for (ValueGenerator vg : vgs) {
+                    FieldMarshaller<?> fm = vg.getFieldMarshaller();
+                    try {
+                        fm.getField().set(po, rs.getInt(fm.getColumnName()));
+                    } catch (IllegalAccessException iae) {
+                        throw new IllegalStateException(
+                            "Failed to assign primary key [type=" + _pClass + "]", iae);
+                    }
+                }
+            }
+            return true;
+        } finally {
+            rs.close();
+        }
+    }
+
     protected void createTable (PersistenceContext ctx, final SQLBuilder builder,
                                 final List<ColumnDefinition> declarations)
         throws DatabaseException
@@ -915,6 +1117,23 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
         return metaData;
     }
 
+    protected UniqueCacheKey getUniqueCacheKey (Object object, String[] ufields)
+    {
+        Comparable<?>[] values = new Comparable<?>[ufields.length];
+        try {
+            for (int ii = 0; ii < ufields.length; ii++) {
+                Object value = _fields.get(ufields[ii]).getField().get(object);
+                if (!(value instanceof Comparable<?>)) {
+                    return null; // null, or something we can't (and needn't) look up by
+                }
+                values[ii] = (Comparable<?>)value;
+            }
+        } catch (IllegalAccessException iae) {
+            throw new RuntimeException(iae);
+        }
+        return new UniqueCacheKey(_pClass, ufields, values);
+    }
+
     protected CreateIndexClause buildIndex (String name, boolean unique)
     {
         Method method;
@@ -1125,6 +1344,9 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
     /** The fields of our object with directly corresponding table columns. */
     protected ColumnExp<?>[] _columnFields;
 
+    /** The names of the fields of each of our sets of unique columns. */
+    protected List<String[]> _uniqueKeys = Lists.newArrayList();
+
     /** The indexes defined for this record. */
     protected List<CreateIndexClause> _indexes = Lists.newArrayList();
 
@@ -1136,4 +1358,8 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
 
     /** A list of hand registered schema migrations to run prior to doing the default migration. */
     protected List<SchemaMigration> _schemaMigs = Lists.newArrayList();
+
+    /** The version of our table's contents. This starts from the time at which we were created
+     * so that versions are not repeated if cached values outlive this VM. */
+    protected AtomicLong _tableVersion = new AtomicLong(System.currentTimeMillis());
 }
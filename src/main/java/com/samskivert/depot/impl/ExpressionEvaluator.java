@@ -31,6 +31,7 @@ import com.samskivert.depot.impl.clause.CreateIndexClause;
 import com.samskivert.depot.impl.clause.DeleteClause;
 import com.samskivert.depot.impl.clause.DropIndexClause;
 import com.samskivert.depot.impl.clause.UpdateClause;
+import com.samskivert.depot.impl.clause.UpsertClause;
 import com.samskivert.depot.impl.expression.IntervalExp;
 import com.samskivert.depot.impl.expression.LiteralExp;
 import com.samskivert.depot.impl.expression.ValueExp;
@@ -313,6 +314,11 @@ public class ExpressionEvaluator
         throw new IllegalArgumentException("Can't evaluate expression: " + insertClause);
     }
 
+    public Object visit (UpsertClause upsertClause)
+    {
+        throw new IllegalArgumentException("Can't evaluate expression: " + upsertClause);
+    }
+
     public Object visit (CreateIndexClause createIndexClause)
     {
         throw new IllegalArgumentException("Can't evaluate expression: " + createIndexClause);
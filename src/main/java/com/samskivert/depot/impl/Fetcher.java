@@ -5,6 +5,7 @@
 package com.samskivert.depot.impl;
 
 import com.samskivert.depot.PersistenceContext;
+import com.samskivert.depot.PersistentRecord;
 import com.samskivert.depot.Stats;
 
 /**
@@ -34,6 +35,39 @@ public abstract class Fetcher<T>
      */
     public abstract T getCachedResult (PersistenceContext ctx);
 
+    /**
+     * Returns a key identifying the result of this query, such that concurrent queries with equal
+     * keys can share a single trip to the database (see {@link
+     * PersistenceContext#setQueryCoalescing}), or null if this query must always be executed on
+     * its own. Only queries that would tolerate a cached result should supply a key.
+     */
+    public Object getFlightKey ()
+    {
+        return null;
+    }
+
+    /**
+     * Returns a copy of a result obtained by an identical query, which the caller is free to
+     * modify. The default implementation returns the result as is, which is only suitable for
+     * immutable results.
+     */
+    public T copyResult (T result)
+    {
+        return result;
+    }
+
+    // from interface Operation
+    public Class<? extends PersistentRecord> getRecordClass ()
+    {
+        return null;
+    }
+
+    // from interface Operation
+    public String getShape (PersistenceContext ctx)
+    {
+        return null;
+    }
+
     // from interface Operation
     public boolean isReadOnly ()
     {
@@ -255,6 +255,18 @@ public abstract class FieldMarshaller<T>
         writeToObject(po, getFromSet(rset));
     }
 
+    /**
+     * Reads the column at the specified (1-based) index from the supplied result set and writes
+     * it to the appropriate field of the persistent object. The primitive marshallers override
+     * this (and {@link #getAndWriteToStatement}) to move the value directly between field and
+     * column, without boxing it along the way.
+     */
+    public void getAndWriteToObject (ResultSet rset, int index, Object po)
+        throws SQLException, IllegalAccessException
+    {
+        writeToObject(po, getFromSet(rset, index));
+    }
+
     protected void create (Field field)
     {
         _field = field;
@@ -372,6 +384,14 @@ public abstract class FieldMarshaller<T>
             throws SQLException {
             ps.setBoolean(column, value);
         }
+        @Override public void getAndWriteToStatement (PreparedStatement ps, int column, Object po)
+            throws SQLException, IllegalAccessException {
+            ps.setBoolean(column, _field.getBoolean(po));
+        }
+        @Override public void getAndWriteToObject (ResultSet rs, int index, Object po)
+            throws SQLException, IllegalAccessException {
+            _field.setBoolean(po, rs.getBoolean(index));
+        }
     }
 
     protected static class ByteMarshaller extends FieldMarshaller<Byte> {
@@ -396,6 +416,14 @@ public abstract class FieldMarshaller<T>
             throws SQLException {
             ps.setByte(column, value);
         }
+        @Override public void getAndWriteToStatement (PreparedStatement ps, int column, Object po)
+            throws SQLException, IllegalAccessException {
+            ps.setByte(column, _field.getByte(po));
+        }
+        @Override public void getAndWriteToObject (ResultSet rs, int index, Object po)
+            throws SQLException, IllegalAccessException {
+            _field.setByte(po, rs.getByte(index));
+        }
     }
 
     protected static class ShortMarshaller extends FieldMarshaller<Short> {
@@ -420,6 +448,14 @@ public abstract class FieldMarshaller<T>
             throws SQLException {
             ps.setShort(column, value);
         }
+        @Override public void getAndWriteToStatement (PreparedStatement ps, int column, Object po)
+            throws SQLException, IllegalAccessException {
+            ps.setShort(column, _field.getShort(po));
+        }
+        @Override public void getAndWriteToObject (ResultSet rs, int index, Object po)
+            throws SQLException, IllegalAccessException {
+            _field.setShort(po, rs.getShort(index));
+        }
     }
 
     protected static class IntMarshaller extends FieldMarshaller<Integer> {
@@ -444,6 +480,14 @@ public abstract class FieldMarshaller<T>
             throws SQLException {
             ps.setInt(column, value);
         }
+        @Override public void getAndWriteToStatement (PreparedStatement ps, int column, Object po)
+            throws SQLException, IllegalAccessException {
+            ps.setInt(column, _field.getInt(po));
+        }
+        @Override public void getAndWriteToObject (ResultSet rs, int index, Object po)
+            throws SQLException, IllegalAccessException {
+            _field.setInt(po, rs.getInt(index));
+        }
     }
 
     protected static class LongMarshaller extends FieldMarshaller<Long> {
@@ -468,6 +512,14 @@ public abstract class FieldMarshaller<T>
             throws SQLException {
             ps.setLong(column, value);
         }
+        @Override public void getAndWriteToStatement (PreparedStatement ps, int column, Object po)
+            throws SQLException, IllegalAccessException {
+            ps.setLong(column, _field.getLong(po));
+        }
+        @Override public void getAndWriteToObject (ResultSet rs, int index, Object po)
+            throws SQLException, IllegalAccessException {
+            _field.setLong(po, rs.getLong(index));
+        }
     }
 
     protected static class FloatMarshaller extends FieldMarshaller<Float> {
@@ -492,6 +544,14 @@ public abstract class FieldMarshaller<T>
             throws SQLException {
             ps.setFloat(column, value);
         }
+        @Override public void getAndWriteToStatement (PreparedStatement ps, int column, Object po)
+            throws SQLException, IllegalAccessException {
+            ps.setFloat(column, _field.getFloat(po));
+        }
+        @Override public void getAndWriteToObject (ResultSet rs, int index, Object po)
+            throws SQLException, IllegalAccessException {
+            _field.setFloat(po, rs.getFloat(index));
+        }
     }
 
     protected static class DoubleMarshaller extends FieldMarshaller<Double> {
@@ -516,6 +576,14 @@ public abstract class FieldMarshaller<T>
             throws SQLException {
             ps.setDouble(column, value);
         }
+        @Override public void getAndWriteToStatement (PreparedStatement ps, int column, Object po)
+            throws SQLException, IllegalAccessException {
+            ps.setDouble(column, _field.getDouble(po));
+        }
+        @Override public void getAndWriteToObject (ResultSet rs, int index, Object po)
+            throws SQLException, IllegalAccessException {
+            _field.setDouble(po, rs.getDouble(index));
+        }
     }
 
     protected static abstract class ObjectMarshaller extends FieldMarshaller<Object> {
@@ -761,6 +829,9 @@ public abstract class FieldMarshaller<T>
             @Override public Object getFromSet (ResultSet rs) throws SQLException {
                 return massageResult(super.getFromSet(rs));
             }
+            @Override public Object getFromSet (ResultSet rs, int index) throws SQLException {
+                return massageResult(super.getFromSet(rs, index));
+            }
             // works around the fact that HSQLDB (at least) returns Integer rather than Byte
             // for TINYINT columns
             protected Object massageResult (Object value) {
@@ -774,6 +845,9 @@ public abstract class FieldMarshaller<T>
             @Override public Object getFromSet (ResultSet rs) throws SQLException {
                 return massageResult(super.getFromSet(rs));
             }
+            @Override public Object getFromSet (ResultSet rs, int index) throws SQLException {
+                return massageResult(super.getFromSet(rs, index));
+            }
             // works around the fact that HSQLDB (at least) returns Integer rather than Short
             // for SMALLINT columns
             protected Object massageResult (Object value) {
@@ -797,6 +871,9 @@ public abstract class FieldMarshaller<T>
             @Override public Object getFromSet (ResultSet rs) throws SQLException {
                 return massageResult(super.getFromSet(rs));
             }
+            @Override public Object getFromSet (ResultSet rs, int index) throws SQLException {
+                return massageResult(super.getFromSet(rs, index));
+            }
             // works around the fact that HSQLDB (at least) returns Double rather than Float
             // for REAL columns
             protected Object massageResult (Object value) {
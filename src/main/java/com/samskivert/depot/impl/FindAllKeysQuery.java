@@ -69,12 +69,24 @@ public class FindAllKeysQuery<T extends PersistentRecord> extends Fetcher<List<K
         return keys;
     }
 
+    @Override // from Fetcher
+    public Class<? extends PersistentRecord> getRecordClass ()
+    {
+        return _marsh.getPersistentClass();
+    }
+
     // from Fetcher
     public void updateStats (Stats stats)
     {
         stats.noteQuery(_marsh.getPersistentClass(), 0, 1, 0, 0, 0); // one uncached query
     }
 
+    @Override // from Fetcher
+    public String getShape (PersistenceContext ctx)
+    {
+        return _builder.getQuery();
+    }
+
     protected boolean _forUpdate;
     protected SQLBuilder _builder;
     protected DepotMarshaller<T> _marsh;
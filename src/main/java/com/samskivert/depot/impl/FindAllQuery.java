@@ -4,6 +4,7 @@
 
 package com.samskivert.depot.impl;
 
+import java.io.Serializable;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -15,6 +16,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import com.google.common.base.Supplier;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.collect.Maps;
@@ -64,7 +66,83 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
             return (_qkey == null) ? null : _qkey.getCacheId();
         }
 
+        @Override // from Fetcher
+        public Object getFlightKey () {
+            return _qkey;
+        }
+
+        /**
+         * Configures this query to cache its results under the supplied key. The cached results
+         * are tagged with the versions of all of the tables used by the supplied select clause,
+         * and are ignored once any of those tables has been modified.
+         */
+        protected void setCacheKey (SimpleCacheKey qkey, SelectClause select) {
+            _qkey = qkey;
+            select.addClasses(_depends);
+        }
+
+        /**
+         * Looks up our cached result, returning null if it is not cached or is out of date.
+         */
+        protected <V> V lookupCached (final PersistenceContext ctx) {
+            // note the version before we look, so that whatever we load is tagged conservatively
+            _version = ctx.getTableVersion(_depends);
+            VersionedValue<V> cached = ctx.cacheLookup(_qkey);
+            if (cached == null || cached.version != _version) {
+                return null;
+            }
+
+            // if the result is past its soft TTL, serve it while refreshing it in the background,
+            // but once it's past its hard TTL, treat it as missing
+            long[] ttls = ctx.getRefreshAhead(_type);
+            if (ttls != null) {
+                long age = System.currentTimeMillis() - cached.loaded;
+                if (age >= ttls[1]) {
+                    return null;
+                } else if (age >= ttls[0]) {
+                    // the refresh query is only created if no refresh is already running
+                    final long version = _version;
+                    ctx.refreshAsync(_qkey, new Supplier<Fetcher<?>>() {
+                        public Fetcher<?> get () {
+                            CachedFullRecordQuery<T> refresh = newRefresh(ctx);
+                            refresh._version = version;
+                            refresh._refresh = true;
+                            return refresh;
+                        }
+                    });
+                }
+            }
+            return cached.value;
+        }
+
+        /**
+         * Caches the supplied result, tagged with the table version noted by our lookup.
+         */
+        protected <V> void storeCached (PersistenceContext ctx, CacheCategory category, V value) {
+            ctx.cacheStore(category, _qkey,
+                           new VersionedValue<V>(_version, System.currentTimeMillis(), value));
+        }
+
+        /**
+         * Creates a new instance of this query, which will be invoked directly (bypassing the
+         * cache lookup) to refresh our cached result.
+         */
+        protected abstract CachedFullRecordQuery<T> newRefresh (PersistenceContext ctx);
+
+        @Override // from FindAllQuery
+        public void updateStats (Stats stats) {
+            if (_refresh) {
+                stats.noteRefresh(_type);
+            } else {
+                super.updateStats(stats);
+            }
+        }
+
+        protected Iterable<? extends QueryClause> _clauses;
+        protected boolean _refresh;
         protected SimpleCacheKey _qkey;
+        protected Set<Class<? extends PersistentRecord>> _depends = Sets.newHashSet();
+        protected long _version;
     }
 
     /**
@@ -113,6 +191,8 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
             throws DatabaseException
         {
             super(ctx, type);
+            _clauses = clauses;
+            _strategy = strategy;
 
             checkArgument(_dmarsh.getComputed() == null,
                           "This algorithm doesn't work on @Computed records.");
@@ -124,9 +204,13 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
             _select = new SelectClause(_type, _dmarsh.getPrimaryKeyFields(), clauses);
             switch(strategy) {
             case SHORT_KEYS: case LONG_KEYS:
-                _qkey = new SimpleCacheKey(_dmarsh.getTableName() + "Keys", _select.toString());
+                setCacheKey(new SimpleCacheKey(_dmarsh.getTableName() + "Keys",
+                                               _select.toString()), _select);
                 _category = (strategy == CacheStrategy.SHORT_KEYS) ?
                     CacheCategory.SHORT_KEYSET : CacheCategory.LONG_KEYSET;
+                if (ctx.isHybridKeyCaching()) {
+                    _fullSelect = new SelectClause(_type, _dmarsh.getSelections(), clauses);
+                }
                 break;
 
             case RECORDS:
@@ -144,7 +228,7 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
             if (_qkey == null) {
                 return null;
             }
-            _keys = ctx.<KeySet<T>>cacheLookup(_qkey);
+            _keys = this.<KeySet<T>>lookupCached(ctx);
             if (_keys == null) {
                 return null;
             }
@@ -160,11 +244,18 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
             // we want this to remain null if our key set came from the cache
             String stmtString = null;
 
+            // if we didn't find our key set in the cache and are in hybrid mode, load the full
+            // records in one go and derive the key set from them
+            if (_keys == null && _fullSelect != null) {
+                return loadHybrid(ctx, conn);
+            }
+
             // if we didn't find our key set in the cache, load the keys that match
             if (_keys == null) {
                 List<Key<T>> keys = Lists.newArrayList();
                 SQLBuilder builder = ctx.getSQLBuilder(DepotTypes.getDepotTypes(ctx, _select));
                 builder.newQuery(_select);
+                _shape = builder.getQuery();
                 PreparedStatement stmt = builder.prepare(conn);
                 stmtString = stmt.toString(); // for debugging
                 ResultSet rs = stmt.executeQuery();
@@ -179,7 +270,7 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
                 }
                 if (_qkey != null) {
                     // cache the resulting key set
-                    ctx.cacheStore(_category, _qkey, _keys);
+                    storeCached(ctx, _category, _keys);
                 }
                 // and fetch any records we can from the cache
                 _fetchKeys = loadFromCache(ctx, _keys, _entities);
@@ -189,8 +280,55 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
             return loadAndResolve(ctx, conn, _keys, _fetchKeys, _entities, stmtString);
         }
 
+        @Override // from Fetcher
+        public String getShape (PersistenceContext ctx)
+        {
+            // we report our key query, even when we load full records in hybrid mode
+            return getShape(ctx, _select);
+        }
+
+        @Override // from CachedFullRecordQuery
+        protected CachedFullRecordQuery<T> newRefresh (PersistenceContext ctx)
+        {
+            return new WithCache<T>(ctx, _type, _clauses, _strategy);
+        }
+
+        protected List<T> loadHybrid (PersistenceContext ctx, Connection conn)
+            throws SQLException
+        {
+            List<Key<T>> keys = Lists.newArrayList();
+            SQLBuilder builder = ctx.getSQLBuilder(DepotTypes.getDepotTypes(ctx, _fullSelect));
+            builder.newQuery(_fullSelect);
+            ResultSet rs = builder.prepare(conn).executeQuery();
+            ColumnPlan plan = _dmarsh.planColumns(rs);
+            Map<KeyCacheKey, T> toCache = Maps.newHashMap();
+            while (rs.next()) {
+                T obj = _dmarsh.createObject(rs, plan);
+                Key<T> key = _dmarsh.getPrimaryKey(obj);
+                keys.add(key);
+                if (_entities.put(key, obj) == null) {
+                    toCache.put(new KeyCacheKey(key), _cloner.clone(obj));
+                }
+            }
+            ctx.cacheStoreAll(CacheCategory.RECORD, _type.getName(), toCache);
+            _keys = KeySet.newKeySet(_type, keys);
+            _uncachedQueries++;
+            _uncachedRecords = _entities.size();
+            if (PersistenceContext.CACHE_DEBUG) {
+                log.info("Loaded " + _dmarsh.getTableName() + " records", "query", _fullSelect,
+                         "keys", keysToString(_keys));
+            }
+            storeCached(ctx, _category, _keys);
+            return resolve(_keys, _entities);
+        }
+
+        protected CacheStrategy _strategy;
         protected CacheCategory _category;
         protected SelectClause _select;
+
+        /** The full record query used in hybrid mode, or null. */
+        protected SelectClause _fullSelect;
+
         protected KeySet<T> _keys;
         protected Set<Key<T>> _fetchKeys;
         protected Map<Key<T>, T> _entities = Maps.newHashMap();
@@ -207,19 +345,25 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
             throws DatabaseException
         {
             super(ctx, type);
+            _clauses = clauses;
             _select = new SelectClause(type, _dmarsh.getSelections(), clauses);
-            _qkey = !cachedContents ? null :
-                new SimpleCacheKey(_dmarsh.getTableName() + "Contents", _select.toString());
+            if (cachedContents) {
+                setCacheKey(new SimpleCacheKey(_dmarsh.getTableName() + "Contents",
+                                               _select.toString()), _select);
+            }
         }
 
         @Override // from Fetcher
         public List<T> getCachedResult (PersistenceContext ctx)
         {
-            if (_qkey != null) {
+            if (_qkey == null) {
+                return null;
+            }
+            List<T> result = lookupCached(ctx);
+            if (result != null) {
                 _cachedQueries++;
-                return ctx.cacheLookup(_qkey);
             }
-            return null;
+            return result;
         }
 
         // from Fetcher
@@ -229,9 +373,11 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
             List<T> result = Lists.newArrayList();
             SQLBuilder builder = ctx.getSQLBuilder(DepotTypes.getDepotTypes(ctx, _select));
             builder.newQuery(_select);
+            _shape = builder.getQuery();
             ResultSet rs = builder.prepare(conn).executeQuery();
+            ColumnPlan plan = _dmarsh.planColumns(rs);
             while (rs.next()) {
-                result.add(_dmarsh.createObject(rs));
+                result.add(_dmarsh.createObject(rs, plan));
             }
             _explicitQueries++;
             if (PersistenceContext.CACHE_DEBUG) {
@@ -239,12 +385,24 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
                     result.size(), "cacheKey", _qkey);
             }
             if (_qkey != null) {
-                ctx.cacheStore(CacheCategory.RESULT, _qkey, result); // cache the entire result set
+                storeCached(ctx, CacheCategory.RESULT, result); // cache the entire result set
             }
             _uncachedRecords += result.size();
             return result;
         }
 
+        @Override // from Fetcher
+        public String getShape (PersistenceContext ctx)
+        {
+            return getShape(ctx, _select);
+        }
+
+        @Override // from CachedFullRecordQuery
+        protected CachedFullRecordQuery<T> newRefresh (PersistenceContext ctx)
+        {
+            return new Explicitly<T>(ctx, _type, _clauses, true);
+        }
+
         protected SelectClause _select;
     }
 
@@ -273,14 +431,22 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
         {
             SQLBuilder builder = ctx.getSQLBuilder(_types);
             builder.newQuery(_select);
+            _shape = builder.getQuery();
             ResultSet rs = builder.prepare(conn).executeQuery();
             List<R> result = Lists.newArrayList();
+            ColumnPlan plan = _marsh.planColumns(rs);
             while (rs.next()) {
-                result.add(_marsh.createObject(rs));
+                result.add(_marsh.createObject(rs, plan));
             }
             return result;
         }
 
+        @Override // from Fetcher
+        public String getShape (PersistenceContext ctx)
+        {
+            return getShape(ctx, _select);
+        }
+
         protected SelectClause _select;
         protected DepotTypes _types;
     }
@@ -332,6 +498,22 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
         }
     }
 
+    @Override // from Fetcher
+    public List<R> copyResult (List<R> result)
+    {
+        List<R> copy = Lists.newArrayListWithCapacity(result.size());
+        for (R value : result) {
+            copy.add(_cloner.clone(value));
+        }
+        return copy;
+    }
+
+    @Override // from Fetcher
+    public Class<? extends PersistentRecord> getRecordClass ()
+    {
+        return _type;
+    }
+
     // from Fetcher
     public void updateStats (Stats stats)
     {
@@ -347,18 +529,40 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
         _cloner = cloner;
     }
 
+    /**
+     * Returns the SQL generated for the supplied select clause, which we report as our shape.
+     * This is noted when we execute the select, and is otherwise generated on demand (say, when
+     * our result came from the cache).
+     */
+    protected String getShape (PersistenceContext ctx, SelectClause select)
+    {
+        if (_shape == null) {
+            SQLBuilder builder = ctx.getSQLBuilder(DepotTypes.getDepotTypes(ctx, select));
+            builder.newQuery(select);
+            _shape = builder.getQuery();
+        }
+        return _shape;
+    }
+
     protected Set<Key<T>> loadFromCache (PersistenceContext ctx, Iterable<Key<T>> allKeys,
                                          Map<Key<T>, R> entities)
     {
-        Set<Key<T>> fetchKeys = Sets.newHashSet();
+        // look up all of our keys in one go
+        Map<KeyCacheKey, Key<T>> ckeys = Maps.newLinkedHashMap();
         for (Key<T> key : allKeys) {
-            R value = ctx.<R>cacheLookup(new KeyCacheKey(key));
+            ckeys.put(new KeyCacheKey(key), key);
+        }
+        Map<Serializable, R> cached = ctx.cacheLookupAll(_type.getName(), ckeys.keySet());
+
+        Set<Key<T>> fetchKeys = Sets.newHashSet();
+        for (Map.Entry<KeyCacheKey, Key<T>> entry : ckeys.entrySet()) {
+            R value = cached.get(entry.getKey());
             if (value != null) {
                 R newValue = _cloner.clone(value);
-                entities.put(key, newValue);
+                entities.put(entry.getValue(), newValue);
                 continue;
             }
-            fetchKeys.add(key);
+            fetchKeys.add(entry.getValue());
         }
         if (PersistenceContext.CACHE_DEBUG) {
             log.info("Loaded from cache " + _marsh.getTableName(), "count", entities.size());
@@ -421,17 +625,20 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
         builder.newQuery(select);
         Set<Key<T>> got = Sets.newHashSet();
         ResultSet rs = builder.prepare(conn).executeQuery();
+        ColumnPlan plan = _marsh.planColumns(rs);
+        Map<KeyCacheKey, R> toCache = Maps.newHashMap();
         int cnt = 0, dups = 0;
         while (rs.next()) {
-            R obj = _marsh.createObject(rs);
+            R obj = _marsh.createObject(rs, plan);
             Key<T> key = _marsh.getPrimaryKey(obj);
             if (entities.put(key, obj) != null) {
                 dups++;
             }
-            ctx.cacheStore(CacheCategory.RECORD, new KeyCacheKey(key), _cloner.clone(obj));
+            toCache.put(new KeyCacheKey(key), _cloner.clone(obj));
             got.add(key);
             cnt++;
         }
+        ctx.cacheStoreAll(CacheCategory.RECORD, _type.getName(), toCache);
         // if we get more results than we planned, or if we're doing a two-phase query and got
         // fewer, then complain
         if (cnt > keys.size() || (origStmt != null && cnt < keys.size())) {
@@ -493,20 +700,33 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
             return _types.getMarshaller(_cset.ptype).getPrimaryKey(object);
         }
 
-        public R createObject (ResultSet rs) throws SQLException {
-            Object[] data = new Object[_cset.selexps.length];
-            for (int ii = 0; ii < data.length; ii++) {
+        public ColumnPlan planColumns (ResultSet rs) {
+            // our columns are exactly our selections, in order
+            FieldMarshaller<?>[] fields = new FieldMarshaller<?>[_cset.selexps.length];
+            int[] indices = new int[fields.length];
+            for (int ii = 0; ii < fields.length; ii++) {
                 SQLExpression<?> exp = _cset.selexps[ii];
                 if (exp instanceof ColumnExp<?>) {
                     ColumnExp<?> col = (ColumnExp<?>)exp;
-                    data[ii] = _types.getMarshaller(col.getPersistentClass()).
-                        getFieldMarshaller(col.name).getFromSet(rs, ii+1);
+                    fields[ii] = _types.getMarshaller(col.getPersistentClass()).
+                        getFieldMarshaller(col.name);
+                }
+                indices[ii] = ii+1;
+            }
+            return new ColumnPlan(fields, indices, null);
+        }
+
+        public R createObject (ResultSet rs, ColumnPlan plan) throws SQLException {
+            Object[] data = new Object[plan.fields.length];
+            for (int ii = 0; ii < data.length; ii++) {
+                if (plan.fields[ii] != null) {
+                    data[ii] = plan.fields[ii].getFromSet(rs, plan.indices[ii]);
                 } else {
                     // TEMP: in the case of selecting computed expressions, we rely on the types to
                     // be correct by construction; TODO: this will probably bite us when JDBC
                     // drivers choose Long instead of Integer or whatnot, so we'll need to set up
                     // more complex machinery
-                    data[ii] = rs.getObject(ii+1);
+                    data[ii] = rs.getObject(plan.indices[ii]);
                 }
             }
             return _cset.createObject(data);
@@ -539,4 +759,7 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
     protected Cloner<R> _cloner;
     protected int _cachedQueries, _uncachedQueries, _explicitQueries;
     protected int _cachedRecords, _uncachedRecords;
+
+    /** The SQL of our principal select, once known. See {@link #getShape}. */
+    protected String _shape;
 }
@@ -18,6 +18,7 @@ import com.samskivert.depot.Stats;
 import com.samskivert.depot.CacheAdapter.CacheCategory;
 import com.samskivert.depot.clause.QueryClause;
 import com.samskivert.depot.clause.SelectClause;
+import com.samskivert.depot.clause.Where;
 import com.samskivert.depot.clause.WhereClause;
 
 import static com.samskivert.depot.Log.log;
@@ -46,19 +47,49 @@ public class FindOneQuery<T extends PersistentRecord> extends Fetcher<T>
     public T getCachedResult (PersistenceContext ctx)
     {
         CacheKey key = getCacheKey();
+        UniqueCacheKey ukey = null;
         if (key == null) {
-            return null;
+            // if we're looking up by unique column(s), we may have a record key for those
+            ukey = getUniqueCacheKey();
+            key = (ukey == null) ? null : ctx.<KeyCacheKey>cacheLookup(ukey);
+            if (key == null) {
+                return null;
+            }
         }
         T value = ctx.<T>cacheLookup(key);
         if (value == null) {
             return null;
         }
+        if (ukey != null && !_marsh.matchesUniqueKey(value, ukey)) {
+            return null; // the record has since changed its unique column values
+        }
         _cachedRecords = 1;
         // we do not want to return a reference to the actual cached entity so we clone it
         @SuppressWarnings("unchecked") T cvalue = (T) value.clone();
         return cvalue;
     }
 
+    @Override // from Fetcher
+    public Object getFlightKey ()
+    {
+        // the select clause's description omits its selections and field definitions; the former
+        // are determined by our record class (which, unlike its table name, computed records
+        // have), but the latter we can't describe, so we don't share queries that have them
+        if (_strategy == DepotRepository.CacheStrategy.NONE ||
+            !_select.getFieldDefinitions().isEmpty()) {
+            return null;
+        }
+        return new SimpleCacheKey(
+            _marsh.getPersistentClass().getName() + "One", _select.toString());
+    }
+
+    @Override // from Fetcher
+    public T copyResult (T result)
+    {
+        @SuppressWarnings("unchecked") T copy = (result == null) ? null : (T)result.clone();
+        return copy;
+    }
+
     // from Fetcher
     public T invoke (PersistenceContext ctx, Connection conn, DatabaseLiaison liaison)
         throws SQLException
@@ -93,12 +124,24 @@ public class FindOneQuery<T extends PersistentRecord> extends Fetcher<T>
         return result;
     }
 
+    @Override // from Fetcher
+    public Class<? extends PersistentRecord> getRecordClass ()
+    {
+        return _marsh.getPersistentClass();
+    }
+
     // from Operation
     public void updateStats (Stats stats)
     {
         stats.noteQuery(_marsh.getPersistentClass(), 0, 0, 0, _cachedRecords, 1-_cachedRecords);
     }
 
+    @Override // from Fetcher
+    public String getShape (PersistenceContext ctx)
+    {
+        return _builder.getQuery();
+    }
+
     protected CacheKey getCacheKey ()
     {
         if (_strategy == DepotRepository.CacheStrategy.NONE) {
@@ -108,6 +151,18 @@ public class FindOneQuery<T extends PersistentRecord> extends Fetcher<T>
         return (where != null && where instanceof CacheKey) ? (CacheKey)where : null;
     }
 
+    protected UniqueCacheKey getUniqueCacheKey ()
+    {
+        if (_strategy == DepotRepository.CacheStrategy.NONE) {
+            return null;
+        }
+        WhereClause where = _select.getWhereClause();
+        if (!(where instanceof Where) || ((Where)where).getColumns() == null) {
+            return null;
+        }
+        return _marsh.getUniqueCacheKey(((Where)where).getColumns(), ((Where)where).getValues());
+    }
+
     protected DepotRepository.CacheStrategy _strategy;
     protected DepotMarshaller<T> _marsh;
     protected SelectClause _select;
@@ -26,6 +26,7 @@ import com.samskivert.depot.impl.clause.CreateIndexClause;
 import com.samskivert.depot.impl.clause.DeleteClause;
 import com.samskivert.depot.impl.clause.DropIndexClause;
 import com.samskivert.depot.impl.clause.UpdateClause;
+import com.samskivert.depot.impl.clause.UpsertClause;
 import com.samskivert.depot.impl.expression.IntervalExp;
 import com.samskivert.depot.impl.expression.LiteralExp;
 import com.samskivert.depot.impl.expression.ValueExp;
@@ -98,6 +99,7 @@ public interface FragmentVisitor<T>
     public T visit (UpdateClause updateClause);
     public T visit (DeleteClause deleteClause);
     public T visit (InsertClause insertClause);
+    public T visit (UpsertClause upsertClause);
     public T visit (CreateIndexClause createIndexClause);
     public T visit (DropIndexClause dropIndexClause);
     public T visit (Case<?> caseExp);
@@ -7,6 +7,7 @@ package com.samskivert.depot.impl;
 import java.lang.reflect.Field;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -22,6 +23,7 @@ import com.samskivert.depot.clause.Distinct;
 import com.samskivert.depot.clause.OrderBy;
 import com.samskivert.depot.expression.ColumnExp;
 import com.samskivert.depot.expression.SQLExpression;
+import com.samskivert.depot.impl.clause.UpsertClause;
 import com.samskivert.depot.impl.expression.AggregateFun;
 import com.samskivert.depot.impl.expression.DateFun.DatePart;
 import com.samskivert.depot.impl.expression.DateFun.DatePart.Part;
@@ -158,6 +160,98 @@ public class HSQLBuilder
             throw new IllegalArgumentException("HSQL does not have built-in date truncation");
         }
 
+        @Override public Void visit (UpsertClause upsertClause)
+        {
+            Class<? extends PersistentRecord> pClass = upsertClause.getPersistentClass();
+            Object pojo = upsertClause.getPojo();
+            ColumnExp<?>[] fields = upsertClause.getFields();
+            _innerClause = true;
+
+            // MERGE reports one row whether it inserted or updated, so we rely on executeUpsert
+            // first attempting an update, and only merge if that matched nothing; we merge rather
+            // than insert so that a row inserted by another thread in between is updated instead
+            // of failing with a duplicate key (in which rare case we report an insert)
+
+            // merge our record, supplied as a single row of values, into the table
+            _builder.append("merge into ");
+            appendTableName(pClass);
+            _builder.append(" as ");
+            appendTableAbbreviation(pClass);
+            _builder.append(" using (values(");
+            for (int ii = 0; ii < fields.length; ii ++) {
+                if (ii > 0) {
+                    _builder.append(", ");
+                }
+                // HSQL can't infer the types of parameters in a values list, so we cast them
+                FieldMarshaller<?> fm =
+                    _types.getMarshaller(pClass).getFieldMarshaller(fields[ii].name);
+                _builder.append("cast(");
+                bindField(pClass, fields[ii], pojo);
+                _builder.append(" as ").append(fm.getColumnDefinition().type).append(")");
+            }
+            _builder.append(")) as ");
+            appendIdentifier(UPSERT_SOURCE);
+            appendColumnList(pClass, Arrays.asList(fields), false);
+
+            _builder.append(" on (");
+            ColumnExp<?>[] keyFields = upsertClause.getKeyFields();
+            for (int ii = 0; ii < keyFields.length; ii ++) {
+                if (ii > 0) {
+                    _builder.append(" and ");
+                }
+                appendTableAbbreviation(pClass);
+                _builder.append(".");
+                appendLhsColumn(pClass, keyFields[ii]);
+                _builder.append(" = ");
+                appendSourceColumn(pClass, keyFields[ii]);
+            }
+            _builder.append(")");
+
+            List<ColumnExp<?>> updates = upsertClause.getUpdateFields();
+            if (!updates.isEmpty()) {
+                _builder.append(" when matched then update set ");
+                for (int ii = 0; ii < updates.size(); ii ++) {
+                    if (ii > 0) {
+                        _builder.append(", ");
+                    }
+                    appendLhsColumn(pClass, updates.get(ii));
+                    _builder.append(" = ");
+                    appendSourceColumn(pClass, updates.get(ii));
+                }
+            }
+
+            _builder.append(" when not matched then insert ");
+            appendColumnList(pClass, Arrays.asList(fields), false);
+            _builder.append(" values ");
+            appendColumnList(pClass, Arrays.asList(fields), true);
+            return null;
+        }
+
+        protected void appendColumnList (
+            Class<? extends PersistentRecord> pClass, List<ColumnExp<?>> fields, boolean source)
+        {
+            _builder.append("(");
+            for (int ii = 0; ii < fields.size(); ii ++) {
+                if (ii > 0) {
+                    _builder.append(", ");
+                }
+                if (source) {
+                    appendSourceColumn(pClass, fields.get(ii));
+                } else {
+                    appendLhsColumn(pClass, fields.get(ii));
+                }
+            }
+            _builder.append(")");
+        }
+
+        protected void appendSourceColumn (
+            Class<? extends PersistentRecord> pClass, ColumnExp<?> field)
+        {
+            appendIdentifier(UPSERT_SOURCE);
+            _builder.append(".");
+            appendLhsColumn(pClass, field);
+        }
+
         protected HBuildVisitor (DepotTypes types)
         {
             super(types, false);
@@ -208,6 +302,12 @@ public class HSQLBuilder
         super(types);
     }
 
+    @Override
+    public boolean supportsUpsert (Connection conn, Class<? extends PersistentRecord> pClass)
+    {
+        return true;
+    }
+
     @Override
     public void getFtsIndexes (
         Iterable<String> columns, Iterable<String> indexes, Set<String> target)
@@ -279,6 +379,9 @@ public class HSQLBuilder
     /** Holds the Full Text Seach condition between build and bind phases. */
     protected SQLExpression<?> _ftsCondition;
 
+    /** The name given to the single row of values merged by an upsert. */
+    protected static final String UPSERT_SOURCE = "upsert";
+
     protected static final FieldMarshaller.ColumnTyper TYPER = new FieldMarshaller.ColumnTyper() {
         public String getBooleanType (int length) {
             return "BOOLEAN";
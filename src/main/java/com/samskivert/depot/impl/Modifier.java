@@ -4,9 +4,12 @@
 
 package com.samskivert.depot.impl;
 
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
 
 import com.samskivert.depot.CacheAdapter;
 import com.samskivert.depot.CacheInvalidator;
@@ -89,10 +92,85 @@ public abstract class Modifier
             return rows;
         }
 
+        @Override // from Modifier
+        protected Class<? extends PersistentRecord> getModifiedClass ()
+        {
+            return (_result != null) ? _result.getClass() : super.getModifiedClass();
+        }
+
         protected CacheKey _key;
         protected T _result;
     }
 
+    /**
+     * A modifier that writes a list of records (generally via a JDBC batch) and then stores all of
+     * those records that have a primary key in the cache. The records' keys may be filled in
+     * during execution.
+     */
+    public static abstract class BatchCachingModifier<T extends PersistentRecord> extends Modifier
+    {
+        protected BatchCachingModifier (
+            DepotMarshaller<T> marsh, List<T> records, CacheInvalidator invalidator)
+        {
+            super(invalidator);
+            _marsh = marsh;
+            _records = records;
+        }
+
+        @Override // from Modifier
+        public Integer invoke (PersistenceContext ctx, Connection conn, DatabaseLiaison liaison)
+            throws SQLException
+        {
+            Integer rows = super.invoke(ctx, conn, liaison);
+            if (_marsh.hasPrimaryKey()) {
+                for (T record : _records) {
+                    Key<T> key = _marsh.getPrimaryKey(record, false);
+                    if (key != null) {
+                        ctx.cacheStore(CacheAdapter.CacheCategory.RECORD, new KeyCacheKey(key),
+                                       record.clone());
+                    }
+                }
+            }
+            return rows;
+        }
+
+        @Override // from Modifier
+        protected Class<? extends PersistentRecord> getModifiedClass ()
+        {
+            return _marsh.getPersistentClass();
+        }
+
+        /**
+         * Executes the supplied statement's pending batch and returns the total number of rows
+         * modified. If {@code counts} is non-null, the count reported for each statement is
+         * stored in it starting at {@code offset}; statements for which the driver reports no
+         * count are recorded as {@link Statement#SUCCESS_NO_INFO} and assumed to have modified one
+         * row in the total.
+         *
+         * @throws BatchUpdateException if the driver reports that any statement failed.
+         */
+        public static int executeBatch (PreparedStatement stmt, int[] counts, int offset)
+            throws SQLException
+        {
+            int[] results = stmt.executeBatch();
+            int rows = 0;
+            for (int ii = 0; ii < results.length; ii++) {
+                if (results[ii] == Statement.EXECUTE_FAILED) {
+                    throw new BatchUpdateException(
+                        "Batched statement failed [index=" + ii + "]", results);
+                }
+                if (counts != null) {
+                    counts[offset + ii] = results[ii];
+                }
+                rows += (results[ii] == Statement.SUCCESS_NO_INFO) ? 1 : results[ii];
+            }
+            return rows;
+        }
+
+        protected DepotMarshaller<T> _marsh;
+        protected List<T> _records;
+    }
+
     /**
      * Constructs a {@link Modifier} without a cache invalidator.
      */
@@ -105,8 +183,18 @@ public abstract class Modifier
      * Constructs a {@link Modifier} with the given cache invalidator.
      */
     public Modifier (CacheInvalidator invalidator)
+    {
+        this(invalidator, null);
+    }
+
+    /**
+     * Constructs a {@link Modifier} with the given cache invalidator, which modifies the table of
+     * the specified persistent class.
+     */
+    public Modifier (CacheInvalidator invalidator, Class<? extends PersistentRecord> modified)
     {
         _invalidator = invalidator;
+        _modified = modified;
     }
 
     // from interface Operation
@@ -122,6 +210,8 @@ public abstract class Modifier
         if (_invalidator != null) {
             _invalidator.invalidate(ctx);
         }
+        // the context advances the version of the table we modify (our record class) once our
+        // changes are committed or rolled back
         return invoke(conn, liaison);
     }
 
@@ -131,11 +221,33 @@ public abstract class Modifier
         // nothing to update by default
     }
 
+    // from interface Operation
+    public Class<? extends PersistentRecord> getRecordClass ()
+    {
+        return getModifiedClass();
+    }
+
+    // from interface Operation
+    public String getShape (PersistenceContext ctx)
+    {
+        return null; // not tracked by default
+    }
+
     /**
      * Overriden to perform the actual database modifications represented by this object; should
      * return the number of modified rows.
      */
     protected abstract int invoke (Connection conn, DatabaseLiaison liaison) throws SQLException;
 
+    /**
+     * Returns the persistent class whose table this modifier changes, or null if it changes no
+     * table contents (or none that are cached).
+     */
+    protected Class<? extends PersistentRecord> getModifiedClass ()
+    {
+        return _modified;
+    }
+
     protected CacheInvalidator _invalidator;
+    protected Class<? extends PersistentRecord> _modified;
 }
@@ -5,8 +5,11 @@
 package com.samskivert.depot.impl;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -21,10 +24,13 @@ import com.samskivert.depot.operator.FullText;
 
 import com.samskivert.depot.impl.clause.DeleteClause;
 import com.samskivert.depot.impl.clause.DropIndexClause;
+import com.samskivert.depot.impl.clause.UpsertClause;
 import com.samskivert.depot.impl.expression.DateFun.DatePart;
 import com.samskivert.depot.impl.expression.DateFun.DateTruncate;
 import com.samskivert.depot.impl.expression.DateFun.DatePart.Part;
 import com.samskivert.depot.impl.expression.NumericalFun.Trunc;
+import com.samskivert.depot.impl.operator.MultiOperator;
+import com.samskivert.depot.impl.operator.Seek;
 
 import static com.samskivert.depot.Log.log;
 
@@ -65,6 +71,15 @@ public class MySQLBuilder
             return null;
         }
 
+        @Override public Void visit (MultiOperator<?> operator)
+        {
+            // use a row value comparison for seeks where we can, as it's more readily indexed
+            if (operator instanceof Seek && ((Seek)operator).isUniform()) {
+                return appendRowComparison((Seek)operator);
+            }
+            return super.visit(operator);
+        }
+
         @Override public Void visit (Trunc<?> exp)
         {
             return appendFunctionCall("truncate", exp.getArg());
@@ -131,6 +146,33 @@ public class MySQLBuilder
             return null;
         }
 
+        @Override public Void visit (UpsertClause upsertClause)
+        {
+            Class<? extends PersistentRecord> pClass = upsertClause.getPersistentClass();
+            _innerClause = true;
+            _builder.append("insert into ");
+            appendTableName(pClass);
+            _builder.append(" ");
+            appendUpsertInsertColumns(upsertClause);
+            _builder.append(" on duplicate key update ");
+
+            List<ColumnExp<?>> fields = upsertClause.getUpdateFields();
+            if (fields.isEmpty()) {
+                // we've nothing to update but MySQL insists on an assignment
+                fields = Arrays.<ColumnExp<?>>asList(upsertClause.getKeyFields()[0]);
+            }
+            for (int ii = 0; ii < fields.size(); ii ++) {
+                if (ii > 0) {
+                    _builder.append(", ");
+                }
+                appendLhsColumn(pClass, fields.get(ii));
+                _builder.append(" = values(");
+                appendLhsColumn(pClass, fields.get(ii));
+                _builder.append(")");
+            }
+            return null;
+        }
+
         protected MSBuildVisitor (DepotTypes types)
         {
             super(types, false);
@@ -200,6 +242,51 @@ public class MySQLBuilder
         super(types);
     }
 
+    @Override
+    public PreparedStatement prepareStreaming (Connection conn, int fetchSize)
+        throws SQLException
+    {
+        // Connector/J reads the entire result set into memory unless the fetch size is this
+        // magic value, in which case it streams rows one at a time
+        PreparedStatement stmt = super.prepareStreaming(conn, fetchSize);
+        stmt.setFetchSize(Integer.MIN_VALUE);
+        return stmt;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p> MySQL upserts with {@code insert ... on duplicate key update}, which has two
+     * limitations. First, it fires on a collision with any unique index, not just the primary
+     * key. A record that collided with another row on some other unique column would silently
+     * overwrite that row rather than fail with a {@link
+     * com.samskivert.depot.DuplicateKeyException}. So we only upsert records whose primary key is
+     * their table's only unique key. Second, we can only tell an insert from an update if the
+     * connection reports changed rather than found rows. Connector/J reports found rows unless
+     * {@code useAffectedRows=true} is on the connection URL, in which case an insert counts as
+     * one row, an update as two and an update that changed nothing as zero. Without that flag an
+     * update that changes nothing looks like an insert, so we don't upsert at all.
+     */
+    @Override
+    public boolean supportsUpsert (Connection conn, Class<? extends PersistentRecord> pClass)
+        throws SQLException
+    {
+        if (_types.getMarshaller(pClass).hasSecondaryUniqueIndexes()) {
+            return false;
+        }
+        String url = conn.getMetaData().getURL();
+        return url != null && url.toLowerCase().contains(AFFECTED_ROWS_FLAG);
+    }
+
+    @Override
+    public boolean executeUpsert (Connection conn)
+        throws SQLException
+    {
+        // with affected rows reporting (see supportsUpsert), one row means we inserted, while two
+        // (changed) or zero (unchanged) mean we updated an existing row
+        return prepare(conn).executeUpdate() == 1;
+    }
+
     @Override
     public void getFtsIndexes (
         Iterable<String> columns, Iterable<String> indexes, Set<String> target)
@@ -318,4 +405,8 @@ public class MySQLBuilder
             return "TEXT";
         }
     };
+
+    /** The Connector/J URL parameter that makes updates report changed rather than found rows,
+     * which we need to interpret the result of an upsert. */
+    protected static final String AFFECTED_ROWS_FLAG = "useaffectedrows=true";
 }
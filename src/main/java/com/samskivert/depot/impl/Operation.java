@@ -9,6 +9,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 
 import com.samskivert.depot.PersistenceContext;
+import com.samskivert.depot.PersistentRecord;
 import com.samskivert.depot.Stats;
 import com.samskivert.jdbc.DatabaseLiaison;
 
@@ -22,6 +23,12 @@ public interface Operation<T>
      */
     public boolean isReadOnly ();
 
+    /**
+     * Returns the persistent record class with which this operation is principally concerned,
+     * or null if it has none (or it is not known).
+     */
+    public Class<? extends PersistentRecord> getRecordClass ();
+
     /**
      * Performs the actual JDBC interactions associated with this operation. Any {@link Statement}
      * instances created with the given connection will be closed automatically after this method
@@ -34,4 +41,12 @@ public interface Operation<T>
      * Called after the operation has been invoked so that it can update our runtime statistics.
      */
     public void updateStats (Stats stats);
+
+    /**
+     * Returns the shape of the SQL this operation executes: the SQL with its bind values left as
+     * placeholders, so that operations that differ only in their values have the same shape. An
+     * operation that executes several statements reports its principal one. Returns null if the
+     * operation is not tracked by shape (see {@link Stats#getTopShapes}).
+     */
+    public String getShape (PersistenceContext ctx);
 }
@@ -0,0 +1,198 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot.impl;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import com.samskivert.depot.CacheAdapter;
+import com.samskivert.depot.PersistenceContext;
+import com.samskivert.depot.PersistenceContextMXBean;
+import com.samskivert.depot.PooledConnectionProvider;
+import com.samskivert.depot.Stats;
+
+/**
+ * Implements {@link PersistenceContextMXBean} on top of a context's {@link Stats}.
+ */
+public class PersistenceContextMonitor
+    implements PersistenceContextMXBean
+{
+    public PersistenceContextMonitor (PersistenceContext ctx, String ident, Stats stats,
+                                      PooledConnectionProvider pool)
+    {
+        _ctx = ctx;
+        _ident = ident;
+        _stats = stats;
+        _pool = pool;
+        _intervalStart = stats.getSnapshot();
+    }
+
+    // from interface PersistenceContextMXBean
+    public String getIdent ()
+    {
+        return _ident;
+    }
+
+    // from interface PersistenceContextMXBean
+    public long getTotalOps ()
+    {
+        return _stats.getSnapshot().totalOps;
+    }
+
+    // from interface PersistenceContextMXBean
+    public long getAsyncOps ()
+    {
+        return _stats.getSnapshot().asyncOps;
+    }
+
+    // from interface PersistenceContextMXBean
+    public long getCachedQueries ()
+    {
+        return _stats.getSnapshot().cachedQueries;
+    }
+
+    // from interface PersistenceContextMXBean
+    public long getUncachedQueries ()
+    {
+        return _stats.getSnapshot().uncachedQueries;
+    }
+
+    // from interface PersistenceContextMXBean
+    public long getExplicitQueries ()
+    {
+        return _stats.getSnapshot().explicitQueries;
+    }
+
+    // from interface PersistenceContextMXBean
+    public long getCoalescedQueries ()
+    {
+        return _stats.getSnapshot().coalescedQueries;
+    }
+
+    // from interface PersistenceContextMXBean
+    public long getCachedRecords ()
+    {
+        return _stats.getSnapshot().cachedRecords;
+    }
+
+    // from interface PersistenceContextMXBean
+    public long getUncachedRecords ()
+    {
+        return _stats.getSnapshot().uncachedRecords;
+    }
+
+    // from interface PersistenceContextMXBean
+    public double getStatementCacheHitRate ()
+    {
+        return _stats.getSnapshot().getStatementCacheHitRate();
+    }
+
+    // from interface PersistenceContextMXBean
+    public LatencySummary getConnectionWaitLatency ()
+    {
+        return new LatencySummary(_stats.getSnapshot().connectionWaitLatency);
+    }
+
+    // from interface PersistenceContextMXBean
+    public LatencySummary getQueryLatency ()
+    {
+        return new LatencySummary(_stats.getSnapshot().queryLatency);
+    }
+
+    // from interface PersistenceContextMXBean
+    public LatencySummary getModifierLatency ()
+    {
+        return new LatencySummary(_stats.getSnapshot().modifierLatency);
+    }
+
+    // from interface PersistenceContextMXBean
+    public long getIntervalOps ()
+    {
+        return getInterval().totalOps;
+    }
+
+    // from interface PersistenceContextMXBean
+    public LatencySummary getIntervalConnectionWaitLatency ()
+    {
+        return new LatencySummary(getInterval().connectionWaitLatency);
+    }
+
+    // from interface PersistenceContextMXBean
+    public LatencySummary getIntervalQueryLatency ()
+    {
+        return new LatencySummary(getInterval().queryLatency);
+    }
+
+    // from interface PersistenceContextMXBean
+    public LatencySummary getIntervalModifierLatency ()
+    {
+        return new LatencySummary(getInterval().modifierLatency);
+    }
+
+    // from interface PersistenceContextMXBean
+    public int getActiveConnections ()
+    {
+        return (_pool == null) ? -1 :
+            _pool.getActiveCount(_ident, false) + _pool.getActiveCount(_ident, true);
+    }
+
+    // from interface PersistenceContextMXBean
+    public int getIdleConnections ()
+    {
+        return (_pool == null) ? -1 :
+            _pool.getIdleCount(_ident, false) + _pool.getIdleCount(_ident, true);
+    }
+
+    // from interface PersistenceContextMXBean
+    public List<CacheSummary> getCaches ()
+    {
+        List<CacheSummary> caches = Lists.newArrayList();
+        for (Map.Entry<String, Stats.CacheCounts> entry : _stats.getCacheCounts().entrySet()) {
+            Stats.CacheCounts counts = entry.getValue();
+            caches.add(new CacheSummary(entry.getKey(), counts.hits, counts.misses,
+                                        getCacheSize(entry.getKey())));
+        }
+        return caches;
+    }
+
+    // from interface PersistenceContextMXBean
+    public synchronized void resetIntervalStats ()
+    {
+        _intervalStart = _stats.getSnapshot();
+    }
+
+    // from interface PersistenceContextMXBean
+    public void cacheClear (String cacheId, boolean localOnly)
+    {
+        _ctx.cacheClear(cacheId, localOnly);
+    }
+
+    protected synchronized Stats.Snapshot getInterval ()
+    {
+        return _stats.getSnapshot().since(_intervalStart);
+    }
+
+    protected int getCacheSize (String cacheId)
+    {
+        CacheAdapter cache = _ctx.getCacheAdapter();
+        if (cache == null) {
+            return -1;
+        }
+        // the adapter interface offers no size, so we count the entries; this may copy the keys
+        // of the cache, but is only done when someone is looking
+        return Iterables.size(cache.enumerate(cacheId));
+    }
+
+    protected PersistenceContext _ctx;
+    protected String _ident;
+    protected Stats _stats;
+    protected PooledConnectionProvider _pool;
+
+    /** The snapshot at the start of the current interval. */
+    protected Stats.Snapshot _intervalStart;
+}
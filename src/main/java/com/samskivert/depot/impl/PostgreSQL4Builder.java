@@ -41,6 +41,8 @@ public class PostgreSQL4Builder extends PostgreSQLBuilder
                 protected Array createArray (Connection conn, Object[] values)
                     throws SQLException
                 {
+                    // we may replace the values below, so don't scribble on the In's array
+                    values = values.clone();
                     String type;
                     Object testValue = values[0];
                     if (testValue instanceof Integer) {
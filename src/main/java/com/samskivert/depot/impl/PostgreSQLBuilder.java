@@ -7,9 +7,13 @@ package com.samskivert.depot.impl;
 import java.lang.reflect.Field;
 
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -22,13 +26,17 @@ import com.samskivert.depot.PersistentRecord;
 import com.samskivert.depot.annotation.FullTextIndex.Configuration;
 import com.samskivert.depot.annotation.FullTextIndex;
 import com.samskivert.depot.clause.OrderBy;
+import com.samskivert.depot.expression.ColumnExp;
 import com.samskivert.depot.operator.FullText;
 import static com.samskivert.depot.Log.log;
 
+import com.samskivert.depot.impl.clause.UpsertClause;
 import com.samskivert.depot.impl.expression.DateFun.DatePart.Part;
 import com.samskivert.depot.impl.expression.DateFun.DatePart;
 import com.samskivert.depot.impl.expression.DateFun.DateTruncate;
 import com.samskivert.depot.impl.expression.IntervalExp;
+import com.samskivert.depot.impl.operator.MultiOperator;
+import com.samskivert.depot.impl.operator.Seek;
 
 public class PostgreSQLBuilder
     extends SQLBuilder
@@ -45,6 +53,15 @@ public class PostgreSQLBuilder
             return null;
         }
 
+        @Override public Void visit (MultiOperator<?> operator)
+        {
+            // use a row value comparison for seeks where we can, as it's more readily indexed
+            if (operator instanceof Seek && ((Seek)operator).isUniform()) {
+                return appendRowComparison((Seek)operator);
+            }
+            return super.visit(operator);
+        }
+
         @Override public Void visit (FullText.Match match) {
             appendIdentifier("ftsCol_" + match.getDefinition().getName());
             _builder.append(" @@ to_tsquery('").
@@ -109,6 +126,45 @@ public class PostgreSQLBuilder
             throw new IllegalArgumentException("Unknown date part: " + part);
         }
 
+        @Override public Void visit (UpsertClause upsertClause)
+        {
+            Class<? extends PersistentRecord> pClass = upsertClause.getPersistentClass();
+            _innerClause = true;
+            _builder.append("insert into ");
+            appendTableName(pClass);
+            _builder.append(" ");
+            appendUpsertInsertColumns(upsertClause);
+
+            _builder.append(" on conflict (");
+            ColumnExp<?>[] keyFields = upsertClause.getKeyFields();
+            for (int ii = 0; ii < keyFields.length; ii ++) {
+                if (ii > 0) {
+                    _builder.append(", ");
+                }
+                appendLhsColumn(pClass, keyFields[ii]);
+            }
+            _builder.append(")");
+
+            List<ColumnExp<?>> fields = upsertClause.getUpdateFields();
+            if (fields.isEmpty()) {
+                _builder.append(" do nothing");
+            } else {
+                _builder.append(" do update set ");
+                for (int ii = 0; ii < fields.size(); ii ++) {
+                    if (ii > 0) {
+                        _builder.append(", ");
+                    }
+                    appendLhsColumn(pClass, fields.get(ii));
+                    _builder.append(" = excluded.");
+                    appendLhsColumn(pClass, fields.get(ii));
+                }
+            }
+
+            // xmax is zero for a freshly inserted row version and non-zero for an updated one
+            _builder.append(" returning (xmax = 0)");
+            return null;
+        }
+
         protected FullTextIndex getFTIndex (FullText definition)
         {
             DepotMarshaller<?> marsh = _types.getMarshaller(definition.getPersistentClass());
@@ -139,6 +195,36 @@ public class PostgreSQLBuilder
         super(types);
     }
 
+    @Override
+    public PreparedStatement prepareStreaming (Connection conn, int fetchSize)
+        throws SQLException
+    {
+        // the PostgreSQL driver only honors the fetch size (using a cursor) inside a transaction
+        if (conn.getAutoCommit()) {
+            conn.setAutoCommit(false);
+        }
+        return super.prepareStreaming(conn, fetchSize);
+    }
+
+    @Override
+    public boolean supportsUpsert (Connection conn, Class<? extends PersistentRecord> pClass)
+        throws SQLException
+    {
+        // insert ... on conflict arrived in PostgreSQL 9.5
+        DatabaseMetaData meta = conn.getMetaData();
+        int major = meta.getDatabaseMajorVersion();
+        return major > 9 || (major == 9 && meta.getDatabaseMinorVersion() >= 5);
+    }
+
+    @Override
+    public boolean executeUpsert (Connection conn)
+        throws SQLException
+    {
+        // if there was nothing to update, an existing row results in no row being returned
+        ResultSet rs = prepare(conn).executeQuery();
+        return rs.next() && rs.getBoolean(1);
+    }
+
     @Override
     public void getFtsIndexes (
         Iterable<String> columns, Iterable<String> indexes, Set<String> target)
@@ -33,7 +33,13 @@ public interface QueryMarshaller<T extends PersistentRecord,R>
     Key<T> getPrimaryKey (Object object);
 
     /**
-     * Creates an instance of the query result from the supplied result set.
+     * Maps the columns of the supplied result set to the fields they populate. This is called
+     * once per result set and the resulting plan supplied to {@link #createObject} for each row.
      */
-    R createObject (ResultSet rs) throws SQLException;
+    ColumnPlan planColumns (ResultSet rs) throws SQLException;
+
+    /**
+     * Creates an instance of the query result from the current row of the supplied result set.
+     */
+    R createObject (ResultSet rs, ColumnPlan plan) throws SQLException;
 }
@@ -0,0 +1,310 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.Transformer;
+import com.samskivert.depot.annotation.Transform;
+import com.samskivert.depot.expression.ColumnExp;
+
+/**
+ * Encodes the persistent fields of a record into a compact byte array and decodes them again. The
+ * fields and their order are taken from the record's {@link DepotMarshaller}, so the encoding
+ * carries no field names or type information and is only meaningful to the codec that produced
+ * it. This is intended for holding records outside of the Java heap, not for persisting them.
+ */
+public class RecordCodec<T extends PersistentRecord>
+{
+    /**
+     * Creates a codec for the records handled by the supplied marshaller, or returns null if the
+     * record has a field of a type that we don't know how to encode.
+     */
+    public static <T extends PersistentRecord> RecordCodec<T> create (DepotMarshaller<T> marsh)
+    {
+        List<Field> fields = Lists.newArrayList();
+        List<Integer> types = Lists.newArrayList();
+        List<Transformer<Object, Object>> xformers = Lists.newArrayList();
+        for (ColumnExp<?> column : marsh.getColumnFieldNames()) {
+            Field field = marsh.getFieldMarshaller(column.name).getField();
+            int type = typeOf(field.getType());
+
+            // transformed fields are encoded in their persistent form, as in the database
+            Transform xform = field.getAnnotation(Transform.class);
+            if (xform == null && type < 0) {
+                xform = FieldMarshaller.findTransformAnnotation(field.getType());
+            }
+            Transformer<Object, Object> xformer = null;
+            if (xform != null) {
+                try {
+                    @SuppressWarnings("unchecked") Transformer<Object, Object> xf =
+                        (Transformer<Object, Object>)xform.value().newInstance();
+                    xformer = xf;
+                } catch (Exception e) {
+                    return null;
+                }
+                xformer.init(field.getGenericType(), xform);
+                type = typeOf(FieldMarshaller.getTransformerType(xformer, "to"));
+                if (type < BOXED_BOOLEAN) {
+                    return null; // we don't handle primitive (or unknown) persistent types
+                }
+            }
+
+            if (type < 0) {
+                return null;
+            }
+            fields.add(field);
+            types.add(type);
+            xformers.add(xformer);
+        }
+        return new RecordCodec<T>(marsh.getPersistentClass(), fields, types, xformers);
+    }
+
+    /**
+     * Encodes the persistent fields of the supplied record.
+     */
+    public byte[] encode (T record)
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bout);
+        try {
+            for (int ii = 0; ii < _fields.length; ii++) {
+                write(out, ii, record);
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe); // not possible with a byte array stream
+        } catch (IllegalAccessException iae) {
+            throw new IllegalStateException("Failed to encode " + _pClass.getName(), iae);
+        }
+        return bout.toByteArray();
+    }
+
+    /**
+     * Creates a new record from data previously returned by {@link #encode}.
+     */
+    public T decode (byte[] data)
+    {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        try {
+            T record = _pClass.newInstance();
+            for (int ii = 0; ii < _fields.length; ii++) {
+                read(in, ii, record);
+            }
+            return record;
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to decode " + _pClass.getName(), e);
+        }
+    }
+
+    protected RecordCodec (Class<T> pClass, List<Field> fields, List<Integer> types,
+                           List<Transformer<Object, Object>> xformers)
+    {
+        _pClass = pClass;
+        _fields = fields.toArray(new Field[fields.size()]);
+        @SuppressWarnings("unchecked") Transformer<Object, Object>[] xfarray =
+            (Transformer<Object, Object>[])new Transformer<?, ?>[xformers.size()];
+        _xformers = xformers.toArray(xfarray);
+        _types = new int[types.size()];
+        _enums = new Object[_fields.length][];
+        for (int ii = 0; ii < _types.length; ii++) {
+            _types[ii] = types.get(ii);
+            if (_types[ii] == ENUM) {
+                _enums[ii] = _fields[ii].getType().getEnumConstants();
+            }
+        }
+    }
+
+    protected void write (DataOutputStream out, int idx, Object po)
+        throws IOException, IllegalAccessException
+    {
+        int type = _types[idx];
+        Field field = _fields[idx];
+        switch (type) {
+        case BOOLEAN: out.writeBoolean(field.getBoolean(po)); return;
+        case BYTE: out.writeByte(field.getByte(po)); return;
+        case SHORT: out.writeShort(field.getShort(po)); return;
+        case CHAR: out.writeChar(field.getChar(po)); return;
+        case INT: out.writeInt(field.getInt(po)); return;
+        case LONG: out.writeLong(field.getLong(po)); return;
+        case FLOAT: out.writeFloat(field.getFloat(po)); return;
+        case DOUBLE: out.writeDouble(field.getDouble(po)); return;
+        }
+
+        // the remaining types are all nullable
+        Object value = field.get(po);
+        if (_xformers[idx] != null) {
+            value = _xformers[idx].toPersistent(value);
+        }
+        if (value == null) {
+            out.writeByte(0);
+            return;
+        }
+        out.writeByte(1);
+        switch (type) {
+        case BOXED_BOOLEAN: out.writeBoolean((Boolean)value); break;
+        case BOXED_BYTE: out.writeByte((Byte)value); break;
+        case BOXED_SHORT: out.writeShort((Short)value); break;
+        case BOXED_INT: out.writeInt((Integer)value); break;
+        case BOXED_LONG: out.writeLong((Long)value); break;
+        case BOXED_FLOAT: out.writeFloat((Float)value); break;
+        case BOXED_DOUBLE: out.writeDouble((Double)value); break;
+        case ENUM: out.writeShort(((Enum<?>)value).ordinal()); break;
+        case DATE: out.writeLong(((Date)value).getTime()); break;
+        case TIME: out.writeLong(((Time)value).getTime()); break;
+        case TIMESTAMP:
+            out.writeLong(((Timestamp)value).getTime());
+            out.writeInt(((Timestamp)value).getNanos());
+            break;
+        case STRING: {
+            byte[] bytes = ((String)value).getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            break;
+        }
+        case BYTE_ARRAY: {
+            byte[] bytes = (byte[])value;
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            break;
+        }
+        case INT_ARRAY: {
+            int[] ints = (int[])value;
+            out.writeInt(ints.length);
+            for (int ival : ints) {
+                out.writeInt(ival);
+            }
+            break;
+        }
+        case LONG_ARRAY: {
+            long[] longs = (long[])value;
+            out.writeInt(longs.length);
+            for (long lval : longs) {
+                out.writeLong(lval);
+            }
+            break;
+        }
+        }
+    }
+
+    protected void read (ByteBuffer in, int idx, Object po)
+        throws IllegalAccessException
+    {
+        int type = _types[idx];
+        Field field = _fields[idx];
+        switch (type) {
+        case BOOLEAN: field.setBoolean(po, in.get() != 0); return;
+        case BYTE: field.setByte(po, in.get()); return;
+        case SHORT: field.setShort(po, in.getShort()); return;
+        case CHAR: field.setChar(po, in.getChar()); return;
+        case INT: field.setInt(po, in.getInt()); return;
+        case LONG: field.setLong(po, in.getLong()); return;
+        case FLOAT: field.setFloat(po, in.getFloat()); return;
+        case DOUBLE: field.setDouble(po, in.getDouble()); return;
+        }
+
+        Object value = (in.get() == 0) ? null : readValue(in, idx, type);
+        field.set(po, (_xformers[idx] == null) ? value : _xformers[idx].fromPersistent(value));
+    }
+
+    protected Object readValue (ByteBuffer in, int idx, int type)
+    {
+        Object value;
+        switch (type) {
+        case BOXED_BOOLEAN: value = (in.get() != 0); break;
+        case BOXED_BYTE: value = in.get(); break;
+        case BOXED_SHORT: value = in.getShort(); break;
+        case BOXED_INT: value = in.getInt(); break;
+        case BOXED_LONG: value = in.getLong(); break;
+        case BOXED_FLOAT: value = in.getFloat(); break;
+        case BOXED_DOUBLE: value = in.getDouble(); break;
+        case ENUM: value = _enums[idx][in.getShort()]; break;
+        case DATE: value = new Date(in.getLong()); break;
+        case TIME: value = new Time(in.getLong()); break;
+        case TIMESTAMP: {
+            Timestamp stamp = new Timestamp(in.getLong());
+            stamp.setNanos(in.getInt());
+            value = stamp;
+            break;
+        }
+        case STRING: {
+            int length = in.getInt();
+            value = new String(in.array(), in.position(), length, UTF8);
+            in.position(in.position() + length);
+            break;
+        }
+        case BYTE_ARRAY: {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            value = bytes;
+            break;
+        }
+        case INT_ARRAY: {
+            int[] ints = new int[in.getInt()];
+            in.asIntBuffer().get(ints);
+            in.position(in.position() + ints.length * 4);
+            value = ints;
+            break;
+        }
+        case LONG_ARRAY: {
+            long[] longs = new long[in.getInt()];
+            in.asLongBuffer().get(longs);
+            in.position(in.position() + longs.length * 8);
+            value = longs;
+            break;
+        }
+        default:
+            throw new IllegalStateException("Unknown field type " + type);
+        }
+        return value;
+    }
+
+    protected static int typeOf (Class<?> ftype)
+    {
+        if (ftype.isEnum()) {
+            return ENUM;
+        }
+        for (int ii = 0; ii < TYPES.length; ii++) {
+            if (TYPES[ii] == ftype) {
+                return ii;
+            }
+        }
+        return -1;
+    }
+
+    protected final Class<T> _pClass;
+    protected final Field[] _fields;
+    protected final int[] _types;
+    protected final Transformer<Object, Object>[] _xformers;
+    protected final Object[][] _enums;
+
+    // the codes for the field types we handle, which index into TYPES
+    protected static final int BOOLEAN = 0, BYTE = 1, SHORT = 2, CHAR = 3, INT = 4, LONG = 5;
+    protected static final int FLOAT = 6, DOUBLE = 7, BOXED_BOOLEAN = 8, BOXED_BYTE = 9;
+    protected static final int BOXED_SHORT = 10, BOXED_INT = 11, BOXED_LONG = 12;
+    protected static final int BOXED_FLOAT = 13, BOXED_DOUBLE = 14, STRING = 15;
+    protected static final int BYTE_ARRAY = 16, INT_ARRAY = 17, LONG_ARRAY = 18, DATE = 19;
+    protected static final int TIME = 20, TIMESTAMP = 21, ENUM = 22;
+
+    protected static final Class<?>[] TYPES = {
+        Boolean.TYPE, Byte.TYPE, Short.TYPE, Character.TYPE, Integer.TYPE, Long.TYPE,
+        Float.TYPE, Double.TYPE, Boolean.class, Byte.class, Short.class, Integer.class,
+        Long.class, Float.class, Double.class, String.class, byte[].class, int[].class,
+        long[].class, Date.class, Time.class, Timestamp.class,
+    };
+
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+}
@@ -11,6 +11,7 @@ import java.util.Set;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 
 import com.samskivert.depot.PersistenceContext;
@@ -19,6 +20,7 @@ import com.samskivert.depot.annotation.Column;
 import com.samskivert.depot.annotation.FullTextIndex;
 import com.samskivert.depot.annotation.GeneratedValue;
 import com.samskivert.depot.clause.QueryClause;
+import com.samskivert.depot.impl.clause.UpsertClause;
 import com.samskivert.jdbc.ColumnDefinition;
 import com.samskivert.util.ByteEnum;
 
@@ -47,10 +49,22 @@ public abstract class SQLBuilder
     {
         _clause = clause;
         _buildVisitor = getBuildVisitor();
+        _buildVisitor._bucketInLists = _bucketInLists;
         _clause.accept(_buildVisitor);
         return _buildVisitor.getQuery().trim().length() > 0;
     }
 
+    /**
+     * Configures whether the value lists of IN() expressions are padded (by repeating their last
+     * value) to one of a small number of sizes, so that queries on similar numbers of keys
+     * generate identical SQL. Dialects that bind the whole list as a single array parameter
+     * ignore this setting. Bucketing is enabled by default.
+     */
+    public void setInListBucketing (boolean bucketInLists)
+    {
+        _bucketInLists = bucketInLists;
+    }
+
     /**
      * After {@link #newQuery(QueryClause)} has been executed, this method is run to recurse
      * through the {@link QueryClause} structure, setting the {@link PreparedStatement} arguments
@@ -77,6 +91,96 @@ public abstract class SQLBuilder
             conn, conn.prepareStatement(buildQuery(), PreparedStatement.RETURN_GENERATED_KEYS));
     }
 
+    /**
+     * A variant of {@link #prepare} for selects whose results will be read one row at a time
+     * rather than all at once (see {@link StreamQuery}). Configures the statement so that the
+     * driver fetches {@code fetchSize} rows at a time rather than materializing the entire result
+     * set. Dialects whose drivers need other settings to stream results override this method. If
+     * a dialect turns off auto-commit on the supplied connection, the caller must restore it.
+     */
+    public PreparedStatement prepareStreaming (Connection conn, int fetchSize)
+        throws SQLException
+    {
+        PreparedStatement stmt = conn.prepareStatement(
+            buildQuery(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        stmt.setFetchSize(fetchSize);
+        return prepare(conn, stmt);
+    }
+
+    /**
+     * Returns the SQL generated by the most recent call to {@link #newQuery}. Callers executing a
+     * series of queries as a JDBC batch use this to determine whether a newly built query can be
+     * added to the batch of an existing statement (see {@link #bind}).
+     */
+    public String getQuery ()
+    {
+        return buildQuery();
+    }
+
+    /**
+     * Binds the arguments of the most recently built query to the supplied statement, which must
+     * have been prepared (via {@link #prepare} or {@link #prepareInsert}) from identical SQL. This
+     * allows a series of structurally identical queries to be executed as a JDBC batch.
+     */
+    public PreparedStatement bind (Connection conn, PreparedStatement stmt)
+        throws SQLException
+    {
+        stmt.clearParameters();
+        return prepare(conn, stmt);
+    }
+
+    /**
+     * Binds the arguments of the most recently built query to the supplied statement as {@link
+     * #bind(Connection, PreparedStatement)} does, but reads the values that the query took from
+     * its record (or the record's primary key) from the supplied record instead. Thus an INSERT
+     * or UPDATE of a record need only be built once to write a batch of records of the same
+     * class, so long as they would all write the same columns.
+     */
+    public PreparedStatement bind (Connection conn, PreparedStatement stmt, Object pojo)
+        throws SQLException
+    {
+        stmt.clearParameters();
+        return prepare(conn, stmt, pojo);
+    }
+
+    /**
+     * Returns true if this builder can construct an {@link UpsertClause} for records of the
+     * supplied class and the database to which the supplied connection is connected, in which
+     * case {@link #executeUpsert} stores such a record with a single statement. If not, {@link
+     * #executeUpsert} still works, but issues an update followed, if that matches no row, by an
+     * insert.
+     */
+    public boolean supportsUpsert (Connection conn, Class<? extends PersistentRecord> pClass)
+        throws SQLException
+    {
+        return false;
+    }
+
+    /**
+     * Executes the upsert constructed by the most recent call to {@link #newQuery} with an {@link
+     * UpsertClause}.
+     *
+     * <p> This implementation first updates the record's row, and only if that matches nothing
+     * executes the statement built for the upsert clause itself, which is a plain insert unless
+     * the dialect has something better (see {@link BuildVisitor#visit(UpsertClause)}). Dialects
+     * whose upsert statement reports whether it inserted or updated override this to execute
+     * that statement alone.
+     *
+     * @return true if a new row was inserted, false if an existing row was updated.
+     */
+    public boolean executeUpsert (Connection conn)
+        throws SQLException
+    {
+        UpsertClause upsert = (UpsertClause)_clause;
+        newQuery(upsert.toUpdateClause());
+        if (prepare(conn).executeUpdate() > 0) {
+            return false;
+        }
+        newQuery(upsert);
+        prepare(conn).executeUpdate();
+        return true;
+    }
+
     /**
      * Generates the SQL needed to construct a database column for field represented by the given
      * {@link FieldMarshaller}.
@@ -159,11 +263,21 @@ public abstract class SQLBuilder
 
     protected PreparedStatement prepare (Connection conn, PreparedStatement stmt)
         throws SQLException
+    {
+        return prepare(conn, stmt, null);
+    }
+
+    protected PreparedStatement prepare (Connection conn, PreparedStatement stmt, Object pojo)
+        throws SQLException
     {
         int argIx = 1;
         for (BuildVisitor.Bindable bindable : _buildVisitor.getBindables()) {
             try {
-                bindable.doBind(conn, stmt, argIx);
+                if (pojo != null && bindable instanceof BuildVisitor.RecordBindable) {
+                    ((BuildVisitor.RecordBindable)bindable).doBind(conn, stmt, argIx, pojo);
+                } else {
+                    bindable.doBind(conn, stmt, argIx);
+                }
             } catch (Exception e) {
                 log.warning("Failed to bind statement argument", "argIx", argIx, e);
             }
@@ -251,4 +365,5 @@ public abstract class SQLBuilder
 
     protected QueryClause _clause;
     protected BuildVisitor _buildVisitor;
+    protected boolean _bucketInLists = true;
 }
@@ -0,0 +1,220 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.util.Tuple;
+
+import static com.samskivert.depot.Log.log;
+
+/**
+ * Caches the prepared statements created on a single database connection, so that an operation
+ * that generates the same SQL as an earlier one can reuse the earlier statement rather than having
+ * the driver (and possibly the server) parse and plan it again. Statements are keyed on their SQL
+ * text and on whether they return generated keys. Only idle statements are held in the cache; an
+ * operation checks a statement out for its duration and returns it when done. The least recently
+ * used idle statement is closed when the cache grows beyond its capacity.
+ */
+public class StatementCache
+{
+    /**
+     * Tracks the statements used by a single operation. Obtained via {@link #lease}.
+     */
+    public class Lease
+        implements InvocationHandler
+    {
+        /** The number of statements this lease obtained from the cache. */
+        public int hits;
+
+        /** The number of cacheable statements this lease had to prepare. */
+        public int misses;
+
+        /**
+         * Returns a proxy for our connection that obtains prepared statements from the cache where
+         * possible and collects every statement it creates so that they can be closed or returned
+         * to the cache by {@link #release}.
+         */
+        public Connection getConnection ()
+        {
+            return _proxy;
+        }
+
+        /**
+         * Returns all cached statements used by this lease to the cache and closes all others.
+         * If the operation failed, the cached statements are closed as well, as they may have been
+         * left with a pending batch or the like. If any close fails, the process is aborted, as
+         * the connection is now unusable and will be discarded.
+         */
+        public void release (boolean failed)
+            throws SQLException
+        {
+            for (Statement stmt : _stmts) {
+                stmt.close();
+            }
+            for (Tuple<Tuple<String,Boolean>,PreparedStatement> entry : _leased) {
+                PreparedStatement stmt = entry.right;
+                if (failed || stmt.isClosed()) {
+                    stmt.close();
+                    continue;
+                }
+                // don't hang onto a result set (and whatever it references) while we sit idle
+                ResultSet rs = stmt.getResultSet();
+                if (rs != null) {
+                    rs.close();
+                }
+                checkin(entry.left, stmt);
+            }
+        }
+
+        // from interface InvocationHandler
+        public Object invoke (Object proxy, Method method, Object[] args)
+            throws Throwable
+        {
+            if (method.getName().equals("prepareStatement") && isCacheable(args)) {
+                Tuple<String,Boolean> key = Tuple.newTuple(
+                    (String)args[0], args.length > 1 &&
+                    ((Integer)args[1]).intValue() == Statement.RETURN_GENERATED_KEYS);
+                PreparedStatement stmt = checkout(key);
+                if (stmt != null) {
+                    hits++;
+                    stmt.clearParameters();
+                } else {
+                    misses++;
+                    stmt = (PreparedStatement)invokeConn(method, args);
+                }
+                _leased.add(Tuple.newTuple(key, stmt));
+                return stmt;
+            }
+
+            Object result = invokeConn(method, args);
+            if (result instanceof Statement) {
+                _stmts.add((Statement)result);
+            }
+            return result;
+        }
+
+        protected Lease (Connection conn)
+        {
+            _conn = conn;
+            _proxy = (Connection)Proxy.newProxyInstance(
+                Connection.class.getClassLoader(), PROXY_IFACES, this);
+        }
+
+        protected Object invokeConn (Method method, Object[] args)
+            throws Throwable
+        {
+            try {
+                return method.invoke(_conn, args);
+            } catch (InvocationTargetException ite) {
+                throw ite.getCause();
+            }
+        }
+
+        protected Connection _conn, _proxy;
+        protected List<Statement> _stmts = Lists.newArrayListWithCapacity(1);
+        protected List<Tuple<Tuple<String,Boolean>,PreparedStatement>> _leased =
+            Lists.newArrayListWithCapacity(1);
+    }
+
+    /**
+     * Creates a statement cache that will hold at most {@code capacity} idle statements. A cache
+     * with zero capacity simply collects and closes statements.
+     */
+    public StatementCache (int capacity)
+    {
+        _capacity = capacity;
+    }
+
+    /**
+     * Begins an operation on the supplied connection, which must be the connection with which
+     * this cache is associated.
+     */
+    public Lease lease (Connection conn)
+    {
+        return new Lease(conn);
+    }
+
+    /**
+     * Closes and discards all idle statements in this cache. This is called when our connection
+     * fails or is shut down; failures are logged and ignored as the connection is likely dead.
+     */
+    public void clear ()
+    {
+        List<PreparedStatement> stmts;
+        synchronized (_idle) {
+            stmts = Lists.newArrayList(_idle.values());
+            _idle.clear();
+        }
+        for (PreparedStatement stmt : stmts) {
+            closeQuietly(stmt);
+        }
+    }
+
+    protected PreparedStatement checkout (Tuple<String,Boolean> key)
+    {
+        synchronized (_idle) {
+            return _idle.remove(key);
+        }
+    }
+
+    protected void checkin (Tuple<String,Boolean> key, PreparedStatement stmt)
+    {
+        // if some other operation checked in the same statement while we had ours checked out,
+        // we keep the one most recently used
+        PreparedStatement old;
+        synchronized (_idle) {
+            old = (_capacity > 0) ? _idle.put(key, stmt) : stmt;
+        }
+        if (old != null) {
+            closeQuietly(old);
+        }
+    }
+
+    protected static boolean isCacheable (Object[] args)
+    {
+        // we only cache statements that use the default result set type and concurrency
+        return args.length == 1 || (args.length == 2 && args[1] instanceof Integer);
+    }
+
+    protected static void closeQuietly (Statement stmt)
+    {
+        try {
+            stmt.close();
+        } catch (SQLException sqe) {
+            log.warning("Failed to close cached statement", "error", sqe);
+        }
+    }
+
+    protected final int _capacity;
+
+    /** Our idle statements, in least to most recently used order. */
+    protected final Map<Tuple<String,Boolean>,PreparedStatement> _idle =
+        new LinkedHashMap<Tuple<String,Boolean>,PreparedStatement>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry (
+                Map.Entry<Tuple<String,Boolean>,PreparedStatement> eldest) {
+                if (size() <= _capacity) {
+                    return false;
+                }
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+
+    protected static final Class<?>[] PROXY_IFACES = { Connection.class };
+}
@@ -0,0 +1,148 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot.impl;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import com.samskivert.depot.DatabaseException;
+import com.samskivert.depot.PersistenceContext;
+import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.Query;
+import com.samskivert.depot.Stats;
+import com.samskivert.depot.clause.QueryClause;
+import com.samskivert.depot.clause.SelectClause;
+import com.samskivert.jdbc.DatabaseLiaison;
+
+import static com.google.common.base.Preconditions.checkState;
+import static com.samskivert.depot.Log.log;
+
+/**
+ * Implements {@link Query#forEach}: runs a select and hands each row to a visitor as it is read
+ * from the database, rather than accumulating the results in a list. The connection is held for
+ * as long as it takes to visit every row. The cache is neither consulted nor populated.
+ *
+ * <p> Once rows have been delivered to the visitor the query cannot be transparently retried, so
+ * it must be invoked without retry on transient failure.
+ */
+public class StreamQuery<T extends PersistentRecord,R> extends Fetcher<Integer>
+{
+    /**
+     * Creates a query that streams full records of the specified type.
+     */
+    public static <T extends PersistentRecord> StreamQuery<T,T> records (
+        PersistenceContext ctx, Class<T> type, Iterable<? extends QueryClause> clauses,
+        int fetchSize, Query.Visitor<? super T> visitor)
+        throws DatabaseException
+    {
+        DepotMarshaller<T> marsh = ctx.getMarshaller(type);
+        SelectClause select = new SelectClause(type, marsh.getSelections(), clauses);
+        return new StreamQuery<T,T>(type, marsh, select, DepotTypes.getDepotTypes(ctx, select),
+                                    fetchSize, visitor);
+    }
+
+    /**
+     * Creates a query that streams the projections computed by the supplied projector.
+     */
+    public static <T extends PersistentRecord,R> StreamQuery<T,R> projection (
+        PersistenceContext ctx, Projector<T,R> proj, Iterable<? extends QueryClause> clauses,
+        int fetchSize, Query.Visitor<? super R> visitor)
+        throws DatabaseException
+    {
+        SelectClause select = new SelectClause(proj.ptype, proj.selexps, clauses);
+        DepotTypes types = DepotTypes.getDepotTypes(ctx, select);
+        return new StreamQuery<T,R>(
+            proj.ptype, new FindAllQuery.ProjectionQueryMarshaller<T,R>(proj, types), select,
+            types, fetchSize, visitor);
+    }
+
+    @Override // from Fetcher
+    public Integer getCachedResult (PersistenceContext ctx)
+    {
+        return null; // we never use the cache
+    }
+
+    // from Fetcher
+    public Integer invoke (PersistenceContext ctx, Connection conn, DatabaseLiaison liaison)
+        throws SQLException
+    {
+        checkState(_rows == 0, "Streaming query cannot be reinvoked.");
+
+        SQLBuilder builder = ctx.getSQLBuilder(_types);
+        builder.newQuery(_select);
+        _shape = builder.getQuery();
+
+        // some databases only stream results inside a transaction, in which case the builder
+        // will turn off auto-commit; we restore it when we're done
+        boolean autoCommit = conn.getAutoCommit(), success = false;
+        try {
+            ResultSet rs = builder.prepareStreaming(conn, _fetchSize).executeQuery();
+            ColumnPlan plan = _marsh.planColumns(rs);
+            while (rs.next()) {
+                _visitor.visit(_marsh.createObject(rs, plan));
+                _rows++;
+            }
+            success = true;
+        } finally {
+            if (autoCommit && !conn.getAutoCommit()) {
+                if (success) {
+                    conn.commit();
+                } else {
+                    // don't let a failure to roll back hide the failure that got us here
+                    try {
+                        conn.rollback();
+                    } catch (SQLException sqe) {
+                        log.warning("Failed to roll back streaming query", "error", sqe);
+                    }
+                }
+                conn.setAutoCommit(true);
+            }
+        }
+        return _rows;
+    }
+
+    @Override // from Fetcher
+    public Class<? extends PersistentRecord> getRecordClass ()
+    {
+        return _type;
+    }
+
+    // from Operation
+    public void updateStats (Stats stats)
+    {
+        stats.noteQuery(_type, 0, 0, 1, 0, _rows);
+    }
+
+    @Override // from Fetcher
+    public String getShape (PersistenceContext ctx)
+    {
+        return _shape;
+    }
+
+    protected StreamQuery (Class<T> type, QueryMarshaller<T,R> marsh, SelectClause select,
+                           DepotTypes types, int fetchSize, Query.Visitor<? super R> visitor)
+    {
+        _type = type;
+        _marsh = marsh;
+        _select = select;
+        _types = types;
+        _fetchSize = fetchSize;
+        _visitor = visitor;
+    }
+
+    protected Class<T> _type;
+    protected QueryMarshaller<T,R> _marsh;
+    protected SelectClause _select;
+    protected DepotTypes _types;
+    protected int _fetchSize;
+    protected Query.Visitor<? super R> _visitor;
+
+    /** The number of rows delivered to our visitor. */
+    protected int _rows;
+
+    /** The SQL we executed, noted for {@link #getShape}. */
+    protected String _shape;
+}
@@ -0,0 +1,117 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed number of long counters that many threads can update without contending for a lock or
+ * a cache line. Each counter is split into a number of stripes. A thread always updates the
+ * stripe selected by its id, and reading a counter sums all of its stripes. The stripes of each
+ * thread are laid out together, padded so that neighboring stripes don't share a cache line.
+ *
+ * <p> Reads are not atomic with respect to concurrent updates: a read that races with updates
+ * sees some of them and not others, and two counters read one after the other need not reflect
+ * exactly the same updates. This is fine for statistics, which is what this is for.
+ */
+public class StripedCounters
+{
+    /**
+     * Creates a set of counters with a number of stripes suited to the number of processors on
+     * this machine.
+     */
+    public StripedCounters (int counters)
+    {
+        this(counters, defaultStripes());
+    }
+
+    /**
+     * Creates a set of counters with the specified number of stripes, which is rounded up to a
+     * power of two.
+     */
+    public StripedCounters (int counters, int stripes)
+    {
+        int pow2 = 1;
+        while (pow2 < stripes) {
+            pow2 <<= 1;
+        }
+        _counters = counters;
+        _mask = pow2 - 1;
+        _stride = counters + PADDING;
+        _cells = new AtomicLongArray(pow2 * _stride);
+    }
+
+    /**
+     * Returns the number of counters in this set.
+     */
+    public int size ()
+    {
+        return _counters;
+    }
+
+    /**
+     * Adds the supplied amount to the specified counter.
+     */
+    public void add (int counter, long delta)
+    {
+        _cells.getAndAdd(stripeBase() + counter, delta);
+    }
+
+    /**
+     * Adds one to the specified counter.
+     */
+    public void increment (int counter)
+    {
+        _cells.getAndIncrement(stripeBase() + counter);
+    }
+
+    /**
+     * Returns the current value of the specified counter.
+     */
+    public long get (int counter)
+    {
+        long sum = 0;
+        for (int base = 0, length = _cells.length(); base < length; base += _stride) {
+            sum += _cells.get(base + counter);
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the current values of all of the counters. This is cheaper than reading them one at
+     * a time, but no more atomic.
+     */
+    public long[] getAll ()
+    {
+        long[] sums = new long[_counters];
+        for (int base = 0, length = _cells.length(); base < length; base += _stride) {
+            for (int ii = 0; ii < _counters; ii++) {
+                sums[ii] += _cells.get(base + ii);
+            }
+        }
+        return sums;
+    }
+
+    protected int stripeBase ()
+    {
+        // thread ids are assigned sequentially, so concurrently running threads tend to land on
+        // different stripes
+        return ((int)Thread.currentThread().getId() & _mask) * _stride;
+    }
+
+    protected static int defaultStripes ()
+    {
+        return Math.min(MAX_STRIPES, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    protected final int _counters, _mask, _stride;
+    protected final AtomicLongArray _cells;
+
+    /** The number of unused longs between stripes, enough to fill a 64 byte cache line. */
+    protected static final int PADDING = 8;
+
+    /** The most stripes we'll use by default, regardless of the number of processors. */
+    protected static final int MAX_STRIPES = 256;
+}
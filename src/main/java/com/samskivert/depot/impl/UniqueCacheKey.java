@@ -0,0 +1,95 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot.impl;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.samskivert.depot.CacheKey;
+import com.samskivert.depot.PersistentRecord;
+
+/**
+ * Identifies a record by the values of one of its unique column sets (a {@code @Column(unique =
+ * true)} field, a unique {@code @Index} or a {@code UniqueConstraint}). These keys map to the
+ * {@link KeyCacheKey} of the record in question, so that lookups by unique column can be resolved
+ * through the record cache. See {@link DepotMarshaller#getUniqueCacheKey}.
+ */
+public class UniqueCacheKey
+    implements CacheKey, Serializable
+{
+    /**
+     * Returns the id of the cache that holds the unique keys of the specified record class.
+     */
+    public static String getCacheId (Class<? extends PersistentRecord> pClass)
+    {
+        return pClass.getName() + "Unique";
+    }
+
+    public UniqueCacheKey (Class<? extends PersistentRecord> pClass, String[] fields,
+                           Comparable<?>[] values)
+    {
+        _cacheId = getCacheId(pClass);
+        _fields = fields;
+        _values = values;
+    }
+
+    /**
+     * Returns the names of the fields whose values make up this key.
+     */
+    public String[] getFields ()
+    {
+        return _fields;
+    }
+
+    // from CacheKey
+    public String getCacheId ()
+    {
+        return _cacheId;
+    }
+
+    // from CacheKey
+    public Serializable getCacheKey ()
+    {
+        return this;
+    }
+
+    @Override // from Object
+    public boolean equals (Object obj)
+    {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        UniqueCacheKey okey = (UniqueCacheKey)obj;
+        return Arrays.equals(_fields, okey._fields) && Arrays.equals(_values, okey._values);
+    }
+
+    @Override // from Object
+    public int hashCode ()
+    {
+        return 31 * Arrays.hashCode(_fields) + Arrays.hashCode(_values);
+    }
+
+    @Override // from Object
+    public String toString ()
+    {
+        StringBuilder builder = new StringBuilder(_cacheId);
+        builder.append("(");
+        for (int ii = 0; ii < _values.length; ii++) {
+            if (ii > 0) {
+                builder.append(", ");
+            }
+            builder.append(_fields[ii]).append("=").append(_values[ii]);
+        }
+        builder.append(")");
+        return builder.toString();
+    }
+
+    protected String _cacheId;
+    protected String[] _fields;
+    protected Comparable<?>[] _values;
+}
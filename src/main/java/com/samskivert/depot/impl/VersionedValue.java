@@ -0,0 +1,39 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot.impl;
+
+import java.io.Serializable;
+
+/**
+ * A cached query result tagged with the combined version of the tables on which it depends (see
+ * {@link com.samskivert.depot.PersistenceContext#getTableVersion}). The result is considered stale
+ * once that version has moved on. The time at which it was loaded is also noted, so that stale
+ * results can be refreshed (see {@link com.samskivert.depot.PersistenceContext#setRefreshAhead}).
+ */
+public class VersionedValue<V>
+    implements Serializable
+{
+    /** The combined table version at the time the value was loaded. */
+    public final long version;
+
+    /** The time at which the value was loaded, in millis since the epoch. */
+    public final long loaded;
+
+    /** The cached value. */
+    public final V value;
+
+    public VersionedValue (long version, long loaded, V value)
+    {
+        this.version = version;
+        this.loaded = loaded;
+        this.value = value;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "[version=" + version + ", loaded=" + loaded + ", value=" + value + "]";
+    }
+}
@@ -0,0 +1,121 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot.impl.clause;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import com.samskivert.depot.Key;
+import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.clause.QueryClause;
+import com.samskivert.depot.expression.ColumnExp;
+
+import com.samskivert.depot.impl.DepotUtil;
+import com.samskivert.depot.impl.FragmentVisitor;
+
+/**
+ * Inserts a record or, if a row with the same primary key already exists, updates that row with
+ * the record's values. Dialects whose {@link com.samskivert.depot.impl.SQLBuilder#supportsUpsert}
+ * returns true do so in a single statement; others build this as a plain insert, which {@link
+ * com.samskivert.depot.impl.SQLBuilder#executeUpsert} runs only if an update matched no row.
+ */
+public class UpsertClause
+    implements QueryClause
+{
+    public UpsertClause (Class<? extends PersistentRecord> pClass, Key<?> key,
+                         ColumnExp<?>[] fields, PersistentRecord pojo)
+    {
+        _pClass = pClass;
+        _key = key;
+        _fields = fields;
+        _pojo = pojo;
+    }
+
+    public Class<? extends PersistentRecord> getPersistentClass ()
+    {
+        return _pClass;
+    }
+
+    public Key<?> getKey ()
+    {
+        return _key;
+    }
+
+    /**
+     * Returns all of the persistent fields, which are inserted if the row does not exist.
+     */
+    public ColumnExp<?>[] getFields ()
+    {
+        return _fields;
+    }
+
+    /**
+     * Returns the primary key fields, on which a conflict with an existing row is detected.
+     */
+    public ColumnExp<?>[] getKeyFields ()
+    {
+        return DepotUtil.getKeyFields(_pClass);
+    }
+
+    /**
+     * Returns the non-key fields, which are updated if the row already exists.
+     */
+    public List<ColumnExp<?>> getUpdateFields ()
+    {
+        Set<String> keyNames = Sets.newHashSet();
+        for (ColumnExp<?> keyField : getKeyFields()) {
+            keyNames.add(keyField.name);
+        }
+        List<ColumnExp<?>> fields = Lists.newArrayList();
+        for (ColumnExp<?> field : _fields) {
+            if (!keyNames.contains(field.name)) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    public PersistentRecord getPojo ()
+    {
+        return _pojo;
+    }
+
+    /**
+     * Returns an update of the existing row, for dialects that must first attempt the update to
+     * learn whether the row exists.
+     */
+    public UpdateClause toUpdateClause ()
+    {
+        return new UpdateClause(_pClass, _key, _fields, _pojo);
+    }
+
+    // from SQLFragment
+    public void addClasses (Collection<Class<? extends PersistentRecord>> classSet)
+    {
+        classSet.add(_pClass);
+    }
+
+    // from SQLFragment
+    public Object accept (FragmentVisitor<?> builder)
+    {
+        return builder.visit(this);
+    }
+
+    /** The class we're storing. */
+    protected Class<? extends PersistentRecord> _pClass;
+
+    /** The primary key of the record being stored. */
+    protected Key<?> _key;
+
+    /** The persistent fields to store. */
+    protected ColumnExp<?>[] _fields;
+
+    /** The object from which to fetch values. */
+    protected PersistentRecord _pojo;
+}
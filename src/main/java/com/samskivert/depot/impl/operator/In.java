@@ -20,6 +20,23 @@ public class In
     /** The maximum number of keys allowed in an IN() clause. */
     public static final int MAX_KEYS = Short.MAX_VALUE;
 
+    /** Value lists longer than this are padded to a multiple of this size rather than to a power
+     * of two. See {@link #getBucketSize}. */
+    public static final int BUCKET_STEP = 1024;
+
+    /**
+     * Returns the number of values to which a list of {@code count} values should be padded so
+     * that queries with similar numbers of values generate the same SQL (and can thus share
+     * prepared statements and query plans). Short lists are padded to the next power of two and
+     * long lists to the next multiple of {@link #BUCKET_STEP}, never exceeding {@link #MAX_KEYS}.
+     */
+    public static int getBucketSize (int count)
+    {
+        int size = (count <= BUCKET_STEP) ? Integer.highestOneBit(Math.max(count - 1, 1)) << 1 :
+            (count + BUCKET_STEP - 1) / BUCKET_STEP * BUCKET_STEP;
+        return (count <= 1) ? count : Math.max(count, Math.min(size, MAX_KEYS));
+    }
+
     public In (SQLExpression<?> expression, Comparable<?>... values)
     {
         _expression = expression;
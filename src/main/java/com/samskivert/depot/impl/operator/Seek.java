@@ -0,0 +1,119 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot.impl.operator;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.depot.Ops;
+import com.samskivert.depot.clause.OrderBy.Order;
+import com.samskivert.depot.expression.ColumnExp;
+import com.samskivert.depot.expression.SQLExpression;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Matches the rows that follow a given row in some ordering, for keyset pagination. For ordering
+ * columns {@code (a, b)} and values {@code (x, y)}, this is the condition {@code (a > x) or (a = x
+ * and b > y)}, with {@code <} replacing {@code >} for descending columns. When all columns are
+ * sorted in the same direction, dialects that support row value comparison may instead generate
+ * the equivalent (and more readily indexed) {@code (a, b) > (x, y)}.
+ */
+public class Seek extends MultiOperator<Boolean>
+{
+    public Seek (ColumnExp<?>[] columns, Order[] orders, Comparable<?>[] values)
+    {
+        super(expand(columns, orders, values));
+        _columns = columns;
+        _orders = orders;
+        _values = values;
+    }
+
+    public ColumnExp<?>[] getColumns ()
+    {
+        return _columns;
+    }
+
+    public Comparable<?>[] getValues ()
+    {
+        return _values;
+    }
+
+    /**
+     * Returns true if all of our columns are sorted in the same direction, in which case the seek
+     * can be expressed as a single row value comparison.
+     */
+    public boolean isUniform ()
+    {
+        for (Order order : _orders) {
+            if (isDescending(order) != isDescending()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if our first column is sorted in descending order.
+     */
+    public boolean isDescending ()
+    {
+        return isDescending(_orders[0]);
+    }
+
+    @Override // from MultiOperator
+    public String operator ()
+    {
+        return "or";
+    }
+
+    @Override // from MultiOperator
+    public Object evaluate (Object[] values)
+    {
+        boolean anyTrue = false;
+        for (Object value : values) {
+            if (value instanceof NoValue) {
+                return value;
+            }
+            if (Boolean.TRUE.equals(value)) {
+                anyTrue = true;
+            } else if (!Boolean.FALSE.equals(value)) {
+                return new NoValue("Non-boolean operand to seek: " + value);
+            }
+        }
+        return anyTrue;
+    }
+
+    protected static SQLExpression<?>[] expand (
+        ColumnExp<?>[] columns, Order[] orders, Comparable<?>[] values)
+    {
+        checkArgument(columns.length > 0, "Must seek on at least one column.");
+        checkArgument(columns.length == orders.length && columns.length == values.length,
+                      "Seek requires one value per ordering column.");
+        List<SQLExpression<?>> terms = Lists.newArrayList();
+        for (int ii = 0; ii < columns.length; ii++) {
+            checkArgument(orders[ii] != Order.NULL, "Cannot seek on a null ordering.");
+            checkArgument(values[ii] != null, "Cannot seek past a null value.");
+            List<SQLExpression<?>> conds = Lists.newArrayList();
+            for (int jj = 0; jj < ii; jj++) {
+                conds.add(columns[jj].eq(values[jj]));
+            }
+            conds.add(isDescending(orders[ii]) ? columns[ii].lessThan(values[ii]) :
+                      columns[ii].greaterThan(values[ii]));
+            terms.add(conds.size() == 1 ? conds.get(0) : Ops.and(conds));
+        }
+        return terms.toArray(new SQLExpression<?>[terms.size()]);
+    }
+
+    protected static boolean isDescending (Order order)
+    {
+        return order == Order.DESC || order == Order.DESC_NULLS_LAST;
+    }
+
+    protected ColumnExp<?>[] _columns;
+    protected Order[] _orders;
+    protected Comparable<?>[] _values;
+}
@@ -0,0 +1,36 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot.util;
+
+import java.util.List;
+
+/**
+ * Contains one page of results from {@link com.samskivert.depot.Query#selectPage}, along with the
+ * token needed to fetch the following page.
+ */
+public class Page<T>
+{
+    /** The records on this page, in query order. */
+    public final List<T> records;
+
+    /** The ordering column values of the last record on this page, which should be passed to
+     * {@link com.samskivert.depot.Query#after} to obtain the next page, or null if there are no
+     * more records. These values are serializable and may be handed to a client. */
+    public final Comparable<?>[] next;
+
+    public Page (List<T> records, Comparable<?>[] next)
+    {
+        this.records = records;
+        this.next = next;
+    }
+
+    /**
+     * Returns true if there are more records after this page.
+     */
+    public boolean hasNext ()
+    {
+        return next != null;
+    }
+}
@@ -4,8 +4,11 @@
 
 package com.samskivert.depot;
 
+import java.util.List;
 import java.util.Set;
 
+import com.samskivert.depot.util.Tuple3;
+
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -31,6 +34,32 @@ public class AllTypesTest extends TestBase
         assertNull(_repo.loadNoCache(in.recordId));
     }
 
+    @Test public void testFindAll ()
+    {
+        for (int ii = 1; ii <= 3; ii++) {
+            _repo.insert(AllTypesRecord.createRecord(ii));
+        }
+
+        // every row of a multi-row result should be unmarshalled in full
+        List<AllTypesRecord> records = _repo.from(AllTypesRecord.class).
+            cache(DepotRepository.CacheStrategy.NONE).ascending(AllTypesRecord.RECORD_ID).select();
+        assertEquals(3, records.size());
+        for (int ii = 1; ii <= 3; ii++) {
+            assertEquals(_repo.loadNoCache(ii), records.get(ii-1));
+        }
+
+        // projected boxed columns should come back as the field's type
+        Tuple3<Byte,Short,Float> boxed = _repo.from(AllTypesRecord.class).
+            where(AllTypesRecord.RECORD_ID.eq(1)).select(
+                AllTypesRecord.BOXED_BYTE, AllTypesRecord.BOXED_SHORT,
+                AllTypesRecord.BOXED_FLOAT).get(0);
+        assertEquals(records.get(0).boxedByte, boxed.a);
+        assertEquals(records.get(0).boxedShort, boxed.b);
+        assertEquals(records.get(0).boxedFloat, boxed.c);
+
+        _repo.from(AllTypesRecord.class).whereTrue().delete();
+    }
+
     protected static class TestRepository extends DepotRepository
     {
         public AllTypesRecord loadNoCache (int recordId)
@@ -0,0 +1,106 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import com.samskivert.jdbc.DatabaseLiaison;
+
+import com.samskivert.depot.impl.Fetcher;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the asynchronous repository methods.
+ */
+public class AsyncTest extends TestBase
+{
+    @Test
+    public void testAsync ()
+        throws InterruptedException, ExecutionException
+    {
+        int asyncOps = _ctx.getStats().asyncOps;
+        for (int ii = 1; ii <= 5; ii++) {
+            assertEquals(1, _repo.insertAsync(createTestRecord(ii)).get().intValue());
+        }
+
+        // these will run on the executor (though the first may find its record in the cache)
+        ListenableFuture<List<TestRecord>> all = _repo.from(TestRecord.class).noCache().
+            where(TestRecord.RECORD_ID.lessThan(4)).selectAsync();
+        ListenableFuture<Integer> count = _repo.from(TestRecord.class).selectCountAsync();
+        assertEquals(3, all.get().size());
+        assertEquals(5, count.get().intValue());
+        assertTrue(_ctx.getStats().asyncOps >= asyncOps + 7);
+
+        assertEquals(1, _repo.deleteAsync(TestRecord.getKey(1)).get().intValue());
+        assertNull(_repo.loadAsync(TestRecord.getKey(1)).get());
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test
+    public void testCacheHitsInline ()
+        throws InterruptedException, ExecutionException
+    {
+        final AtomicInteger submitted = new AtomicInteger();
+        _ctx.setExecutor(new Executor() {
+            public void execute (Runnable task) {
+                submitted.incrementAndGet();
+                task.run();
+            }
+        });
+
+        TestRecord record = createTestRecord(1);
+        _repo.insert(record);
+        // the insert populated the cache, so this should not go through the executor
+        ListenableFuture<List<TestRecord>> recs =
+            _repo.loadAllAsync(Collections.singletonList(TestRecord.getKey(1)));
+        assertTrue(recs.isDone());
+        assertEquals(0, submitted.get());
+        assertTestRecordEquals(record, recs.get().get(0));
+
+        // whereas an uncached query must
+        assertEquals(1, _repo.from(TestRecord.class).noCache().selectAsync().get().size());
+        assertEquals(1, submitted.get());
+
+        _repo.from(TestRecord.class).whereTrue().delete();
+        _ctx.setExecutor(null);
+    }
+
+    @Test
+    public void testSingleCacheLookup ()
+        throws InterruptedException, ExecutionException
+    {
+        // a query that misses the cache should not look there again once it reaches the executor
+        final AtomicInteger lookups = new AtomicInteger();
+        Fetcher<String> fetcher = new Fetcher<String>() {
+            @Override public String getCachedResult (PersistenceContext ctx) {
+                lookups.incrementAndGet();
+                return null;
+            }
+            public String invoke (PersistenceContext ctx, Connection conn,
+                                  DatabaseLiaison liaison) {
+                return "fetched";
+            }
+            public void updateStats (Stats stats) {
+                // nothing doing
+            }
+        };
+        assertEquals("fetched", _ctx.invokeAsync(fetcher).get());
+        assertEquals(1, lookups.get());
+    }
+
+    // the HSQL in-memory database persists for the lifetime of the VM, which means we have to
+    // clean up after ourselves in every test; thus we go ahead and share a repository
+    protected PersistenceContext _ctx = createPersistenceContext();
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
@@ -0,0 +1,74 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Compares inserting records one at a time with {@link DepotRepository#insertAll} against an
+ * in-memory HSQLDB. This is not run as part of the unit tests; invoke it directly:
+ *
+ * <pre>
+ * java com.samskivert.depot.BatchInsertBenchmark [batchSize] [rows...]
+ * </pre>
+ */
+public class BatchInsertBenchmark extends TestBase
+{
+    public static void main (String[] args)
+    {
+        int batchSize = (args.length > 0) ? Integer.parseInt(args[0]) :
+            DepotRepository.DEFAULT_BATCH_SIZE;
+        List<Integer> sizes = Lists.newArrayList();
+        for (int ii = 1; ii < args.length; ii++) {
+            sizes.add(Integer.parseInt(args[ii]));
+        }
+        if (sizes.isEmpty()) {
+            sizes = Lists.newArrayList(1000, 10000, 100000);
+        }
+
+        BatchInsertBenchmark bench = new BatchInsertBenchmark();
+        bench.run(1000, batchSize, false); // warm up
+        for (int rows : sizes) {
+            bench.run(rows, batchSize, true);
+        }
+    }
+
+    protected void run (int rows, int batchSize, boolean report)
+    {
+        List<TestRecord> records = Lists.newArrayListWithCapacity(rows);
+        for (int ii = 1; ii <= rows; ii++) {
+            records.add(createTestRecord(ii));
+        }
+
+        long start = System.nanoTime();
+        for (TestRecord record : records) {
+            _repo.insert(record);
+        }
+        long single = System.nanoTime() - start;
+        _repo.from(TestRecord.class).whereTrue().delete(null);
+        _ctx.cacheClear(TestRecord.class, true);
+
+        start = System.nanoTime();
+        _repo.insertAll(records, batchSize);
+        long batched = System.nanoTime() - start;
+        _repo.from(TestRecord.class).whereTrue().delete(null);
+        _ctx.cacheClear(TestRecord.class, true);
+
+        if (report) {
+            System.out.println(rows + " rows: insert " + rate(rows, single) + " rows/s, " +
+                               "insertAll(" + batchSize + ") " + rate(rows, batched) + " rows/s");
+        }
+    }
+
+    protected static long rate (int rows, long nanos)
+    {
+        return rows * 1000000000L / Math.max(nanos, 1);
+    }
+
+    protected PersistenceContext _ctx = createPersistenceContext("batchbench");
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
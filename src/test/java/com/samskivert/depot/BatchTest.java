@@ -0,0 +1,194 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import com.samskivert.io.PersistenceException;
+import com.samskivert.jdbc.StaticConnectionProvider;
+
+import com.samskivert.depot.impl.KeyCacheKey;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests batched inserts, updates and stores.
+ */
+public class BatchTest extends TestBase
+{
+    @Test
+    public void testInsertAndUpdateAll ()
+    {
+        List<TestRecord> records = Lists.newArrayList();
+        for (int ii = 1; ii <= 250; ii++) {
+            records.add(createTestRecord(ii));
+        }
+        // use a batch size that doesn't evenly divide our record count
+        assertEquals(250, _repo.insertAll(records, 100));
+        assertEquals(250, _repo.from(TestRecord.class).selectCount());
+        assertNotNull(lookup(TestRecord.getKey(1)));
+        assertNotNull(lookup(TestRecord.getKey(250)));
+        // each batch builds its SQL once, so make sure every record bound its own values
+        for (TestRecord record : records) {
+            assertTestRecordEquals(record, _repo.loadNoCache(record.recordId));
+        }
+
+        for (TestRecord record : records) {
+            record.name = "Updated " + record.recordId;
+        }
+        assertEquals(250, _repo.updateAll(records, 64));
+        for (TestRecord record : _repo.from(TestRecord.class).noCache().select()) {
+            assertEquals("Updated " + record.recordId, record.name);
+        }
+        assertEquals("Updated 17", lookup(TestRecord.getKey(17)).name);
+
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test
+    public void testStoreAll ()
+    {
+        List<TestRecord> records = Lists.newArrayList();
+        for (int ii = 1; ii <= 10; ii++) {
+            records.add(createTestRecord(ii));
+        }
+        _repo.insertAll(records.subList(0, 5));
+
+        for (TestRecord record : records) {
+            record.name = "Stored";
+        }
+        // five of these exist and will be updated, five will be created
+        assertEquals(5, _repo.storeAll(records, 3));
+        assertEquals(10, _repo.from(TestRecord.class).
+                     where(TestRecord.NAME, "Stored").selectCount());
+        assertEquals("Stored", lookup(TestRecord.getKey(10)).name);
+
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test
+    public void testStoreAllWithoutCounts ()
+    {
+        // simulate a driver that doesn't report the number of rows modified by batched statements
+        TestRepository repo = new TestRepository(createPersistenceContext(
+            "noinfotest", null, new StaticConnectionProvider(
+                createConnectionProperties("noinfotest")) {
+                @Override
+                protected Connection openConnection (String driver, String url,
+                                                     String username, String password)
+                    throws PersistenceException {
+                    return withoutBatchCounts(
+                        super.openConnection(driver, url, username, password));
+                }
+            }));
+
+        List<TestRecord> records = Lists.newArrayList();
+        for (int ii = 1; ii <= 10; ii++) {
+            records.add(createTestRecord(ii));
+        }
+        repo.insertAll(records.subList(0, 4));
+        for (TestRecord record : records) {
+            record.name = "Stored";
+        }
+        // the updates of the six missing records must still fall through to inserts
+        assertEquals(6, repo.storeAll(records, 3));
+        assertEquals(10, repo.from(TestRecord.class).
+                     where(TestRecord.NAME, "Stored").selectCount());
+
+        repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test
+    public void testGeneratedKeys ()
+    {
+        DepotRepository repo = new DepotRepository(createPersistenceContext("batchtest")) {
+            @Override
+            protected void getManagedRecords (Set<Class<? extends PersistentRecord>> classes) {
+                classes.add(GeneratedValueRecord.class);
+            }
+        };
+
+        List<GeneratedValueRecord> records = Lists.newArrayList();
+        for (int ii = 0; ii < 20; ii++) {
+            GeneratedValueRecord rec = new GeneratedValueRecord();
+            rec.value = ii;
+            records.add(rec);
+        }
+        assertEquals(20, repo.insertAll(records, 8));
+
+        Set<Integer> ids = Sets.newHashSet();
+        for (GeneratedValueRecord rec : records) {
+            assertTrue(rec.recordId != 0);
+            ids.add(rec.recordId);
+            assertEquals(rec.value, repo.load(GeneratedValueRecord.getKey(rec.recordId)).value);
+        }
+        assertEquals(20, ids.size());
+
+        repo.from(GeneratedValueRecord.class).whereTrue().delete();
+    }
+
+    protected static Connection withoutBatchCounts (final Connection conn)
+    {
+        return (Connection)Proxy.newProxyInstance(
+            Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+            new InvocationHandler() {
+                public Object invoke (Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                    Object result = call(conn, method, args);
+                    return (result instanceof PreparedStatement) ?
+                        withoutCounts((PreparedStatement)result) : result;
+                }
+            });
+    }
+
+    protected static PreparedStatement withoutCounts (final PreparedStatement stmt)
+    {
+        return (PreparedStatement)Proxy.newProxyInstance(
+            PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class },
+            new InvocationHandler() {
+                public Object invoke (Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                    Object result = call(stmt, method, args);
+                    if (method.getName().equals("executeBatch")) {
+                        Arrays.fill((int[])result, Statement.SUCCESS_NO_INFO);
+                    }
+                    return result;
+                }
+            });
+    }
+
+    protected static Object call (Object target, Method method, Object[] args)
+        throws Throwable
+    {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ite) {
+            throw ite.getCause();
+        }
+    }
+
+    protected <T extends PersistentRecord> T lookup (Key<T> key)
+    {
+        return _ctx.cacheLookup(new KeyCacheKey(key));
+    }
+
+    // the HSQL in-memory database persists for the lifetime of the VM, which means we have to
+    // clean up after ourselves in every test; thus we go ahead and share a repository
+    protected PersistenceContext _ctx = createPersistenceContext();
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
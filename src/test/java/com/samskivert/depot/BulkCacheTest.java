@@ -0,0 +1,104 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.samskivert.jdbc.StaticConnectionProvider;
+
+import com.samskivert.depot.impl.KeyCacheKey;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the use of bulk cache operations for collection loads and invalidations.
+ */
+public class BulkCacheTest extends TestBase
+{
+    @Test
+    public void testBulkOps ()
+    {
+        List<Integer> ids = Lists.newArrayList();
+        for (int ii = 1; ii <= 20; ii++) {
+            _repo.insert(createTestRecord(ii));
+            ids.add(ii);
+        }
+        _ctx.cacheClear(TestRecord.class, true);
+        _cache.lookups = _cache.stores = 0;
+
+        // a cold load should look up and store all of the records in one go apiece
+        assertEquals(20, _repo.loadAll(TestRecord.class, ids).size());
+        assertEquals(1, _cache.lookups);
+        assertEquals(1, _cache.stores);
+
+        // a warm load should find them all with a single lookup
+        assertEquals(20, _repo.loadAll(TestRecord.class, ids).size());
+        assertEquals(2, _cache.lookups);
+        assertEquals(1, _cache.stores);
+
+        // deleting by key set should invalidate them all in one go
+        KeySet<TestRecord> keys = KeySet.newSimpleKeySet(TestRecord.class, ids);
+        _repo.deleteAll(TestRecord.class, keys, keys);
+        assertEquals(1, _cache.removes);
+        assertNull(_ctx.cacheLookup(new KeyCacheKey(TestRecord.getKey(7))));
+        assertEquals(0, _repo.from(TestRecord.class).selectCount());
+    }
+
+    /** Counts the bulk operations applied to our test cache. */
+    protected static class CountingCacheAdapter extends TestCacheAdapter
+        implements BulkCacheAdapter
+    {
+        public int lookups, stores, removes;
+
+        // from interface BulkCacheAdapter
+        public <T> Map<Serializable, CachedValue<T>> lookupAll (
+            String cacheId, Collection<? extends Serializable> keys)
+        {
+            lookups++;
+            Map<Serializable, CachedValue<T>> result = Maps.newHashMap();
+            for (Serializable key : keys) {
+                CachedValue<T> value = lookup(cacheId, key);
+                if (value != null) {
+                    result.put(key, value);
+                }
+            }
+            return result;
+        }
+
+        // from interface BulkCacheAdapter
+        public <T> void storeAll (CacheCategory category, String cacheId,
+                                  Map<? extends Serializable, ? extends T> values)
+        {
+            stores++;
+            for (Map.Entry<? extends Serializable, ? extends T> entry : values.entrySet()) {
+                store(category, cacheId, entry.getKey(), entry.getValue());
+            }
+        }
+
+        // from interface BulkCacheAdapter
+        public void removeAll (String cacheId, Collection<? extends Serializable> keys)
+        {
+            removes++;
+            for (Serializable key : keys) {
+                remove(cacheId, key);
+            }
+        }
+    }
+
+    protected CountingCacheAdapter _cache = new CountingCacheAdapter();
+    protected PersistenceContext _ctx = new PersistenceContext();
+    {
+        _ctx.init("bulkcache", new StaticConnectionProvider(
+                      createConnectionProperties("bulkcache")), _cache);
+    }
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
@@ -0,0 +1,235 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.jdbc.DatabaseLiaison;
+
+import com.samskivert.depot.annotation.Computed;
+import com.samskivert.depot.clause.FieldDefinition;
+import com.samskivert.depot.clause.QueryClause;
+import com.samskivert.depot.clause.Where;
+import com.samskivert.depot.impl.Fetcher;
+import com.samskivert.depot.impl.FindOneQuery;
+import com.samskivert.depot.impl.Operation;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the coalescing of identical concurrent queries.
+ */
+public class CoalescingTest extends TestBase
+{
+    @Computed(shadowOf=TestRecord.class)
+    public static class NameRecord extends PersistentRecord
+    {
+        public int recordId;
+        public String name;
+    }
+
+    @Computed(shadowOf=TestRecord.class)
+    public static class HomeTownRecord extends PersistentRecord
+    {
+        public int recordId;
+        public String homeTown;
+    }
+
+    @Test
+    public void testCoalescing ()
+        throws InterruptedException
+    {
+        _ctx.setQueryCoalescing(PersistenceContext.DEFAULT_COALESCING_TIMEOUT);
+        int coalesced = _ctx.getStats().coalescedQueries;
+        CountDownLatch gate = new CountDownLatch(1);
+        Thread leader = startQuery(new SlowFetcher(gate));
+        PersistenceContext.Flight flight = awaitFlight();
+
+        // these should all wait on the leader rather than executing themselves
+        List<Thread> waiters = Lists.newArrayList();
+        for (int ii = 0; ii < 3; ii++) {
+            waiters.add(startQuery(new SlowFetcher(null)));
+        }
+        synchronized (flight) {
+            while (flight._waiters < 3) {
+                flight.wait(1);
+            }
+        }
+        gate.countDown();
+        leader.join();
+        for (Thread waiter : waiters) {
+            waiter.join();
+        }
+
+        assertEquals(1, _invocations.get());
+        assertEquals(4, _results.size());
+        for (int ii = 0; ii < _results.size(); ii++) {
+            assertEquals(Lists.newArrayList("result"), _results.get(ii));
+            for (int jj = ii + 1; jj < _results.size(); jj++) {
+                assertNotSame(_results.get(ii), _results.get(jj));
+            }
+        }
+        assertEquals(coalesced + 3, _ctx.getStats().coalescedQueries);
+        assertNull(_ctx._flights.get(SlowFetcher.KEY));
+    }
+
+    @Test
+    public void testTimeout ()
+        throws InterruptedException
+    {
+        _ctx.setQueryCoalescing(10);
+        CountDownLatch gate = new CountDownLatch(1);
+        Thread leader = startQuery(new SlowFetcher(gate));
+        awaitFlight();
+
+        // the leader is stuck, so we should give up on it and execute on our own
+        assertEquals(Lists.newArrayList("result"), _ctx.invoke(new SlowFetcher(null)));
+        assertEquals(2, _invocations.get());
+        gate.countDown();
+        leader.join();
+    }
+
+    @Test
+    public void testDisabledByDefault ()
+        throws InterruptedException
+    {
+        CountDownLatch gate = new CountDownLatch(1);
+        Thread leader = startQuery(new SlowFetcher(gate));
+        while (_invocations.get() == 0) {
+            Thread.sleep(1);
+        }
+
+        // the first query is stuck, but we must not wait for it
+        assertNull(_ctx._flights.get(SlowFetcher.KEY));
+        assertEquals(Lists.newArrayList("result"), _ctx.invoke(new SlowFetcher(null)));
+        assertEquals(2, _invocations.get());
+        gate.countDown();
+        leader.join();
+    }
+
+    @Test
+    public void testDistinctComputedRecords ()
+        throws InterruptedException
+    {
+        _ctx.setQueryCoalescing(PersistenceContext.DEFAULT_COALESCING_TIMEOUT);
+        final TestRepository repo = new TestRepository(_ctx);
+        repo.insert(createTestRecord(1));
+
+        // hold up a load of one computed record type while it's in flight
+        final CountDownLatch gate = new CountDownLatch(1);
+        _ctx.addOperationListener(new PersistenceContext.OperationListener() {
+            public void willConnect (Operation<?> op) {}
+            public void willInvoke (Operation<?> op) {
+                if (op.getRecordClass() == NameRecord.class) {
+                    try {
+                        gate.await();
+                    } catch (InterruptedException ie) {
+                        throw new RuntimeException(ie);
+                    }
+                }
+            }
+            public void didComplete (Operation<?> op, int rows, boolean cached) {}
+            public void didFail (Operation<?> op, Throwable cause) {}
+        });
+        final NameRecord[] named = new NameRecord[1];
+        Thread leader = new Thread() {
+            @Override public void run () {
+                named[0] = repo.from(NameRecord.class).where(TestRecord.RECORD_ID.eq(1)).load();
+            }
+        };
+        leader.start();
+        while (_ctx._flights.isEmpty()) {
+            Thread.sleep(1);
+        }
+        PersistenceContext.Flight flight = _ctx._flights.values().iterator().next();
+
+        // a load of another computed type with the same where clause must not wait on it
+        HomeTownRecord town =
+            repo.from(HomeTownRecord.class).where(TestRecord.RECORD_ID.eq(1)).load();
+        assertEquals(createTestRecord(1).homeTown, town.homeTown);
+        assertEquals(0, flight._waiters);
+
+        gate.countDown();
+        leader.join();
+        assertEquals(createTestRecord(1).name, named[0].name);
+
+        // nor can we tell apart queries that define their own fields, so they're never shared
+        assertNull(new FindOneQuery<NameRecord>(
+                       _ctx, NameRecord.class, DepotRepository.CacheStrategy.BEST,
+                       new QueryClause[] { new Where(TestRecord.RECORD_ID.eq(1)),
+                                           new FieldDefinition("name", "'Bob'") }).
+                   getFlightKey());
+
+        repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    protected Thread startQuery (final SlowFetcher fetcher)
+    {
+        Thread thread = new Thread() {
+            @Override public void run () {
+                _results.add(_ctx.invoke(fetcher));
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    protected PersistenceContext.Flight awaitFlight ()
+        throws InterruptedException
+    {
+        PersistenceContext.Flight flight;
+        while ((flight = _ctx._flights.get(SlowFetcher.KEY)) == null || _invocations.get() == 0) {
+            Thread.sleep(1);
+        }
+        return flight;
+    }
+
+    /** A query that optionally blocks until released. */
+    protected class SlowFetcher extends Fetcher.Trivial<List<String>>
+    {
+        public static final String KEY = "slow";
+
+        public SlowFetcher (CountDownLatch gate) {
+            _gate = gate;
+        }
+
+        @Override public Object getFlightKey () {
+            return KEY;
+        }
+
+        @Override public List<String> copyResult (List<String> result) {
+            return Lists.newArrayList(result);
+        }
+
+        public List<String> invoke (PersistenceContext ctx, Connection conn,
+                                    DatabaseLiaison liaison) {
+            _invocations.incrementAndGet();
+            if (_gate != null) {
+                try {
+                    _gate.await();
+                } catch (InterruptedException ie) {
+                    throw new RuntimeException(ie);
+                }
+            }
+            return Lists.newArrayList("result");
+        }
+
+        protected CountDownLatch _gate;
+    }
+
+    protected AtomicInteger _invocations = new AtomicInteger();
+    protected List<List<String>> _results =
+        Collections.synchronizedList(Lists.<List<String>>newArrayList());
+
+    // this is only used to execute our test fetchers, so the shared HSQL database is fine
+    protected PersistenceContext _ctx = createPersistenceContext();
+}
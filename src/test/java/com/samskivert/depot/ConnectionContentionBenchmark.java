@@ -0,0 +1,93 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.jdbc.ConnectionProvider;
+import com.samskivert.jdbc.StaticConnectionProvider;
+
+/**
+ * Compares the throughput of {@link StaticConnectionProvider} and {@link
+ * PooledConnectionProvider} when many threads issue uncached queries against an in-memory HSQLDB.
+ * This is not run as part of the unit tests; invoke it directly:
+ *
+ * <pre>
+ * java com.samskivert.depot.ConnectionContentionBenchmark [threads] [opsPerThread] [poolSize]
+ * </pre>
+ */
+public class ConnectionContentionBenchmark extends TestBase
+{
+    public static void main (String[] args)
+        throws Exception
+    {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+        int ops = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+        int poolSize = (args.length > 2) ? Integer.parseInt(args[2]) : Math.max(1, threads/2);
+        ConnectionContentionBenchmark bench = new ConnectionContentionBenchmark();
+
+        // warm up both paths, then measure
+        for (int pass = 0; pass < 2; pass++) {
+            boolean report = (pass == 1);
+            bench.run("static", new StaticConnectionProvider(createConnectionProperties("bench")),
+                      threads, ops, report);
+            Properties props = createConnectionProperties("bench");
+            props.put("default.pool_size", String.valueOf(poolSize));
+            bench.run("pooled", new PooledConnectionProvider(props), threads, ops, report);
+        }
+    }
+
+    protected void run (String name, ConnectionProvider conprov, int threads, final int ops,
+                        boolean report)
+        throws Exception
+    {
+        PersistenceContext ctx = createPersistenceContext("bench", null, conprov);
+        final TestRepository repo = new TestRepository(ctx);
+        for (int ii = 1; ii <= 100; ii++) {
+            repo.insert(createTestRecord(ii));
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = Lists.newArrayList();
+        for (int ii = 0; ii < threads; ii++) {
+            workers.add(new Thread() {
+                @Override public void run () {
+                    try {
+                        start.await();
+                        for (int jj = 0; jj < ops; jj++) {
+                            repo.from(TestRecord.class).noCache().
+                                where(TestRecord.RECORD_ID.lessThan(jj % 100)).selectCount();
+                        }
+                    } catch (InterruptedException ie) {
+                        // exit
+                    }
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - started;
+
+        if (report) {
+            Stats.Snapshot snap = ctx.getStats();
+            System.out.println(name + ": " + (threads * (long)ops * 1000000000L / elapsed) +
+                               " ops/s, " + threads + " threads, connection wait " +
+                               snap.connectionWaitTime + "ms over " + snap.totalOps + " ops");
+        }
+
+        repo.from(TestRecord.class).whereTrue().delete();
+        ctx.shutdown();
+    }
+}
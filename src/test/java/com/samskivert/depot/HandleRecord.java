@@ -0,0 +1,53 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import com.samskivert.depot.annotation.Column;
+import com.samskivert.depot.annotation.Id;
+import com.samskivert.depot.expression.ColumnExp;
+
+/**
+ * Tests a record that has a unique column in addition to its primary key.
+ */
+public class HandleRecord extends PersistentRecord
+{
+    // AUTO-GENERATED: FIELDS START
+    public static final Class<HandleRecord> _R = HandleRecord.class;
+    public static final ColumnExp<Integer> RECORD_ID = colexp(_R, "recordId");
+    public static final ColumnExp<String> HANDLE = colexp(_R, "handle");
+    public static final ColumnExp<String> NAME = colexp(_R, "name");
+    // AUTO-GENERATED: FIELDS END
+
+    public static final int SCHEMA_VERSION = 1;
+
+    @Id public int recordId;
+
+    @Column(unique=true) public String handle;
+
+    public String name;
+
+    public HandleRecord () {}
+
+    public HandleRecord (int recordId, String handle, String name)
+    {
+        this.recordId = recordId;
+        this.handle = handle;
+        this.name = name;
+    }
+
+    // AUTO-GENERATED: METHODS START
+    /**
+     * Create and return a primary {@link Key} to identify a {@link HandleRecord}
+     * with the supplied key values.
+     */
+    public static Key<HandleRecord> getKey (int recordId)
+    {
+        return newKey(_R, recordId);
+    }
+
+    /** Register the key fields in an order matching the getKey() factory. */
+    static { registerKeyFields(RECORD_ID); }
+    // AUTO-GENERATED: METHODS END
+}
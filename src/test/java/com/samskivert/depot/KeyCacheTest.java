@@ -0,0 +1,263 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.io.PersistenceException;
+import com.samskivert.jdbc.StaticConnectionProvider;
+
+import com.samskivert.depot.impl.DepotMarshaller;
+import com.samskivert.depot.impl.KeyCacheKey;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests collection queries that cache their key sets.
+ */
+public class KeyCacheTest extends TestBase
+{
+    @Test
+    public void testTwoPhase ()
+    {
+        insertRecords();
+        Stats.Snapshot before = _ctx.getStats();
+        assertIds(find());
+        Stats.Snapshot after = _ctx.getStats();
+        // one query for the keys and one for the records
+        assertEquals(2, countStatements(before, after));
+        assertIds(find());
+        assertEquals(1, _ctx.getStats().cachedQueries - after.cachedQueries);
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test
+    public void testHybrid ()
+    {
+        insertRecords();
+        _ctx.setHybridKeyCaching(true);
+        try {
+            Stats.Snapshot before = _ctx.getStats();
+            assertIds(find());
+            Stats.Snapshot after = _ctx.getStats();
+            assertEquals(1, after.uncachedQueries - before.uncachedQueries);
+            assertEquals(5, after.uncachedRecords - before.uncachedRecords);
+            assertEquals(1, countStatements(before, after));
+
+            // the records should have been cached along with the key set
+            assertNotNull(_ctx.cacheLookup(new KeyCacheKey(TestRecord.getKey(3))));
+
+            // so the next query should be resolved entirely from the cache
+            assertIds(find());
+            Stats.Snapshot cached = _ctx.getStats();
+            assertEquals(1, cached.cachedQueries - after.cachedQueries);
+            assertEquals(after.totalOps, cached.totalOps);
+        } finally {
+            _ctx.setHybridKeyCaching(false);
+        }
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test
+    public void testTableVersions ()
+    {
+        insertRecords();
+        assertIds(find());
+        Stats.Snapshot before = _ctx.getStats();
+        assertIds(find());
+        assertEquals(1, _ctx.getStats().cachedQueries - before.cachedQueries);
+
+        // modifying the table should cause the cached key set to be ignored
+        _repo.delete(TestRecord.getKey(5));
+        List<TestRecord> records = find();
+        assertEquals(4, records.size());
+        assertEquals(4, records.get(0).recordId);
+
+        // likewise for cached contents, including modifications made in a transaction
+        assertEquals(4, findContents().size());
+        assertEquals(4, findContents().size());
+        _ctx.transaction(new Callable<Void>() {
+            public Void call () {
+                _repo.insert(createTestRecord(5));
+                return null;
+            }
+        });
+        assertEquals(5, findContents().size());
+        assertIds(find());
+
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test
+    public void testVersionAfterCommit ()
+    {
+        // note the table version at which each modification is committed
+        final List<Long> committed = Lists.newArrayList();
+        final DepotMarshaller<?>[] marsh = new DepotMarshaller<?>[1];
+        PersistenceContext ctx = createPersistenceContext(
+            "committest", null, new StaticConnectionProvider(
+                createConnectionProperties("committest")) {
+                @Override
+                protected Connection openConnection (String driver, String url,
+                                                     String username, String password)
+                    throws PersistenceException {
+                    final Connection conn = super.openConnection(driver, url, username, password);
+                    try {
+                        conn.setAutoCommit(false);
+                    } catch (SQLException sqe) {
+                        throw new PersistenceException(sqe);
+                    }
+                    return (Connection)Proxy.newProxyInstance(
+                        Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+                        new InvocationHandler() {
+                            public Object invoke (Object proxy, Method method, Object[] args)
+                                throws Throwable {
+                                if (method.getName().equals("commit") && marsh[0] != null) {
+                                    committed.add(marsh[0].getTableVersion());
+                                }
+                                try {
+                                    return method.invoke(conn, args);
+                                } catch (InvocationTargetException ite) {
+                                    throw ite.getCause();
+                                }
+                            }
+                        });
+                }
+            });
+        TestRepository repo = new TestRepository(ctx);
+        repo.insert(createTestRecord(1));
+        marsh[0] = ctx.getMarshaller(TestRecord.class);
+
+        // a query that reads the table version before the commit must not see the new version,
+        // lest it load the old rows and cache them as current
+        long version = marsh[0].getTableVersion();
+        repo.delete(TestRecord.getKey(1));
+        assertEquals(Lists.newArrayList(version), committed);
+        assertTrue(marsh[0].getTableVersion() > version);
+    }
+
+    @Test
+    public void testRefreshAhead ()
+    {
+        insertRecords();
+        // we run refreshes by hand
+        final List<Runnable> refreshes = Lists.newArrayList();
+        _ctx.setExecutor(new Executor() {
+            public void execute (Runnable task) {
+                refreshes.add(task);
+            }
+        });
+        _ctx.setMaxRefreshes(1);
+        _ctx.setRefreshAhead(TestRecord.class, 0, 60*1000L);
+
+        assertIds(find());
+        assertEquals(5, findContents().size());
+        Stats.Snapshot before = _ctx.getStats();
+        // these are served from the cache, but are immediately stale; only one refresh is queued
+        // for the key set and the contents refresh is dropped as there's one already running
+        assertIds(find());
+        assertIds(find());
+        assertEquals(5, findContents().size());
+        Stats.Snapshot after = _ctx.getStats();
+        assertEquals(3, after.cachedQueries - before.cachedQueries);
+        assertEquals(0, after.uncachedQueries - before.uncachedQueries);
+        assertEquals(1, after.droppedRefreshes - before.droppedRefreshes);
+        assertEquals(1, refreshes.size());
+
+        // the refresh is counted on its own
+        refreshes.remove(0).run();
+        Stats.Snapshot refreshed = _ctx.getStats();
+        assertEquals(1, refreshed.refreshQueries - after.refreshQueries);
+        assertEquals(0, refreshed.uncachedQueries - after.uncachedQueries);
+        assertIds(find());
+        assertEquals(1, refreshes.size());
+
+        // past the hard TTL, nothing is served from the cache
+        _ctx.setRefreshAhead(TestRecord.class, 0, 0);
+        refreshes.clear();
+        assertIds(find());
+        assertEquals(1, _ctx.getStats().uncachedQueries - refreshed.uncachedQueries);
+        assertEquals(0, refreshes.size());
+
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test
+    public void testRefreshRejected ()
+    {
+        insertRecords();
+        _ctx.setExecutor(new Executor() {
+            public void execute (Runnable task) {
+                throw new RejectedExecutionException("Saturated");
+            }
+        });
+        _ctx.setRefreshAhead(TestRecord.class, 0, 60*1000L);
+
+        assertIds(find());
+        Stats.Snapshot before = _ctx.getStats();
+        // the stale result is still served, and the refresh is dropped (and retried next time)
+        assertIds(find());
+        assertIds(find());
+        Stats.Snapshot after = _ctx.getStats();
+        assertEquals(2, after.cachedQueries - before.cachedQueries);
+        assertEquals(2, after.droppedRefreshes - before.droppedRefreshes);
+
+        _ctx.setExecutor(null);
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    protected List<TestRecord> findContents ()
+    {
+        return _repo.from(TestRecord.class).where(TestRecord.RECORD_ID.lessEq(5)).
+            cache(DepotRepository.CacheStrategy.CONTENTS).select();
+    }
+
+    protected List<TestRecord> find ()
+    {
+        return _repo.from(TestRecord.class).where(TestRecord.RECORD_ID.lessEq(5)).
+            descending(TestRecord.RECORD_ID).cache(DepotRepository.CacheStrategy.SHORT_KEYS).
+            select();
+    }
+
+    protected void assertIds (List<TestRecord> records)
+    {
+        assertEquals(5, records.size());
+        for (int ii = 0; ii < 5; ii++) {
+            assertEquals(5-ii, records.get(ii).recordId);
+        }
+    }
+
+    protected void insertRecords ()
+    {
+        for (int ii = 1; ii <= 10; ii++) {
+            _repo.insert(createTestRecord(ii));
+        }
+        _ctx.cacheClear(TestRecord.class, true);
+    }
+
+    protected static long countStatements (Stats.Snapshot before, Stats.Snapshot after)
+    {
+        // both passes run in the same operation, so we count prepared statements
+        return after.stmtCacheHits + after.stmtCacheMisses -
+            before.stmtCacheHits - before.stmtCacheMisses;
+    }
+
+    // the HSQL in-memory database persists for the lifetime of the VM, which means we have to
+    // clean up after ourselves in every test; thus we go ahead and share a repository
+    protected PersistenceContext _ctx = createPersistenceContext();
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
@@ -0,0 +1,81 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest
+{
+    @Test
+    public void testBuckets ()
+    {
+        // small values are recorded exactly, and the buckets cover every value without gaps
+        for (int ii = 0; ii < LatencyHistogram.SUB_BUCKETS; ii++) {
+            assertEquals(ii, LatencyHistogram.bucketIndex(ii));
+        }
+        long next = 0;
+        for (int ii = 0; ii < LatencyHistogram.BUCKETS; ii++) {
+            assertEquals(next, LatencyHistogram.lowestValue(ii));
+            assertEquals(ii, LatencyHistogram.bucketIndex(LatencyHistogram.lowestValue(ii)));
+            assertEquals(ii, LatencyHistogram.bucketIndex(LatencyHistogram.highestValue(ii)));
+            next = LatencyHistogram.highestValue(ii) + 1;
+        }
+
+        // every value is recovered to within one sub-bucket
+        for (long value = 1; value < (1L << 40); value = value * 3 + 1) {
+            long high = LatencyHistogram.highestValue(LatencyHistogram.bucketIndex(value));
+            assertTrue(high >= value);
+            assertTrue(high - value <= value / LatencyHistogram.SUB_BUCKETS);
+        }
+
+        // huge values are clamped
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPercentiles ()
+    {
+        LatencyHistogram histo = new LatencyHistogram();
+        assertEquals(0, histo.getSnapshot().getPercentile(99));
+        // 1 to 1000 microseconds
+        for (int ii = 1; ii <= 1000; ii++) {
+            histo.record(ii * 1000L);
+        }
+        LatencyHistogram.Snapshot snap = histo.getSnapshot();
+        assertEquals(1000, snap.getCount());
+        assertEquals(500500000L, snap.getTotal());
+        assertWithin(500000, snap.getPercentile(50));
+        assertWithin(990000, snap.getPercentile(99));
+        assertWithin(999000, snap.getPercentile(99.9));
+        assertWithin(1000000, snap.getMax());
+        assertWithin(1000, snap.getPercentile(0));
+    }
+
+    @Test
+    public void testIntervals ()
+    {
+        LatencyHistogram histo = new LatencyHistogram();
+        histo.record(100);
+        histo.record(200);
+        assertEquals(2, histo.getIntervalSnapshot().getCount());
+        histo.record(5000);
+        LatencyHistogram.Snapshot interval = histo.getIntervalSnapshot();
+        assertEquals(1, interval.getCount());
+        assertEquals(5000, interval.getTotal());
+        assertWithin(5000, interval.getPercentile(50));
+        assertEquals(0, histo.getIntervalSnapshot().getCount());
+        assertEquals(3, histo.getSnapshot().getCount());
+    }
+
+    protected static void assertWithin (long expected, long actual)
+    {
+        assertTrue(actual + " not near " + expected, actual >= expected &&
+                   actual - expected <= expected / LatencyHistogram.SUB_BUCKETS);
+    }
+}
@@ -0,0 +1,190 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import com.samskivert.jdbc.StaticConnectionProvider;
+
+import com.samskivert.depot.CacheAdapter.CacheCategory;
+import com.samskivert.depot.LocalCacheAdapter.LocalCacheConfig;
+import com.samskivert.depot.impl.KeyCacheKey;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link LocalCacheAdapter}.
+ */
+public class LocalCacheAdapterTest extends TestBase
+{
+    @Test
+    public void testRepository ()
+    {
+        List<Integer> ids = Lists.newArrayList();
+        for (int ii = 1; ii <= 10; ii++) {
+            _repo.insert(createTestRecord(ii));
+            ids.add(ii);
+        }
+
+        assertEquals(10, _repo.loadAll(TestRecord.class, ids).size());
+        assertNotNull(_ctx.cacheLookup(new KeyCacheKey(TestRecord.getKey(4))));
+        Set<Serializable> keys = Sets.newHashSet(_cache.enumerate(TestRecord.class.getName()));
+        assertEquals(10, keys.size());
+
+        // updates should be reflected in the cache, and deletes should invalidate it
+        TestRecord record = _repo.loadNoCache(4);
+        record.name = "Priscilla";
+        _repo.update(record);
+        assertEquals("Priscilla", _repo.load(TestRecord.getKey(4)).name);
+        _repo.delete(record);
+        assertNull(_repo.load(TestRecord.getKey(4)));
+        assertNull(_ctx.cacheLookup(new KeyCacheKey(TestRecord.getKey(4))));
+
+        LocalCacheAdapter.LocalCachePerformance perf =
+            _cache.getPerformanceSnapshot(CacheCategory.RECORD);
+        assertTrue(perf.hits > 0);
+        assertTrue(perf.weight > 0);
+
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test
+    public void testExpiry ()
+    {
+        TestAdapter cache = new TestAdapter(1, new LocalCacheConfig(1024*1024, 10));
+        cache.store(CacheCategory.RECORD, "test", 1, "one");
+        cache.now += 9000;
+        assertEquals("one", cache.lookup("test", 1).getValue());
+        cache.now += 1000;
+        assertNull(cache.lookup("test", 1));
+        assertEquals(1, cache.getPerformanceSnapshot(CacheCategory.RECORD).expirations);
+        assertEquals(0, cache.getPerformanceSnapshot(CacheCategory.RECORD).weight);
+        assertFalse(cache.enumerate("test").iterator().hasNext());
+    }
+
+    @Test
+    public void testEnumerateAndClear ()
+    {
+        TestAdapter cache = new TestAdapter(4, new LocalCacheConfig(1024*1024, 0));
+        for (int ii = 0; ii < 20; ii++) {
+            cache.store(CacheCategory.RECORD, "a", ii, "a" + ii);
+            cache.store(CacheCategory.RECORD, "b", ii, "b" + ii);
+        }
+        cache.remove("a", 3);
+        assertEquals(19, Sets.newHashSet(cache.enumerate("a")).size());
+        assertFalse(Sets.newHashSet(cache.enumerate("a")).contains(3));
+
+        cache.clear("a", true);
+        assertFalse(cache.enumerate("a").iterator().hasNext());
+        assertNull(cache.lookup("a", 5));
+        assertEquals("b5", cache.lookup("b", 5).getValue());
+        assertEquals(20 * 100, cache.getPerformanceSnapshot(CacheCategory.RECORD).weight);
+    }
+
+    @Test
+    public void testAdmission ()
+    {
+        // room for exactly ten entries
+        TestAdapter cache = new TestAdapter(1, new LocalCacheConfig(10 * 100, 0));
+        for (int ii = 0; ii < 10; ii++) {
+            cache.store(CacheCategory.RECORD, "test", ii, "hot");
+        }
+        // the first ten keys are in regular use
+        for (int pass = 0; pass < 5; pass++) {
+            for (int ii = 0; ii < 10; ii++) {
+                assertNotNull(cache.lookup("test", ii));
+            }
+        }
+
+        // a scan of keys that are each used once should not flush them out
+        for (int ii = 100; ii < 200; ii++) {
+            assertNull(cache.lookup("test", ii));
+            cache.store(CacheCategory.RECORD, "test", ii, "cold");
+        }
+        for (int ii = 0; ii < 10; ii++) {
+            assertNotNull(cache.lookup("test", ii));
+        }
+        LocalCacheAdapter.LocalCachePerformance perf =
+            cache.getPerformanceSnapshot(CacheCategory.RECORD);
+        assertEquals(100, perf.rejections);
+        assertEquals(10 * 100, perf.weight);
+
+        // but a key that comes into regular use should eventually be admitted
+        for (int pass = 0; pass < 10; pass++) {
+            if (cache.lookup("test", 500) == null) {
+                cache.store(CacheCategory.RECORD, "test", 500, "warm");
+            }
+        }
+        assertEquals("warm", cache.lookup("test", 500).getValue());
+        assertEquals(10 * 100, cache.getPerformanceSnapshot(CacheCategory.RECORD).weight);
+    }
+
+    @Test
+    public void testKeySetWeight ()
+    {
+        // a single segment with room for a few small key sets, but not one of hundreds of keys
+        LocalCacheConfig keysets = new LocalCacheConfig(4096, 0);
+        LocalCacheAdapter cache = new LocalCacheAdapter(
+            1, LocalCacheAdapter.RECORD_CONFIG, keysets, keysets, LocalCacheAdapter.RESULT_CONFIG);
+        PersistenceContext ctx = new PersistenceContext();
+        ctx.init("localcache", new StaticConnectionProvider(
+                     createConnectionProperties("localcache")), cache);
+        TestRepository repo = new TestRepository(ctx);
+
+        List<TestRecord> records = Lists.newArrayList();
+        for (int ii = 1; ii <= 300; ii++) {
+            records.add(createTestRecord(ii));
+        }
+        repo.insertAll(records);
+
+        assertEquals(4, repo.from(TestRecord.class).where(TestRecord.RECORD_ID.lessThan(5)).
+                     cacheLongKeys().select().size());
+        long weight = cache.getPerformanceSnapshot(CacheCategory.LONG_KEYSET).weight;
+        assertTrue(weight > 0);
+
+        // the large key set must be weighed as such, so it is turned away rather than allowed to
+        // exceed our budget (or to evict the small one for nothing)
+        assertEquals(300, repo.from(TestRecord.class).cacheLongKeys().select().size());
+        LocalCacheAdapter.LocalCachePerformance perf =
+            cache.getPerformanceSnapshot(CacheCategory.LONG_KEYSET);
+        assertEquals(perf.toString(), 1, perf.rejections);
+        assertEquals(perf.toString(), 0, perf.evictions);
+        assertEquals(weight, perf.weight);
+
+        repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    /** An adapter with a controllable clock and a fixed entry weight. */
+    protected static class TestAdapter extends LocalCacheAdapter
+    {
+        public long now = 1000000L;
+
+        public TestAdapter (int segments, LocalCacheConfig config) {
+            super(segments, config, config, config, config);
+        }
+
+        @Override protected long now () {
+            return now;
+        }
+
+        @Override protected int weigh (Serializable key, Object value) {
+            return 100;
+        }
+    }
+
+    protected LocalCacheAdapter _cache = new LocalCacheAdapter();
+    protected PersistenceContext _ctx = new PersistenceContext();
+    {
+        _ctx.init("localcache", new StaticConnectionProvider(
+                      createConnectionProperties("localcache")), _cache);
+    }
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
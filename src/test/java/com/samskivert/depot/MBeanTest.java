@@ -0,0 +1,79 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link PersistenceContextMXBean} registered by a context.
+ */
+public class MBeanTest extends TestBase
+{
+    @Test
+    public void testMBean ()
+        throws Exception
+    {
+        PersistenceContext ctx = createPersistenceContext("mbeantest");
+        TestRepository repo = new TestRepository(ctx);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = ctx.registerMBean();
+        try {
+            assertEquals("mbeantest", server.getAttribute(name, "Ident"));
+
+            repo.insert(createTestRecord(1));
+            for (int ii = 0; ii < 2; ii++) {
+                repo.from(TestRecord.class).where(TestRecord.NAME, "Elvis").select();
+            }
+            long ops = (Long)server.getAttribute(name, "TotalOps");
+            assertTrue(ops > 0);
+            long iops = (Long)server.getAttribute(name, "IntervalOps");
+            assertTrue(iops > 0 && iops <= ops);
+            assertEquals(1L, server.getAttribute(name, "CachedQueries"));
+            CompositeData latency = (CompositeData)server.getAttribute(name, "QueryLatency");
+            assertTrue((Long)latency.get("count") > 0);
+            assertEquals(-1, server.getAttribute(name, "ActiveConnections"));
+
+            // the record cache was hit by the second query
+            CompositeData records = findCache(server, name, TestRecord.class.getName());
+            assertTrue((Long)records.get("hits") > 0);
+            assertEquals(1, records.get("size"));
+
+            // clearing the cache is reflected in its size
+            server.invoke(name, "cacheClear", new Object[] { TestRecord.class.getName(), true },
+                          new String[] { "java.lang.String", "boolean" });
+            assertEquals(0, findCache(server, name, TestRecord.class.getName()).get("size"));
+
+            // resetting the interval starts the interval counts afresh
+            server.invoke(name, "resetIntervalStats", new Object[0], new String[0]);
+            assertEquals(0L, server.getAttribute(name, "IntervalOps"));
+            repo.updatePartial(TestRecord.getKey(1), TestRecord.NAME, "Bob");
+            assertEquals(1L, server.getAttribute(name, "IntervalOps"));
+            repo.from(TestRecord.class).whereTrue().delete();
+
+        } finally {
+            ctx.shutdown();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    protected CompositeData findCache (MBeanServer server, ObjectName name, String cacheId)
+        throws Exception
+    {
+        for (CompositeData cache : (CompositeData[])server.getAttribute(name, "Caches")) {
+            if (cacheId.equals(cache.get("cacheId"))) {
+                return cache;
+            }
+        }
+        fail("No stats for cache " + cacheId);
+        return null;
+    }
+}
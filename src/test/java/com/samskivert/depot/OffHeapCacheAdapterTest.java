@@ -0,0 +1,152 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import com.samskivert.jdbc.StaticConnectionProvider;
+
+import com.samskivert.depot.CacheAdapter.CacheCategory;
+import com.samskivert.depot.impl.KeyCacheKey;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link OffHeapCacheAdapter}.
+ */
+public class OffHeapCacheAdapterTest extends TestBase
+{
+    @Test
+    public void testAllTypes ()
+    {
+        List<Integer> ids = Lists.newArrayList();
+        for (int ii = 1; ii <= 5; ii++) {
+            _repo.insert(AllTypesRecord.createRecord(ii));
+            ids.add(ii);
+        }
+
+        // records should come back from the off-heap tier intact, and as fresh instances
+        List<AllTypesRecord> loaded = _repo.loadAll(AllTypesRecord.class, ids);
+        assertEquals(5, _cache.getPerformanceSnapshot().entries);
+        for (AllTypesRecord record : loaded) {
+            KeyCacheKey key = new KeyCacheKey(AllTypesRecord.getKey(record.recordId));
+            AllTypesRecord cached = _ctx.cacheLookup(key);
+            assertEquals(_repo.loadNoCache(record.recordId), cached);
+            assertNotSame(cached, _ctx.cacheLookup(key));
+        }
+
+        // null records can be cached as well
+        KeyCacheKey mkey = new KeyCacheKey(AllTypesRecord.getKey(99));
+        _cache.store(CacheCategory.RECORD, mkey.getCacheId(), mkey.getCacheKey(), null);
+        CacheAdapter.CachedValue<AllTypesRecord> missing =
+            _cache.lookup(mkey.getCacheId(), mkey.getCacheKey());
+        assertNotNull(missing);
+        assertNull(missing.getValue());
+
+        Set<Object> keys = Sets.newHashSet();
+        for (Object key : _cache.enumerate(AllTypesRecord.class.getName())) {
+            keys.add(key);
+        }
+        assertEquals(6, keys.size());
+
+        _repo.from(AllTypesRecord.class).whereTrue().delete();
+        _ctx.cacheClear(AllTypesRecord.class, true);
+        assertEquals(0, _cache.getPerformanceSnapshot().entries);
+        assertEquals(0, _cache.getPerformanceSnapshot().bytesUsed);
+    }
+
+    @Test
+    public void testEviction ()
+    {
+        // a single page, which can hold a limited number of records of a given size
+        OffHeapCacheAdapter cache = new OffHeapCacheAdapter(
+            _ctx, new TestCacheAdapter(), OffHeapCacheAdapter.PAGE_SIZE);
+        _ctx.getMarshaller(TestRecord.class); // make sure it's ready for the codec
+        int count = 0;
+        for (int ii = 0; cache.getPerformanceSnapshot().evictions == 0; ii++) {
+            assertTrue("Records not stored off-heap", ii < OffHeapCacheAdapter.PAGE_SIZE);
+            cache.store(CacheCategory.RECORD, TestRecord.class.getName(), ii,
+                        createTestRecord(ii));
+            if (ii == 0) {
+                // keep the first record in use so that it's not the one evicted
+                continue;
+            }
+            assertNotNull(cache.lookup(TestRecord.class.getName(), 0));
+            count = ii + 1;
+        }
+        OffHeapCacheAdapter.OffHeapPerformance perf = cache.getPerformanceSnapshot();
+        assertEquals(count - 1, perf.entries);
+        assertEquals(OffHeapCacheAdapter.PAGE_SIZE, perf.bytesAllocated);
+        assertNotNull(cache.lookup(TestRecord.class.getName(), 0));
+        assertNull(cache.lookup(TestRecord.class.getName(), 1));
+
+        // other categories go to the delegate
+        cache.store(CacheCategory.RESULT, "results", "query", "result");
+        assertEquals("result", cache.lookup("results", "query").getValue());
+        assertEquals(count - 1, cache.getPerformanceSnapshot().entries);
+    }
+
+    @Test
+    public void testShiftingSizes ()
+    {
+        OffHeapCacheAdapter cache = new OffHeapCacheAdapter(
+            _ctx, new TestCacheAdapter(), OffHeapCacheAdapter.PAGE_SIZE);
+        _ctx.getMarshaller(TestRecord.class);
+        String cacheId = TestRecord.class.getName();
+
+        // a page emptied by one size class is taken over by another
+        cache.store(CacheCategory.RECORD, cacheId, 0, createTestRecord(0));
+        cache.remove(cacheId, 0);
+        cache.store(CacheCategory.RECORD, cacheId, 1, createBigRecord(1));
+        OffHeapCacheAdapter.OffHeapPerformance perf = cache.getPerformanceSnapshot();
+        assertEquals(1, perf.pageMoves);
+        assertEquals(0, perf.evictions);
+        assertEquals(OffHeapCacheAdapter.PAGE_SIZE, perf.bytesAllocated);
+
+        // now fill the page with small records, which evicts the big one and takes its page
+        for (int ii = 2; cache.getPerformanceSnapshot().evictions < 2; ii++) {
+            assertTrue("Records not stored off-heap", ii < OffHeapCacheAdapter.PAGE_SIZE);
+            cache.store(CacheCategory.RECORD, cacheId, ii, createTestRecord(ii));
+        }
+        assertNull(cache.lookup(cacheId, 1));
+        assertEquals(2, cache.getPerformanceSnapshot().pageMoves);
+
+        // once the cache is full of small records, big ones must still be accepted
+        for (int ii = 0; ii < 3; ii++) {
+            int id = -1 - ii;
+            cache.store(CacheCategory.RECORD, cacheId, id, createBigRecord(id));
+            CacheAdapter.CachedValue<TestRecord> big = cache.lookup(cacheId, id);
+            assertNotNull(big);
+            assertEquals(createBigRecord(id).name, big.getValue().name);
+        }
+        perf = cache.getPerformanceSnapshot();
+        assertEquals(0, perf.rejections);
+        assertEquals(3, perf.pageMoves);
+        assertEquals(3, perf.entries);
+        assertEquals(OffHeapCacheAdapter.PAGE_SIZE, perf.bytesAllocated);
+    }
+
+    protected TestRecord createBigRecord (int recordId)
+    {
+        TestRecord record = createTestRecord(recordId);
+        record.name = Strings.repeat("big" + recordId, 500);
+        return record;
+    }
+
+    protected PersistenceContext _ctx = new PersistenceContext();
+    protected OffHeapCacheAdapter _cache =
+        new OffHeapCacheAdapter(_ctx, new TestCacheAdapter(), 4 * OffHeapCacheAdapter.PAGE_SIZE);
+    {
+        _ctx.init("offheap", new StaticConnectionProvider(
+                      createConnectionProperties("offheap")), _cache);
+    }
+    protected AllTypesTest.TestRepository _repo = new AllTypesTest.TestRepository(_ctx);
+}
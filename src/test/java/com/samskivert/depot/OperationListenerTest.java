@@ -0,0 +1,105 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.samskivert.depot.impl.Operation;
+
+/**
+ * Tests the notification of {@link PersistenceContext.OperationListener}s.
+ */
+public class OperationListenerTest extends TestBase
+{
+    @Test
+    public void testNotifications ()
+    {
+        assertNull(_repo.loadNoCache(1)); // get schema migrations out of the way
+        Recorder recorder = new Recorder();
+        _ctx.addOperationListener(recorder);
+
+        // a modification connects, invokes and completes
+        _repo.insert(createTestRecord(1));
+        assertEquals(Lists.newArrayList("connect TestRecord rw", "invoke TestRecord rw",
+                                        "complete TestRecord 1 false"), recorder.events);
+
+        // a query that comes from the cache only completes
+        assertEquals(1, loadElvises().size());
+        recorder.events.clear();
+        assertEquals(1, loadElvises().size());
+        assertEquals(Lists.newArrayList("complete TestRecord 1 true"), recorder.events);
+        assertTrue(recorder.sql.toLowerCase().startsWith("select"));
+
+        // one that goes to the database goes through every phase
+        recorder.events.clear();
+        assertEquals(1, _repo.from(TestRecord.class).noCache().
+                     where(TestRecord.AGE, 99).select().size());
+        assertEquals(Lists.newArrayList("connect TestRecord ro", "invoke TestRecord ro",
+                                        "complete TestRecord 1 false"), recorder.events);
+        assertTrue(recorder.sql.contains("?"));
+
+        // as does a failed operation
+        recorder.events.clear();
+        try {
+            _repo.insert(createTestRecord(1));
+            fail("Duplicate insert should have failed.");
+        } catch (DuplicateKeyException dke) {
+            // expected
+        }
+        assertEquals(3, recorder.events.size());
+        assertEquals("fail TestRecord", recorder.events.get(2));
+
+        // listeners that throw don't disrupt operations, and removed listeners hear no more
+        _ctx.addOperationListener(new Recorder() {
+            @Override public void willInvoke (Operation<?> op) {
+                throw new RuntimeException("Listener failure (expected)");
+            }
+        });
+        _ctx.removeOperationListener(recorder);
+        recorder.events.clear();
+        assertEquals(1, _repo.from(TestRecord.class).whereTrue().delete());
+        assertEquals(0, recorder.events.size());
+    }
+
+    protected List<TestRecord> loadElvises ()
+    {
+        return _repo.from(TestRecord.class).where(TestRecord.NAME, "Elvis").select();
+    }
+
+    protected class Recorder implements PersistenceContext.OperationListener
+    {
+        public final List<String> events = Lists.newArrayList();
+        public String sql;
+
+        public void willConnect (Operation<?> op) {
+            events.add("connect " + describe(op) + (op.isReadOnly() ? " ro" : " rw"));
+        }
+        public void willInvoke (Operation<?> op) {
+            events.add("invoke " + describe(op) + (op.isReadOnly() ? " ro" : " rw"));
+        }
+        public void didComplete (Operation<?> op, int rows, boolean cached) {
+            events.add("complete " + describe(op) + " " + rows + " " + cached);
+            sql = op.getShape(_ctx);
+        }
+        public void didFail (Operation<?> op, Throwable cause) {
+            events.add("fail " + describe(op));
+        }
+
+        protected String describe (Operation<?> op) {
+            Class<?> rclass = op.getRecordClass();
+            return (rclass == null) ? "none" : rclass.getSimpleName();
+        }
+    }
+
+    // the HSQL in-memory database persists for the lifetime of the VM, which means we have to
+    // clean up after ourselves in every test; thus we go ahead and share a repository
+    protected PersistenceContext _ctx = createPersistenceContext();
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
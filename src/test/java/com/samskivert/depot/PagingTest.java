@@ -0,0 +1,112 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.depot.clause.OrderBy;
+import com.samskivert.depot.clause.SelectClause;
+import com.samskivert.depot.impl.DepotTypes;
+import com.samskivert.depot.impl.PostgreSQLBuilder;
+import com.samskivert.depot.impl.SQLBuilder;
+import com.samskivert.depot.util.Page;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests keyset pagination.
+ */
+public class PagingTest extends TestBase
+{
+    @Test
+    public void testAscending ()
+    {
+        insertRecords(25);
+        for (DepotRepository.CacheStrategy cache : DepotRepository.CacheStrategy.values()) {
+            Query<TestRecord> query = _repo.from(TestRecord.class).cache(cache).
+                ascending(TestRecord.RECORD_ID);
+            assertEquals(cache.toString(), range(1, 25), readPages(query, 10));
+        }
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test
+    public void testMixedOrder ()
+    {
+        insertRecords(25);
+        // order by age descending then id ascending, which can't be a row value comparison
+        Query<TestRecord> query = _repo.from(TestRecord.class).
+            where(TestRecord.RECORD_ID.lessThan(20)).
+            orderBy(OrderBy.descending(TestRecord.AGE).thenAscending(TestRecord.RECORD_ID));
+        List<Integer> expect = Lists.newArrayList();
+        for (int age = 4; age >= 0; age--) {
+            for (int id = 1; id < 20; id++) {
+                if (id % 5 == age) {
+                    expect.add(id);
+                }
+            }
+        }
+        assertEquals(expect, readPages(query, 4));
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test
+    public void testRowValueComparison ()
+    {
+        Query<TestRecord> query = _repo.from(TestRecord.class).
+            orderBy(OrderBy.descending(TestRecord.AGE).thenDescending(TestRecord.RECORD_ID)).
+            after(3, 12);
+        SelectClause select = new SelectClause(
+            TestRecord.class, _ctx.getMarshaller(TestRecord.class).getSelections(),
+            query.getClauses());
+        SQLBuilder builder = new PostgreSQLBuilder(DepotTypes.getDepotTypes(_ctx, select));
+        builder.newQuery(select);
+        assertTrue(builder.getQuery(), builder.getQuery().contains(
+                       "(\"T1\".\"age\", \"T1\".\"recordId\") < (?, ?)"));
+    }
+
+    protected List<Integer> readPages (Query<TestRecord> query, int size)
+    {
+        List<Integer> ids = Lists.newArrayList();
+        Page<TestRecord> page = query.selectPage(size);
+        while (true) {
+            assertTrue(page.records.size() <= size);
+            for (TestRecord record : page.records) {
+                ids.add(record.recordId);
+            }
+            if (!page.hasNext()) {
+                break;
+            }
+            page = query.after(page.next).selectPage(size);
+        }
+        return ids;
+    }
+
+    protected void insertRecords (int count)
+    {
+        for (int ii = 1; ii <= count; ii++) {
+            TestRecord record = createTestRecord(ii);
+            record.age = ii % 5;
+            _repo.insert(record);
+        }
+    }
+
+    protected static List<Integer> range (int from, int to)
+    {
+        List<Integer> values = Lists.newArrayList();
+        for (int ii = from; ii <= to; ii++) {
+            values.add(ii);
+        }
+        return values;
+    }
+
+    // the HSQL in-memory database persists for the lifetime of the VM, which means we have to
+    // clean up after ourselves in every test; thus we go ahead and share a repository
+    protected PersistenceContext _ctx = createPersistenceContext();
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
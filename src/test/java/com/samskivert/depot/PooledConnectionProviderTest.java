@@ -0,0 +1,212 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.io.PersistenceException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the pooled connection provider.
+ */
+public class PooledConnectionProviderTest extends TestBase
+{
+    @Test
+    public void testReuse ()
+        throws PersistenceException
+    {
+        PooledConnectionProvider conprov = createProvider(2);
+        Connection c1 = conprov.getConnection(IDENT, false);
+        assertEquals(1, conprov.getActiveCount(IDENT, false));
+        conprov.releaseConnection(IDENT, false, c1);
+        assertEquals(0, conprov.getActiveCount(IDENT, false));
+        assertEquals(1, conprov.getIdleCount(IDENT, false));
+
+        // we should get the same connection back, and it should be exclusively ours
+        Connection c2 = conprov.getConnection(IDENT, false);
+        assertSame(c1, c2);
+        Connection c3 = conprov.getConnection(IDENT, false);
+        assertNotSame(c2, c3);
+        conprov.releaseConnection(IDENT, false, c2);
+        conprov.releaseConnection(IDENT, false, c3);
+        conprov.shutdown();
+    }
+
+    @Test
+    public void testReadOnlyPool ()
+        throws PersistenceException, SQLException
+    {
+        PooledConnectionProvider conprov = createProvider(1);
+        Connection rw = conprov.getConnection(IDENT, false);
+        // the read-write pool is exhausted, but the read-only pool is separate
+        Connection ro = conprov.getConnection(IDENT, true);
+        assertTrue(ro.isReadOnly());
+        assertFalse(rw.isReadOnly());
+        conprov.releaseConnection(IDENT, true, ro);
+        conprov.releaseConnection(IDENT, false, rw);
+        conprov.shutdown();
+    }
+
+    @Test
+    public void testTimeout ()
+        throws PersistenceException
+    {
+        PooledConnectionProvider conprov = createProvider(1);
+        Connection conn = conprov.getConnection(IDENT, false);
+        try {
+            conprov.getConnection(IDENT, false);
+            fail("Obtained connection from an exhausted pool.");
+        } catch (PersistenceException pe) {
+            // expected
+        }
+        conprov.releaseConnection(IDENT, false, conn);
+        conprov.shutdown();
+    }
+
+    @Test
+    public void testFailedAndInvalid ()
+        throws PersistenceException, SQLException
+    {
+        // validate every borrowed connection, however recently it was released
+        PooledConnectionProvider conprov = createProvider(1, 0);
+        Connection c1 = conprov.getConnection(IDENT, false);
+        conprov.connectionFailed(IDENT, false, c1, new SQLException("test"));
+        assertTrue(c1.isClosed());
+        assertEquals(0, conprov.getIdleCount(IDENT, false));
+
+        // a connection that goes bad while idle should be discarded on borrow
+        Connection c2 = conprov.getConnection(IDENT, false);
+        assertNotSame(c1, c2);
+        conprov.releaseConnection(IDENT, false, c2);
+        c2.close();
+        Connection c3 = conprov.getConnection(IDENT, false);
+        assertNotSame(c2, c3);
+        assertFalse(c3.isClosed());
+        conprov.releaseConnection(IDENT, false, c3);
+        conprov.shutdown();
+    }
+
+    @Test
+    public void testRecentlyReleasedNotValidated ()
+        throws PersistenceException, SQLException
+    {
+        // a connection released moments ago is handed back out without a validation round trip
+        PooledConnectionProvider conprov = createProvider(1, 60*1000);
+        Connection c1 = conprov.getConnection(IDENT, false);
+        conprov.releaseConnection(IDENT, false, c1);
+        c1.close();
+        assertSame(c1, conprov.getConnection(IDENT, false));
+        conprov.connectionFailed(IDENT, false, c1, new SQLException("test"));
+        conprov.shutdown();
+    }
+
+    @Test
+    public void testUnknownRelease ()
+        throws PersistenceException, SQLException
+    {
+        PooledConnectionProvider conprov = createProvider(1);
+        Connection c1 = conprov.getConnection(IDENT, false);
+        conprov.releaseConnection(IDENT, false, c1);
+        // a second release must neither pool the connection twice nor hand out a spare permit
+        conprov.releaseConnection(IDENT, false, c1);
+        assertEquals(1, conprov.getIdleCount(IDENT, false));
+        assertEquals(0, conprov.getActiveCount(IDENT, false));
+
+        Connection c2 = conprov.getConnection(IDENT, false);
+        assertSame(c1, c2);
+        try {
+            conprov.getConnection(IDENT, false);
+            fail("Double release yielded an extra connection.");
+        } catch (PersistenceException pe) {
+            // expected
+        }
+
+        // nor may a connection that never came from the pool, or a repeated failure
+        Connection stray = conprov.getConnection(IDENT, true);
+        conprov.releaseConnection(IDENT, false, stray);
+        assertEquals(0, conprov.getIdleCount(IDENT, false));
+        conprov.connectionFailed(IDENT, false, c2, new SQLException("test"));
+        conprov.connectionFailed(IDENT, false, c2, new SQLException("test"));
+        assertEquals(0, conprov.getActiveCount(IDENT, false));
+        assertFalse(stray.isClosed());
+
+        conprov.releaseConnection(IDENT, true, stray);
+        conprov.shutdown();
+    }
+
+    @Test
+    public void testConcurrentOperations ()
+        throws Exception
+    {
+        PooledConnectionProvider conprov = createProvider(3);
+        final TestRepository repo = new TestRepository(
+            createPersistenceContext(IDENT, null, conprov));
+        final AtomicInteger nextId = new AtomicInteger(1);
+        final List<Throwable> errors = Lists.newArrayList();
+        // resolve the record's marshaller (creating its table) before we go concurrent
+        assertEquals(0, repo.from(TestRecord.class).selectCount());
+
+        List<Thread> threads = Lists.newArrayList();
+        for (int ii = 0; ii < 8; ii++) {
+            threads.add(new Thread() {
+                @Override public void run () {
+                    try {
+                        for (int jj = 0; jj < 25; jj++) {
+                            int id = nextId.getAndIncrement();
+                            repo.insert(createTestRecord(id));
+                            assertNotNull(repo.load(TestRecord.getKey(id)));
+                        }
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(Lists.newArrayList(), errors);
+        assertEquals(200, repo.from(TestRecord.class).selectCount());
+        assertEquals(0, conprov.getActiveCount(IDENT, false));
+        assertEquals(0, conprov.getActiveCount(IDENT, true));
+        assertTrue(conprov.getIdleCount(IDENT, false) <= 3);
+
+        repo.from(TestRecord.class).whereTrue().delete();
+        conprov.shutdown();
+    }
+
+    protected PooledConnectionProvider createProvider (int size)
+    {
+        return createProvider(size, -1);
+    }
+
+    protected PooledConnectionProvider createProvider (int size, int validationIdle)
+    {
+        Properties props = createConnectionProperties(IDENT);
+        props.put("default.pool_size", String.valueOf(size));
+        props.put("default.pool_timeout", "100");
+        if (validationIdle >= 0) {
+            props.put("default.validation_idle", String.valueOf(validationIdle));
+        }
+        return new PooledConnectionProvider(props);
+    }
+
+    protected static final String IDENT = "pooltest";
+}
@@ -0,0 +1,92 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the detection of repeated queries in a {@link QueryScope}.
+ */
+public class QueryScopeTest extends TestBase
+{
+    @Test
+    public void testRepeats ()
+    {
+        for (int ii = 1; ii <= 5; ii++) {
+            _repo.insert(createTestRecord(ii));
+        }
+        _ctx.setRepeatedQueryThreshold(4);
+
+        QueryScope scope = _ctx.beginQueryScope("loop");
+        try {
+            // loading records one at a time is flagged
+            for (int ii = 1; ii <= 5; ii++) {
+                assertNotNull(_repo.loadNoCache(ii));
+            }
+            // as is the same select with different values, even when it hits the cache
+            for (int ii = 0; ii < 4; ii++) {
+                _repo.from(TestRecord.class).where(TestRecord.AGE, 99).select();
+            }
+            // but not a query made a few times
+            for (int ii = 0; ii < 3; ii++) {
+                _repo.from(TestRecord.class).noCache().where(TestRecord.NAME, "Elvis").select();
+            }
+
+            // a nested scope tracks its own queries
+            QueryScope inner = _ctx.beginQueryScope("inner");
+            try {
+                _repo.loadNoCache(1);
+            } finally {
+                assertSame(inner, _ctx.endQueryScope());
+            }
+            assertEquals(1, inner.getQueryCount());
+            assertEquals(0, inner.getRepeats().size());
+
+        } finally {
+            assertSame(scope, _ctx.endQueryScope());
+        }
+
+        assertEquals(12, scope.getQueryCount());
+        List<QueryScope.Repeat> repeats = scope.getRepeats();
+        assertEquals(2, repeats.size());
+
+        QueryScope.Repeat loads = repeats.get(0);
+        assertEquals(TestRecord.class, loads.type);
+        assertTrue(loads.singleRecord);
+        assertEquals(5, loads.count);
+        assertEquals(5, loads.uncached);
+        assertCallSite(loads);
+
+        QueryScope.Repeat selects = repeats.get(1);
+        assertFalse(selects.singleRecord);
+        assertEquals(4, selects.count);
+        assertEquals(1, selects.uncached);
+        assertCallSite(selects);
+
+        // queries outside of a scope are not tracked
+        _repo.loadNoCache(1);
+        assertEquals(12, scope.getQueryCount());
+
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    protected void assertCallSite (QueryScope.Repeat repeat)
+    {
+        for (StackTraceElement elem : repeat.callSite) {
+            if (elem.getMethodName().equals("testRepeats")) {
+                return;
+            }
+        }
+        fail("Call site not reported for " + repeat);
+    }
+
+    // the HSQL in-memory database persists for the lifetime of the VM, which means we have to
+    // clean up after ourselves in every test; thus we go ahead and share a repository
+    protected PersistenceContext _ctx = createPersistenceContext();
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
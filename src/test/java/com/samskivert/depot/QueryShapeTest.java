@@ -0,0 +1,114 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the tracking of statistics by query shape.
+ */
+public class QueryShapeTest extends TestBase
+{
+    @Test
+    public void testShapes ()
+    {
+        _ctx.setMaxQueryShapes(Stats.DEFAULT_MAX_SHAPES);
+        for (int ii = 1; ii <= 5; ii++) {
+            TestRecord rec = createTestRecord(ii);
+            rec.age = ii * 10;
+            _repo.insert(rec);
+        }
+
+        // queries that differ only in their values share a shape
+        for (int ii = 1; ii <= 3; ii++) {
+            _repo.from(TestRecord.class).noCache().
+                where(TestRecord.AGE.greaterThan(ii * 10)).select();
+        }
+        Stats.ShapeSnapshot ages = findShape("SELECT", "age", ">");
+        assertEquals(3, ages.count);
+        assertEquals(0, ages.cachedCount);
+        assertEquals(4 + 3 + 2, ages.rows);
+        assertEquals(3, ages.latency.getCount());
+        assertTrue(ages.maxTime > 0 && ages.maxTime <= ages.getTotalTime());
+
+        // the second of these is served from the cache
+        for (int ii = 0; ii < 2; ii++) {
+            assertEquals(5, _repo.from(TestRecord.class).
+                         where(TestRecord.NAME, "Elvis").select().size());
+        }
+        Stats.ShapeSnapshot names = findShape("SELECT", "name", "=");
+        assertEquals(2, names.count);
+        assertEquals(1, names.cachedCount);
+        assertEquals(0.5, names.getCacheHitRate(), 0);
+        assertEquals(10, names.rows);
+
+        // modifications are tracked as well
+        _repo.updatePartial(TestRecord.getKey(1), TestRecord.NAME, "Bob");
+        _repo.updatePartial(TestRecord.getKey(2), TestRecord.NAME, "Bob");
+        Stats.ShapeSnapshot updates = findShape("UPDATE");
+        assertEquals(2, updates.count);
+        assertEquals(2, updates.rows);
+
+        _repo.from(TestRecord.class).whereTrue().delete();
+        assertEquals(5, findShape("DELETE").rows);
+
+        // the shapes are reported most expensive first, and are limited to the number requested
+        List<Stats.ShapeSnapshot> top = _ctx.getTopQueryShapes(10);
+        for (int ii = 1; ii < top.size(); ii++) {
+            assertTrue(top.get(ii-1).getTotalTime() >= top.get(ii).getTotalTime());
+        }
+        assertEquals(2, _ctx.getTopQueryShapes(2).size());
+    }
+
+    @Test
+    public void testBounded ()
+    {
+        _ctx.setMaxQueryShapes(2);
+        _repo.from(TestRecord.class).noCache().where(TestRecord.AGE, 1).select();
+        _repo.from(TestRecord.class).noCache().where(TestRecord.NAME, "Elvis").select();
+        _repo.from(TestRecord.class).noCache().where(TestRecord.HOME_TOWN, "Here").select();
+
+        // a new shape displaces an old one
+        assertEquals(2, _ctx.getTopQueryShapes(10).size());
+        findShape("SELECT", "homeTown");
+
+        // and no shapes are tracked once tracking is disabled
+        _ctx.setMaxQueryShapes(0);
+        _repo.from(TestRecord.class).noCache().where(TestRecord.AGE, 1).select();
+        assertEquals(0, _ctx.getTopQueryShapes(10).size());
+    }
+
+    @Test
+    public void testDisabledByDefault ()
+    {
+        _repo.from(TestRecord.class).noCache().where(TestRecord.AGE, 1).select();
+        assertEquals(0, _ctx.getTopQueryShapes(10).size());
+    }
+
+    protected Stats.ShapeSnapshot findShape (String... fragments)
+    {
+      SHAPES:
+        for (Stats.ShapeSnapshot snap : _ctx.getTopQueryShapes(Integer.MAX_VALUE)) {
+            for (String fragment : fragments) {
+                if (!snap.shape.toLowerCase().contains(fragment.toLowerCase())) {
+                    continue SHAPES;
+                }
+            }
+            return snap;
+        }
+        fail("No shape matching " + Arrays.toString(fragments) + " in " +
+             _ctx.getTopQueryShapes(Integer.MAX_VALUE));
+        return null;
+    }
+
+    // the HSQL in-memory database persists for the lifetime of the VM, which means we have to
+    // clean up after ourselves in every test; thus we go ahead and share a repository
+    protected PersistenceContext _ctx = createPersistenceContext();
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
@@ -0,0 +1,103 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.samskivert.depot.impl.operator.In;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the reuse of prepared statements across operations.
+ */
+public class StatementCacheTest extends TestBase
+{
+    @Test
+    public void testReuse ()
+    {
+        for (int ii = 1; ii <= 5; ii++) {
+            _repo.insert(createTestRecord(ii));
+        }
+
+        // the first load may or may not prepare a new statement, but subsequent loads of the same
+        // shape must reuse it, with freshly bound parameters
+        assertEquals(1, _repo.loadNoCache(1).recordId);
+        Stats.Snapshot before = _ctx.getStats();
+        for (int ii = 2; ii <= 5; ii++) {
+            assertEquals(ii, _repo.loadNoCache(ii).recordId);
+        }
+        assertNull(_repo.loadNoCache(6));
+        Stats.Snapshot after = _ctx.getStats();
+        assertEquals(5, after.stmtCacheHits - before.stmtCacheHits);
+        assertEquals(0, after.stmtCacheMisses - before.stmtCacheMisses);
+        assertTrue(after.getStatementCacheHitRate() > 0);
+
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test
+    public void testKeyBuckets ()
+    {
+        assertEquals(1, In.getBucketSize(1));
+        assertEquals(4, In.getBucketSize(3));
+        assertEquals(4, In.getBucketSize(4));
+        assertEquals(1024, In.getBucketSize(1000));
+        assertEquals(2048, In.getBucketSize(1025));
+        assertEquals(In.MAX_KEYS, In.getBucketSize(In.MAX_KEYS - 1));
+
+        for (int ii = 1; ii <= 10; ii++) {
+            _repo.insert(createTestRecord(ii));
+        }
+        _ctx.cacheClear(TestRecord.class, true);
+        assertEquals(3, _repo.loadAll(TestRecord.class, Arrays.asList(1, 2, 3)).size());
+
+        // a different number of keys in the same bucket reuses the same statement
+        Stats.Snapshot before = _ctx.getStats();
+        List<TestRecord> records = _repo.loadAll(TestRecord.class, Arrays.asList(4, 5, 6, 7));
+        assertEquals(4, records.size());
+        assertEquals(0, _ctx.getStats().stmtCacheMisses - before.stmtCacheMisses);
+
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test
+    public void testFailure ()
+    {
+        _repo.insert(createTestRecord(1));
+        try {
+            _repo.insert(createTestRecord(1));
+            fail("Duplicate insert should have failed.");
+        } catch (DuplicateKeyException dke) {
+            // expected
+        }
+        // the statement used by the failed insert is discarded, and inserts carry on working
+        _repo.insert(createTestRecord(2));
+        assertEquals(2, _repo.from(TestRecord.class).selectCount());
+
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test
+    public void testDisabled ()
+    {
+        PersistenceContext ctx = createPersistenceContext();
+        ctx.setStatementCacheSize(0);
+        TestRepository repo = new TestRepository(ctx);
+        repo.insert(createTestRecord(1));
+        for (int ii = 0; ii < 3; ii++) {
+            assertEquals(1, repo.loadNoCache(1).recordId);
+        }
+        assertEquals(0, ctx.getStats().stmtCacheHits);
+        repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    // the HSQL in-memory database persists for the lifetime of the VM, which means we have to
+    // clean up after ourselves in every test; thus we go ahead and share a repository
+    protected PersistenceContext _ctx = createPersistenceContext();
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
@@ -0,0 +1,99 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Measures the per-operation cost of recording {@link Stats} when many threads record at once,
+ * and compares it to the cost when all recording goes through a single monitor. This is not run as
+ * part of the unit tests; invoke it directly:
+ *
+ * <pre>
+ * java com.samskivert.depot.StatsBenchmark [threads] [opsPerThread]
+ * </pre>
+ */
+public class StatsBenchmark
+{
+    public static void main (String[] args)
+        throws Exception
+    {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) :
+            Runtime.getRuntime().availableProcessors();
+        int ops = (args.length > 1) ? Integer.parseInt(args[1]) : 2000000;
+
+        // warm up both paths, then measure
+        for (int pass = 0; pass < 2; pass++) {
+            boolean report = (pass == 1);
+            run("striped", new Stats(), threads, ops, report);
+            run("locked", new LockedStats(), threads, ops, report);
+        }
+    }
+
+    protected static void run (String name, final Stats stats, int threads, final int ops,
+                               boolean report)
+        throws Exception
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = Lists.newArrayList();
+        for (int ii = 0; ii < threads; ii++) {
+            workers.add(new Thread() {
+                @Override public void run () {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    // what the context notes for a typical uncached query
+                    for (int jj = 0; jj < ops; jj++) {
+                        long now = System.nanoTime();
+                        stats.noteOp(true, now - 2000, now - 1000, now);
+                        stats.noteStatementCache(1, 0);
+                        stats.noteQuery(TestRecord.class, 0, 1, 0, 0, 10);
+                    }
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - started;
+
+        if (report) {
+            Stats.Snapshot snap = stats.getSnapshot();
+            System.out.println(name + ": " + (elapsed / ops) +
+                               " ns/op per thread, " + threads + " threads, " +
+                               snap.totalOps + " ops recorded");
+        }
+    }
+
+    /** Records stats under a single lock, as Stats once did. */
+    protected static class LockedStats extends Stats
+    {
+        @Override public synchronized void noteOp (
+            boolean isReadOnly, long preConnect, long preInvoke, long postInvoke) {
+            super.noteOp(isReadOnly, preConnect, preInvoke, postInvoke);
+        }
+
+        @Override public synchronized void noteStatementCache (int hits, int misses) {
+            super.noteStatementCache(hits, misses);
+        }
+
+        @Override public synchronized void noteQuery (
+            Class<? extends PersistentRecord> type, int cachedQueries, int uncachedQueries,
+            int explicitQueries, int cachedRecords, int uncachedRecords) {
+            super.noteQuery(type, cachedQueries, uncachedQueries, explicitQueries,
+                            cachedRecords, uncachedRecords);
+        }
+    }
+}
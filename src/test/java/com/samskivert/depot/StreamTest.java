@@ -0,0 +1,137 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.io.PersistenceException;
+import com.samskivert.jdbc.StaticConnectionProvider;
+
+import com.samskivert.depot.impl.KeyCacheKey;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests streaming query results.
+ */
+public class StreamTest extends TestBase
+{
+    @Test
+    public void testForEach ()
+    {
+        for (int ii = 1; ii <= 50; ii++) {
+            _repo.insert(createTestRecord(ii));
+        }
+        _ctx.cacheClear(TestRecord.class, true);
+
+        // use a fetch size that doesn't evenly divide our row count
+        final List<Integer> ids = Lists.newArrayList();
+        int rows = _repo.from(TestRecord.class).where(TestRecord.RECORD_ID.greaterThan(10)).
+            ascending(TestRecord.RECORD_ID).forEach(7, new Query.Visitor<TestRecord>() {
+                public void visit (TestRecord record) {
+                    ids.add(record.recordId);
+                }
+            });
+        assertEquals(40, rows);
+        assertEquals(40, ids.size());
+        assertEquals(11, ids.get(0).intValue());
+        assertEquals(50, ids.get(39).intValue());
+
+        // streamed records should not have been cached
+        assertNull(_ctx.cacheLookup(new KeyCacheKey(TestRecord.getKey(11))));
+
+        final List<String> names = Lists.newArrayList();
+        _repo.from(TestRecord.class).descending(TestRecord.RECORD_ID).limit(3).
+            forEach(TestRecord.NAME, new Query.Visitor<String>() {
+                public void visit (String name) {
+                    names.add(name);
+                }
+            });
+        assertEquals(3, names.size());
+        assertEquals(_repo.loadNoCache(50).name, names.get(0));
+
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test
+    public void testFailedVisit ()
+    {
+        // simulate a database that only streams results inside a transaction
+        final List<String> ends = Lists.newArrayList();
+        TestRepository repo = new TestRepository(createPersistenceContext(
+            "streamtest", null, new StaticConnectionProvider(
+                createConnectionProperties("streamtest")) {
+                @Override
+                protected Connection openConnection (String driver, String url,
+                                                     String username, String password)
+                    throws PersistenceException {
+                    return streamingInTransaction(
+                        super.openConnection(driver, url, username, password), ends);
+                }
+            }));
+        for (int ii = 1; ii <= 5; ii++) {
+            repo.insert(createTestRecord(ii));
+        }
+
+        assertEquals(5, repo.from(TestRecord.class).forEach(2, new Query.Visitor<TestRecord>() {
+            public void visit (TestRecord record) {}
+        }));
+        assertEquals(Lists.newArrayList("commit"), ends);
+
+        // a query that fails part way through must not commit whatever it was in the middle of
+        ends.clear();
+        try {
+            repo.from(TestRecord.class).forEach(2, new Query.Visitor<TestRecord>() {
+                public void visit (TestRecord record) {
+                    throw new IllegalStateException("Changed my mind.");
+                }
+            });
+            fail("Streaming query failed to propagate exception.");
+        } catch (IllegalStateException ise) {
+            // expected
+        }
+        assertEquals(Lists.newArrayList("rollback"), ends);
+
+        repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    /** Wraps a connection such that preparing a streaming statement turns off auto-commit, as
+     * PostgreSQL's builder does, and each commit or rollback is noted in {@code ends}. */
+    protected static Connection streamingInTransaction (
+        final Connection conn, final List<String> ends)
+    {
+        return (Connection)Proxy.newProxyInstance(
+            Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+            new InvocationHandler() {
+                public Object invoke (Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                    String name = method.getName();
+                    if (name.equals("prepareStatement") && args.length == 3) {
+                        conn.setAutoCommit(false);
+                    } else if (name.equals("commit") || name.equals("rollback")) {
+                        ends.add(name);
+                    }
+                    try {
+                        return method.invoke(conn, args);
+                    } catch (InvocationTargetException ite) {
+                        throw ite.getCause();
+                    }
+                }
+            });
+    }
+
+    // the HSQL in-memory database persists for the lifetime of the VM, which means we have to
+    // clean up after ourselves in every test; thus we go ahead and share a repository
+    protected PersistenceContext _ctx = createPersistenceContext();
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
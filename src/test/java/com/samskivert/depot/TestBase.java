@@ -53,14 +53,18 @@ public abstract class TestBase
      */
     protected static PersistenceContext createPersistenceContext (String dbname, String[] initSQL)
     {
-        Properties props = new Properties();
-        props.put("default.driver", "org.hsqldb.jdbcDriver");
-        props.put("default.url", "jdbc:hsqldb:mem:" + dbname);
-        props.put("default.username", "sa");
-        props.put("default.password", "");
+        return createPersistenceContext(
+            dbname, initSQL, new StaticConnectionProvider(createConnectionProperties(dbname)));
+    }
 
+    /**
+     * Creates a persistence context configured to run against an in-memory HSQLDB using the
+     * supplied connection provider.
+     */
+    protected static PersistenceContext createPersistenceContext (
+        String dbname, String[] initSQL, ConnectionProvider conprov)
+    {
         PersistenceContext perCtx = new PersistenceContext();
-        ConnectionProvider conprov = new StaticConnectionProvider(props);
         if (initSQL != null) {
             try {
                 Connection conn = conprov.getConnection(dbname, false);
@@ -76,6 +80,19 @@ public abstract class TestBase
         return perCtx;
     }
 
+    /**
+     * Creates the connection properties used to talk to the in-memory HSQL database {@code dbname}.
+     */
+    protected static Properties createConnectionProperties (String dbname)
+    {
+        Properties props = new Properties();
+        props.put("default.driver", "org.hsqldb.jdbcDriver");
+        props.put("default.url", "jdbc:hsqldb:mem:" + dbname);
+        props.put("default.username", "sa");
+        props.put("default.password", "");
+        return props;
+    }
+
     /**
      * If a test doesn't need any special repository setup, it can use this method to create a
      * fresh persistence context and test repository in one fell swoop.
@@ -0,0 +1,137 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import com.samskivert.depot.impl.KeyCacheKey;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests transactions.
+ */
+public class TransactionTest extends TestBase
+{
+    @Test
+    public void testCommit ()
+    {
+        int count = _repo.inTransaction(new Callable<Integer>() {
+            public Integer call () {
+                for (int ii = 1; ii <= 10; ii++) {
+                    _repo.insert(createTestRecord(ii));
+                }
+                TestRecord rec = _repo.loadNoCache(5);
+                rec.name = "Bob";
+                _repo.update(rec);
+                // the cache should not yet see our changes, but we should
+                assertNull(lookup(5));
+                assertEquals(1, _repo.loadAll(TestRecord.class, Arrays.asList(5)).size());
+                return _repo.from(TestRecord.class).selectCount();
+            }
+        });
+        assertEquals(10, count);
+
+        // now that we've committed, our changes should be visible in the cache and the database
+        assertNotNull(lookup(1));
+        assertEquals("Bob", lookup(5).name);
+        assertEquals("Bob", _repo.loadNoCache(5).name);
+        assertEquals(10, _repo.from(TestRecord.class).selectCount());
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test
+    public void testRollback ()
+    {
+        _repo.insert(createTestRecord(1));
+        try {
+            _repo.inTransaction(new Callable<Void>() {
+                public Void call () {
+                    _repo.insert(createTestRecord(2));
+                    _repo.delete(TestRecord.getKey(1));
+                    assertEquals(1, _repo.from(TestRecord.class).selectCount());
+                    throw new IllegalStateException("Changed my mind.");
+                }
+            });
+            fail("Transaction failed to propagate exception.");
+        } catch (IllegalStateException ise) {
+            // expected
+        }
+
+        // neither the database nor the cache should have seen our changes
+        assertNull(lookup(2));
+        assertNotNull(lookup(1));
+        assertNull(_repo.loadNoCache(2));
+        assertNotNull(_repo.loadNoCache(1));
+        assertEquals(1, _repo.from(TestRecord.class).selectCount());
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test
+    public void testNested ()
+    {
+        try {
+            _ctx.transaction(new Callable<Void>() {
+                public Void call () throws Exception {
+                    _repo.insert(createTestRecord(1));
+                    _ctx.transaction(new Callable<Void>() {
+                        public Void call () {
+                            _repo.insert(createTestRecord(2));
+                            return null;
+                        }
+                    });
+                    throw new Exception("Oops.");
+                }
+            });
+            fail("Transaction failed to propagate exception.");
+        } catch (DatabaseException de) {
+            assertEquals("Oops.", de.getCause().getMessage());
+        }
+        // the inner transaction joined the outer one, so both inserts were rolled back
+        assertEquals(0, _repo.from(TestRecord.class).selectCount());
+    }
+
+    @Test
+    public void testAsyncInTransaction ()
+    {
+        try {
+            _ctx.transaction(new Callable<Void>() {
+                public Void call () throws Exception {
+                    // async operations run inline so that they share the transaction
+                    ListenableFuture<Integer> insert = _repo.insertAsync(createTestRecord(1));
+                    assertTrue(insert.isDone());
+                    assertEquals(1, insert.get().intValue());
+                    ListenableFuture<Integer> count =
+                        _repo.from(TestRecord.class).selectCountAsync();
+                    assertEquals(1, count.get().intValue());
+                    throw new Exception("Oops.");
+                }
+            });
+            fail("Transaction failed to propagate exception.");
+        } catch (DatabaseException de) {
+            assertEquals("Oops.", de.getCause().getMessage());
+        }
+        // so the async insert was rolled back along with everything else
+        assertEquals(0, _repo.from(TestRecord.class).selectCount());
+    }
+
+    /** Looks up a record directly in the cache, bypassing any transaction in progress. */
+    protected TestRecord lookup (int recordId)
+    {
+        KeyCacheKey key = new KeyCacheKey(TestRecord.getKey(recordId));
+        CacheAdapter.CachedValue<TestRecord> value =
+            _ctx.getCacheAdapter().lookup(key.getCacheId(), key.getCacheKey());
+        return (value == null) ? null : value.getValue();
+    }
+
+    // the HSQL in-memory database persists for the lifetime of the VM, which means we have to
+    // clean up after ourselves in every test; thus we go ahead and share a repository
+    protected PersistenceContext _ctx = createPersistenceContext();
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
@@ -0,0 +1,82 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.Set;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests lookups by unique column through the record cache.
+ */
+public class UniqueKeyCacheTest extends TestBase
+{
+    @Test
+    public void testUniqueLookups ()
+    {
+        // inserting a record caches it, and with it, its handle
+        _repo.insert(new HandleRecord(1, "alice", "Alice"));
+        _repo.insert(new HandleRecord(2, "bob", "Bob"));
+        Stats.Snapshot before = _ctx.getStats();
+        assertEquals("Alice", loadByHandle("alice").name);
+        assertEquals(1, _ctx.getStats().cachedRecords - before.cachedRecords);
+        assertEquals(0, _ctx.getStats().uncachedRecords - before.uncachedRecords);
+
+        // lookups for unknown handles, or with the cache disabled, go to the database
+        assertNull(loadByHandle("carol"));
+        assertEquals("Bob", _repo.from(HandleRecord.class).noCache().
+                     where(HandleRecord.HANDLE, "bob").load().name);
+        assertEquals(2, _ctx.getStats().uncachedRecords - before.uncachedRecords);
+
+        // a record loaded from the database is then cached by handle
+        _ctx.cacheClear(HandleRecord.class, true);
+        before = _ctx.getStats();
+        assertEquals("Bob", loadByHandle("bob").name);
+        assertEquals("Bob", loadByHandle("bob").name);
+        assertEquals(1, _ctx.getStats().cachedRecords - before.cachedRecords);
+
+        // once a record's handle changes, its old handle no longer finds it
+        HandleRecord alice = loadByHandle("alice");
+        alice.handle = "alicia";
+        _repo.update(alice);
+        before = _ctx.getStats();
+        assertNull(loadByHandle("alice"));
+        assertEquals(1, loadByHandle("alicia").recordId);
+        assertEquals(1, loadByHandle("alicia").recordId);
+        assertEquals(2, _ctx.getStats().uncachedRecords - before.uncachedRecords);
+        assertEquals(1, _ctx.getStats().cachedRecords - before.cachedRecords);
+
+        // nor does a deleted record's handle
+        _repo.delete(alice);
+        assertNull(loadByHandle("alicia"));
+
+        _repo.from(HandleRecord.class).whereTrue().delete();
+    }
+
+    protected HandleRecord loadByHandle (String handle)
+    {
+        return _repo.from(HandleRecord.class).where(HandleRecord.HANDLE, handle).load();
+    }
+
+    protected static class HandleRepository extends DepotRepository
+    {
+        public HandleRepository (PersistenceContext perCtx)
+        {
+            super(perCtx);
+        }
+
+        @Override // from DepotRepository
+        protected void getManagedRecords (Set<Class<? extends PersistentRecord>> classes)
+        {
+            classes.add(HandleRecord.class);
+        }
+    }
+
+    // the HSQL in-memory database persists for the lifetime of the VM, which means we have to
+    // clean up after ourselves in every test; thus we go ahead and share a repository
+    protected PersistenceContext _ctx = createPersistenceContext();
+    protected HandleRepository _repo = new HandleRepository(_ctx);
+}
@@ -0,0 +1,124 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.depot.expression.ColumnExp;
+import com.samskivert.depot.impl.DepotMarshaller;
+import com.samskivert.depot.impl.FieldMarshaller;
+
+/**
+ * Compares reading the primitive columns of a result set into records via the boxed
+ * {@link FieldMarshaller#getFromSet}/{@link FieldMarshaller#writeToObject} path against the
+ * unboxed {@link FieldMarshaller#getAndWriteToObject} path, against an in-memory HSQLDB. This is
+ * not run as part of the unit tests; invoke it directly:
+ *
+ * <pre>
+ * java com.samskivert.depot.UnmarshalBenchmark [rows] [passes]
+ * </pre>
+ */
+public class UnmarshalBenchmark extends TestBase
+{
+    public static void main (String[] args)
+        throws Exception
+    {
+        int rows = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        int passes = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+        new UnmarshalBenchmark().run(rows, passes);
+    }
+
+    protected void run (int rows, int passes)
+        throws Exception
+    {
+        List<TestRecord> records = Lists.newArrayListWithCapacity(rows);
+        for (int ii = 1; ii <= rows; ii++) {
+            records.add(createTestRecord(ii));
+        }
+        _repo.insertAll(records);
+
+        // we only read the primitive columns, as that's where the two paths differ
+        DepotMarshaller<TestRecord> marsh = _ctx.getMarshaller(TestRecord.class);
+        List<FieldMarshaller<?>> fields = Lists.newArrayList();
+        for (ColumnExp<?> column : marsh.getColumnFieldNames()) {
+            FieldMarshaller<?> fm = marsh.getFieldMarshaller(column.name);
+            if (fm.getField().getType().isPrimitive()) {
+                fields.add(fm);
+            }
+        }
+
+        Connection conn = DriverManager.getConnection("jdbc:hsqldb:mem:" + DBNAME, "sa", "");
+        try {
+            PreparedStatement stmt = conn.prepareStatement(
+                "select * from \"" + marsh.getTableName() + "\"");
+            for (int pass = 0; pass < passes; pass++) {
+                boolean report = (pass >= passes/2); // the first half is warm up
+                // alternate which path goes first so that neither benefits from running second
+                boolean boxedFirst = (pass % 2 == 0);
+                long first = time(stmt, fields, boxedFirst);
+                long second = time(stmt, fields, !boxedFirst);
+                long boxed = boxedFirst ? first : second, unboxed = boxedFirst ? second : first;
+                if (report) {
+                    System.out.println(rows + " rows x " + fields.size() + " columns: boxed " +
+                                       rate(rows, boxed) + " rows/s, unboxed " +
+                                       rate(rows, unboxed) + " rows/s");
+                }
+            }
+        } finally {
+            conn.close();
+            _repo.from(TestRecord.class).whereTrue().delete(null);
+        }
+    }
+
+    protected long time (PreparedStatement stmt, List<FieldMarshaller<?>> fields, boolean boxed)
+        throws Exception
+    {
+        ResultSet rs = stmt.executeQuery();
+        long start = System.nanoTime();
+        // both paths look columns up by index, as DepotMarshaller does
+        int[] indices = new int[fields.size()];
+        for (int ii = 0; ii < indices.length; ii++) {
+            indices[ii] = rs.findColumn(fields.get(ii).getColumnName());
+        }
+        while (rs.next()) {
+            TestRecord record = new TestRecord();
+            for (int ii = 0; ii < indices.length; ii++) {
+                FieldMarshaller<?> fm = fields.get(ii);
+                if (boxed) {
+                    copyBoxed(fm, rs, indices[ii], record);
+                } else {
+                    fm.getAndWriteToObject(rs, indices[ii], record);
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        rs.close();
+        return elapsed;
+    }
+
+    protected static <V> void copyBoxed (FieldMarshaller<V> fm, ResultSet rs, int index,
+                                         Object po)
+        throws SQLException, IllegalAccessException
+    {
+        fm.writeToObject(po, fm.getFromSet(rs, index));
+    }
+
+    protected static long rate (int rows, long nanos)
+    {
+        return rows * 1000000000L / Math.max(nanos, 1);
+    }
+
+    protected static final String DBNAME = "unmarshalbench";
+
+    protected PersistenceContext _ctx = createPersistenceContext(DBNAME);
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
@@ -0,0 +1,123 @@
+//
+// Depot library - a Java relational persistence library
+// http://code.google.com/p/depot/source/browse/trunk/LICENSE
+
+package com.samskivert.depot;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+
+import com.samskivert.depot.impl.DepotMarshaller;
+import com.samskivert.depot.impl.DepotTypes;
+import com.samskivert.depot.impl.KeyCacheKey;
+import com.samskivert.depot.impl.MySQLBuilder;
+import com.samskivert.depot.impl.PostgreSQLBuilder;
+import com.samskivert.depot.impl.SQLBuilder;
+import com.samskivert.depot.impl.clause.UpsertClause;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests storing records via upsert.
+ */
+public class UpsertTest extends TestBase
+{
+    @Test
+    public void testStore ()
+    {
+        TestRecord in = createTestRecord(1);
+        assertTrue(_repo.store(in));
+        assertTestRecordEquals(in, _repo.loadNoCache(1));
+
+        in.name = "Bob";
+        assertFalse(_repo.store(in));
+        assertEquals("Bob", _repo.loadNoCache(1).name);
+        assertEquals(1, _repo.from(TestRecord.class).selectCount());
+
+        // the cache should reflect the stored record
+        TestRecord cached = _ctx.cacheLookup(new KeyCacheKey(TestRecord.getKey(1)));
+        assertEquals("Bob", cached.name);
+
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test
+    public void testDialects ()
+    {
+        String sql = buildUpsert(new MySQLBuilder(getTypes()));
+        assertTrue(sql, sql.startsWith("insert into TestRecord ("));
+        assertTrue(sql, sql.contains(" on duplicate key update `name` = values(`name`)"));
+        assertFalse(sql, sql.contains("`recordId` = values("));
+
+        sql = buildUpsert(new PostgreSQLBuilder(getTypes()));
+        assertTrue(sql, sql.startsWith("insert into \"TestRecord\" ("));
+        assertTrue(sql, sql.contains(" on conflict (\"recordId\") do update set "));
+        assertTrue(sql, sql.contains("\"name\" = excluded.\"name\""));
+        assertTrue(sql, sql.endsWith(" returning (xmax = 0)"));
+    }
+
+    @Test
+    public void testMySQLRestrictions ()
+        throws SQLException
+    {
+        DepotTypes types = getTypes();
+        types.addClass(_ctx, HandleRecord.class);
+        MySQLBuilder builder = new MySQLBuilder(types);
+        Connection affected = withURL("jdbc:mysql://localhost/test?useAffectedRows=true");
+        assertTrue(builder.supportsUpsert(affected, TestRecord.class));
+        // a collision on another unique column must not overwrite some other row
+        assertFalse(builder.supportsUpsert(affected, HandleRecord.class));
+        // without affected rows, an unchanged update is indistinguishable from an insert
+        assertFalse(builder.supportsUpsert(
+                        withURL("jdbc:mysql://localhost/test"), TestRecord.class));
+    }
+
+    protected Connection withURL (final String url)
+    {
+        final DatabaseMetaData meta = (DatabaseMetaData)Proxy.newProxyInstance(
+            DatabaseMetaData.class.getClassLoader(), new Class<?>[] { DatabaseMetaData.class },
+            new InvocationHandler() {
+                public Object invoke (Object proxy, Method method, Object[] args) {
+                    assertEquals("getURL", method.getName());
+                    return url;
+                }
+            });
+        return (Connection)Proxy.newProxyInstance(
+            Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+            new InvocationHandler() {
+                public Object invoke (Object proxy, Method method, Object[] args) {
+                    assertEquals("getMetaData", method.getName());
+                    return meta;
+                }
+            });
+    }
+
+    protected DepotTypes getTypes ()
+    {
+        return DepotTypes.getDepotTypes(_ctx, newUpsert());
+    }
+
+    protected String buildUpsert (SQLBuilder builder)
+    {
+        builder.newQuery(newUpsert());
+        return builder.getQuery();
+    }
+
+    protected UpsertClause newUpsert ()
+    {
+        DepotMarshaller<TestRecord> marsh = _ctx.getMarshaller(TestRecord.class);
+        TestRecord record = createTestRecord(1);
+        return new UpsertClause(
+            TestRecord.class, TestRecord.getKey(1), marsh.getColumnFieldNames(), record);
+    }
+
+    // the HSQL in-memory database persists for the lifetime of the VM, which means we have to
+    // clean up after ourselves in every test; thus we go ahead and share a repository
+    protected PersistenceContext _ctx = createPersistenceContext();
+    protected TestRepository _repo = new TestRepository(_ctx);
+}